@@ -0,0 +1,95 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.MainNetParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserializing a stream of messages the way a peer connection does. The stream is what a node sees for one block:
+ * an inv of its transactions, each transaction on its own, a headers message of up to 2000 headers and then the
+ * block, built from the bundled main net data. Results are per stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitcoinSerializerBenchmark {
+    private final NetworkParameters params = MainNetParams.get();
+    private final BitcoinSerializer serializer = new BitcoinSerializer(params);
+
+    /** Where the stream is read from: a heap buffer, or a direct one like the network code uses. */
+    @Param({"heap", "direct"})
+    public String buffer;
+
+    private ByteBuffer stream;
+    private BitcoinSerializer.BitcoinPacketHeader blockHeader;
+    private byte[] blockPayload;
+
+    @Setup
+    public void setup() throws Exception {
+        blockPayload = Fixtures.resource("block169482.dat");
+        Block block = new Block(params, blockPayload, false, false, blockPayload.length);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InventoryMessage inv = new InventoryMessage(params);
+        for (Transaction tx : block.getTransactions())
+            inv.addTransaction(tx);
+        serializer.serialize(inv, bos);
+        for (Transaction tx : block.getTransactions())
+            serializer.serialize(tx, bos);
+        List<byte[]> chain = Fixtures.bitcoinHeaders();
+        List<Block> headers = new ArrayList<Block>();
+        for (byte[] header : chain.subList(0, Math.min(chain.size(), HeadersMessage.MAX_HEADERS)))
+            headers.add(new Block(params, header, false, false, header.length));
+        serializer.serialize(new HeadersMessage(params, headers.toArray(new Block[headers.size()])), bos);
+        int blockOffset = bos.size();
+        serializer.serialize(block, bos);
+        byte[] bytes = bos.toByteArray();
+        stream = buffer.equals("direct") ? ByteBuffer.allocateDirect(bytes.length) : ByteBuffer.allocate(bytes.length);
+        stream.put(bytes);
+
+        ByteBuffer blockMessage = ByteBuffer.wrap(bytes, blockOffset, bytes.length - blockOffset);
+        serializer.seekPastMagicBytes(blockMessage);
+        blockHeader = serializer.deserializeHeader(blockMessage);
+        System.out.println("Stream of " + (block.getTransactions().size() + 3) + " messages, " + bytes.length +
+                " bytes");
+    }
+
+    @Benchmark
+    public int readStream() throws Exception {
+        stream.rewind();
+        int messages = 0;
+        while (stream.hasRemaining()) {
+            serializer.deserialize(stream);
+            messages++;
+        }
+        return messages;
+    }
+
+    /** A block too large for the network buffer, which the connection has already read into an array of its own. */
+    @Benchmark
+    public Message readLargeBlock() throws Exception {
+        return serializer.deserializePayload(blockHeader, blockPayload, null);
+    }
+}
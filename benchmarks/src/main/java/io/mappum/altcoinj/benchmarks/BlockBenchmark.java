@@ -0,0 +1,95 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.NetworkParameters;
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Transaction;
+import io.mappum.altcoinj.params.DashMainNetParams;
+import io.mappum.altcoinj.params.DogecoinMainNetParams;
+import io.mappum.altcoinj.params.LitecoinMainNetParams;
+import io.mappum.altcoinj.params.MainNetParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Block parsing, hashing and transaction serialization over a real main net block of each chain. Results are per
+ * block, so divide by the transaction count printed at setup for a per transaction figure. The altcoin blocks are
+ * only their genesis blocks so far, see {@link Fixtures}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBenchmark {
+    @Param({"bitcoin", "litecoin", "dogecoin", "dash"})
+    public String chain;
+
+    private NetworkParameters params;
+    private byte[] blockBytes;
+    private List<Transaction> transactions;
+
+    @Setup
+    public void setup() throws Exception {
+        String name;
+        if (chain.equals("bitcoin")) {
+            params = MainNetParams.get();
+            name = "block169482.dat";
+        } else {
+            if (chain.equals("litecoin"))
+                params = LitecoinMainNetParams.get();
+            else if (chain.equals("dogecoin"))
+                params = DogecoinMainNetParams.get();
+            else if (chain.equals("dash"))
+                params = DashMainNetParams.get();
+            else
+                throw new IllegalArgumentException("Unknown chain " + chain);
+            name = "block-" + chain + ".dat";
+        }
+        blockBytes = Fixtures.resource(name);
+        // Parsed without retaining the payload, so serializing the transactions really writes them out.
+        Block block = new Block(params, blockBytes, false, false, blockBytes.length);
+        transactions = block.getTransactions();
+        System.out.println(name + ": " + blockBytes.length + " bytes, " + transactions.size() + " transactions");
+    }
+
+    @Benchmark
+    public Block parseLazy() throws Exception {
+        return new Block(params, blockBytes, true, true, blockBytes.length);
+    }
+
+    @Benchmark
+    public List<Transaction> parseFull() throws Exception {
+        return new Block(params, blockBytes, false, false, blockBytes.length).getTransactions();
+    }
+
+    @Benchmark
+    public Sha256Hash parseAndHashHeader() throws Exception {
+        return new Block(params, blockBytes, true, true, blockBytes.length).getHash();
+    }
+
+    @Benchmark
+    public int serializeTransactions() {
+        int total = 0;
+        for (Transaction tx : transactions)
+            total += tx.bitcoinSerialize().length;
+        return total;
+    }
+}
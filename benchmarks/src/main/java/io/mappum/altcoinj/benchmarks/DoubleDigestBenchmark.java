@@ -0,0 +1,88 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Double SHA-256 of block headers from all available cores at once, to show how {@link Utils#doubleDigest(byte[])}
+ * scales now that it no longer locks a single shared digest. {@link #sharedDigest} is the old implementation for
+ * comparison. Run with {@code -t 1}, {@code -t 2} and so on to see the curve.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(Threads.MAX)
+public class DoubleDigestBenchmark {
+    @State(Scope.Benchmark)
+    public static class Shared {
+        final MessageDigest digest;
+
+        public Shared() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private List<byte[]> headers;
+    private int next;
+    private final byte[] out = new byte[32];
+
+    @Setup
+    public void setup() {
+        headers = Fixtures.bitcoinHeaders();
+    }
+
+    private byte[] nextHeader() {
+        byte[] header = headers.get(next);
+        next = (next + 1) % headers.size();
+        return header;
+    }
+
+    @Benchmark
+    public byte[] doubleDigest() {
+        return Utils.doubleDigest(nextHeader());
+    }
+
+    @Benchmark
+    public byte[] doubleDigestInto() {
+        byte[] header = nextHeader();
+        Utils.doubleDigestInto(header, 0, header.length, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] sharedDigest(Shared shared) {
+        byte[] header = nextHeader();
+        MessageDigest digest = shared.digest;
+        synchronized (digest) {
+            digest.reset();
+            digest.update(header, 0, header.length);
+            byte[] first = digest.digest();
+            return digest.digest(first);
+        }
+    }
+}
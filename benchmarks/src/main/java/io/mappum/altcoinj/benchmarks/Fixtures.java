@@ -0,0 +1,109 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Utils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the block and header data the benchmarks run on. These are real chain data bundled as resources next to this
+ * class, so results reflect what the node actually sees during sync rather than random bytes.
+ *
+ * <ul>
+ *     <li>{@code headers-<chain>.txt}: 80 byte headers in hex, one per line, {@code #} starts a comment. More captured
+ *     headers can simply be appended.</li>
+ *     <li>{@code first-100k-blocks.dat}: the first blocks of the Bitcoin main chain in bitcoind's blk*.dat layout.</li>
+ *     <li>{@code block169482.dat}: a single Bitcoin main net block with a few hundred transactions.</li>
+ *     <li>{@code block-<chain>.dat}: a single serialized block of that chain. For now these are the genesis blocks,
+ *     with their coinbase transaction, as no later block has been captured yet. A busier block can simply replace the
+ *     file.</li>
+ * </ul>
+ */
+public class Fixtures {
+    public static final int HEADER_LENGTH = 80;
+
+    private static final long MAIN_NET_MAGIC = 0xf9beb4d9L;
+
+    /** Returns the raw bytes of the named resource. */
+    public static byte[] resource(String name) {
+        try {
+            return Resources.toByteArray(url(name));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Returns the headers listed in {@code headers-<chain>.txt}, each as a fresh 80 byte array. */
+    public static List<byte[]> headers(String chain) {
+        List<String> lines;
+        try {
+            lines = Resources.readLines(url("headers-" + chain + ".txt"), Charsets.US_ASCII);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        List<byte[]> headers = new ArrayList<byte[]>();
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            byte[] header = Utils.HEX.decode(line);
+            if (header.length != HEADER_LENGTH)
+                throw new IllegalStateException("Not a block header in headers-" + chain + ".txt: " + line);
+            headers.add(header);
+        }
+        if (headers.isEmpty())
+            throw new IllegalStateException("No headers in headers-" + chain + ".txt");
+        return headers;
+    }
+
+    /** Returns the serialized blocks of the Bitcoin main chain in {@code first-100k-blocks.dat}, in order. */
+    public static List<byte[]> bitcoinBlocks() {
+        byte[] file = resource("first-100k-blocks.dat");
+        List<byte[]> blocks = new ArrayList<byte[]>();
+        int cursor = 0;
+        while (cursor + 8 <= file.length) {
+            if (Utils.readUint32BE(file, cursor) != MAIN_NET_MAGIC)
+                throw new IllegalStateException("Bad magic at offset " + cursor);
+            int size = (int) Utils.readUint32(file, cursor + 4);
+            cursor += 8;
+            byte[] block = new byte[size];
+            System.arraycopy(file, cursor, block, 0, size);
+            blocks.add(block);
+            cursor += size;
+        }
+        return blocks;
+    }
+
+    /** Returns the headers of {@link #bitcoinBlocks()}. */
+    public static List<byte[]> bitcoinHeaders() {
+        List<byte[]> headers = new ArrayList<byte[]>();
+        for (byte[] block : bitcoinBlocks()) {
+            byte[] header = new byte[HEADER_LENGTH];
+            System.arraycopy(block, 0, header, 0, HEADER_LENGTH);
+            headers.add(header);
+        }
+        return headers;
+    }
+
+    private static URL url(String name) {
+        return Resources.getResource(Fixtures.class, name);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.UnitTestParams;
+import io.mappum.altcoinj.script.Script;
+import io.mappum.altcoinj.store.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Replays a synthetic chain through {@link FullPrunedBlockChain} on each of the full pruned block stores, starting
+ * from an empty store every time. Every block has a coinbase and transactions that each spend an earlier output and
+ * create two new ones, so the time is mostly spent looking up, adding and removing unspent outputs. Scripts are not
+ * run and difficulty is not retargeted, neither has anything to do with the store. The cached backends put a
+ * {@link CachingFullPrunedBlockStore} with its default settings in front, and the time includes its final write back
+ * on close.</p>
+ *
+ * <p>Postgres is left out by default as it needs a server, add it with {@code -p backend=postgres} and point it at an
+ * empty database with the {@code altcoinj.bench.pg.host}, {@code .db}, {@code .user} and {@code .password} system
+ * properties (with {@code -jvmArgsAppend}).</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FullPrunedStoreBenchmark {
+    // Unit test parameters that never retarget or halve the subsidy, so chains of any length are easy to make. The
+    // genesis block is a year old so that a block a second doesn't run into the future.
+    private static class ReplayParams extends UnitTestParams {
+        ReplayParams() {
+            interval = Integer.MAX_VALUE;
+            subsidyDecreaseBlockCount = Integer.MAX_VALUE;
+            genesisBlock.setTime(Utils.currentTimeSeconds() - 365 * 24 * 60 * 60);
+            genesisBlock.solve();
+        }
+    }
+
+    private static class Spendable {
+        final TransactionOutPoint outPoint;
+        final Coin value;
+        final int spendableFrom;
+
+        Spendable(TransactionOutPoint outPoint, Coin value, int spendableFrom) {
+            this.outPoint = outPoint;
+            this.value = value;
+            this.spendableFrom = spendableFrom;
+        }
+    }
+
+    @Param({"memory", "h2", "h2-cached", "lsm"})
+    public String backend;
+
+    @Param({"2000"})
+    public int blocks;
+
+    @Param({"20"})
+    public int transactionsPerBlock;
+
+    private final NetworkParameters params = new ReplayParams();
+    private final List<Block> chain = new ArrayList<Block>();
+    private File dir;
+    private FullPrunedBlockStore store;
+    private FullPrunedBlockChain blockChain;
+
+    @Setup(Level.Trial)
+    public void generateChain() throws Exception {
+        ECKey key = new ECKey();
+        Address address = key.toAddress(params);
+        byte[] inputScript = Script.createInputScript(new byte[71], key.getPubKey());
+        ArrayDeque<Spendable> spendable = new ArrayDeque<Spendable>();
+        ArrayDeque<Spendable> immatureCoinbases = new ArrayDeque<Spendable>();
+        Block prev = params.getGenesisBlock();
+        int outputs = 0;
+        for (int height = 1; height <= blocks; height++) {
+            Block block = prev.createNextBlockWithCoinbase(key.getPubKey(), Coin.FIFTY_COINS);
+            Transaction coinbase = block.getTransactions().get(0);
+            immatureCoinbases.add(new Spendable(new TransactionOutPoint(params, 0, coinbase.getHash()),
+                    Coin.FIFTY_COINS, height + params.getSpendableCoinbaseDepth()));
+            while (immatureCoinbases.peek().spendableFrom <= height)
+                spendable.add(immatureCoinbases.poll());
+            for (int i = 0; i < transactionsPerBlock && !spendable.isEmpty(); i++) {
+                if (spendable.peek().spendableFrom > height)
+                    break;
+                Spendable in = spendable.poll();
+                Transaction tx = new Transaction(params);
+                tx.addInput(new TransactionInput(params, tx, inputScript, in.outPoint));
+                int split = in.value.value > 1 ? 2 : 1;
+                for (int j = 0; j < split; j++)
+                    tx.addOutput(Coin.valueOf(in.value.value / split), address);
+                for (int j = 0; j < split; j++) {
+                    spendable.add(new Spendable(new TransactionOutPoint(params, j, tx.getHash()),
+                            Coin.valueOf(in.value.value / split), height + 1));
+                }
+                block.addTransaction(tx);
+                outputs += split;
+            }
+            block.setTime(prev.getTimeSeconds() + 1);
+            block.solve();
+            chain.add(block);
+            prev = block;
+        }
+        System.out.println("Replaying " + blocks + " blocks creating " + outputs + " outputs besides the coinbases");
+    }
+
+    @Setup(Level.Invocation)
+    public void openStore() throws Exception {
+        dir = File.createTempFile("fullprunedbench", null);
+        dir.delete();
+        dir.mkdir();
+        store = createStore();
+        blockChain = new FullPrunedBlockChain(params, store);
+        blockChain.setRunScripts(false);
+    }
+
+    private FullPrunedBlockStore createStore() throws Exception {
+        // Deep enough that no undo data is pruned, which is the same work for every store.
+        int depth = blocks + 1;
+        if (backend.equals("memory"))
+            return new MemoryFullPrunedBlockStore(params, depth);
+        if (backend.equals("h2"))
+            return new H2FullPrunedBlockStore(params, new File(dir, "chain").getPath(), depth);
+        if (backend.equals("h2-cached"))
+            return new CachingFullPrunedBlockStore(
+                    new H2FullPrunedBlockStore(params, new File(dir, "chain").getPath(), depth));
+        if (backend.equals("lsm"))
+            return new LsmFullPrunedBlockStore(params, new File(dir, "chain"), depth);
+        if (backend.equals("postgres")) {
+            PostgresFullPrunedBlockStore postgres = new PostgresFullPrunedBlockStore(params, depth,
+                    System.getProperty("altcoinj.bench.pg.host", "localhost"),
+                    System.getProperty("altcoinj.bench.pg.db", "altcoinj_bench"),
+                    System.getProperty("altcoinj.bench.pg.user", "postgres"),
+                    System.getProperty("altcoinj.bench.pg.password", ""));
+            postgres.resetStore();
+            return postgres;
+        }
+        throw new IllegalArgumentException("Unknown backend " + backend);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteStore() throws Exception {
+        delete(dir);
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        if (!file.delete())
+            throw new IOException("Could not delete " + file);
+    }
+
+    @Benchmark
+    public StoredBlock replay() throws Exception {
+        for (Block block : chain) {
+            if (!blockChain.add(block))
+                throw new IllegalStateException("Block did not connect: " + block.getHashAsString());
+        }
+        store.close();
+        return blockChain.getChainHead();
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Utils;
+import io.mappum.altcoinj.pows.Sha256ProofOfWork;
+import fr.cryptohash.BLAKE512;
+import fr.cryptohash.Digest;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SHA-256 primitives behind block and transaction hashing, and the individual stages of X11 so a change in one
+ * of them shows up on its own rather than only in {@link X11Benchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    private final Sha256ProofOfWork sha256 = new Sha256ProofOfWork();
+    private List<byte[]> headers;
+    private int next;
+    private byte[] block;
+
+    @Setup
+    public void setup() {
+        headers = Fixtures.bitcoinHeaders();
+        block = Fixtures.resource("block169482.dat");
+    }
+
+    /** One X11 stage, kept in its own state so the parameter doesn't multiply the SHA-256 runs. */
+    @State(Scope.Thread)
+    public static class Stage {
+        /** The X11 stages, by their class name in {@code fr.cryptohash}. */
+        @Param({"BLAKE512", "BMW512", "Groestl512", "Skein512", "JH512", "Keccak512", "Luffa512", "CubeHash512",
+                "SHAvite512", "SIMD512", "ECHO512"})
+        public String digest;
+
+        private Digest engine;
+        private final byte[] input = new byte[64];
+
+        @Setup
+        public void setup() throws Exception {
+            engine = (Digest) Class.forName("fr.cryptohash." + digest).newInstance();
+            // Every stage after the first hashes the 64 byte output of the one before, so feed it 64 bytes.
+            byte[] header = Fixtures.headers("dash").get(0);
+            System.arraycopy(new BLAKE512().digest(header), 0, input, 0, 64);
+        }
+    }
+
+    private byte[] nextHeader() {
+        byte[] header = headers.get(next);
+        next = (next + 1) % headers.size();
+        return header;
+    }
+
+    @Benchmark
+    public Sha256Hash sha256ProofOfWork() {
+        return sha256.hash(nextHeader());
+    }
+
+    @Benchmark
+    public byte[] doubleDigestHeader() {
+        return Utils.doubleDigest(nextHeader());
+    }
+
+    @Benchmark
+    public byte[] doubleDigestBlock() {
+        return Utils.doubleDigest(block);
+    }
+
+    @Benchmark
+    public byte[] x11Stage(Stage stage) {
+        return stage.engine.digest(stage.input);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Utils;
+import io.mappum.altcoinj.pows.ScryptProofOfWork;
+import com.lambdaworks.crypto.SCrypt;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes per second of the specialised scrypt(1024, 1, 1) header hasher used by {@link ScryptProofOfWork}, against
+ * the generic lambdaworks implementation it used to call for every header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScryptBenchmark {
+    private final ScryptProofOfWork pow = new ScryptProofOfWork(1024, 1, 1, 32);
+
+    /** Both chains use the same scrypt parameters, so these should agree. */
+    @Param({"litecoin", "dogecoin"})
+    public String chain;
+
+    private List<byte[]> headers;
+    private int next;
+    private final byte[] header = new byte[Fixtures.HEADER_LENGTH];
+    private long nonce;
+
+    @Setup
+    public void setup() {
+        headers = Fixtures.headers(chain);
+    }
+
+    // The fixture headers in turn, each with a fresh nonce so that no two calls hash the same bytes.
+    private byte[] nextHeader() {
+        System.arraycopy(headers.get(next), 0, header, 0, Fixtures.HEADER_LENGTH);
+        next = (next + 1) % headers.size();
+        Utils.uint32ToByteArrayLE(nonce++ & 0xFFFFFFFFL, header, 76);
+        return header;
+    }
+
+    @Benchmark
+    public Sha256Hash specialised() {
+        return pow.hash(nextHeader());
+    }
+
+    @Benchmark
+    public byte[] generic() throws GeneralSecurityException {
+        // What ScryptProofOfWork used to do. This may pick up the native library if one is available.
+        byte[] h = nextHeader();
+        return SCrypt.scrypt(h, h, 1024, 1, 1, 32);
+    }
+
+    @Benchmark
+    public byte[] genericPureJava() throws GeneralSecurityException {
+        byte[] h = nextHeader();
+        return SCrypt.scryptJ(h, h, 1024, 1, 1, 32);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Uint256;
+import io.mappum.altcoinj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per header difficulty arithmetic: comparing the hash against the target and working out the block's work,
+ * done with {@link Uint256} as the library does now, and with {@link BigInteger} as it used to.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetBenchmark {
+    private static final BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+
+    private byte[][] hashes;
+    private long[] targets;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<byte[]> headers = Fixtures.bitcoinHeaders();
+        hashes = new byte[headers.size()][];
+        targets = new long[headers.size()];
+        for (int i = 0; i < headers.size(); i++) {
+            hashes[i] = Utils.reverseBytes(Utils.doubleDigest(headers.get(i)));
+            targets[i] = Utils.readUint32(headers.get(i), 72);
+        }
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = (next + 1) % hashes.length;
+        return i;
+    }
+
+    @Benchmark
+    public boolean checkUint256() {
+        int i = nextIndex();
+        return Uint256.fromBytes(hashes[i]).compareTo(Uint256.fromCompactBits(targets[i])) <= 0;
+    }
+
+    @Benchmark
+    public boolean checkBigInteger() {
+        int i = nextIndex();
+        return new BigInteger(1, hashes[i]).compareTo(Utils.decodeCompactBits(targets[i])) <= 0;
+    }
+
+    @Benchmark
+    public Uint256 workUint256() {
+        return Uint256.fromCompactBits(targets[nextIndex()]).work();
+    }
+
+    @Benchmark
+    public BigInteger workBigInteger() {
+        return LARGEST_HASH.divide(Utils.decodeCompactBits(targets[nextIndex()]).add(BigInteger.ONE));
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.benchmarks;
+
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Utils;
+import io.mappum.altcoinj.pows.X11ProofOfWork;
+import fr.cryptohash.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the reusable X11 engine in {@link X11ProofOfWork} against the original implementation, which allocated
+ * eleven fresh digests and a new buffer per stage for every header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class X11Benchmark {
+    private final X11ProofOfWork pow = new X11ProofOfWork();
+    private List<byte[]> headers;
+    private int next;
+    private final byte[] header = new byte[Fixtures.HEADER_LENGTH];
+    private long nonce;
+
+    @Setup
+    public void setup() {
+        headers = Fixtures.headers("dash");
+    }
+
+    // The fixture headers in turn, each with a fresh nonce so that no two calls hash the same bytes.
+    private byte[] nextHeader() {
+        System.arraycopy(headers.get(next), 0, header, 0, Fixtures.HEADER_LENGTH);
+        next = (next + 1) % headers.size();
+        Utils.uint32ToByteArrayLE(nonce++ & 0xFFFFFFFFL, header, 76);
+        return header;
+    }
+
+    @Benchmark
+    public Sha256Hash reusableEngine() {
+        return pow.hash(nextHeader());
+    }
+
+    @Benchmark
+    public Sha256Hash allocatingChain() {
+        byte[] digest;
+        digest = new BLAKE512().digest(nextHeader());
+        digest = new BMW512().digest(digest);
+        digest = new Groestl512().digest(digest);
+        digest = new Skein512().digest(digest);
+        digest = new JH512().digest(digest);
+        digest = new Keccak512().digest(digest);
+        digest = new Luffa512().digest(digest);
+        digest = new CubeHash512().digest(digest);
+        digest = new SHAvite512().digest(digest);
+        digest = new SIMD512().digest(digest);
+        digest = new ECHO512().digest(digest);
+        return new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(digest, 0, 32)));
+    }
+}
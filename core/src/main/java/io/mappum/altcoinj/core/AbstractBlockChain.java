@@ -836,6 +836,7 @@ public abstract class AbstractBlockChain {
      */
     private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
         checkState(lock.isHeldByCurrentThread());
+        params.getRetargetAnchors().observe(storedPrev);
         params.checkDifficulty(storedPrev, nextBlock, blockStore);
     }
 
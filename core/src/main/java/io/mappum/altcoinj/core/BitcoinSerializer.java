@@ -20,14 +20,18 @@ package io.mappum.altcoinj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static io.mappum.altcoinj.core.Utils.*;
 
 /**
@@ -40,7 +44,12 @@ import static io.mappum.altcoinj.core.Utils.*;
  * <li>The proper Class instance needs to be mapped to its message name in the names variable below</li>
  * <li>There needs to be a constructor matching: NetworkParameters params, byte[] payload</li>
  * <li>Message.bitcoinSerializeToStream() needs to be properly subclassed</li>
+ * <li>The message name needs a {@link Command} and a case in makeMessage to be deserialized</li>
  * </ul>
+ *
+ * <p>Blocks, transactions, inventories and headers in a buffer with a backing array are parsed where they are, without
+ * copying the payload out first, unless the serializer is in lazy or retain mode, as then the messages keep a reference
+ * to the bytes they were parsed from.</p>
  */
 public class BitcoinSerializer {
     private static final Logger log = LoggerFactory.getLogger(BitcoinSerializer.class);
@@ -75,6 +84,54 @@ public class BitcoinSerializer {
         names.put(UTXOsMessage.class, "utxos");
     }
 
+    /**
+     * The commands that can be deserialized. The packet header looks its command up in here, which spares it creating
+     * a string for every message and lets makeMessage switch on the command rather than compare strings.
+     */
+    enum Command {
+        VERSION("version"), INV("inv", true), BLOCK("block", true), MERKLEBLOCK("merkleblock"),
+        GETDATA("getdata"), GETBLOCKS("getblocks"), GETHEADERS("getheaders"), TX("tx", true), ADDR("addr"),
+        PING("ping"), PONG("pong"), VERACK("verack"), HEADERS("headers", true), ALERT("alert"),
+        FILTERLOAD("filterload"), NOTFOUND("notfound"), MEMPOOL("mempool"), REJECT("reject"), UTXOS("utxos"),
+        GETUTXOS("getutxos");
+
+        // The commands of each length, as they appear in the header.
+        private static final List<List<Command>> byLength = new ArrayList<List<Command>>();
+
+        static {
+            for (int i = 0; i <= COMMAND_LEN; i++)
+                byLength.add(new ArrayList<Command>());
+            for (Command command : values())
+                byLength.get(command.name.length()).add(command);
+        }
+
+        final String name;
+        // Whether the message can be parsed from an offset into a larger array.
+        final boolean offsetParse;
+
+        Command(String name) {
+            this(name, false);
+        }
+
+        Command(String name, boolean offsetParse) {
+            this.name = name;
+            this.offsetParse = offsetParse;
+        }
+
+        /** Returns the command in the first length bytes of the header, or null if it isn't one we know. */
+        @Nullable
+        static Command lookup(byte[] header, int length) {
+            for (Command command : byLength.get(length)) {
+                int i = 0;
+                while (i < length && header[i] == command.name.charAt(i))
+                    i++;
+                if (i == length)
+                    return command;
+            }
+            return null;
+        }
+    }
+
     /**
      * Constructs a BitcoinSerializer with the given behavior.
      *
@@ -169,81 +226,135 @@ public class BitcoinSerializer {
      * {@link BitcoinSerializer#deserializeHeader}.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        if (in.remaining() < header.size)
+            throw new BufferUnderflowException();
+        if (in.hasArray() && !parseLazy && !parseRetain && header.knownCommand != null
+                && header.knownCommand.offsetParse) {
+            // Fully parsed messages don't keep the bytes, so they can be read straight out of the buffer.
+            byte[] array = in.array();
+            int offset = in.arrayOffset() + in.position();
+            byte[] hash = doubleDigest(array, offset, header.size);
+            verifyChecksum(header, hash);
+            in.position(in.position() + header.size);
+            Message message = makeMessage(header, array, offset, hash);
+            // The checks while parsing only stop it running off the end of the array, not the end of the payload.
+            if (message.getMessageSize() > header.size)
+                throw new ProtocolException("Message of " + message.getMessageSize() + " bytes in a payload of " +
+                        header.size);
+            return message;
+        }
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, null);
+    }
+
+    /**
+     * Deserializes a payload the caller has read into an array of its own, such as a message too large to fit in the
+     * network buffer. The message may keep a reference to the array, so it must not be changed afterwards.
+     *
+     * @param hash The double SHA-256 of the payload if the caller already worked it out, for instance while the payload
+     *             was arriving, or null to have it calculated here.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payload, @Nullable byte[] hash)
+            throws ProtocolException {
+        checkArgument(payload.length == header.size, "Payload of %s bytes for a header of %s", payload.length,
+                header.size);
+        if (hash == null)
+            hash = doubleDigest(payload);
+        verifyChecksum(header, hash);
+        return makeMessage(header, payload, 0, hash);
+    }
 
-        // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
+    private static void verifyChecksum(BitcoinPacketHeader header, byte[] hash) throws ProtocolException {
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
                     HEX.encode(hash) +
                     " vs " + HEX.encode(header.checksum));
         }
+    }
 
+    private Message makeMessage(BitcoinPacketHeader header, byte[] payload, int offset, byte[] hash)
+            throws ProtocolException {
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", header.size, header.command,
-                    HEX.encode(payloadBytes));
+                    HEX.encode(payload, offset, header.size));
         }
 
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            return makeMessage(header.knownCommand, header.command, header.size, payload, offset, hash,
+                    header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + HEX.encode(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " + HEX.encode(payload, offset, header.size) +
+                    "\n", e);
         }
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
-        Message message;
-        if (command.equals("version")) {
-            return new VersionMessage(params, payloadBytes);
-        } else if (command.equals("inv")) {
-            message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("block")) {
-            message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("merkleblock")) {
-            message = new FilteredBlock(params, payloadBytes);
-        } else if (command.equals("getdata")) {
-            message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("getblocks")) {
-            message = new GetBlocksMessage(params, payloadBytes);
-        } else if (command.equals("getheaders")) {
-            message = new GetHeadersMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
-            if (hash != null)
-                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
-            message = tx;
-        } else if (command.equals("addr")) {
-            message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
-        } else if (command.equals("ping")) {
-            message = new Ping(params, payloadBytes);
-        } else if (command.equals("pong")) {
-            message = new Pong(params, payloadBytes);
-        } else if (command.equals("verack")) {
-            return new VersionAck(params, payloadBytes);
-        } else if (command.equals("headers")) {
-            return new HeadersMessage(params, payloadBytes);
-        } else if (command.equals("alert")) {
-            return new AlertMessage(params, payloadBytes);
-        } else if (command.equals("filterload")) {
-            return new BloomFilter(params, payloadBytes);
-        } else if (command.equals("notfound")) {
-            return new NotFoundMessage(params, payloadBytes);
-        } else if (command.equals("mempool")) {
-            return new MemoryPoolMessage();
-        } else if (command.equals("reject")) {
-            return new RejectMessage(params, payloadBytes);
-        } else if (command.equals("utxos")) {
-            return new UTXOsMessage(params, payloadBytes);
-        } else if (command.equals("getutxos")) {
-            return new GetUTXOsMessage(params, payloadBytes);
-        } else {
+    // Only the commands that can be parsed from an offset are given an offset other than 0.
+    private Message makeMessage(@Nullable Command knownCommand, String command, int length, byte[] payloadBytes,
+                                int offset, byte[] hash, byte[] checksum) throws ProtocolException {
+        if (knownCommand == null) {
             log.warn("No support for deserializing message with name {}", command);
             return new UnknownMessage(params, command, payloadBytes);
         }
+        Message message;
+        switch (knownCommand) {
+            case VERSION:
+                return new VersionMessage(params, payloadBytes);
+            case INV:
+                message = new InventoryMessage(params, payloadBytes, offset, parseLazy, parseRetain, length);
+                break;
+            case BLOCK:
+                message = new Block(params, payloadBytes, offset, parseLazy, parseRetain, length);
+                break;
+            case MERKLEBLOCK:
+                message = new FilteredBlock(params, payloadBytes);
+                break;
+            case GETDATA:
+                message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
+                break;
+            case GETBLOCKS:
+                message = new GetBlocksMessage(params, payloadBytes);
+                break;
+            case GETHEADERS:
+                message = new GetHeadersMessage(params, payloadBytes);
+                break;
+            case TX:
+                Transaction tx = new Transaction(params, payloadBytes, offset, null, parseLazy, parseRetain, length);
+                if (hash != null)
+                    tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+                message = tx;
+                break;
+            case ADDR:
+                message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
+                break;
+            case PING:
+                message = new Ping(params, payloadBytes);
+                break;
+            case PONG:
+                message = new Pong(params, payloadBytes);
+                break;
+            case VERACK:
+                return new VersionAck(params, payloadBytes);
+            case HEADERS:
+                return new HeadersMessage(params, payloadBytes, offset);
+            case ALERT:
+                return new AlertMessage(params, payloadBytes);
+            case FILTERLOAD:
+                return new BloomFilter(params, payloadBytes);
+            case NOTFOUND:
+                return new NotFoundMessage(params, payloadBytes);
+            case MEMPOOL:
+                return new MemoryPoolMessage();
+            case REJECT:
+                return new RejectMessage(params, payloadBytes);
+            case UTXOS:
+                return new UTXOsMessage(params, payloadBytes);
+            case GETUTXOS:
+                return new GetUTXOsMessage(params, payloadBytes);
+            default:
+                throw new IllegalStateException(knownCommand.name);
+        }
         if (checksum != null)
             message.setChecksum(checksum);
         return message;
@@ -293,6 +404,8 @@ public class BitcoinSerializer {
         public final String command;
         public final int size;
         public final byte[] checksum;
+        // The command if it is one we can deserialize, null otherwise.
+        @Nullable final Command knownCommand;
 
         public BitcoinPacketHeader(ByteBuffer in) throws ProtocolException, BufferUnderflowException {
             header = new byte[HEADER_LENGTH];
@@ -303,12 +416,15 @@ public class BitcoinSerializer {
             // The command is a NULL terminated string, unless the command fills all twelve bytes
             // in which case the termination is implicit.
             for (; header[cursor] != 0 && cursor < COMMAND_LEN; cursor++) ;
-            byte[] commandBytes = new byte[cursor];
-            System.arraycopy(header, 0, commandBytes, 0, cursor);
-            try {
-                command = new String(commandBytes, "US-ASCII");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);  // Cannot happen.
+            knownCommand = Command.lookup(header, cursor);
+            if (knownCommand != null) {
+                command = knownCommand.name;
+            } else {
+                try {
+                    command = new String(header, 0, cursor, "US-ASCII");
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);  // Cannot happen.
+                }
             }
             cursor = COMMAND_LEN;
 
@@ -34,7 +34,6 @@ import java.util.*;
 
 import static io.mappum.altcoinj.core.Coin.FIFTY_COINS;
 import static io.mappum.altcoinj.core.Utils.doubleDigest;
-import static io.mappum.altcoinj.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -93,6 +92,15 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private transient Sha256Hash hash;
 
+    /**
+     * Stores the hash the proof of work is checked against. For Scrypt chains and merge mined blocks this differs from
+     * {@link #hash} and is expensive to compute. If null, getPowHash() will recalculate it.
+     */
+    private transient Sha256Hash powHash;
+
+    /** Set once the proof of work has been checked, so later calls to verifyHeader() don't redo the hashing. */
+    private transient boolean proofOfWorkVerified;
+
     private transient boolean headerParsed;
     private transient boolean transactionsParsed;
 
@@ -143,6 +151,15 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Contruct a block object from the Bitcoin wire format, starting at the given offset of the array.
+     * @see #Block(NetworkParameters, byte[], boolean, boolean, int)
+     */
+    public Block(NetworkParameters params, byte[] payloadBytes, int offset, boolean parseLazy, boolean parseRetain,
+                 int length) throws ProtocolException {
+        super(params, payloadBytes, offset, parseLazy, parseRetain, length);
+    }
+
     public Block(NetworkParameters params, byte[] payloadBytes, boolean parseLazy, boolean parseRetain, int length, Block parentBlock)
         throws ProtocolException {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
@@ -192,6 +209,7 @@ public class Block extends Message {
         // This code is not actually necessary, as transient fields are initialized to the default value which is in
         // this case null. However it clears out a FindBugs warning and makes it explicit what we're doing.
         hash = null;
+        powHash = null;
     }
 
     private void parseHeader() throws ProtocolException {
@@ -514,7 +532,9 @@ public class Block extends Message {
         if (!transactionBytesValid)
             payload = null;
         hash = null;
+        powHash = null;
         checksum = null;
+        proofOfWorkVerified = false;
     }
 
     private void unCacheTransactions() {
@@ -565,10 +585,28 @@ public class Block extends Message {
     }
 
     /**
-     * The number that is one greater than the largest representable SHA-256
-     * hash.
+     * Returns the hash that is compared against the difficulty target, as computed by the networks
+     * {@link ProofOfWork}. It is calculated once and then cached until the header changes. On networks where the proof
+     * of work and the block hash are the same function, such as Bitcoin and Dash, this is simply {@link #getHash()}.
      */
-    static private BigInteger LARGEST_HASH = BigInteger.ONE.shiftLeft(256);
+    public Sha256Hash getPowHash() {
+        if (powHash == null) {
+            ProofOfWork proofOfWork = params.getProofOfWork();
+            if (proofOfWork == params.hashFunction && !hasAuxPow())
+                powHash = getHash();
+            else
+                powHash = proofOfWork.getHash(this);
+        }
+        return powHash;
+    }
+
+    /**
+     * Sets the proof of work hash of a header read back from a block store, where it was recorded after the header
+     * had been verified, or computed together with other headers by {@link ProofOfWork#getHashes(List)}.
+     */
+    void setPowHash(Sha256Hash powHash) {
+        this.powHash = powHash;
+    }
 
     /**
      * Returns the work represented by this block.<p>
@@ -579,10 +617,35 @@ public class Block extends Message {
      * lower, the amount of work goes up.
      */
     public BigInteger getWork() throws VerificationException {
-        BigInteger target = getDifficultyTargetAsInteger();
-        return LARGEST_HASH.divide(target.add(BigInteger.ONE));
+        return getWorkAsUint256().toBigInteger();
     }
 
+    /** Returns the work represented by this block, see {@link #getWork()}. */
+    public Uint256 getWorkAsUint256() throws VerificationException {
+        // Consecutive blocks nearly always share a target, so remember the last calculation to skip the division.
+        CachedWork cached = lastWork;
+        if (cached != null && cached.params == params && cached.difficultyTarget == getDifficultyTarget())
+            return cached.work;
+        Uint256 work = getDifficultyTargetAsUint256().work();
+        lastWork = new CachedWork(params, getDifficultyTarget(), work);
+        return work;
+    }
+
+    private static class CachedWork {
+        final NetworkParameters params;
+        final long difficultyTarget;
+        final Uint256 work;
+
+        CachedWork(NetworkParameters params, long difficultyTarget, Uint256 work) {
+            this.params = params;
+            this.difficultyTarget = difficultyTarget;
+            this.work = work;
+        }
+    }
+
+    // Shared by all blocks. Only targets that were valid for the network are cached.
+    private static volatile CachedWork lastWork;
+
     /** Returns a copy of the block, but without any transactions. */
     public Block cloneAsHeader() {
         maybeParseHeader();
@@ -595,6 +658,8 @@ public class Block extends Message {
         block.difficultyTarget = difficultyTarget;
         block.transactions = null;
         block.hash = getHash().duplicate();
+        block.powHash = powHash;
+        block.proofOfWorkVerified = proofOfWorkVerified;
         if (hasAuxPow()) {
             block.parentBlock = parentBlock;
         }
@@ -664,10 +729,20 @@ public class Block extends Message {
      * is thrown.
      */
     public BigInteger getDifficultyTargetAsInteger() throws VerificationException {
+        return getDifficultyTargetAsUint256().toBigInteger();
+    }
+
+    /** Returns the difficulty target as a {@link Uint256}, see {@link #getDifficultyTargetAsInteger()}. */
+    public Uint256 getDifficultyTargetAsUint256() throws VerificationException {
         maybeParseHeader();
-        BigInteger target = Utils.decodeCompactBits(difficultyTarget);
-        if (target.signum() <= 0 || target.compareTo(params.maxTarget) > 0)
-            throw new VerificationException("Difficulty target is bad: " + target.toString());
+        Uint256 target;
+        try {
+            target = Uint256.fromCompactBits(difficultyTarget);
+        } catch (ArithmeticException e) {
+            throw new VerificationException("Difficulty target is bad: " + Utils.decodeCompactBits(difficultyTarget));
+        }
+        if (target.isZero() || target.compareTo(params.getMaxTargetAsUint256()) > 0)
+            throw new VerificationException("Difficulty target is bad: " + target.toBigInteger());
         return target;
     }
 
@@ -685,7 +760,10 @@ public class Block extends Message {
         if(hasAuxPow() && !params.auxPowEnabled)
             return false;
 
-        return params.getProofOfWork().check(this, throwException);
+        if (proofOfWorkVerified)
+            return true;
+        proofOfWorkVerified = params.getProofOfWork().check(this, throwException);
+        return proofOfWorkVerified;
     }
 
     private void checkTimestamp() throws VerificationException {
@@ -758,6 +836,7 @@ public class Block extends Message {
             tree.add(t.getHash().getBytes());
         }
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
+        byte[] pair = new byte[64];
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
             // For each pair of nodes on that level:
@@ -765,9 +844,12 @@ public class Block extends Message {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
                 // transactions.
                 int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+                reverseInto(tree.get(levelOffset + left), pair, 0);
+                reverseInto(tree.get(levelOffset + right), pair, 32);
+                byte[] node = new byte[32];
+                Utils.doubleDigestInto(pair, 0, 64, pair, 0);
+                reverseInto(pair, node, 0);
+                tree.add(node);
             }
             // Move to the next level.
             levelOffset += levelSize;
@@ -775,6 +857,12 @@ public class Block extends Message {
         return tree;
     }
 
+    // Copies the first 32 bytes of the given hash into the array at the given offset, in reverse byte order.
+    private static void reverseInto(byte[] hash, byte[] out, int offset) {
+        for (int i = 0; i < 32; i++)
+            out[offset + i] = hash[31 - i];
+    }
+
     private void checkTransactions() throws VerificationException {
         // The first transaction in a block must always be a coinbase transaction.
         if (!transactions.get(0).isCoinBase())
@@ -0,0 +1,1049 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.store.BlockStore;
+import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads the block chain from several peers at once. The headers of the blocks to fetch come from one peer, the
+ * header source, in batches of up to {@link HeadersMessage#MAX_HEADERS}, and are checked for proof of work and linkage
+ * as they arrive. The blocks themselves, or filtered blocks if a Bloom filter is in use, are then requested in windows
+ * of consecutive blocks spread over all the peers that have them, with a limit on the windows each peer has in flight
+ * and on how far ahead of the chain head they may reach. A window that doesn't make progress within the stall timeout
+ * is taken away from its peer and given to another one.</p>
+ *
+ * <p>Blocks are added to the chain strictly in order, by whichever peer thread delivers the block the chain is waiting
+ * for, so the chain never holds orphans during the download. Blocks before the fast catchup time are added as headers
+ * only, without fetching them. Progress is reported through the event listeners of the header source, as if it had
+ * downloaded every block itself.</p>
+ *
+ * <p>In headers first mode, no block is requested until the headers have been checked for proof of work and difficulty
+ * transitions up to one that has more work than the chain we started from. Bandwidth is not spent on the blocks of a
+ * chain that turns out to be invalid or weaker. Headers before the fast catchup time still go into the chain as they
+ * arrive, the others are kept in memory until their blocks come in. To keep that memory bounded, headers are fetched
+ * in segments of up to {@link #MAX_HEADERS_FIRST_AHEAD} headers ahead of the chain, unless the ones we have still don't
+ * add up to more work than our chain.</p>
+ *
+ * <p>Used by {@link PeerGroup} when it is allowed more than one download peer, see
+ * {@link PeerGroup#setMaxDownloadPeers(int)}, or in headers first mode, see {@link PeerGroup#setHeadersFirst(boolean)}. The future returned by {@link #getFuture()} completes once the chain has
+ * caught up with the header source, or fails if a block or header didn't verify.</p>
+ */
+class BlockDownloader {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloader.class);
+
+    public static final int DEFAULT_BLOCKS_PER_WINDOW = 16;
+    public static final int DEFAULT_WINDOWS_PER_PEER = 2;
+    public static final int DEFAULT_MAX_BLOCKS_AHEAD = 256;
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    // Keep this many headers queued up, so the next batch is there before the current one runs out.
+    private static final int MAX_HEADERS_AHEAD = 2 * HeadersMessage.MAX_HEADERS;
+    /** The most headers kept in memory waiting for their blocks in headers first mode, see the class documentation. */
+    public static final int MAX_HEADERS_FIRST_AHEAD = 10 * HeadersMessage.MAX_HEADERS;
+
+    private final ReentrantLock lock = Threading.lock("blockdownloader");
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final Peer headerSource;
+    private final List<Peer> peers;
+    private final List<Wallet> wallets;
+    @Nullable private final ProofOfWorkVerifier verifier;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    private int maxPeers = Integer.MAX_VALUE;
+    private int blocksPerWindow = DEFAULT_BLOCKS_PER_WINDOW;
+    private int windowsPerPeer = DEFAULT_WINDOWS_PER_PEER;
+    private int maxBlocksAhead = DEFAULT_MAX_BLOCKS_AHEAD;
+    private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    // A block to add to the chain, in the order they are to be added.
+    private static class Entry {
+        final Block header;
+        final int height;
+        // Added as a header only.
+        final boolean headerOnly;
+        // A Block or FilteredBlock once received.
+        @Nullable Message block;
+        Entry(Block header, int height, boolean headerOnly) {
+            this.header = header;
+            this.height = height;
+            this.headerOnly = headerOnly;
+        }
+    }
+
+    // Consecutive blocks requested from one peer in one go.
+    private static class Window {
+        final List<Entry> entries;
+        @Nullable Peer peer;
+        // Incremented each time the window is taken from a peer, so that late answers to the old request are ignored.
+        int generation;
+        int received;
+        long lastProgress;
+        // When the window was requested from its peer, to measure how fast the peer delivers.
+        long requestTime;
+        List<? extends ListenableFuture<? extends Message>> futures = Collections.emptyList();
+        Window(List<Entry> entries) {
+            this.entries = entries;
+        }
+    }
+
+    // The headers checked but not in the chain yet, on top of the chain's own store, so that difficulty transitions
+    // can be checked before the blocks are there.
+    private static class HeaderStore implements BlockStore {
+        private final BlockStore chainStore;
+        private final Map<Sha256Hash, StoredBlock> headers = new HashMap<Sha256Hash, StoredBlock>();
+        @Nullable private StoredBlock head;
+
+        HeaderStore(BlockStore chainStore) {
+            this.chainStore = chainStore;
+        }
+
+        @Override
+        public synchronized void put(StoredBlock block) throws BlockStoreException {
+            headers.put(block.getHeader().getHash(), block);
+        }
+
+        @Override
+        @Nullable
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            StoredBlock block = headers.get(hash);
+            return block != null ? block : chainStore.get(hash);
+        }
+
+        @Override
+        public synchronized StoredBlock getChainHead() throws BlockStoreException {
+            return head != null ? head : chainStore.getChainHead();
+        }
+
+        @Override
+        public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+            head = chainHead;
+        }
+
+        // The block is in the chain's store now.
+        synchronized void remove(Sha256Hash hash) {
+            headers.remove(hash);
+        }
+
+        synchronized void clear() {
+            headers.clear();
+            head = null;
+        }
+
+        synchronized int size() {
+            return headers.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Everything not added to the chain yet, the head is the next block to add.
+    @GuardedBy("lock") private final LinkedList<Entry> pending = new LinkedList<Entry>();
+    // Blocks that still have to be put in a window, in order.
+    @GuardedBy("lock") private final LinkedList<Entry> unrequested = new LinkedList<Entry>();
+    // Windows taken away from a peer, to be handed out again before new ones.
+    @GuardedBy("lock") private final LinkedList<Window> retry = new LinkedList<Window>();
+    @GuardedBy("lock") private final Map<Peer, List<Window>> inFlight = new HashMap<Peer, List<Window>>();
+    // Peers that stalled are left alone until this time.
+    @GuardedBy("lock") private final Map<Peer, Long> backoffUntil = new HashMap<Peer, Long>();
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean useFilteredBlocks;
+    @GuardedBy("lock") private boolean headersFirst;
+    @GuardedBy("lock") private boolean started, stopped, delivering;
+    // Set while we wait for a fresh Bloom filter after the wallet ran out of keys.
+    @GuardedBy("lock") private boolean awaitingFreshFilter;
+
+    private final HeaderStore headerStore;
+    // The chain head when we started, and the last header received.
+    @GuardedBy("lock") @Nullable private StoredBlock startHead, lastHeader;
+    @GuardedBy("lock") private boolean headersDone;
+    // Whether the headers received so far lead to a chain with more work than startHead.
+    @GuardedBy("lock") private boolean moreWork;
+    @GuardedBy("lock") @Nullable private ListenableFuture<HeadersMessage> headersRequest;
+    @GuardedBy("lock") private long headersRequestTime;
+    @GuardedBy("lock") private int headersRequestGeneration;
+    // Header requests in a row the header source didn't answer in time.
+    @GuardedBy("lock") private int headerStalls;
+
+    @GuardedBy("lock") private long blocksDelivered;
+    @GuardedBy("lock") private long stalls;
+
+    @Nullable private Timer timer;
+
+    /**
+     * @param headerSource The peer to download the headers from.
+     * @param peers The peers to download blocks from, which may change while the download runs.
+     * @param wallets The wallets whose keys make up the Bloom filter, to notice when they run out.
+     * @param verifier If set, used to check the proof of work of each batch of headers in parallel.
+     */
+    BlockDownloader(NetworkParameters params, AbstractBlockChain chain, Peer headerSource, List<Peer> peers,
+                    List<Wallet> wallets, @Nullable ProofOfWorkVerifier verifier) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.headerSource = checkNotNull(headerSource);
+        this.peers = checkNotNull(peers);
+        this.wallets = checkNotNull(wallets);
+        this.verifier = verifier;
+        this.headerStore = new HeaderStore(chain.getBlockStore());
+    }
+
+    /**
+     * Sets how many consecutive blocks are asked for in one request, how many such requests a peer may have in flight
+     * and how many blocks past the chain head may be requested. The last also limits how many blocks may be held in
+     * memory waiting for the ones before them. Must be called before {@link #start()}.
+     */
+    void setLimits(int blocksPerWindow, int windowsPerPeer, int maxBlocksAhead) {
+        checkArgument(blocksPerWindow > 0 && windowsPerPeer > 0 && maxBlocksAhead >= blocksPerWindow);
+        lock.lock();
+        try {
+            checkState(!started);
+            this.blocksPerWindow = blocksPerWindow;
+            this.windowsPerPeer = windowsPerPeer;
+            this.maxBlocksAhead = maxBlocksAhead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how many peers may be downloading blocks at the same time. Must be called before {@link #start()}. */
+    void setMaxPeers(int maxPeers) {
+        checkArgument(maxPeers > 0);
+        lock.lock();
+        try {
+            checkState(!started);
+            this.maxPeers = maxPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how long a request may go without an answer before it is given to another peer. */
+    void setStallTimeoutMillis(long stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time before which only headers are downloaded, and whether to fetch filtered blocks rather than full
+     * ones. Only affects the headers received from now on.
+     */
+    void setDownloadParameters(long fastCatchupTimeSecs, boolean useFilteredBlocks) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.useFilteredBlocks = useFilteredBlocks;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets whether to download and check the whole header chain before requesting any block. Must be called before
+     * {@link #start()}.
+     */
+    void setHeadersFirst(boolean headersFirst) {
+        lock.lock();
+        try {
+            checkState(!started);
+            this.headersFirst = headersFirst;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a future that completes when the download is done. */
+    ListenableFuture<Void> getFuture() {
+        return future;
+    }
+
+    Peer getHeaderSource() {
+        return headerSource;
+    }
+
+    /** Starts the download from the current chain head. */
+    void start() {
+        lock.lock();
+        try {
+            checkState(!started);
+            started = true;
+            startHead = lastHeader = chain.getChainHead();
+            timer = new Timer("Block downloader", true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    checkForStalls();
+                }
+            }, stallTimeoutMillis / 4, stallTimeoutMillis / 4);
+        } finally {
+            lock.unlock();
+        }
+        int blocksLeft = (int) headerSource.getBestHeight() - chain.getBestChainHeight();
+        if (blocksLeft >= 0)
+            headerSource.invokeOnChainDownloadStarted(blocksLeft);
+        log.info("Starting chain download with headers from {}, {} blocks to go", headerSource, blocksLeft);
+        requestMore();
+    }
+
+    /** Stops the download, requests in flight are abandoned. */
+    void stop() {
+        List<Window> abandoned = new ArrayList<Window>();
+        lock.lock();
+        try {
+            if (stopped)
+                return;
+            stopped = true;
+            if (timer != null)
+                timer.cancel();
+            for (List<Window> windows : inFlight.values())
+                abandoned.addAll(windows);
+            inFlight.clear();
+        } finally {
+            lock.unlock();
+        }
+        cancel(abandoned);
+    }
+
+    /** Tells the downloader that a peer went away, so the blocks it was asked for can be asked from others. */
+    void peerDisconnected(Peer peer) {
+        List<Window> taken;
+        lock.lock();
+        try {
+            taken = takeWindows(peer);
+            backoffUntil.remove(peer);
+        } finally {
+            lock.unlock();
+        }
+        if (!taken.isEmpty()) {
+            cancel(taken);
+            requestMore();
+        }
+    }
+
+    /** Tells the downloader that there may be new peers to give work to. */
+    void peersChanged() {
+        requestMore();
+    }
+
+    /**
+     * Tells the downloader that a new Bloom filter has been sent to all peers, or that the recalculated one is the same
+     * as what they have. It waits for that after a filtered block used up the keys of a wallet. Blocks requested from
+     * now on will match the new filter.
+     */
+    void bloomFilterUpdated() {
+        lock.lock();
+        try {
+            if (!awaitingFreshFilter)
+                return;
+            awaitingFreshFilter = false;
+            log.info("Got a fresh Bloom filter, resuming chain download");
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    /** Returns how many blocks have been added to the chain. */
+    long getBlocksDelivered() {
+        lock.lock();
+        try {
+            return blocksDelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times a request was given to another peer because it stalled. */
+    long getStalls() {
+        lock.lock();
+        try {
+            return stalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many header requests in a row the header source has not answered in time. The downloader keeps
+     * asking it, as only the header source can supply the headers, so it is up to the caller to give up on it.
+     */
+    int getHeaderStalls() {
+        lock.lock();
+        try {
+            return headerStalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks asked for but not yet received from each peer. */
+    Map<Peer, Integer> getBlocksInFlight() {
+        lock.lock();
+        try {
+            Map<Peer, Integer> result = new HashMap<Peer, Integer>();
+            for (Map.Entry<Peer, List<Window>> entry : inFlight.entrySet()) {
+                int count = 0;
+                for (Window window : entry.getValue())
+                    count += window.entries.size() - window.received;
+                result.put(entry.getKey(), count);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes all windows away from a peer and puts them up for retry, returns them so their requests can be cancelled.
+    @GuardedBy("lock")
+    private List<Window> takeWindows(Peer peer) {
+        List<Window> windows = inFlight.remove(peer);
+        if (windows == null)
+            return Collections.emptyList();
+        for (Window window : windows)
+            takeWindow(window);
+        return windows;
+    }
+
+    @GuardedBy("lock")
+    private void takeWindow(Window window) {
+        window.peer = null;
+        window.generation++;
+        // Keep what was received already, only the rest needs asking for again.
+        List<Entry> missing = new ArrayList<Entry>();
+        for (Entry entry : window.entries)
+            if (entry.block == null)
+                missing.add(entry);
+        if (missing.isEmpty())
+            return;
+        // Windows closer to the chain head are more urgent, keep the retry list in chain order.
+        Window again = new Window(missing);
+        again.generation = window.generation;
+        int index = 0;
+        for (Window other : retry) {
+            if (other.entries.get(0).height > missing.get(0).height)
+                break;
+            index++;
+        }
+        retry.add(index, again);
+    }
+
+    private static void cancel(List<Window> windows) {
+        for (Window window : windows)
+            for (ListenableFuture<? extends Message> f : window.futures)
+                f.cancel(false);
+    }
+
+    private void checkForStalls() {
+        List<Window> stalled = new ArrayList<Window>();
+        List<Peer> stalledPeers = new ArrayList<Peer>();
+        boolean retryHeaders = false;
+        lock.lock();
+        try {
+            if (stopped)
+                return;
+            long now = Utils.currentTimeMillis();
+            for (Iterator<Map.Entry<Peer, List<Window>>> it = inFlight.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Peer, List<Window>> entry = it.next();
+                Peer peer = entry.getKey();
+                for (Iterator<Window> windows = entry.getValue().iterator(); windows.hasNext(); ) {
+                    Window window = windows.next();
+                    if (now - window.lastProgress < stallTimeoutMillis)
+                        continue;
+                    log.info("{}: Stalled on blocks from height {}, asking another peer", peer,
+                            window.entries.get(window.received).height);
+                    windows.remove();
+                    takeWindow(window);
+                    stalled.add(window);
+                    stalledPeers.add(peer);
+                    stalls++;
+                    backoffUntil.put(peer, now + stallTimeoutMillis);
+                }
+                if (entry.getValue().isEmpty())
+                    it.remove();
+            }
+            if (headersRequest != null && now - headersRequestTime >= stallTimeoutMillis) {
+                log.info("{}: Stalled on headers, asking again", headerSource);
+                headersRequest.cancel(false);
+                headersRequest = null;
+                headersRequestGeneration++;
+                headerStalls++;
+                retryHeaders = true;
+                stalledPeers.add(headerSource);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Peer peer : stalledPeers)
+            peer.getScore().recordTimeout();
+        if (!stalled.isEmpty() || retryHeaders) {
+            cancel(stalled);
+            requestMore();
+        }
+    }
+
+    private static class Request {
+        final Peer peer;
+        final Window window;
+        final int generation;
+        Request(Peer peer, Window window) {
+            this.peer = peer;
+            this.window = window;
+            this.generation = window.generation;
+        }
+    }
+
+    // Hands out as much work as the limits allow, and asks for more headers if they are running low.
+    private void requestMore() {
+        List<Request> requests = new ArrayList<Request>();
+        List<Sha256Hash> locator = null;
+        int headersGeneration = 0;
+        boolean filtered;
+        lock.lock();
+        try {
+            if (stopped || !started || awaitingFreshFilter)
+                return;
+            filtered = useFilteredBlocks;
+            int maxHeadersAhead = headersFirst ? MAX_HEADERS_FIRST_AHEAD : MAX_HEADERS_AHEAD;
+            // There is no point in blocks before the headers show they're worth it, so don't stop until then.
+            if (!headersDone && headersRequest == null
+                    && (pending.size() < maxHeadersAhead || (headersFirst && !moreWork))) {
+                locator = buildLocator();
+                headersGeneration = ++headersRequestGeneration;
+                headersRequestTime = Utils.currentTimeMillis();
+                // A placeholder, so no other thread asks too. Replaced below once the request is sent.
+                headersRequest = SettableFuture.create();
+            }
+            long now = Utils.currentTimeMillis();
+            List<Peer> candidates = selectPeers(now, filtered);
+            // Once there are no more headers to come, share out what is left evenly rather than leave peers idle.
+            int windowSize = blocksPerWindow;
+            if (headersDone && !candidates.isEmpty())
+                windowSize = Math.max(1, Math.min(blocksPerWindow,
+                        (unrequested.size() + candidates.size() - 1) / candidates.size()));
+            // Blocks wait for headers with more work than our chain in headers first mode.
+            boolean assigned = !headersFirst || moreWork;
+            while (assigned) {
+                assigned = false;
+                for (Peer peer : candidates) {
+                    List<Window> windows = inFlight.get(peer);
+                    if (windows != null && windows.size() >= windowsPerPeer)
+                        continue;
+                    Window window = nextWindow(peer, windowSize);
+                    if (window == null)
+                        continue;
+                    window.peer = peer;
+                    window.lastProgress = now;
+                    window.requestTime = now;
+                    if (windows == null) {
+                        windows = new LinkedList<Window>();
+                        inFlight.put(peer, windows);
+                    }
+                    windows.add(window);
+                    requests.add(new Request(peer, window));
+                    assigned = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (locator != null)
+            requestHeaders(locator, headersGeneration);
+        for (Request request : requests)
+            send(request, filtered);
+    }
+
+    // The peers that can be given work, least busy and then best scoring first. Those already busy come before others, up to maxPeers.
+    @GuardedBy("lock")
+    private List<Peer> selectPeers(long now, boolean filtered) {
+        List<Peer> candidates = new ArrayList<Peer>();
+        int busy = inFlight.size();
+        for (Peer peer : peers) {
+            VersionMessage version = peer.getPeerVersionMessage();
+            if (version == null || (filtered && !version.isBloomFilteringSupported()))
+                continue;
+            Long until = backoffUntil.get(peer);
+            if (until != null && until > now)
+                continue;
+            if (!inFlight.containsKey(peer)) {
+                if (busy >= maxPeers)
+                    continue;
+                busy++;
+            }
+            candidates.add(peer);
+        }
+        Collections.sort(candidates, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                int busy = inFlightCount(a) - inFlightCount(b);
+                if (busy != 0)
+                    return busy;
+                return Double.compare(b.getScore().getScore(), a.getScore().getScore());
+            }
+        });
+        return candidates;
+    }
+
+    @GuardedBy("lock")
+    private int inFlightCount(Peer peer) {
+        List<Window> windows = inFlight.get(peer);
+        return windows == null ? 0 : windows.size();
+    }
+
+    // The next window the given peer can serve: one to retry first, else a new one. Null if there is none.
+    @GuardedBy("lock")
+    @Nullable
+    private Window nextWindow(Peer peer, int windowSize) {
+        int limit = pending.isEmpty() ? 0 : pending.getFirst().height + maxBlocksAhead;
+        for (Iterator<Window> it = retry.iterator(); it.hasNext(); ) {
+            Window window = it.next();
+            if (peer.getBestHeight() >= window.entries.get(window.entries.size() - 1).height) {
+                it.remove();
+                return window;
+            }
+        }
+        if (unrequested.isEmpty() || unrequested.getFirst().height >= limit)
+            return null;
+        List<Entry> entries = new ArrayList<Entry>(windowSize);
+        for (Entry entry : unrequested) {
+            if (entries.size() == windowSize || entry.height >= limit || entry.height > peer.getBestHeight())
+                break;
+            entries.add(entry);
+        }
+        if (entries.isEmpty())
+            return null;
+        for (int i = 0; i < entries.size(); i++)
+            unrequested.removeFirst();
+        return new Window(entries);
+    }
+
+    private void send(final Request request, boolean filtered) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(request.window.entries.size());
+        for (Entry entry : request.window.entries)
+            hashes.add(entry.header.getHash());
+        List<? extends ListenableFuture<? extends Message>> futures;
+        try {
+            futures = filtered ? request.peer.getFilteredBlocks(hashes) : request.peer.getBlocks(hashes);
+        } catch (Exception e) {
+            // The peer is probably going away, give the window to another one.
+            log.info("{}: Failed to request blocks: {}", request.peer, e.toString());
+            failed(request);
+            return;
+        }
+        lock.lock();
+        try {
+            if (request.window.generation == request.generation)
+                request.window.futures = futures;
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            final Entry entry = request.window.entries.get(i);
+            Futures.addCallback(futures.get(i), new FutureCallback<Message>() {
+                @Override
+                public void onSuccess(Message result) {
+                    received(request, entry, result);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed(request);
+                }
+            }, Threading.SAME_THREAD);
+        }
+    }
+
+    private void received(Request request, Entry entry, Message block) {
+        long bytes = 0, millis = 0;
+        lock.lock();
+        try {
+            Window window = request.window;
+            if (stopped || window.generation != request.generation || entry.block != null)
+                return;
+            entry.block = block;
+            window.received++;
+            window.lastProgress = Utils.currentTimeMillis();
+            if (window.received == window.entries.size()) {
+                List<Window> windows = inFlight.get(request.peer);
+                if (windows != null) {
+                    windows.remove(window);
+                    if (windows.isEmpty())
+                        inFlight.remove(request.peer);
+                }
+                for (Entry received : window.entries)
+                    bytes += received.block.getMessageSize();
+                millis = window.lastProgress - window.requestTime;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (bytes > 0)
+            request.peer.getScore().recordDelivery(bytes, millis);
+        deliver();
+        requestMore();
+    }
+
+    // The peer didn't have the blocks, or the request was cancelled.
+    private void failed(Request request) {
+        lock.lock();
+        try {
+            Window window = request.window;
+            if (stopped || window.generation != request.generation)
+                return;
+            List<Window> windows = inFlight.get(request.peer);
+            if (windows != null) {
+                windows.remove(window);
+                if (windows.isEmpty())
+                    inFlight.remove(request.peer);
+            }
+            takeWindow(window);
+            backoffUntil.put(request.peer, Utils.currentTimeMillis() + stallTimeoutMillis);
+        } finally {
+            lock.unlock();
+        }
+        cancel(Collections.singletonList(request.window));
+        requestMore();
+    }
+
+    // Adds the blocks at the head of the queue to the chain, as far as they have arrived.
+    private void deliver() {
+        while (true) {
+            Entry entry;
+            boolean done = false;
+            lock.lock();
+            try {
+                if (delivering || stopped)
+                    return;
+                entry = pending.peekFirst();
+                if (entry == null && headersDone) {
+                    done = true;
+                } else if (entry == null || (!entry.headerOnly && entry.block == null) || awaitingFreshFilter) {
+                    return;
+                } else {
+                    delivering = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (done) {
+                finish();
+                return;
+            }
+            boolean added = false;
+            try {
+                added = add(entry);
+            } finally {
+                lock.lock();
+                try {
+                    delivering = false;
+                    if (added) {
+                        pending.removeFirst();
+                        headerStore.remove(entry.header.getHash());
+                        blocksDelivered++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            if (!added)
+                return;
+            headerSource.invokeOnBlocksDownloaded(entry.header);
+        }
+    }
+
+    // Adds a block to the chain, returns false if it can't be added right now.
+    private boolean add(Entry entry) {
+        try {
+            boolean connected;
+            if (entry.headerOnly) {
+                connected = chain.add(entry.header);
+            } else if (entry.block instanceof FilteredBlock) {
+                FilteredBlock filteredBlock = (FilteredBlock) entry.block;
+                // Wait before checking, the filter recalculation the check may queue can be done before it returns.
+                lock.lock();
+                try {
+                    awaitingFreshFilter = true;
+                } finally {
+                    lock.unlock();
+                }
+                boolean exhausted = checkForFilterExhaustion(filteredBlock);
+                lock.lock();
+                try {
+                    if (!exhausted)
+                        awaitingFreshFilter = false;
+                } finally {
+                    lock.unlock();
+                }
+                if (exhausted) {
+                    filterExhausted();
+                    return false;
+                }
+                connected = chain.add(filteredBlock);
+            } else {
+                connected = chain.add((Block) entry.block);
+            }
+            if (!connected) {
+                // The headers were checked to connect, so the chain must have changed under us.
+                fail(new VerificationException("Block " + entry.header.getHashAsString() + " does not connect"));
+                return false;
+            }
+            return true;
+        } catch (VerificationException e) {
+            log.warn("Block verification failed", e);
+            fail(e);
+            return false;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            fail(e);
+            return false;
+        } catch (RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+    }
+
+    private boolean checkForFilterExhaustion(FilteredBlock block) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    // The block at the head may not contain everything relevant, nor may anything after it. Drop them and ask again
+    // once the new filter is out, which may have happened already.
+    private void filterExhausted() {
+        List<Window> abandoned = new ArrayList<Window>();
+        boolean filterUpdated;
+        lock.lock();
+        try {
+            log.info("Bloom filter exhausted whilst processing block {}, discarding {} blocks",
+                    pending.getFirst().header.getHash(), pending.size());
+            filterUpdated = !awaitingFreshFilter;
+            for (List<Window> windows : inFlight.values()) {
+                for (Window window : windows)
+                    window.generation++;
+                abandoned.addAll(windows);
+            }
+            inFlight.clear();
+            retry.clear();
+            unrequested.clear();
+            for (Entry entry : pending) {
+                entry.block = null;
+                if (!entry.headerOnly)
+                    unrequested.add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        cancel(abandoned);
+        if (filterUpdated)
+            requestMore();
+    }
+
+    private void finish() {
+        lock.lock();
+        try {
+            if (stopped)
+                return;
+            log.info("Chain download done, {} blocks added, {} stalls", blocksDelivered, stalls);
+            stopped = true;
+            headerStore.clear();
+            if (timer != null)
+                timer.cancel();
+        } finally {
+            lock.unlock();
+        }
+        // Outside the lock, as listeners may call back into us.
+        future.set(null);
+    }
+
+    private void fail(Throwable t) {
+        stop();
+        future.setException(t);
+    }
+
+    // Headers are asked for from the last one received, or from the chain head like Peer does to start with.
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildLocator() {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(101);
+        if (lastHeader != startHead) {
+            locator.add(checkNotNull(lastHeader).getHeader().getHash());
+            return locator;
+        }
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        try {
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    private void requestHeaders(List<Sha256Hash> locator, final int generation) {
+        final long requestTime = Utils.currentTimeMillis();
+        ListenableFuture<HeadersMessage> request;
+        try {
+            request = headerSource.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        } catch (Exception e) {
+            log.info("{}: Failed to request headers: {}", headerSource, e.toString());
+            return;  // Tried again when it counts as stalled.
+        }
+        lock.lock();
+        try {
+            if (headersRequestGeneration == generation)
+                headersRequest = request;
+        } finally {
+            lock.unlock();
+        }
+        Futures.addCallback(request, new FutureCallback<HeadersMessage>() {
+            @Override
+            public void onSuccess(HeadersMessage result) {
+                headerSource.getScore().recordDelivery(result.getMessageSize(), Utils.currentTimeMillis() - requestTime);
+                try {
+                    receivedHeaders(result.getBlockHeaders(), generation);
+                } catch (VerificationException e) {
+                    log.warn("{}: Sent us bad headers, disconnecting: {}", headerSource, e.getMessage());
+                    headerSource.getScore().recordMisbehaviour(PeerScore.INVALID_DATA_PENALTY,
+                            "invalid headers: " + e.getMessage());
+                    fail(e);
+                    headerSource.close();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Cancelled because it stalled, it has been asked for again.
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    private void receivedHeaders(List<Block> headers, int generation) throws VerificationException {
+        StoredBlock prev;
+        lock.lock();
+        try {
+            if (stopped || generation != headersRequestGeneration)
+                return;
+            prev = checkNotNull(lastHeader);
+        } finally {
+            lock.unlock();
+        }
+        List<StoredBlock> checked = new ArrayList<StoredBlock>(headers.size());
+        StoredBlock known = null;
+        // A late answer to a request that stalled may arrive alongside the answer to the new one, so one at a time.
+        synchronized (headerStore) {
+            try {
+                // Skip what we have already, which the first batch may start with if our chain head is not on the
+                // best chain.
+                int start = 0;
+                while (start < headers.size() && headerStore.get(headers.get(start).getHash()) != null)
+                    start++;
+                if (start > 0)
+                    known = headerStore.get(headers.get(start - 1).getHash());
+                List<Block> fresh = headers.subList(start, headers.size());
+                if (!fresh.isEmpty() && !fresh.get(0).getPrevBlockHash().equals(prev.getHeader().getHash())) {
+                    // A fork off our chain, which the chain will reorganize onto if it has more work.
+                    prev = headerStore.get(fresh.get(0).getPrevBlockHash());
+                    if (prev == null)
+                        throw new VerificationException("Headers do not connect: " + fresh.get(0).getHashAsString());
+                }
+                // Check the cheap things first, then the proof of work and the difficulty, all before we spend
+                // bandwidth on the blocks.
+                Sha256Hash expected = prev.getHeader().getHash();
+                for (Block header : fresh) {
+                    if (!header.getPrevBlockHash().equals(expected))
+                        throw new VerificationException("Headers do not connect at " + header.getHashAsString());
+                    expected = header.getHash();
+                }
+                // Headers the verifier passed remember it, so this only does the work for the ones it didn't.
+                if (verifier != null)
+                    verifier.verify(fresh);
+                for (Block header : fresh) {
+                    header.verifyHeader();
+                    params.checkDifficulty(prev, header, headerStore);
+                    prev = prev.build(header);
+                    headerStore.put(prev);
+                    checked.add(prev);
+                }
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        lock.lock();
+        try {
+            if (stopped || generation != headersRequestGeneration)
+                return;
+            headersRequest = null;
+            headerStalls = 0;
+            boolean checkTime = !chain.shouldVerifyTransactions();
+            for (StoredBlock stored : checked) {
+                Block header = stored.getHeader();
+                Entry entry = new Entry(header, stored.getHeight(),
+                        checkTime && header.getTimeSeconds() < fastCatchupTimeSecs);
+                pending.add(entry);
+                if (!entry.headerOnly)
+                    unrequested.add(entry);
+            }
+            // Carry on from the last header, or from the last one we had already so we don't ask for them again.
+            if (!checked.isEmpty())
+                lastHeader = checked.get(checked.size() - 1);
+            else if (known != null)
+                lastHeader = known;
+            if (headers.size() < HeadersMessage.MAX_HEADERS)
+                headersDone = true;
+            log.info("{}: Got {} headers, up to height {}", headerSource, checked.size(), lastHeader.getHeight());
+            if (!moreWork && lastHeader.moreWorkThan(checkNotNull(startHead)))
+                moreWork = true;
+            if (headersDone && headersFirst && !moreWork) {
+                // Nothing to gain from the blocks, the chain we have is at least as good.
+                log.info("Header chain has no more work than ours, not downloading {} blocks", unrequested.size());
+                pending.clear();
+                unrequested.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+        requestMore();
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A compact binary encoding of {@link StoredTransactionOutput}s, used by the full pruned block stores for unspent
+ * outputs and for undo data. It is the same idea as the reference client's UTXO compression. The output is written
+ * as three varints and a script:</p>
+ *
+ * <ul>
+ *     <li>the height of the creating block shifted left one bit, with the low bit set for coinbases. Other outputs
+ *     don't keep a height, so they take a single zero byte.</li>
+ *     <li>the value with its trailing decimal zeros taken out. Round amounts come to a byte or two.</li>
+ *     <li>the script. The standard pay to address, pay to script hash and pay to public key forms are written as a
+ *     one byte template number followed by the 20 byte hash or the 32 byte key. Any other script is written as its
+ *     length plus {@link #SPECIAL_SCRIPTS} and then the script itself.</li>
+ * </ul>
+ *
+ * <p>A standard pay to address output comes to 23 bytes this way, against the 41 of
+ * {@link StoredTransactionOutput#serializeToStream(OutputStream)} without the outpoint.</p>
+ *
+ * <p>Varints here are unsigned little endian base 128, not the Bitcoin protocol's {@link VarInt}.</p>
+ */
+public final class CompactOutputCodec {
+    /** The number of script templates, which are the values an encoded script length starts after. */
+    public static final int SPECIAL_SCRIPTS = 6;
+
+    private static final int P2PKH = 0;
+    private static final int P2SH = 1;
+    // 2 and 3 are compressed public keys starting 02 and 03, 4 and 5 uncompressed ones with an even and odd y.
+    private static final int P2PK_COMPRESSED = 2;
+    private static final int P2PK_UNCOMPRESSED = 4;
+
+    private static final int OP_DUP = 0x76;
+    private static final int OP_HASH160 = 0xa9;
+    private static final int OP_EQUAL = 0x87;
+    private static final int OP_EQUALVERIFY = 0x88;
+    private static final int OP_CHECKSIG = 0xac;
+
+    private CompactOutputCodec() {
+    }
+
+    /**
+     * Encodes the output without its outpoint, for stores that keep the transaction hash and index in the key.
+     */
+    public static byte[] encode(StoredTransactionOutput out) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(32);
+        try {
+            writeBody(out, bos);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return bos.toByteArray();
+    }
+
+    /** Decodes an output encoded by {@link #encode(StoredTransactionOutput)}. */
+    public static StoredTransactionOutput decode(Sha256Hash hash, long index, byte[] encoded) throws IOException {
+        return readBody(hash, index, new ByteArrayInputStream(encoded));
+    }
+
+    /** Writes the output including its outpoint, as in undo data. */
+    public static void write(StoredTransactionOutput out, OutputStream os) throws IOException {
+        os.write(out.getHash().getBytes());
+        writeVarLong(out.getIndex(), os);
+        writeBody(out, os);
+    }
+
+    /** Reads an output written by {@link #write(StoredTransactionOutput, OutputStream)}. */
+    public static StoredTransactionOutput read(InputStream in) throws IOException {
+        Sha256Hash hash = new Sha256Hash(readFully(in, 32));
+        long index = readVarLong(in);
+        return readBody(hash, index, in);
+    }
+
+    private static void writeBody(StoredTransactionOutput out, OutputStream os) throws IOException {
+        int height = out.getHeight();
+        writeVarLong(height == StoredTransactionOutput.NONCOINBASE_HEIGHT ? 0 : ((long) height << 1) | 1, os);
+        writeVarLong(compressAmount(out.getValue().value), os);
+        byte[] script = out.getScriptBytes();
+        byte[] compressed = compressScript(script);
+        if (compressed != null) {
+            os.write(compressed);
+        } else {
+            writeVarLong(script.length + SPECIAL_SCRIPTS, os);
+            os.write(script);
+        }
+    }
+
+    private static StoredTransactionOutput readBody(Sha256Hash hash, long index, InputStream in) throws IOException {
+        long heightCode = readVarLong(in);
+        boolean coinbase = (heightCode & 1) != 0;
+        int height = (int) (heightCode >>> 1);
+        Coin value = Coin.valueOf(decompressAmount(readVarLong(in)));
+        long scriptCode = readVarLong(in);
+        byte[] script;
+        if (scriptCode < SPECIAL_SCRIPTS) {
+            script = decompressScript((int) scriptCode,
+                    readFully(in, scriptCode < P2PK_COMPRESSED ? 20 : 32));
+        } else {
+            long length = scriptCode - SPECIAL_SCRIPTS;
+            if (length > Block.MAX_BLOCK_SIZE)
+                throw new IOException("Script too long: " + length);
+            script = readFully(in, (int) length);
+        }
+        return new StoredTransactionOutput(hash, index, value, height, coinbase, script);
+    }
+
+    /**
+     * Takes the trailing decimal zeros out of an amount, the way the reference client does. Amounts that are a round
+     * number of coins or of some fraction of one, which is most of them, end up small enough for a one or two byte
+     * varint.
+     */
+    public static long compressAmount(long amount) {
+        checkArgument(amount >= 0, "Negative amount %s", amount);
+        if (amount == 0)
+            return 0;
+        int exponent = 0;
+        while (amount % 10 == 0 && exponent < 9) {
+            amount /= 10;
+            exponent++;
+        }
+        if (exponent < 9) {
+            int lastDigit = (int) (amount % 10);
+            amount /= 10;
+            return 1 + (amount * 9 + lastDigit - 1) * 10 + exponent;
+        } else {
+            return 1 + (amount - 1) * 10 + 9;
+        }
+    }
+
+    /** Reverses {@link #compressAmount(long)}. */
+    public static long decompressAmount(long compressed) {
+        if (compressed == 0)
+            return 0;
+        compressed--;
+        int exponent = (int) (compressed % 10);
+        compressed /= 10;
+        long amount;
+        if (exponent < 9) {
+            int lastDigit = (int) (compressed % 9) + 1;
+            compressed /= 9;
+            amount = compressed * 10 + lastDigit;
+        } else {
+            amount = compressed + 1;
+        }
+        while (exponent-- > 0)
+            amount *= 10;
+        return amount;
+    }
+
+    /**
+     * Returns the template number and hash or key of a standard script, or null for any other script. An uncompressed
+     * key is only taken if it is a valid point, as otherwise it couldn't be restored from its x coordinate.
+     */
+    static byte[] compressScript(byte[] script) {
+        if (script.length == 25 && (script[0] & 0xff) == OP_DUP && (script[1] & 0xff) == OP_HASH160
+                && script[2] == 20 && (script[23] & 0xff) == OP_EQUALVERIFY && (script[24] & 0xff) == OP_CHECKSIG) {
+            return template(P2PKH, script, 3, 20);
+        }
+        if (script.length == 23 && (script[0] & 0xff) == OP_HASH160 && script[1] == 20
+                && (script[22] & 0xff) == OP_EQUAL) {
+            return template(P2SH, script, 2, 20);
+        }
+        if (script.length == 35 && script[0] == 33 && (script[34] & 0xff) == OP_CHECKSIG
+                && (script[1] == 2 || script[1] == 3)) {
+            return template(P2PK_COMPRESSED + script[1] - 2, script, 2, 32);
+        }
+        if (script.length == 67 && script[0] == 65 && (script[66] & 0xff) == OP_CHECKSIG && script[1] == 4) {
+            byte[] key = Arrays.copyOfRange(script, 1, 66);
+            int parity = script[65] & 1;
+            byte[] compressed = template(P2PK_UNCOMPRESSED + parity, script, 2, 32);
+            try {
+                if (Arrays.equals(decompressKey(parity, Arrays.copyOfRange(compressed, 1, 33)), key))
+                    return compressed;
+            } catch (IllegalArgumentException e) {
+                // Not on the curve.
+            }
+        }
+        return null;
+    }
+
+    private static byte[] template(int type, byte[] script, int offset, int length) {
+        byte[] compressed = new byte[1 + length];
+        compressed[0] = (byte) type;
+        System.arraycopy(script, offset, compressed, 1, length);
+        return compressed;
+    }
+
+    /** Rebuilds a standard script from its template number and the hash or key that followed. */
+    static byte[] decompressScript(int type, byte[] data) throws IOException {
+        switch (type) {
+            case P2PKH: {
+                byte[] script = new byte[25];
+                script[0] = (byte) OP_DUP;
+                script[1] = (byte) OP_HASH160;
+                script[2] = 20;
+                System.arraycopy(data, 0, script, 3, 20);
+                script[23] = (byte) OP_EQUALVERIFY;
+                script[24] = (byte) OP_CHECKSIG;
+                return script;
+            }
+            case P2SH: {
+                byte[] script = new byte[23];
+                script[0] = (byte) OP_HASH160;
+                script[1] = 20;
+                System.arraycopy(data, 0, script, 2, 20);
+                script[22] = (byte) OP_EQUAL;
+                return script;
+            }
+            case P2PK_COMPRESSED:
+            case P2PK_COMPRESSED + 1: {
+                byte[] script = new byte[35];
+                script[0] = 33;
+                script[1] = (byte) type;
+                System.arraycopy(data, 0, script, 2, 32);
+                script[34] = (byte) OP_CHECKSIG;
+                return script;
+            }
+            default: {
+                byte[] key;
+                try {
+                    key = decompressKey(type - P2PK_UNCOMPRESSED, data);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid public key in compressed script", e);
+                }
+                byte[] script = new byte[67];
+                script[0] = 65;
+                System.arraycopy(key, 0, script, 1, 65);
+                script[66] = (byte) OP_CHECKSIG;
+                return script;
+            }
+        }
+    }
+
+    // Returns the uncompressed encoding of the point with the given x coordinate and parity of y.
+    private static byte[] decompressKey(int parity, byte[] x) {
+        byte[] compressed = new byte[33];
+        compressed[0] = (byte) (2 + parity);
+        System.arraycopy(x, 0, compressed, 1, 32);
+        return ECKey.CURVE.getCurve().decodePoint(compressed).getEncoded(false);
+    }
+
+    /** Writes an unsigned little endian base 128 varint. */
+    public static void writeVarLong(long value, OutputStream os) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        os.write((int) value);
+    }
+
+    /** Reads a varint written by {@link #writeVarLong(long, OutputStream)}. */
+    public static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0)
+                throw new EOFException();
+            read += n;
+        }
+        return bytes;
+    }
+}
@@ -20,6 +20,7 @@ package io.mappum.altcoinj.core;
 import io.mappum.altcoinj.script.Script;
 import io.mappum.altcoinj.script.Script.VerifyFlag;
 import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.BulkOutputLookupStore;
 import io.mappum.altcoinj.store.FullPrunedBlockStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,9 +28,12 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -148,6 +152,40 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
     
+    /**
+     * Looks up the outputs spent by the given transactions in one go, if the store can do that, so that connecting them
+     * doesn't wait on a store round trip per input. Outputs created by the transactions themselves aren't in the store
+     * yet and are left out, as are the ones the store doesn't have. The caller takes each output out of the map as it
+     * spends it and asks the store about anything that isn't there, so an output spent twice in a block is still found
+     * to be gone the second time.
+     */
+    private Map<TransactionOutPoint, StoredTransactionOutput> prefetchSpentOutputs(List<Transaction> transactions)
+            throws BlockStoreException {
+        Map<TransactionOutPoint, StoredTransactionOutput> prefetched =
+                new HashMap<TransactionOutPoint, StoredTransactionOutput>();
+        if (!(blockStore instanceof BulkOutputLookupStore))
+            return prefetched;
+        Set<Sha256Hash> created = new HashSet<Sha256Hash>();
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : transactions) {
+            if (!tx.isCoinBase()) {
+                for (TransactionInput in : tx.getInputs()) {
+                    if (!created.contains(in.getOutpoint().getHash()))
+                        outPoints.add(in.getOutpoint());
+                }
+            }
+            created.add(tx.getHash());
+        }
+        if (outPoints.isEmpty())
+            return prefetched;
+        List<StoredTransactionOutput> outputs = ((BulkOutputLookupStore) blockStore).getTransactionOutputs(outPoints);
+        for (int i = 0; i < outPoints.size(); i++) {
+            if (outputs.get(i) != null)
+                prefetched.put(outPoints.get(i), outputs.get(i));
+        }
+        return prefetched;
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -185,6 +223,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            Map<TransactionOutPoint, StoredTransactionOutput> prefetched = prefetchSpentOutputs(block.transactions);
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
             for (final Transaction tx : block.transactions) {
@@ -197,8 +236,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = prefetched.remove(in.getOutpoint());
+                        if (prevOut == null)
+                            prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
+                                                                      in.getOutpoint().getIndex());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -313,6 +354,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
+                Map<TransactionOutPoint, StoredTransactionOutput> prefetched = prefetchSpentOutputs(transactions);
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
                 
@@ -327,8 +369,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                                    in.getOutpoint().getIndex());
+                            StoredTransactionOutput prevOut = prefetched.remove(in.getOutpoint());
+                            if (prevOut == null)
+                                prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
+                                                                          in.getOutpoint().getIndex());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
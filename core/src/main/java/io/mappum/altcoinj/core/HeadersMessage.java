@@ -42,6 +42,11 @@ public class HeadersMessage extends Message {
         super(params, payload, 0);
     }
 
+    /** Deserializes a 'headers' message starting at the given offset of the array. */
+    public HeadersMessage(NetworkParameters params, byte[] payload, int offset) throws ProtocolException {
+        super(params, payload, offset);
+    }
+
     public HeadersMessage(NetworkParameters params, Block... headers) throws ProtocolException {
         super(params);
         blockHeaders = Arrays.asList(headers);
@@ -113,6 +118,7 @@ public class HeadersMessage extends Message {
                 throw new ProtocolException("Block header does not end with a null byte");
             blockHeaders.add(newBlockHeader);
         }
+        length = cursor - offset;
 
         if (log.isDebugEnabled()) {
             for (int i = 0; i < numHeaders; ++i) {
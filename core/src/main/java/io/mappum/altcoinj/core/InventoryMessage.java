@@ -51,6 +51,15 @@ public class InventoryMessage extends ListMessage {
         super(params, payload, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Deserializes an 'inv' message starting at the given offset of the array.
+     * @see #InventoryMessage(NetworkParameters, byte[], boolean, boolean, int)
+     */
+    public InventoryMessage(NetworkParameters params, byte[] payload, int offset, boolean parseLazy,
+                            boolean parseRetain, int length) throws ProtocolException {
+        super(params, payload, offset, parseLazy, parseRetain, length);
+    }
+
     public InventoryMessage(NetworkParameters params) {
         super(params);
     }
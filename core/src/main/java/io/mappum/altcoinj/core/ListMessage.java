@@ -43,6 +43,11 @@ public abstract class ListMessage extends Message {
         super(params, payload, 0, parseLazy, parseRetain, length);
     }
 
+    public ListMessage(NetworkParameters params, byte[] payload, int offset, boolean parseLazy, boolean parseRetain,
+                       int length) throws ProtocolException {
+        super(params, payload, offset, parseLazy, parseRetain, length);
+    }
+
     public ListMessage(NetworkParameters params) {
         super(params);
         items = new ArrayList<InventoryItem>();
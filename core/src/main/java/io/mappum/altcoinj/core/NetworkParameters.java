@@ -24,6 +24,8 @@ import io.mappum.altcoinj.script.ScriptOpCodes;
 import com.google.common.base.Objects;
 import io.mappum.altcoinj.store.BlockStore;
 import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.HeightIndexedBlockStore;
+import io.mappum.altcoinj.store.SPVBlockStore;
 
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
@@ -70,6 +72,8 @@ public abstract class NetworkParameters implements Serializable {
     protected ProofOfWork proofOfWork;
     protected ProofOfWork hashFunction = Sha256ProofOfWork.get();
     protected BigInteger maxTarget;
+    private transient volatile ConvertedMaxTarget convertedMaxTarget;
+    private transient RetargetAnchorIndex retargetAnchors;
     protected int port;
     protected long packetMagic;  // Indicates message origin network and is used to seek to the next message when stream state is unknown.
     protected int addressHeader;
@@ -120,12 +124,12 @@ public abstract class NetworkParameters implements Serializable {
 
         int timespan = getTimespan(storedPrev, blockStore);
 
-        BigInteger newTarget = Utils.decodeCompactBits(prev.getDifficultyTarget());
-        newTarget = newTarget.multiply(BigInteger.valueOf(timespan));
-        newTarget = newTarget.divide(BigInteger.valueOf(getTargetTimespan(storedPrev.getHeight())));
+        Uint256 newTarget = prev.getDifficultyTargetAsUint256();
+        newTarget = newTarget.multiplyAndDivide(timespan, getTargetTimespan(storedPrev.getHeight()));
 
+        Uint256 maxTarget = getMaxTargetAsUint256();
         if (newTarget.compareTo(maxTarget) > 0) {
-            //log.info("Difficulty hit proof of work limit: {}", newTarget.toString(16));
+            //log.info("Difficulty hit proof of work limit: {}", newTarget);
             newTarget = maxTarget;
         }
 
@@ -133,9 +137,9 @@ public abstract class NetworkParameters implements Serializable {
         long receivedTargetCompact = nextBlock.getDifficultyTarget();
 
         // The calculated difficulty is to a higher precision than received, so reduce here.
-        BigInteger mask = BigInteger.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
+        Uint256 mask = Uint256.valueOf(0xFFFFFFL).shiftLeft(accuracyBytes * 8);
         newTarget = newTarget.and(mask);
-        long newTargetCompact = Utils.encodeCompactBits(newTarget);
+        long newTargetCompact = newTarget.toCompactBits();
 
         if (newTargetCompact != receivedTargetCompact)
             throw new VerificationException("Network provided difficulty bits do not match what was calculated: " +
@@ -166,21 +170,10 @@ public abstract class NetworkParameters implements Serializable {
     throws BlockStoreException, VerificationException {
         Block prev = storedPrev.getHeader();
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
+        // We need to find a block far back in the chain.
         int height = storedPrev.getHeight();
-        for (int i = 0; i < getInterval(height) + getIntervalOffset(height) - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
-
-        Block blockIntervalAgo = cursor.getHeader();
+        Block blockIntervalAgo = getAncestor(storedPrev, getInterval(height) + getIntervalOffset(height) - 1,
+                blockStore).getHeader();
         int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
         // Limit the adjustment step.
         int targetTimespan = getTargetTimespan(storedPrev.getHeight());
@@ -196,6 +189,45 @@ public abstract class NetworkParameters implements Serializable {
         return 0;
     }
 
+    /**
+     * Returns the block the given number of blocks before the given one. During a sync the start of the last difficulty
+     * period is usually known, and a {@link HeightIndexedBlockStore} can look up ancestors of main chain blocks,
+     * otherwise this walks back through the store, which is slow for long intervals.
+     */
+    protected StoredBlock getAncestor(StoredBlock block, int blocksBack, BlockStore blockStore)
+            throws BlockStoreException, VerificationException {
+        StoredBlock cursor = getRetargetAnchors().get(block, block.getHeight() - blocksBack);
+        if (cursor != null)
+            return cursor;
+        if (blockStore instanceof HeightIndexedBlockStore) {
+            // Ancestors can be looked up by height if the block is on the main chain.
+            HeightIndexedBlockStore indexed = (HeightIndexedBlockStore) blockStore;
+            StoredBlock sameHeight = indexed.getByHeight(block.getHeight());
+            if (sameHeight != null && sameHeight.getHeader().getHash().equals(block.getHeader().getHash())) {
+                cursor = indexed.getByHeight(block.getHeight() - blocksBack);
+                if (cursor != null)
+                    return cursor;
+            }
+        }
+        cursor = block;
+        for (int i = 0; i < blocksBack; i++) {
+            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            if (cursor == null) {
+                // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                throw new VerificationException(
+                        "Difficulty transition point but we did not find a way back to the genesis block.");
+            }
+        }
+        return cursor;
+    }
+
+    /** The edges of the recent difficulty periods of the chain being verified, see {@link AbstractBlockChain}. */
+    synchronized RetargetAnchorIndex getRetargetAnchors() {
+        if (retargetAnchors == null)
+            retargetAnchors = new RetargetAnchorIndex(this);
+        return retargetAnchors;
+    }
+
     protected static Block createGenesis(NetworkParameters n, byte[] input, byte[] scriptPubKey) {
         return createGenesis(n, input, scriptPubKey, null);
     }
@@ -410,11 +442,47 @@ public abstract class NetworkParameters implements Serializable {
         return interval;
     }
 
+    /** The time in seconds blocks are supposed to be found in, or 0 if the network doesn't say. */
+    public int getTargetSpacing() {
+        return targetSpacing;
+    }
+
+    /**
+     * How many headers an {@link io.mappum.altcoinj.store.SPVBlockStore} holds unless told otherwise. Chains with
+     * faster blocks get a bigger ring, so that it reaches back about as far in time as
+     * {@link io.mappum.altcoinj.store.SPVBlockStore#DEFAULT_NUM_HEADERS} Bitcoin blocks do, five weeks or so.
+     */
+    public int getSpvBlockStoreCapacity() {
+        int spacing = getTargetSpacing();
+        if (spacing <= 0 || spacing >= MainNetParams.TARGET_SPACING)
+            return SPVBlockStore.DEFAULT_NUM_HEADERS;
+        return (int) ((long) SPVBlockStore.DEFAULT_NUM_HEADERS * MainNetParams.TARGET_SPACING / spacing);
+    }
+
     /** Maximum target represents the easiest allowable proof of work. */
     public BigInteger getMaxTarget() {
         return maxTarget;
     }
 
+    /** Returns {@link #getMaxTarget()} as a {@link Uint256}, clamped to 2<sup>256</sup> - 1. */
+    public Uint256 getMaxTargetAsUint256() {
+        // Subclasses set maxTarget directly, so check the conversion is still for the current value.
+        ConvertedMaxTarget converted = convertedMaxTarget;
+        if (converted == null || converted.source != maxTarget)
+            convertedMaxTarget = converted = new ConvertedMaxTarget(maxTarget);
+        return converted.value;
+    }
+
+    private static class ConvertedMaxTarget {
+        final BigInteger source;
+        final Uint256 value;
+
+        ConvertedMaxTarget(BigInteger source) {
+            this.source = source;
+            this.value = Uint256.valueOfClamped(source);
+        }
+    }
+
     public ProofOfWork getProofOfWork() { return proofOfWork; }
 
     /**
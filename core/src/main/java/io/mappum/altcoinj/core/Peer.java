@@ -83,6 +83,8 @@ public class Peer extends PeerSocketHandler {
     private final VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
     private volatile boolean vDownloadTxDependencies;
+    // If set, the proof of work of downloaded headers is checked in parallel before they are added to the chain.
+    @Nullable private volatile ProofOfWorkVerifier vHeaderVerifier;
     // How many block messages the peer has announced to us. Peers only announce blocks that attach to their best chain
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
@@ -123,6 +125,9 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // When the first of the pendingBlockDownloads was asked for and the size of those received since, to measure how
+    // fast the peer sends us blocks.
+    private long pendingBlockDownloadsSince, pendingBlockDownloadsBytes;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -137,6 +142,9 @@ public class Peer extends PeerSocketHandler {
     }
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
 
+    // How well the peer has been serving us, see getScore().
+    private final PeerScore score = new PeerScore();
+
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
     @GuardedBy("lastPingTimesLock") private long[] lastPingTimes = null;
@@ -151,6 +159,16 @@ public class Peer extends PeerSocketHandler {
     private final SettableFuture<Peer> versionHandshakeFuture = SettableFuture.create();
     // A future representing the results of doing a getUTXOs call.
     @Nullable private SettableFuture<UTXOsMessage> utxosFuture;
+    // A getBlockHeaders call. An answer starts right after the first of the locator hashes the peer knows, which is how
+    // it is matched to its request.
+    private static class HeadersRequest {
+        List<Sha256Hash> locator;
+        SettableFuture<HeadersMessage> future;
+    }
+    // The getBlockHeaders calls in the order they were sent. Cancelled ones stay until an answer to them or to a later
+    // one comes in, so that a late answer isn't taken for the answer to a newer one. A peer may ignore a request
+    // altogether, so the ones before the request an answer matches are dropped.
+    @GuardedBy("lock") private final LinkedList<HeadersRequest> headersRequests = new LinkedList<HeadersRequest>();
 
     /**
      * <p>Construct a peer that reads/writes from the given block chain.</p>
@@ -480,6 +498,35 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Finds the request the headers answer and drops it and all the ones before it, or returns null if they answer none.
+    // Of the requests whose locator has the hash the answer starts after, the one that has it nearest the front is the
+    // most likely. An answer without headers, or one that answers several requests equally well, goes to the request
+    // still waiting for one if there is one.
+    @GuardedBy("lock")
+    @Nullable
+    private HeadersRequest matchHeadersRequest(HeadersMessage m) {
+        List<Block> headers = m.getBlockHeaders();
+        Sha256Hash prevHash = headers.isEmpty() ? null : headers.get(0).getPrevBlockHash();
+        int match = -1;
+        int matchPosition = Integer.MAX_VALUE;
+        for (int i = 0; i < headersRequests.size(); i++) {
+            HeadersRequest request = headersRequests.get(i);
+            int position = prevHash == null ? 0 : request.locator.indexOf(prevHash);
+            if (position < 0 || position > matchPosition)
+                continue;
+            if (position < matchPosition || !request.future.isDone()) {
+                match = i;
+                matchPosition = position;
+            }
+        }
+        if (match < 0)
+            return null;
+        HeadersRequest request = null;
+        for (int i = 0; i <= match; i++)
+            request = headersRequests.poll();
+        return request;
+    }
+
     private void processHeaders(HeadersMessage m) throws ProtocolException {
         // Runs in network loop thread for this peer.
         //
@@ -490,6 +537,24 @@ public class Peer extends PeerSocketHandler {
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
+        HeadersRequest request;
+        lock.lock();
+        try {
+            request = matchHeadersRequest(m);
+        } finally {
+            lock.unlock();
+        }
+        if (request != null) {
+            // Asked for by getBlockHeaders(). Does nothing if the request was cancelled, the answer is too late.
+            request.future.set(m);
+            return;
+        }
+        if (!vDownloadData) {
+            // Not asked for, maybe because another peer or the BlockDownloader is downloading the chain.
+            log.info("{}: Ignoring unrequested headers", getAddress());
+            return;
+        }
+
         lock.lock();
         try {
             if (blockChain == null) {
@@ -505,6 +570,17 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
+            ProofOfWorkVerifier verifier = vHeaderVerifier;
+            if (verifier != null && vDownloadData) {
+                // Only the headers before the fast catchup time will be added below, don't waste time on the rest.
+                List<Block> headers = new ArrayList<Block>(m.getBlockHeaders().size());
+                for (Block header : m.getBlockHeaders()) {
+                    if (header.getTimeSeconds() >= fastCatchupTimeSecs)
+                        break;
+                    headers.add(header);
+                }
+                verifier.verify(headers);
+            }
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
@@ -554,6 +630,7 @@ public class Peer extends PeerSocketHandler {
             }
         } catch (VerificationException e) {
             log.warn("Block header verification failed", e);
+            score.recordMisbehaviour(PeerScore.INVALID_DATA_PENALTY, "invalid header: " + e.getMessage());
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
@@ -845,7 +922,7 @@ public class Peer extends PeerSocketHandler {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
+        blockDownloaded(m.getHash(), m.getMessageSize());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -885,16 +962,29 @@ public class Peer extends PeerSocketHandler {
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("{}: Block verification failed", getAddress(), e);
+            score.recordMisbehaviour(PeerScore.INVALID_DATA_PENALTY, "invalid block: " + e.getMessage());
         } catch (PrunedException e) {
             // Unreachable when in SPV mode.
             throw new RuntimeException(e);
         }
     }
 
+    // A block we asked for as part of the chain download arrived. Once all of them did, the time it took counts
+    // towards the throughput in the score.
+    private void blockDownloaded(Sha256Hash hash, int size) {
+        if (!pendingBlockDownloads.remove(hash))
+            return;
+        pendingBlockDownloadsBytes += size;
+        if (pendingBlockDownloads.isEmpty())
+            score.recordDelivery(pendingBlockDownloadsBytes, Utils.currentTimeMillis() - pendingBlockDownloadsSince);
+    }
+
     // TODO: Fix this duplication.
     private void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        // Was this block requested by getFilteredBlocks()?
+        if (maybeHandleRequestedData(m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -906,7 +996,7 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        blockDownloaded(m.getBlockHeader().getHash(), m.getMessageSize());
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -982,6 +1072,7 @@ public class Peer extends PeerSocketHandler {
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
             log.warn("{}: FilteredBlock verification failed", getAddress(), e);
+            score.recordMisbehaviour(PeerScore.INVALID_DATA_PENALTY, "invalid filtered block: " + e.getMessage());
         } catch (PrunedException e) {
             // We pruned away some of the data we need to properly handle this block. We need to request the needed
             // data from the remote peer and fix things. Or just give up.
@@ -1012,7 +1103,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1122,6 +1213,10 @@ public class Peer extends PeerSocketHandler {
                         // the duplicate check in blockChainDownloadLocked(). But the satoshi client may change in future so
                         // it's better to be safe here.
                         if (!pendingBlockDownloads.contains(item.hash)) {
+                            if (pendingBlockDownloads.isEmpty()) {
+                                pendingBlockDownloadsSince = Utils.currentTimeMillis();
+                                pendingBlockDownloadsBytes = 0;
+                            }
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
@@ -1186,6 +1281,72 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for the given blocks in a single getdata, and returns a future for each of them in the
+     * same order. A future is cancelled if the peer says it doesn't have the block. This is how a
+     * {@link BlockDownloader} fetches blocks from many peers at once, the blocks are not added to the chain by this
+     * peer.
+     */
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : blockHashes)
+            getdata.addBlock(hash);
+        return sendGetData(getdata);
+    }
+
+    /**
+     * Like {@link #getBlocks(List)}, but asks for filtered blocks matching the Bloom filter set on the connection. Each
+     * future completes once the transactions that follow its block have been received too.
+     */
+    public List<ListenableFuture<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : blockHashes)
+            getdata.addFilteredBlock(hash);
+        List<ListenableFuture<FilteredBlock>> futures = sendGetData(getdata);
+        // As in processInv, the pong marks the end of the transactions of the last filtered block.
+        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return futures;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> List<ListenableFuture<T>> sendGetData(GetDataMessage getdata) {
+        List<ListenableFuture<T>> futures = new ArrayList<ListenableFuture<T>>(getdata.getItems().size());
+        for (InventoryItem item : getdata.getItems()) {
+            GetDataRequest req = new GetDataRequest();
+            req.future = SettableFuture.create();
+            req.hash = item.hash;
+            getDataFutures.add(req);
+            futures.add(req.future);
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for the headers of the blocks on its best chain that follow the first of the locator
+     * hashes it knows, up to {@link HeadersMessage#MAX_HEADERS} of them or until the stop hash. Only one such request
+     * can be outstanding at a time, but a request can be cancelled to ask again.
+     */
+    public ListenableFuture<HeadersMessage> getBlockHeaders(List<Sha256Hash> blockLocator, Sha256Hash stopHash) {
+        HeadersRequest request = new HeadersRequest();
+        request.locator = new ArrayList<Sha256Hash>(blockLocator);
+        request.future = SettableFuture.create();
+        lock.lock();
+        try {
+            for (HeadersRequest pending : headersRequests)
+                if (!pending.future.isDone())
+                    throw new IllegalStateException(
+                            "Already fetching headers, wait for previous query to complete first.");
+            headersRequests.add(request);
+        } finally {
+            lock.unlock();
+        }
+        sendMessage(new GetHeadersMessage(params, blockLocator, stopHash));
+        return request.future;
+    }
+
     /** Sends a getdata with a single item in it. */
     private ListenableFuture sendSingleGetData(GetDataMessage getdata) {
         // This does not need to be locked.
@@ -1342,14 +1503,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1360,6 +1514,17 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1378,6 +1543,7 @@ public class Peer extends PeerSocketHandler {
             checkNotNull(future, "Already completed");
             Long elapsed = Utils.currentTimeMillis() - startTimeMsec;
             Peer.this.addPingTimeData(elapsed);
+            score.recordPing(elapsed);
             log.debug("{}: ping time is {} msec", Peer.this.toString(), elapsed);
             future.set(elapsed);
             future = null;
@@ -1505,6 +1671,20 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Sets a verifier used to check the proof of work of downloaded headers in parallel, before they are handed to
+     * the block chain in order. If null (the default), headers are verified one by one as they are added.
+     */
+    public void setHeaderVerifier(@Nullable ProofOfWorkVerifier verifier) {
+        this.vHeaderVerifier = verifier;
+    }
+
+    /** Returns the verifier set by {@link #setHeaderVerifier(ProofOfWorkVerifier)}, or null. */
+    @Nullable
+    public ProofOfWorkVerifier getHeaderVerifier() {
+        return vHeaderVerifier;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
         return vPeerVersionMessage;
@@ -1515,6 +1695,14 @@ public class Peer extends PeerSocketHandler {
         return versionMessage;
     }
 
+    /**
+     * Returns the score tracking how well this peer has been serving us, which the {@link PeerGroup} uses to choose
+     * between peers.
+     */
+    public PeerScore getScore() {
+        return score;
+    }
+
     /**
      * @return the height of the best chain as claimed by peer: sum of its ver announcement and blocks announced since.
      */
@@ -35,7 +35,6 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.net.InetAddresses;
 import com.google.common.primitives.Ints;
-import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.*;
 import com.subgraph.orchid.TorClient;
 import net.jcip.annotations.GuardedBy;
@@ -101,6 +100,14 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download
     @Nullable @GuardedBy("lock") private PeerEventListener downloadListener;
+    // How many peers the chain may be downloaded from at once, and the download running if that is more than one.
+    @GuardedBy("lock") private int maxDownloadPeers = 1;
+    @GuardedBy("lock") private boolean headersFirst;
+    // How long the chain may go without growing while the download peer has more blocks, before we switch peers.
+    @GuardedBy("lock") private long downloadStallTimeoutMillis = DEFAULT_DOWNLOAD_STALL_TIMEOUT_MILLIS;
+    @GuardedBy("lock") private int lastDownloadHeight = -1;
+    @GuardedBy("lock") private long lastDownloadProgressMillis;
+    @Nullable @GuardedBy("lock") private BlockDownloader blockDownloader;
     // Callbacks for events related to peer connection/disconnection
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
@@ -109,6 +116,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
     @GuardedBy("lock") private boolean downloadTxDependencies;
+    // If set, passed to every peer to check the proof of work of downloaded headers in parallel.
+    @Nullable private volatile ProofOfWorkVerifier vHeaderVerifier;
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
@@ -123,6 +132,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private volatile Timer vPingTimer;
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
+    /** How long the chain download may stall before the download moves to another peer, see {@link #setDownloadStallTimeoutMillis(long)}. */
+    public static final long DEFAULT_DOWNLOAD_STALL_TIMEOUT_MILLIS = 30 * 1000;
+    // The download peer is kept unless another peer scores at least this much better, so it doesn't flap between peers
+    // that are about as good.
+    private static final double DOWNLOAD_PEER_SWITCH_MARGIN = 10;
+    // Header requests in a row the header source of a BlockDownloader may leave unanswered before it is replaced.
+    private static final int MAX_HEADER_STALLS = 3;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
@@ -404,7 +420,36 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             triggerConnections();
 
         if (adjustment < 0)
-            channels.closeConnections(-adjustment);
+            evictPeers(-adjustment);
+    }
+
+    // Closes the given number of connections, those of the lowest scoring peers first. The download peer goes last.
+    private void evictPeers(int count) {
+        List<Peer> candidates;
+        lock.lock();
+        try {
+            candidates = new ArrayList<Peer>(peers);
+            candidates.remove(downloadPeer);
+            Collections.sort(candidates, new Comparator<Peer>() {
+                @Override
+                public int compare(Peer a, Peer b) {
+                    return Double.compare(a.getScore().getScore(), b.getScore().getScore());
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+        int closed = 0;
+        for (Peer peer : candidates) {
+            if (closed == count)
+                break;
+            log.info("{}: Dropping connection to get down to the maximum, {}", peer, peer.getScore());
+            peer.close();
+            closed++;
+        }
+        // Peers still connecting, and the download peer if it comes to that.
+        if (closed < count)
+            channels.closeConnections(count - closed);
     }
 
     /**
@@ -420,6 +465,112 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * Sets a {@link ProofOfWorkVerifier} that peers use to check the proof of work of downloaded headers in parallel
+     * before adding them to the chain, instead of one by one on the network thread. This mostly helps chains with an
+     * expensive proof of work such as Scrypt or X11. Takes effect for all current and future peers. The verifier is
+     * not shut down when the peer group stops.
+     */
+    public void setHeaderVerifier(@Nullable ProofOfWorkVerifier verifier) {
+        vHeaderVerifier = verifier;
+        for (Peer peer : pendingPeers)
+            peer.setHeaderVerifier(verifier);
+        for (Peer peer : peers)
+            peer.setHeaderVerifier(verifier);
+    }
+
+    /**
+     * <p>Sets how many peers the block chain may be downloaded from at the same time. The default is one, where the
+     * download peer is sent a getblocks and sends us the blocks one after the other.</p>
+     *
+     * <p>With more than one, the download peer only supplies the headers, which are checked as they arrive, and the
+     * blocks (or filtered blocks) are requested in small batches from up to this many peers, with a batch given to
+     * another peer if one is slow to answer. Blocks are still added to the chain in order. Once the chain has caught
+     * up, the download peer takes over as usual. Takes effect the next time a chain download starts.</p>
+     */
+    public void setMaxDownloadPeers(int maxDownloadPeers) {
+        checkArgument(maxDownloadPeers > 0);
+        lock.lock();
+        try {
+            this.maxDownloadPeers = maxDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many peers the block chain may be downloaded from at the same time. */
+    public int getMaxDownloadPeers() {
+        lock.lock();
+        try {
+            return maxDownloadPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how long the chain may go without growing, while the download peer claims to have more blocks, before the
+     * download peer counts as stalled. It is then marked down for a timeout in its {@link PeerScore} and the download
+     * moves to the best scoring of the other peers, if there is one. Zero turns this off. Parallel and headers first
+     * downloads notice stalls of their own, see {@link #setMaxDownloadPeers(int)}, and move blocks to other peers by
+     * themselves. If their download peer stops sending headers, the download is started again from another peer.
+     */
+    public void setDownloadStallTimeoutMillis(long downloadStallTimeoutMillis) {
+        checkArgument(downloadStallTimeoutMillis >= 0);
+        lock.lock();
+        try {
+            this.downloadStallTimeoutMillis = downloadStallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the scores of the connected peers, best first. These are what the download peer is chosen by and what
+     * decides which connections are dropped first, see {@link PeerScore}.
+     */
+    public Map<Peer, PeerScore> getPeerScores() {
+        List<Peer> sorted = getConnectedPeers();
+        Collections.sort(sorted, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return Double.compare(b.getScore().getScore(), a.getScore().getScore());
+            }
+        });
+        Map<Peer, PeerScore> scores = new LinkedHashMap<Peer, PeerScore>();
+        for (Peer peer : sorted)
+            scores.put(peer, peer.getScore());
+        return scores;
+    }
+
+    /**
+     * <p>Sets whether the chain download fetches the whole header chain before any block. The headers are checked for
+     * proof of work and difficulty as they arrive, and blocks are only requested once the header chain is complete and
+     * has more work than ours, from as many peers as {@link #setMaxDownloadPeers(int)} allows. No orphan blocks are
+     * seen and no bandwidth is spent on blocks of invalid or weaker chains.</p>
+     *
+     * <p>The headers that need their blocks downloaded, those after the fast catchup time, are kept in memory until
+     * the blocks arrive. Takes effect the next time a chain download starts.</p>
+     */
+    public void setHeadersFirst(boolean headersFirst) {
+        lock.lock();
+        try {
+            this.headersFirst = headersFirst;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the chain download fetches the whole header chain before any block. */
+    public boolean isHeadersFirst() {
+        lock.lock();
+        try {
+            return headersFirst;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private Runnable triggerConnectionsJob = new Runnable() {
         @Override
         public void run() {
@@ -813,6 +964,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             log.warn("Starting up with no attached block chain. Did you forget to pass one to the constructor?");
         }
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                checkDownloadProgress();
+            }
+        }, 1000, 1000);
         if (torClient != null) {
             log.info("Starting Tor/Orchid ...");
             torClient.start();
@@ -828,6 +985,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void shutDown() throws Exception {
         // This is run on a separate thread by the Service implementation.
         vPingTimer.cancel();
+        stopBlockDownloader();
         // Blocking close of all sockets.
         channels.stopAsync();
         channels.awaitTerminated();
@@ -973,7 +1131,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 // if the estimate temporarily overshoots our threshold.
                 if (chain != null)
                     chain.resetFalsePositiveEstimate();
-        }
+            }
+            // A parallel download that ran out of keys waits for the peers to have the latest filter, which they
+            // already do if it didn't change.
+            if (blockDownloader != null && (send || !result.changed))
+                blockDownloader.bloomFilterUpdated();
 
             // Do this last so that bloomFilter is already set when it gets called.
             setFastCatchupTimeSecs(result.earliestKeyTimeSecs);
@@ -1052,6 +1214,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool, downloadTxDependencies);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setHeaderVerifier(vHeaderVerifier);
         pendingPeers.add(peer);
 
         try {
@@ -1167,6 +1330,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 peer.addEventListenerWithoutOnDisconnect(registration.listener, registration.executor);
             }
             setupPingingForNewPeer(peer);
+            if (blockDownloader != null)
+                blockDownloader.peersChanged();
         } finally {
             lock.unlock();
         }
@@ -1255,7 +1420,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             }
             downloadPeer = peer;
             if (downloadPeer != null) {
-                log.info("Setting download peer: {}", downloadPeer);
+                log.info("Setting download peer: {}, {}", downloadPeer, downloadPeer.getScore());
                 if (downloadListener != null)
                     peer.addEventListener(downloadListener, Threading.SAME_THREAD);
                 downloadPeer.setDownloadData(true);
@@ -1289,6 +1454,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
             }
+            if (blockDownloader != null)
+                blockDownloader.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
         } finally {
             lock.unlock();
         }
@@ -1324,8 +1491,11 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died", address);
+            if (blockDownloader != null && peer != downloadPeer)
+                blockDownloader.peerDisconnected(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
+                stopBlockDownloader();
                 setDownloadPeer(null);
                 // Pick a new one and possibly tell it to download the chain.
                 final Peer newDownloadPeer = selectDownloadPeer(peers);
@@ -1375,10 +1545,57 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    // Moves the download to another peer if the download peer stopped sending us blocks.
+    private void checkDownloadProgress() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            int height = chain == null ? -1 : chain.getBestChainHeight();
+            Peer peer = downloadPeer;
+            boolean progressing;
+            if (peer == null || downloadListener == null || downloadStallTimeoutMillis == 0)
+                progressing = true;
+            else if (blockDownloader != null)
+                // The downloader takes blocks away from stalled peers itself, but only the header source has headers.
+                progressing = blockDownloader.getHeaderStalls() < MAX_HEADER_STALLS;
+            else
+                progressing = height != lastDownloadHeight || height >= peer.getBestHeight();
+            if (progressing) {
+                lastDownloadHeight = height;
+                lastDownloadProgressMillis = now;
+                return;
+            }
+            if (now - lastDownloadProgressMillis < downloadStallTimeoutMillis)
+                return;
+            lastDownloadProgressMillis = now;
+            // The downloader marked the header source down for each of its stalls already.
+            if (blockDownloader == null)
+                peer.getScore().recordTimeout();
+            List<Peer> others = new ArrayList<Peer>(peers);
+            others.remove(peer);
+            Peer next = selectDownloadPeer(others);
+            if (next == null) {
+                log.info("Download peer {} stalled at height {}, but there is no other peer to switch to", peer, height);
+                return;
+            }
+            log.info("Download peer {} stalled at height {}, switching to {}", peer, height, next);
+            startBlockChainDownloadFromPeer(next);
+        } catch (RuntimeException e) {
+            // Don't kill the timer.
+            log.error("Failed to check the chain download", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
             setDownloadPeer(peer);
+            if ((maxDownloadPeers > 1 || headersFirst) && chain != null) {
+                startParallelDownload(peer);
+                return;
+            }
             // startBlockChainDownload will setDownloadData(true) on itself automatically.
             peer.startBlockChainDownload();
         } finally {
@@ -1386,6 +1603,57 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    // Downloads the chain with the given peer supplying the headers, then lets it carry on alone.
+    @GuardedBy("lock")
+    private void startParallelDownload(final Peer peer) {
+        stopBlockDownloader();
+        // The download peer must not add blocks to the chain itself while the downloader does.
+        peer.setDownloadData(false);
+        final BlockDownloader downloader = new BlockDownloader(params, chain, peer, peers, wallets, vHeaderVerifier);
+        downloader.setMaxPeers(maxDownloadPeers);
+        downloader.setHeadersFirst(headersFirst);
+        downloader.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+        blockDownloader = downloader;
+        Futures.addCallback(downloader.getFuture(), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                handOver();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("Chain download failed, carrying on from the download peer alone", t);
+                handOver();
+            }
+
+            private void handOver() {
+                lock.lock();
+                try {
+                    if (blockDownloader != downloader)
+                        return;
+                    blockDownloader = null;
+                    if (downloadPeer == peer)
+                        peer.startBlockChainDownload();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, Threading.SAME_THREAD);
+        downloader.start();
+    }
+
+    private void stopBlockDownloader() {
+        lock.lock();
+        try {
+            if (blockDownloader != null) {
+                blockDownloader.stop();
+                blockDownloader = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a future that is triggered when the number of connected peers is equal to the given number of
      * peers. By using this with {@link io.mappum.altcoinj.core.PeerGroup#getMaxConnections()} you can wait until the
@@ -1614,11 +1882,6 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return Utils.maxOfMostFreq(heights);
     }
 
-    private static class PeerAndPing {
-        Peer peer;
-        long pingTime;
-    }
-
     /**
      * Given a list of Peers, return a Peer to be used as the download peer. If you don't want PeerGroup to manage
      * download peer statuses for you, just override this and always return null.
@@ -1628,7 +1891,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Ping time.
+        //  - Score, which includes ping time, throughput and how often it stalled.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -1648,23 +1911,27 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             highestVersion = Math.max(peer.getPeerVersionMessage().clientVersion, highestVersion);
             preferredVersion = Math.min(highestVersion, PREFERRED_VERSION);
         }
-        List<PeerAndPing> candidates2 = new ArrayList<PeerAndPing>();
+        List<Peer> candidates2 = new ArrayList<Peer>();
         for (Peer peer : candidates) {
-            if (peer.getPeerVersionMessage().clientVersion >= preferredVersion) {
-                PeerAndPing pap = new PeerAndPing();
-                pap.peer = peer;
-                pap.pingTime = peer.getPingTime();
-                candidates2.add(pap);
-            }
+            if (peer.getPeerVersionMessage().clientVersion >= preferredVersion)
+                candidates2.add(peer);
         }
-        // Sort by ping time.
-        Collections.sort(candidates2, new Comparator<PeerAndPing>() {
+        // Best score first. The sort is stable, so peers scoring the same stay in the order they connected.
+        final Map<Peer, Double> scores = new HashMap<Peer, Double>();
+        for (Peer peer : candidates2)
+            scores.put(peer, peer.getScore().getScore());
+        Collections.sort(candidates2, new Comparator<Peer>() {
             @Override
-            public int compare(PeerAndPing peerAndPing, PeerAndPing peerAndPing2) {
-                return Longs.compare(peerAndPing.pingTime, peerAndPing2.pingTime);
+            public int compare(Peer a, Peer b) {
+                return Double.compare(scores.get(b), scores.get(a));
             }
         });
-        return candidates2.get(0).peer;
+        Peer best = candidates2.get(0);
+        Peer current = downloadPeer;
+        if (current != null && scores.containsKey(current)
+                && scores.get(best) - scores.get(current) < DOWNLOAD_PEER_SWITCH_MARGIN)
+            return current;
+        return best;
     }
 
     /**
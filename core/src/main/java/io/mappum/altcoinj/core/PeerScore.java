@@ -0,0 +1,181 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Tracks how well a {@link Peer} has been serving us: how quickly it answers pings, how fast it sends what we ask
+ * for, how often it fails to answer in time and whether it has sent us anything invalid. The {@link PeerGroup} uses
+ * the resulting score to pick its download peer, to move the download to another peer when the download peer stalls,
+ * and to decide which connections to drop when it has too many.</p>
+ *
+ * <p>A peer we know nothing about scores {@link #INITIAL_SCORE}. From that are taken a penalty for the 90th percentile
+ * of the recent ping times, of a point per {@link #PING_PENALTY_MILLIS} up to {@link #MAX_PING_PENALTY}, and
+ * {@link #TIMEOUT_PENALTY} points per timeout plus the points of any misbehaviour. A bonus for throughput is added,
+ * ten points per tenfold increase over 10KB/sec up to {@link #MAX_THROUGHPUT_BONUS}. Throughput is measured on the
+ * blocks, and in parallel or headers first downloads the headers, that the peer sends us during chain download, so
+ * a peer that hasn't served any gets no bonus. Timeouts, misbehaviour and throughput are weighed towards recent
+ * events, the old ones counting half every {@link #HALF_LIFE_MILLIS}.</p>
+ *
+ * <p>All methods are thread safe. {@link #toString()} shows the score and what it is made of.</p>
+ */
+public class PeerScore {
+    public static final double INITIAL_SCORE = 100;
+    public static final long PING_PENALTY_MILLIS = 20;
+    public static final double MAX_PING_PENALTY = 30;
+    public static final double MAX_THROUGHPUT_BONUS = 30;
+    public static final double TIMEOUT_PENALTY = 20;
+    /** Points for sending a block or header that didn't verify. */
+    public static final int INVALID_DATA_PENALTY = 10;
+    public static final long HALF_LIFE_MILLIS = 10 * 60 * 1000;
+
+    private static final int PING_SAMPLES = 32;
+
+    @GuardedBy("this") private final long[] pings = new long[PING_SAMPLES];
+    @GuardedBy("this") private int pingCount;
+    @GuardedBy("this") private double deliveredBytes, deliveryMillis;
+    @GuardedBy("this") private double timeouts, misbehaviour;
+    @GuardedBy("this") private long totalTimeouts, totalMisbehaviour;
+    @GuardedBy("this") @Nullable private String lastMisbehaviour;
+    @GuardedBy("this") private long lastDecay = Utils.currentTimeMillis();
+
+    /** Records the round trip time of a ping. */
+    synchronized void recordPing(long millis) {
+        pings[pingCount % PING_SAMPLES] = millis;
+        pingCount++;
+    }
+
+    /** Records that the given number of bytes arrived the given time after we asked for them. */
+    synchronized void recordDelivery(long bytes, long millis) {
+        decay();
+        deliveredBytes += bytes;
+        // A delivery quicker than the clock can tell still took some time.
+        deliveryMillis += Math.max(millis, 1);
+    }
+
+    /** Records that the peer didn't answer a request in time. */
+    synchronized void recordTimeout() {
+        decay();
+        timeouts++;
+        totalTimeouts++;
+    }
+
+    /** Records that the peer sent us something it shouldn't have, worth the given number of penalty points. */
+    synchronized void recordMisbehaviour(int points, String reason) {
+        checkArgument(points >= 0);
+        decay();
+        misbehaviour += points;
+        totalMisbehaviour += points;
+        lastMisbehaviour = reason;
+    }
+
+    @GuardedBy("this")
+    private void decay() {
+        long now = Utils.currentTimeMillis();
+        long elapsed = now - lastDecay;
+        if (elapsed <= 0)
+            return;
+        double factor = Math.pow(0.5, (double) elapsed / HALF_LIFE_MILLIS);
+        deliveredBytes *= factor;
+        deliveryMillis *= factor;
+        timeouts *= factor;
+        misbehaviour *= factor;
+        lastDecay = now;
+    }
+
+    /**
+     * Returns the given percentile of the recent ping times in milliseconds, or {@link Long#MAX_VALUE} if the peer has
+     * not been pinged yet, like {@link Peer#getPingTime()}.
+     */
+    public synchronized long getPingPercentile(int percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100);
+        int count = Math.min(pingCount, PING_SAMPLES);
+        if (count == 0)
+            return Long.MAX_VALUE;
+        long[] sorted = Arrays.copyOf(pings, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, percentile * count / 100)];
+    }
+
+    /** Returns the rate at which the peer has recently sent what we asked for, or zero if we don't know yet. */
+    public synchronized double getBytesPerSecond() {
+        decay();
+        return deliveryMillis == 0 ? 0 : deliveredBytes * 1000 / deliveryMillis;
+    }
+
+    /** Returns the number of recent timeouts, old ones counting for less. */
+    public synchronized double getRecentTimeouts() {
+        decay();
+        return timeouts;
+    }
+
+    /** Returns the number of timeouts since the peer connected. */
+    public synchronized long getTotalTimeouts() {
+        return totalTimeouts;
+    }
+
+    /** Returns the recent misbehaviour points, old ones counting for less. */
+    public synchronized double getRecentMisbehaviour() {
+        decay();
+        return misbehaviour;
+    }
+
+    /** Returns the misbehaviour points since the peer connected. */
+    public synchronized long getTotalMisbehaviour() {
+        return totalMisbehaviour;
+    }
+
+    /** Returns the reason given for the last misbehaviour, or null if there has been none. */
+    @Nullable
+    public synchronized String getLastMisbehaviour() {
+        return lastMisbehaviour;
+    }
+
+    /** Returns the penalty for the 90th percentile ping time. */
+    public synchronized double getPingPenalty() {
+        long ping = getPingPercentile(90);
+        if (ping == Long.MAX_VALUE)
+            return 0;
+        return Math.min(MAX_PING_PENALTY, (double) ping / PING_PENALTY_MILLIS);
+    }
+
+    /** Returns the bonus for the recent throughput. */
+    public synchronized double getThroughputBonus() {
+        double bytesPerSecond = getBytesPerSecond();
+        return Math.min(MAX_THROUGHPUT_BONUS, 10 * Math.log10(1 + bytesPerSecond / 10000));
+    }
+
+    /** Returns the score, higher is better. See the class documentation for how it is calculated. */
+    public synchronized double getScore() {
+        return INITIAL_SCORE - getPingPenalty() + getThroughputBonus() - TIMEOUT_PENALTY * getRecentTimeouts()
+                - getRecentMisbehaviour();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long median = getPingPercentile(50);
+        String pingText = median == Long.MAX_VALUE ? "no pings" :
+                String.format("ping %dms median, %dms 90th percentile", median, getPingPercentile(90));
+        return String.format("score %.1f: %s, %.0f bytes/sec, %d timeouts (%.1f recent), %d misbehaviour points " +
+                "(%.1f recent%s)", getScore(), pingText, getBytesPerSecond(), totalTimeouts, getRecentTimeouts(),
+                totalMisbehaviour, getRecentMisbehaviour(), lastMisbehaviour == null ? "" : ", last: " + lastMisbehaviour);
+    }
+}
@@ -3,16 +3,27 @@ package io.mappum.altcoinj.core;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 
 import static io.mappum.altcoinj.core.Utils.doubleDigest;
 
 /**
- * <p></p>
+ * <p>A hash function for block headers, used to check the proof of work of blocks and, for most chains, to identify
+ * them. Algorithms can be looked up by name with {@link io.mappum.altcoinj.pows.ProofOfWorks}.</p>
+ *
+ * <p>Implementations declare whether {@link #hash(byte[])} may run on several threads at once and whether hashing
+ * many headers in one go is cheaper than hashing them one at a time, which {@link ProofOfWorkVerifier} uses to decide
+ * how to spread a batch of headers.</p>
  */
 public abstract class ProofOfWork implements Serializable {
-    protected abstract Sha256Hash hash(byte[] header);
+    /** Hashes a serialized block header. The result is byte reversed, in the same order as block hashes. */
+    public abstract Sha256Hash hash(byte[] header);
 
+    /**
+     * Computes the proof of work hash of the given block from scratch. Use {@link Block#getPowHash()} instead, which
+     * caches the result.
+     */
     public Sha256Hash getHash(Block block) {
         Block b = block;
         if(block.hasAuxPow()) {
@@ -28,15 +39,39 @@ public abstract class ProofOfWork implements Serializable {
         }
     }
 
+    /**
+     * Returns true if {@link #hash(byte[])} can be called from several threads at the same time. Override this to
+     * return true if the implementation keeps no shared mutable state, or keeps it per thread.
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns true if {@link #getHashes(List)} is faster than calling {@link #getHash(Block)} for each block, so
+     * callers holding many headers should hand them over together.
+     */
+    public boolean canBatch() {
+        return false;
+    }
+
+    /** Computes the proof of work hashes of the given blocks from scratch, in the same order. */
+    public List<Sha256Hash> getHashes(List<Block> blocks) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(blocks.size());
+        for (Block block : blocks)
+            hashes.add(getHash(block));
+        return hashes;
+    }
+
     public boolean check(Block block, boolean throwException) throws VerificationException {
-        BigInteger target = block.getDifficultyTargetAsInteger();
+        Uint256 target = block.getDifficultyTargetAsUint256();
 
-        BigInteger h = getHash(block).toBigInteger();
+        Uint256 h = Uint256.fromBytes(block.getPowHash().getBytes());
         if (h.compareTo(target) > 0) {
             // Proof of work check failed!
             if (throwException)
                 throw new VerificationException("Sha256Hash is higher than target: " + block.getHashAsString() + " vs "
-                        + target.toString(16));
+                        + target);
             else
                 return false;
         }
@@ -0,0 +1,167 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Checks the proof of work of a batch of block headers in parallel, before they are handed to the block chain.</p>
+ *
+ * <p>For Scrypt and X11 chains the proof of work hash dominates header sync, and {@link AbstractBlockChain#add(Block)}
+ * runs it inline on the peer thread one header at a time. A {@link Peer} configured with a verifier first runs every
+ * header of a {@link HeadersMessage} through {@link Block#verifyHeader()} here, spread over the executor. Headers that
+ * pass remember it, so the chain then only does the linkage and difficulty checks, in order. Headers that fail are
+ * simply left alone: the chain will check them again when it reaches them and report the failure at the right
+ * position.</p>
+ *
+ * <p>Proof of work algorithms that are not {@link ProofOfWork#isThreadSafe() thread safe} are run on the calling
+ * thread, and those that {@link ProofOfWork#canBatch() can batch} are handed each slice of headers at once.</p>
+ */
+public class ProofOfWorkVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ProofOfWorkVerifier.class);
+
+    // Don't bother handing out work to other threads for batches smaller than this.
+    private static final int MIN_BATCH_SIZE = 16;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final boolean ownsExecutor;
+
+    /** Creates a verifier with its own pool of daemon threads, one per available processor. */
+    public ProofOfWorkVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a verifier with its own pool of the given number of daemon threads. */
+    public ProofOfWorkVerifier(int threads) {
+        this(createExecutor(threads), threads, true);
+    }
+
+    /**
+     * Creates a verifier running on the given executor. Each batch is split into {@code parallelism} slices, so this
+     * should normally match the number of threads the executor can run at once. The executor is not shut down by
+     * {@link #shutdown()}.
+     */
+    public ProofOfWorkVerifier(ExecutorService executor, int parallelism) {
+        this(executor, parallelism, false);
+    }
+
+    private ProofOfWorkVerifier(ExecutorService executor, int parallelism, boolean ownsExecutor) {
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        this.executor = checkNotNull(executor);
+        this.parallelism = parallelism;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    private static ExecutorService createExecutor(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Proof of work verifier %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        return Executors.newFixedThreadPool(threads, builder.build());
+    }
+
+    /**
+     * Verifies the headers of the given blocks in parallel and waits until all of them have been checked. Returns
+     * how many of them passed. This never throws for a bad header, see the class documentation.
+     */
+    public int verify(List<Block> headers) {
+        int size = headers.size();
+        if (size == 0)
+            return 0;
+        final ProofOfWork proofOfWork = headers.get(0).getParams().getProofOfWork();
+        if (size < MIN_BATCH_SIZE || parallelism == 1 || !proofOfWork.isThreadSafe())
+            return verifyRange(proofOfWork, headers, 0, size);
+
+        int slices = Math.min(parallelism, size);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(slices);
+        for (int i = 0; i < slices; i++) {
+            // Contiguous slices, so each thread walks its own part of the batch in order.
+            final int from = (int) ((long) size * i / slices);
+            final int to = (int) ((long) size * (i + 1) / slices);
+            final List<Block> batch = headers;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return verifyRange(proofOfWork, batch, from, to);
+                }
+            }));
+        }
+
+        int verified = 0;
+        for (Future<Integer> result : results) {
+            try {
+                verified += Uninterruptibles.getUninterruptibly(result);
+            } catch (ExecutionException e) {
+                // verifyRange catches everything it expects, so this is a bug. The chain will check the headers anyway.
+                log.error("Unexpected failure verifying headers", e.getCause());
+            }
+        }
+        if (verified < size)
+            log.info("{} of {} headers failed proof of work verification", size - verified, size);
+        return verified;
+    }
+
+    private static int verifyRange(ProofOfWork proofOfWork, List<Block> headers, int from, int to) {
+        if (proofOfWork.canBatch()) {
+            List<Block> slice = headers.subList(from, to);
+            try {
+                List<Sha256Hash> hashes = proofOfWork.getHashes(slice);
+                for (int i = 0; i < slice.size(); i++)
+                    slice.get(i).setPowHash(hashes.get(i));
+            } catch (RuntimeException e) {
+                // Leave it to verifyHeader below, which hashes them one by one and reports failures per header.
+                log.debug("Failed to hash headers as a batch", e);
+            }
+        }
+        int verified = 0;
+        for (int i = from; i < to; i++) {
+            Block header = headers.get(i);
+            try {
+                header.verifyHeader();
+                verified++;
+            } catch (VerificationException e) {
+                log.debug("Header {} failed verification: {}", header.getHashAsString(), e.getMessage());
+            } catch (Message.LazyParseException e) {
+                log.debug("Header failed to parse", e);
+            }
+        }
+        return verified;
+    }
+
+    /** Shuts down the thread pool if it was created by this verifier. */
+    public void shutdown() {
+        if (ownsExecutor)
+            executor.shutdown();
+    }
+}
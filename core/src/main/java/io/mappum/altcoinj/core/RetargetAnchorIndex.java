@@ -0,0 +1,76 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import java.util.TreeMap;
+
+/**
+ * <p>Remembers the blocks at the edges of the last few difficulty periods of the chain being verified, by height, so
+ * that a difficulty transition can find the block one interval ago with a single lookup rather than walking back
+ * through the block store one block at a time.</p>
+ *
+ * <p>The {@link AbstractBlockChain} reports every block it checks the difficulty on top of through
+ * {@link #observe(StoredBlock)}. As long as each one extends the previous, all the remembered blocks are ancestors of
+ * the newest, so they can be handed out by height without any further checks. Anything else, like a re-org or a side
+ * chain block, starts the index over from that block, and lookups fall back to the store until the next periods
+ * have been seen.</p>
+ */
+class RetargetAnchorIndex {
+    // Two blocks per period are kept, this covers the current and the previous period with room to spare.
+    private static final int MAX_ANCHORS = 8;
+
+    private final NetworkParameters params;
+    private final TreeMap<Integer, StoredBlock> anchors = new TreeMap<Integer, StoredBlock>();
+    private StoredBlock newest;
+    private boolean newestEndsPeriod;
+
+    RetargetAnchorIndex(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /** Records that the difficulty of a block on top of the given one is about to be checked. */
+    synchronized void observe(StoredBlock block) {
+        if (newest != null) {
+            if (block.getHeight() == newest.getHeight() && block.getHeader().getHash().equals(newest.getHeader().getHash()))
+                return;
+            if (block.getHeight() != newest.getHeight() + 1
+                    || !block.getHeader().getPrevBlockHash().equals(newest.getHeader().getHash())) {
+                anchors.clear();
+                newest = null;
+            }
+        }
+        // The last block of a period and the first of the next are the ones retarget calculations reach back to. The
+        // first block seen might be one of those too, and any block on the line is a right answer for its height.
+        boolean endsPeriod = params.shouldRetarget(block);
+        if (endsPeriod || newest == null || newestEndsPeriod) {
+            anchors.put(block.getHeight(), block);
+            if (anchors.size() > MAX_ANCHORS)
+                anchors.pollFirstEntry();
+        }
+        newest = block;
+        newestEndsPeriod = endsPeriod;
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or null if it isn't known. Only ancestors of the
+     * newest observed block are known.
+     */
+    synchronized StoredBlock get(StoredBlock block, int height) {
+        if (newest == null || block.getHeight() != newest.getHeight()
+                || !block.getHeader().getHash().equals(newest.getHeader().getHash()))
+            return null;
+        return anchors.get(height);
+    }
+}
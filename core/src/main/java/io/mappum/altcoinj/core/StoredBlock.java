@@ -42,14 +42,25 @@ public class StoredBlock implements Serializable {
     public static final int CHAIN_WORK_BYTES = 12;
     public static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
     public static final int COMPACT_SERIALIZED_SIZE = Block.HEADER_SIZE + CHAIN_WORK_BYTES + 4;  // for height
+    /** Size of the packed format with the proof of work hash appended, see {@link #serializeCompact(ByteBuffer, boolean)}. */
+    public static final int COMPACT_SERIALIZED_SIZE_WITH_POW_HASH = COMPACT_SERIALIZED_SIZE + 32;
 
     private Block header;
+    // Only converted to a BigInteger when somebody asks for it, or the object is serialized.
     private BigInteger chainWork;
+    private transient Uint256 chainWorkAsUint256;
     private int height;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
         this.header = header;
         this.chainWork = chainWork;
+        this.chainWorkAsUint256 = Uint256.valueOf(chainWork);
+        this.height = height;
+    }
+
+    public StoredBlock(Block header, Uint256 chainWork, int height) {
+        this.header = header;
+        this.chainWorkAsUint256 = chainWork;
         this.height = height;
     }
 
@@ -66,9 +77,16 @@ public class StoredBlock implements Serializable {
      * then the work represented by a block is 10.
      */
     public BigInteger getChainWork() {
+        if (chainWork == null)
+            chainWork = chainWorkAsUint256.toBigInteger();
         return chainWork;
     }
 
+    /** The total sum of work done in this block, see {@link #getChainWork()}. */
+    public Uint256 getChainWorkAsUint256() {
+        return chainWorkAsUint256;
+    }
+
     /**
      * Position in the chain for this block. The genesis block has a height of zero.
      */
@@ -78,7 +96,7 @@ public class StoredBlock implements Serializable {
 
     /** Returns true if this objects chainWork is higher than the others. */
     public boolean moreWorkThan(StoredBlock other) {
-        return chainWork.compareTo(other.chainWork) > 0;
+        return chainWorkAsUint256.compareTo(other.chainWorkAsUint256) > 0;
     }
 
     @Override
@@ -87,14 +105,14 @@ public class StoredBlock implements Serializable {
         if (o == null || getClass() != o.getClass()) return false;
         StoredBlock other = (StoredBlock) o;
         return header.equals(other.header) &&
-               chainWork.equals(other.chainWork) &&
+               chainWorkAsUint256.equals(other.chainWorkAsUint256) &&
                height == other.height;
     }
 
     @Override
     public int hashCode() {
         // A better hashCode is possible, but this works for now.
-        return header.hashCode() ^ chainWork.hashCode() ^ height;
+        return header.hashCode() ^ chainWorkAsUint256.hashCode() ^ height;
     }
 
     /**
@@ -103,11 +121,21 @@ public class StoredBlock implements Serializable {
     public StoredBlock build(Block block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        Uint256 chainWork = this.chainWorkAsUint256.add(block.getWorkAsUint256());
         int height = this.height + 1;
         return new StoredBlock(block, chainWork, height);
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getChainWork();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        chainWorkAsUint256 = Uint256.valueOf(chainWork);
+    }
+
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
      * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
@@ -120,29 +148,51 @@ public class StoredBlock implements Serializable {
 
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
-        byte[] chainWorkBytes = getChainWork().toByteArray();
-        checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
-        if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-            // Pad to the right size.
-            buffer.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-        }
-        buffer.put(chainWorkBytes);
+        serializeCompact(buffer, false);
+    }
+
+    /**
+     * Serializes the stored block to a custom packed format, optionally followed by the proof of work hash of the
+     * header. Storing the hash saves recomputing it on chains where it is expensive, like Scrypt.
+     */
+    public void serializeCompact(ByteBuffer buffer, boolean withPowHash) {
+        // The top bit stays clear, as it would be the sign bit of the BigInteger this used to be written from.
+        checkState(chainWorkAsUint256.bitLength() < CHAIN_WORK_BYTES * 8, "Ran out of space to store chain work!");
+        byte[] chainWorkBytes = chainWorkAsUint256.toByteArray();
+        buffer.put(chainWorkBytes, chainWorkBytes.length - CHAIN_WORK_BYTES, CHAIN_WORK_BYTES);
         buffer.putInt(getHeight());
         // Using unsafeBitcoinSerialize here can give us direct access to the same bytes we read off the wire,
         // avoiding serialization round-trips.
         byte[] bytes = getHeader().unsafeBitcoinSerialize();
         buffer.put(bytes, 0, Block.HEADER_SIZE);  // Trim the trailing 00 byte (zero transactions).
+        if (withPowHash)
+            buffer.put(getHeader().getPowHash().getBytes());
     }
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
+        return deserializeCompact(params, buffer, false);
+    }
+
+    /**
+     * De-serializes the stored block from a custom packed format written by
+     * {@link #serializeCompact(ByteBuffer, boolean)} with the same value of {@code withPowHash}.
+     */
+    public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer, boolean withPowHash)
+            throws ProtocolException {
         byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
         buffer.get(chainWorkBytes);
-        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
+        Uint256 chainWork = Uint256.fromBytes(chainWorkBytes);
         int height = buffer.getInt();  // +4 bytes
         byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
         buffer.get(header, 0, Block.HEADER_SIZE);
-        return new StoredBlock(new Block(params, header), chainWork, height);
+        Block block = new Block(params, header);
+        if (withPowHash) {
+            byte[] powHash = new byte[32];
+            buffer.get(powHash);
+            block.setPowHash(new Sha256Hash(powHash));
+        }
+        return new StoredBlock(block, chainWork, height);
     }
 
     @Override
@@ -41,7 +41,7 @@ public class StoredTransactionOutput implements Serializable {
 
     /** arbitrary value lower than -{@link NetworkParameters#spendableCoinbaseDepth}
      * (not too low to get overflows when we do blockHeight - NONCOINBASE_HEIGHT, though) */
-    private static final int NONCOINBASE_HEIGHT = -200;
+    static final int NONCOINBASE_HEIGHT = -200;
     /** The height of the creating block (for coinbases, NONCOINBASE_HEIGHT otherwise) */
     private int height;
 
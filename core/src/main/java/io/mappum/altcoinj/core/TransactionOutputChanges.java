@@ -29,6 +29,9 @@ import java.util.List;
  * BIP30 (no duplicate txid creation if the previous one was not fully spent prior to this block) verification.</p>
  */
 public class TransactionOutputChanges {
+    // Starts the compact form in place of the output count of the original one, which can't get anywhere near it.
+    private static final int COMPACT_MARKER = 0xFFFFFFFF;
+
     public final List<StoredTransactionOutput> txOutsCreated;
     public final List<StoredTransactionOutput> txOutsSpent;
     
@@ -42,6 +45,17 @@ public class TransactionOutputChanges {
                              ((in.read() & 0xFF) << 8) |
                              ((in.read() & 0xFF) << 16) |
                              ((in.read() & 0xFF) << 24);
+        if (numOutsCreated == COMPACT_MARKER) {
+            txOutsCreated = new LinkedList<StoredTransactionOutput>();
+            long numCompactCreated = CompactOutputCodec.readVarLong(in);
+            for (long i = 0; i < numCompactCreated; i++)
+                txOutsCreated.add(CompactOutputCodec.read(in));
+            txOutsSpent = new LinkedList<StoredTransactionOutput>();
+            long numCompactSpent = CompactOutputCodec.readVarLong(in);
+            for (long i = 0; i < numCompactSpent; i++)
+                txOutsSpent.add(CompactOutputCodec.read(in));
+            return;
+        }
         txOutsCreated = new LinkedList<StoredTransactionOutput>();
         for (int i = 0; i < numOutsCreated; i++)
             txOutsCreated.add(new StoredTransactionOutput(in));
@@ -55,6 +69,22 @@ public class TransactionOutputChanges {
             txOutsSpent.add(new StoredTransactionOutput(in));
     }
 
+    /**
+     * Writes the changes with the outputs in the encoding of {@link CompactOutputCodec}, which is about a quarter
+     * smaller than {@link #serializeToStream(OutputStream)}. The stream constructor reads either form.
+     */
+    public void serializeCompactToStream(OutputStream bos) throws IOException {
+        for (int i = 0; i < 4; i++)
+            bos.write(0xFF & (COMPACT_MARKER >> (8 * i)));
+        CompactOutputCodec.writeVarLong(txOutsCreated.size(), bos);
+        for (StoredTransactionOutput output : txOutsCreated)
+            CompactOutputCodec.write(output, bos);
+
+        CompactOutputCodec.writeVarLong(txOutsSpent.size(), bos);
+        for (StoredTransactionOutput output : txOutsSpent)
+            CompactOutputCodec.write(output, bos);
+    }
+
     public void serializeToStream(OutputStream bos) throws IOException {
         int numOutsCreated = txOutsCreated.size();
         bos.write(0xFF & (numOutsCreated >> 0));
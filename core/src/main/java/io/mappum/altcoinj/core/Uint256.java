@@ -0,0 +1,357 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import com.google.common.primitives.UnsignedLongs;
+
+import java.math.BigInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An immutable unsigned 256 bit integer, held in four longs. Used for difficulty targets, proof of work hashes and
+ * chain work, which are checked and accumulated for every header during sync. Unlike {@link BigInteger} the width is
+ * fixed, so comparisons and additions are a handful of long operations and don't allocate intermediate arrays.</p>
+ *
+ * <p>Arithmetic wraps around at 2<sup>256</sup> like an unsigned integer would, except where noted.</p>
+ */
+public final class Uint256 implements Comparable<Uint256> {
+    public static final Uint256 ZERO = new Uint256(0, 0, 0, 0);
+    public static final Uint256 ONE = new Uint256(0, 0, 0, 1);
+    public static final Uint256 MAX_VALUE = new Uint256(-1L, -1L, -1L, -1L);
+
+    private static final BigInteger TWO_TO_THE_256 = BigInteger.ONE.shiftLeft(256);
+
+    // Most significant word first.
+    private final long w0, w1, w2, w3;
+
+    private Uint256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /** Returns the given non-negative long as a Uint256. */
+    public static Uint256 valueOf(long value) {
+        checkArgument(value >= 0, "Negative value: %s", value);
+        return new Uint256(0, 0, 0, value);
+    }
+
+    /** Returns the given BigInteger as a Uint256. It must be non-negative and less than 2<sup>256</sup>. */
+    public static Uint256 valueOf(BigInteger value) {
+        checkArgument(value.signum() >= 0 && value.bitLength() <= 256, "Out of range: %s", value);
+        return new Uint256(value.shiftRight(192).longValue(), value.shiftRight(128).longValue(),
+                value.shiftRight(64).longValue(), value.longValue());
+    }
+
+    /** Reads a big endian unsigned integer of up to 32 bytes, such as the bytes of a {@link Sha256Hash}. */
+    public static Uint256 fromBytes(byte[] bytes) {
+        return fromBytes(bytes, 0, bytes.length);
+    }
+
+    /** Reads a big endian unsigned integer of up to 32 bytes from the given range. */
+    public static Uint256 fromBytes(byte[] bytes, int offset, int length) {
+        checkArgument(length >= 0 && length <= 32, "Length must be between 0 and 32: %s", length);
+        if (length == 32) {
+            // The common case of a hash, read straight into the words.
+            return new Uint256(readLong(bytes, offset), readLong(bytes, offset + 8), readLong(bytes, offset + 16),
+                    readLong(bytes, offset + 24));
+        }
+        long[] words = new long[4];
+        for (int i = 0; i < length; i++) {
+            int bit = (length - 1 - i) * 8;  // Position of this byte's lowest bit in the result.
+            words[3 - bit / 64] |= (bytes[offset + i] & 0xFFL) << (bit % 64);
+        }
+        return new Uint256(words[0], words[1], words[2], words[3]);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (bytes[offset + i] & 0xFFL);
+        return result;
+    }
+
+    /**
+     * Decodes the compact "nBits" form used for difficulty targets, see {@link Utils#decodeCompactBits(long)}. Throws
+     * {@link ArithmeticException} if the value is negative or does not fit in 256 bits.
+     */
+    public static Uint256 fromCompactBits(long compact) {
+        int size = (int) (compact >> 24) & 0xFF;
+        if (size == 0)
+            return ZERO;
+        long mantissa = compact & 0x00FFFFFFL;
+        if ((mantissa & 0x00800000L) != 0)
+            throw new ArithmeticException("Negative compact value: " + Long.toHexString(compact));
+        if (size <= 3)
+            return new Uint256(0, 0, 0, mantissa >>> 8 * (3 - size));
+        int shift = 8 * (size - 3);
+        if (64 - Long.numberOfLeadingZeros(mantissa) + shift > 256)
+            throw new ArithmeticException("Compact value does not fit in 256 bits: " + Long.toHexString(compact));
+        // The mantissa is 23 bits, so it lands in one word or straddles two.
+        long low = mantissa << (shift % 64);
+        long high = shift % 64 == 0 ? 0 : mantissa >>> (64 - shift % 64);
+        switch (shift / 64) {
+            case 0: return new Uint256(0, 0, high, low);
+            case 1: return new Uint256(0, high, low, 0);
+            case 2: return new Uint256(high, low, 0, 0);
+            default: return new Uint256(low, 0, 0, 0);  // high is zero, checked above.
+        }
+    }
+
+    /** Encodes this value in the compact "nBits" form, see {@link Utils#encodeCompactBits(BigInteger)}. */
+    public long toCompactBits() {
+        int size = bitLength() / 8 + 1;
+        long result;
+        if (size <= 3)
+            result = w3 << 8 * (3 - size);
+        else
+            result = shiftRight(8 * (size - 3)).w3;
+        // The 0x00800000 bit denotes the sign.
+        // Thus, if it is already set, divide the mantissa by 256 and increase the exponent.
+        if ((result & 0x00800000L) != 0) {
+            result >>= 8;
+            size++;
+        }
+        return result | ((long) size << 24);
+    }
+
+    public boolean isZero() {
+        return (w0 | w1 | w2 | w3) == 0;
+    }
+
+    /** Returns the number of bits needed to represent this value, zero for zero. */
+    public int bitLength() {
+        if (w0 != 0) return 256 - Long.numberOfLeadingZeros(w0);
+        if (w1 != 0) return 192 - Long.numberOfLeadingZeros(w1);
+        if (w2 != 0) return 128 - Long.numberOfLeadingZeros(w2);
+        return 64 - Long.numberOfLeadingZeros(w3);
+    }
+
+    /** Returns the lowest 64 bits of this value. */
+    public long longValue() {
+        return w3;
+    }
+
+    public Uint256 add(Uint256 other) {
+        long r3 = w3 + other.w3;
+        long c = carry(w3, r3);
+        long r2 = w2 + other.w2 + c;
+        c = c == 0 ? carry(w2, r2) : carry2(w2, r2);
+        long r1 = w1 + other.w1 + c;
+        c = c == 0 ? carry(w1, r1) : carry2(w1, r1);
+        long r0 = w0 + other.w0 + c;
+        return new Uint256(r0, r1, r2, r3);
+    }
+
+    // Carry out of a + b = sum.
+    private static long carry(long a, long sum) {
+        return UnsignedLongs.compare(sum, a) < 0 ? 1 : 0;
+    }
+
+    // Carry out of a + b + 1 = sum.
+    private static long carry2(long a, long sum) {
+        return UnsignedLongs.compare(sum, a) <= 0 ? 1 : 0;
+    }
+
+    public Uint256 subtract(Uint256 other) {
+        long[] result = toWords();
+        subtract(result, other.toWords());
+        return new Uint256(result[0], result[1], result[2], result[3]);
+    }
+
+    public Uint256 not() {
+        return new Uint256(~w0, ~w1, ~w2, ~w3);
+    }
+
+    public Uint256 and(Uint256 other) {
+        return new Uint256(w0 & other.w0, w1 & other.w1, w2 & other.w2, w3 & other.w3);
+    }
+
+    /** Shifts left by the given number of bits, which may be negative to shift right. Bits shifted out are lost. */
+    public Uint256 shiftLeft(int n) {
+        if (n < 0)
+            return shiftRight(-n);
+        if (n >= 256)
+            return ZERO;
+        long[] w = {w0, w1, w2, w3};
+        long[] r = new long[4];
+        int words = n / 64, bits = n % 64;
+        for (int i = 0; i < 4 - words; i++) {
+            r[i] = w[i + words] << bits;
+            if (bits != 0 && i + words + 1 < 4)
+                r[i] |= w[i + words + 1] >>> (64 - bits);
+        }
+        return new Uint256(r[0], r[1], r[2], r[3]);
+    }
+
+    /** Shifts right by the given number of bits, which may be negative to shift left. */
+    public Uint256 shiftRight(int n) {
+        if (n < 0)
+            return shiftLeft(-n);
+        if (n >= 256)
+            return ZERO;
+        long[] w = {w0, w1, w2, w3};
+        long[] r = new long[4];
+        int words = n / 64, bits = n % 64;
+        for (int i = 3; i >= words; i--) {
+            r[i] = w[i - words] >>> bits;
+            if (bits != 0 && i - words - 1 >= 0)
+                r[i] |= w[i - words - 1] << (64 - bits);
+        }
+        return new Uint256(r[0], r[1], r[2], r[3]);
+    }
+
+    /** Returns the quotient of this value and the given divisor, rounded down. */
+    public Uint256 divide(Uint256 divisor) {
+        if (divisor.isZero())
+            throw new ArithmeticException("Division by zero");
+        int shift = bitLength() - divisor.bitLength();
+        if (shift < 0)
+            return ZERO;
+        // Schoolbook binary long division, only over the bits where the quotient can be non-zero.
+        long[] remainder = {w0, w1, w2, w3};
+        long[] d = divisor.shiftLeft(shift).toWords();
+        long[] quotient = new long[4];
+        for (int bit = shift; bit >= 0; bit--) {
+            if (compare(remainder, d) >= 0) {
+                subtract(remainder, d);
+                quotient[3 - bit / 64] |= 1L << (bit % 64);
+            }
+            shiftRightOne(d);
+        }
+        return new Uint256(quotient[0], quotient[1], quotient[2], quotient[3]);
+    }
+
+    /**
+     * Returns this value multiplied by {@code multiplier} and then divided by {@code divisor}, rounded down. The
+     * intermediate product is computed to full precision, and a result that doesn't fit in 256 bits is clamped to
+     * {@link #MAX_VALUE}. Both arguments must fit in an unsigned 32 bit integer. This is the retarget calculation.
+     */
+    public Uint256 multiplyAndDivide(long multiplier, long divisor) {
+        checkArgument(multiplier >= 0 && multiplier <= 0xFFFFFFFFL, "Multiplier out of range: %s", multiplier);
+        checkArgument(divisor > 0 && divisor <= 0xFFFFFFFFL, "Divisor out of range: %s", divisor);
+        // Nine 32 bit limbs, most significant first, are enough for a 256 by 32 bit product.
+        long[] w = {w0, w1, w2, w3};
+        long[] limbs = new long[9];
+        long carry = 0;
+        for (int i = 7; i >= 0; i--) {
+            long limb = (w[i / 2] >>> (i % 2 == 0 ? 32 : 0)) & 0xFFFFFFFFL;
+            long product = limb * multiplier + carry;  // Fits: (2^32-1)^2 + 2^32-1 < 2^64.
+            limbs[i + 1] = product & 0xFFFFFFFFL;
+            carry = product >>> 32;
+        }
+        limbs[0] = carry;
+        long remainder = 0;
+        for (int i = 0; i < 9; i++) {
+            long current = (remainder << 32) | limbs[i];
+            // current < divisor * 2^32 <= 2^64, so treat it as unsigned.
+            limbs[i] = UnsignedLongs.divide(current, divisor);
+            remainder = UnsignedLongs.remainder(current, divisor);
+        }
+        if (limbs[0] != 0)
+            return MAX_VALUE;
+        return new Uint256((limbs[1] << 32) | limbs[2], (limbs[3] << 32) | limbs[4], (limbs[5] << 32) | limbs[6],
+                (limbs[7] << 32) | limbs[8]);
+    }
+
+    private long[] toWords() {
+        return new long[] {w0, w1, w2, w3};
+    }
+
+    private static int compare(long[] a, long[] b) {
+        for (int i = 0; i < 4; i++) {
+            if (a[i] != b[i])
+                return UnsignedLongs.compare(a[i], b[i]);
+        }
+        return 0;
+    }
+
+    // a -= b, wrapping around if b is larger.
+    private static void subtract(long[] a, long[] b) {
+        long borrow = 0;
+        for (int i = 3; i >= 0; i--) {
+            long ai = a[i];
+            long diff = ai - b[i] - borrow;
+            borrow = (UnsignedLongs.compare(ai, b[i]) < 0 || (borrow != 0 && ai == b[i])) ? 1 : 0;
+            a[i] = diff;
+        }
+    }
+
+    private static void shiftRightOne(long[] a) {
+        for (int i = 3; i > 0; i--)
+            a[i] = (a[i] >>> 1) | (a[i - 1] << 63);
+        a[0] >>>= 1;
+    }
+
+    /**
+     * Returns the work represented by a block with this value as its target: the number of hashes needed to find
+     * one below it in the average case, 2<sup>256</sup> / (target + 1).
+     */
+    public Uint256 work() {
+        Uint256 divisor = add(ONE);
+        if (divisor.isZero())
+            return ONE;  // The target is 2^256 - 1, so any hash will do.
+        // 2^256 doesn't fit, but 2^256 / (t + 1) == (2^256 - 1 - t) / (t + 1) + 1.
+        return not().divide(divisor).add(ONE);
+    }
+
+    public BigInteger toBigInteger() {
+        return new BigInteger(1, toByteArray());
+    }
+
+    /** Returns the value as 32 big endian bytes. */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[32];
+        long[] words = toWords();
+        for (int i = 0; i < 32; i++)
+            bytes[i] = (byte) (words[i / 8] >>> (56 - 8 * (i % 8)));
+        return bytes;
+    }
+
+    @Override
+    public int compareTo(Uint256 other) {
+        if (w0 != other.w0) return UnsignedLongs.compare(w0, other.w0);
+        if (w1 != other.w1) return UnsignedLongs.compare(w1, other.w1);
+        if (w2 != other.w2) return UnsignedLongs.compare(w2, other.w2);
+        return UnsignedLongs.compare(w3, other.w3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Uint256 other = (Uint256) o;
+        return w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = w0 ^ w1 ^ w2 ^ w3;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /** Returns the value in hex, without leading zeros. */
+    @Override
+    public String toString() {
+        return toBigInteger().toString(16);
+    }
+
+    /** Converts a BigInteger that may be 2<sup>256</sup> or more, clamping it to {@link #MAX_VALUE}. */
+    static Uint256 valueOfClamped(BigInteger value) {
+        return value.compareTo(TWO_TO_THE_256) >= 0 ? MAX_VALUE : valueOf(value);
+    }
+}
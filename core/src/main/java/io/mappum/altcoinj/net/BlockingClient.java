@@ -64,7 +64,9 @@ public class BlockingClient implements MessageWriteTarget {
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        // The socket is read through a stream, so a heap buffer does as well as a direct one and can be read into as it
+        // is.
+        dbuf = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
         Thread t = new Thread() {
@@ -77,15 +79,14 @@ public class BlockingClient implements MessageWriteTarget {
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
-                        // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                        checkState(dbuf.remaining() > 0);
+                        int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(),
+                                Math.max(1, Math.min(dbuf.remaining(), stream.available())));
                         if (read == -1)
                             return;
-                        dbuf.put(readBuff, 0, read);
+                        dbuf.position(dbuf.position() + read);
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
                         // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -0,0 +1,197 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.net;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of direct buffers shared by the connections of {@link NioClientManager}s and {@link NioServer}s. A
+ * connection only holds a buffer to read into while it has bytes the parser hasn't taken yet, and a buffer to write
+ * from while a message waits to go out, so the direct memory used follows how busy the connections are rather than
+ * how many there are.</p>
+ *
+ * <p>Buffers come in power of two size classes from {@link #MIN_BUFFER_SIZE} to {@link #MAX_BUFFER_SIZE}. The pool
+ * never holds more than its maximum number of bytes, in use or free. When it is out of room,
+ * {@link #tryAcquire(int)} returns null and {@link #acquireOrWait(int, Runnable)} calls back once a buffer is given
+ * back, which is how a connection stops reading from its socket until there is memory to read into.</p>
+ *
+ * <p>All methods are thread safe. Callbacks are run by the thread giving a buffer back, without the pool's lock held,
+ * so they should be quick.</p>
+ */
+public class ByteBufferPool {
+    public static final int MIN_BUFFER_SIZE = 4096;
+    public static final int MAX_BUFFER_SIZE = 65536;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final ByteBufferPool DEFAULT = new ByteBufferPool(DEFAULT_MAX_BYTES);
+
+    private final long maxBytes;
+    // Free buffers by size class, smallest first.
+    @GuardedBy("this") private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<ArrayDeque<ByteBuffer>>();
+    @GuardedBy("this") private final Set<ByteBuffer> inUse =
+            Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+    @GuardedBy("this") private final List<Runnable> waiters = new LinkedList<Runnable>();
+    @GuardedBy("this") private long allocatedBytes;
+    @GuardedBy("this") private long bytesInUse;
+    @GuardedBy("this") private long acquireCount;
+    @GuardedBy("this") private long allocationCount;
+    @GuardedBy("this") private long exhaustedCount;
+
+    /** Returns the pool the network classes use when they aren't given one, of {@link #DEFAULT_MAX_BYTES}. */
+    public static ByteBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /** @param maxBytes The most direct memory the pool's buffers may take together. */
+    public ByteBufferPool(long maxBytes) {
+        checkArgument(maxBytes >= MAX_BUFFER_SIZE);
+        this.maxBytes = maxBytes;
+        for (int size = MIN_BUFFER_SIZE; size <= MAX_BUFFER_SIZE; size <<= 1)
+            free.add(new ArrayDeque<ByteBuffer>());
+    }
+
+    /** Returns the capacity of the buffers handed out for the given size: the next power of two, at least 4KB. */
+    public static int sizeClass(int size) {
+        checkArgument(size >= 0 && size <= MAX_BUFFER_SIZE);
+        if (size <= MIN_BUFFER_SIZE)
+            return MIN_BUFFER_SIZE;
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int classIndex(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns a cleared direct buffer of at least {@code size} bytes, see {@link #sizeClass(int)}, or null if the pool
+     * is out of room. The buffer must be given back with {@link #release(ByteBuffer)}.
+     */
+    @Nullable
+    public synchronized ByteBuffer tryAcquire(int size) {
+        int capacity = sizeClass(size);
+        acquireCount++;
+        ByteBuffer buffer = free.get(classIndex(capacity)).poll();
+        if (buffer == null) {
+            if (!makeRoom(capacity)) {
+                exhaustedCount++;
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocatedBytes += capacity;
+            allocationCount++;
+        }
+        inUse.add(buffer);
+        bytesInUse += capacity;
+        return buffer;
+    }
+
+    /**
+     * Like {@link #tryAcquire(int)}, but if the pool is out of room, {@code onAvailable} is run once the next time a
+     * buffer is given back. It can then try again.
+     */
+    @Nullable
+    public synchronized ByteBuffer acquireOrWait(int size, Runnable onAvailable) {
+        ByteBuffer buffer = tryAcquire(size);
+        if (buffer == null)
+            waiters.add(onAvailable);
+        return buffer;
+    }
+
+    // Drops free buffers of other sizes until a new buffer of the given capacity fits.
+    @GuardedBy("this")
+    private boolean makeRoom(int capacity) {
+        for (int i = free.size() - 1; i >= 0 && allocatedBytes + capacity > maxBytes; i--) {
+            ArrayDeque<ByteBuffer> buffers = free.get(i);
+            while (!buffers.isEmpty() && allocatedBytes + capacity > maxBytes)
+                allocatedBytes -= buffers.poll().capacity();
+        }
+        return allocatedBytes + capacity <= maxBytes;
+    }
+
+    /** Gives back a buffer this pool handed out, which must not be used afterwards. */
+    public void release(ByteBuffer buffer) {
+        List<Runnable> toRun;
+        synchronized (this) {
+            checkArgument(inUse.remove(buffer), "Buffer not in use from this pool");
+            bytesInUse -= buffer.capacity();
+            buffer.clear();
+            free.get(classIndex(buffer.capacity())).push(buffer);
+            if (waiters.isEmpty())
+                return;
+            toRun = new ArrayList<Runnable>(waiters);
+            waiters.clear();
+        }
+        for (Runnable waiter : toRun)
+            waiter.run();
+    }
+
+    /** Lets go of all free buffers, so the memory they take can be collected. Returns the number of bytes dropped. */
+    public synchronized long trim() {
+        long dropped = 0;
+        for (ArrayDeque<ByteBuffer> buffers : free) {
+            for (ByteBuffer buffer : buffers)
+                dropped += buffer.capacity();
+            buffers.clear();
+        }
+        allocatedBytes -= dropped;
+        return dropped;
+    }
+
+    /** Returns the most bytes the pool's buffers may take together. */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /** Returns the bytes taken by the buffers the pool has allocated and not let go of, in use or free. */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** Returns the bytes taken by the buffers handed out and not given back yet. */
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+    /** Returns the number of times a buffer was asked for. */
+    public synchronized long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /** Returns the number of times a buffer had to be allocated because there was no free one of its size. */
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+
+    /** Returns the number of times a buffer couldn't be handed out because the pool was out of room. */
+    public synchronized long getExhaustedCount() {
+        return exhaustedCount;
+    }
+
+    /** Returns the number of callbacks waiting for a buffer to be given back. */
+    public synchronized int getWaiterCount() {
+        return waiters.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ByteBufferPool: %d of %d bytes allocated, %d in use, %d acquires, %d allocations, " +
+                "%d exhausted", allocatedBytes, maxBytes, bytesInUse, acquireCount, allocationCount, exhaustedCount);
+    }
+}
@@ -28,10 +28,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -39,7 +36,9 @@ import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * Used only by the NioClient and NioServer classes. The buffers it reads into and writes from are taken from a
+ * {@link ByteBufferPool} while there is something in them, and given back as soon as they are empty again. Only a few
+ * buffers of the pool go to a connection's outbound messages, the rest of them wait on the heap.
  */
 class ConnectionHandler implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
@@ -48,42 +47,72 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // The most pooled bytes a connection's write queue may hold. A peer that stops reading must not take the memory the
+    // other connections need to read, so beyond this outbound messages wait in heap copies.
+    static final int MAX_POOLED_WRITE_BYTES = 4 * ByteBufferPool.MAX_BUFFER_SIZE;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock") private final ByteBuffer readBuff;
+    private final ByteBufferPool pool;
+    private final int readBuffSize;
+    // Only held while it has bytes the parser hasn't taken yet, or while the selector thread is reading into it.
+    @GuardedBy("lock") @Nullable private ByteBuffer readBuff;
+    @GuardedBy("lock") private boolean reading = false;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamParser parser;
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
+    // Pooled buffers are direct, anything else is a copy made when the pool was out of room.
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    // The capacity of the pooled buffers in bytesToWrite, at most MAX_POOLED_WRITE_BYTES.
+    @GuardedBy("lock") private int pooledWriteBytes = 0;
 
     private Set<ConnectionHandler> connectedHandlers;
 
-    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key) throws IOException {
-        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key);
+    // Run by the pool when a buffer is given back after we stopped reading for lack of one
+    private final Runnable resumeReading = new Runnable() {
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (closeCalled || !key.isValid())
+                    return;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            } catch (CancelledKeyException e) {
+                // Closed in the meantime
+            } finally {
+                lock.unlock();
+            }
+        }
+    };
+
+    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key, ByteBufferPool pool) throws IOException {
+        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key, pool);
         if (parser == null)
             throw new IOException("Parser factory.getNewParser returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key, ByteBufferPool pool) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.pool = checkNotNull(pool);
         if (parser == null) {
-            readBuff = null;
+            readBuffSize = 0;
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuffSize = ByteBufferPool.sizeClass(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
-    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(parser), key);
+    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             ByteBufferPool pool) {
+        this(checkNotNull(parser), key, pool);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // parser.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -108,8 +137,16 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
+    // Gives pooled buffers back, never called with lock held as the pool may call back into another handler
+    private void release(List<ByteBuffer> buffers) {
+        for (ByteBuffer buff : buffers)
+            if (buff.isDirect())
+                pool.release(buff);
+    }
+
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
+        List<ByteBuffer> written = new ArrayList<ByteBuffer>();
         lock.lock();
         try {
             // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
@@ -117,9 +154,12 @@ class ConnectionHandler implements MessageWriteTarget {
             while (bytesIterator.hasNext()) {
                 ByteBuffer buff = bytesIterator.next();
                 bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
+                if (!buff.hasRemaining()) {
                     bytesIterator.remove();
-                else {
+                    if (buff.isDirect())
+                        pooledWriteBytes -= buff.capacity();
+                    written.add(buff);
+                } else {
                     setWriteOps();
                     break;
                 }
@@ -130,6 +170,7 @@ class ConnectionHandler implements MessageWriteTarget {
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
+            release(written);
         }
     }
 
@@ -144,11 +185,28 @@ class ConnectionHandler implements MessageWriteTarget {
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
+            // Registering first throws if the connection is closed, before anything is taken from the pool. Nothing
+            // gets written until we unlock.
+            setWriteOps();
+            // Just copy the message into pooled buffers on the write queue and call tryWriteBytes
             // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+            for (int offset = 0; offset < message.length; offset += ByteBufferPool.MAX_BUFFER_SIZE) {
+                int length = Math.min(message.length - offset, ByteBufferPool.MAX_BUFFER_SIZE);
+                ByteBuffer buff = null;
+                if (pooledWriteBytes + ByteBufferPool.sizeClass(length) <= MAX_POOLED_WRITE_BYTES)
+                    buff = pool.tryAcquire(length);
+                if (buff == null) {
+                    // Rather than hold up the sender, queue what's left on the heap while the pool is out of room or
+                    // this connection already has its share of it
+                    bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOfRange(message, offset, message.length)));
+                    break;
+                }
+                buff.put(message, offset, length);
+                buff.flip();
+                bytesToWrite.offer(buff);
+                pooledWriteBytes += buff.capacity();
+            }
             bytesToWriteRemaining += message.length;
-            setWriteOps();
         } catch (IOException e) {
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
@@ -176,19 +234,89 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private void connectionClosed() {
         boolean callClosed = false;
+        List<ByteBuffer> unused = new ArrayList<ByteBuffer>();
         lock.lock();
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // If the selector thread is reading, it gives the read buffer back itself when done
+            if (readBuff != null && !reading) {
+                unused.add(readBuff);
+                readBuff = null;
+            }
+            unused.addAll(bytesToWrite);
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
+            pooledWriteBytes = 0;
         } finally {
             lock.unlock();
         }
+        release(unused);
         if (callClosed) {
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
             parser.connectionClosed();
         }
     }
 
+    // Reads from the socket and hands the bytes to the parser, returns false if the key should not be looked at further.
+    // Only called from handleKey.
+    private boolean readBytes() throws Exception {
+        ByteBuffer buff;
+        lock.lock();
+        try {
+            if (closeCalled)
+                return false;
+            if (readBuff == null) {
+                // Stop reading until the pool has room again, in the meantime the data waits in the socket. Reads are
+                // turned off first so that the callback can't come in between and be undone.
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                readBuff = pool.acquireOrWait(readBuffSize, resumeReading);
+                if (readBuff == null)
+                    return true;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            reading = true;
+            buff = readBuff;
+        } finally {
+            lock.unlock();
+        }
+        ByteBuffer unused = null;
+        try {
+            // Do a socket read and invoke the parser's receiveBytes message
+            int read = channel.read(buff);
+            if (read == 0)
+                return false; // Was probably waiting on a write
+            else if (read == -1) { // Socket was closed
+                key.cancel();
+                closeConnection();
+                return false;
+            }
+            // "flip" the buffer - setting the limit to the current position and setting position to 0
+            buff.flip();
+            // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
+            int bytesConsumed = checkNotNull(parser).receiveBytes(buff);
+            checkState(buff.position() == bytesConsumed);
+            // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+            // position)
+            buff.compact();
+            return true;
+        } finally {
+            lock.lock();
+            try {
+                reading = false;
+                // Give the buffer back if the parser took everything in it, or the connection closed while reading
+                if (closeCalled || buff.position() == 0) {
+                    unused = readBuff;
+                    readBuff = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (unused != null)
+                pool.release(unused);
+        }
+    }
+
     // Handle a SelectionKey which was selected
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
@@ -201,25 +329,8 @@ class ConnectionHandler implements MessageWriteTarget {
                 handler.closeConnection(); // Key has been cancelled, make sure the socket gets closed
                 return;
             }
-            if (key.isReadable()) {
-                // Do a socket read and invoke the parser's receiveBytes message
-                int read = handler.channel.read(handler.readBuff);
-                if (read == 0)
-                    return; // Was probably waiting on a write
-                else if (read == -1) { // Socket was closed
-                    key.cancel();
-                    handler.closeConnection();
-                    return;
-                }
-                // "flip" the buffer - setting the limit to the current position and setting position to 0
-                handler.readBuff.flip();
-                // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.parser).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
-            }
+            if (key.isReadable() && !handler.readBytes())
+                return;
             if (key.isWritable())
                 handler.tryWriteBytes();
         } catch (Exception e) {
@@ -26,7 +26,7 @@ import java.nio.ByteBuffer;
  */
 public class NioClient implements MessageWriteTarget {
     private final Handler handler;
-    private final NioClientManager manager = new NioClientManager();
+    private final NioClientManager manager;
 
     class Handler extends AbstractTimeoutHandler implements StreamParser {
         private final StreamParser upstreamParser;
@@ -93,6 +93,18 @@ public class NioClient implements MessageWriteTarget {
      */
     public NioClient(final SocketAddress serverAddress, final StreamParser parser,
                      final int connectTimeoutMillis) throws IOException {
+        this(serverAddress, parser, connectTimeoutMillis, ByteBufferPool.getDefault());
+    }
+
+    /**
+     * <p>Creates a new client as above, which reads and writes through buffers taken from the given pool.</p>
+     *
+     * @param connectTimeoutMillis The connect timeout set on the connection (in milliseconds). 0 is interpreted as no
+     *                             timeout.
+     */
+    public NioClient(final SocketAddress serverAddress, final StreamParser parser,
+                     final int connectTimeoutMillis, ByteBufferPool pool) throws IOException {
+        manager = new NioClientManager(pool);
         manager.startAsync();
         manager.awaitRunning();
         handler = new Handler(parser, connectTimeoutMillis);
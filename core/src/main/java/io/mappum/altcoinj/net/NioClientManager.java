@@ -27,6 +27,8 @@ import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
  * single network processing thread.
@@ -35,6 +37,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
     private final Selector selector;
+    private final ByteBufferPool pool;
 
     // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
     class SocketChannelAndParser {
@@ -53,7 +56,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             // Create a ConnectionHandler and hook everything together
             StreamParser parser = (StreamParser) key.attachment();
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers, pool);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
@@ -77,9 +80,18 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     /**
      * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
-     * calls.
+     * calls, and the {@link ByteBufferPool#getDefault() default buffer pool}.
      */
     public NioClientManager() {
+        this(ByteBufferPool.getDefault());
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
+     * calls, and the given pool for the buffers of its connections.
+     */
+    public NioClientManager(ByteBufferPool pool) {
+        this.pool = checkNotNull(pool);
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
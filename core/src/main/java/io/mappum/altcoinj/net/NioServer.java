@@ -27,6 +27,8 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
  * process data.
@@ -35,6 +37,7 @@ public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
 
     private final StreamParserFactory parserFactory;
+    private final ByteBufferPool pool;
 
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
@@ -47,7 +50,7 @@ public class NioServer extends AbstractExecutionThreadService {
             newChannel.configureBlocking(false);
             SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
             try {
-                ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+                ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey, pool);
                 newKey.attach(handler);
                 handler.parser.connectionOpened();
             } catch (IOException e) {
@@ -62,12 +65,26 @@ public class NioServer extends AbstractExecutionThreadService {
 
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
-     * using {@link StreamParser}s created by the given {@link StreamParserFactory}
+     * using {@link StreamParser}s created by the given {@link StreamParserFactory}. Connections take their buffers from
+     * the {@link ByteBufferPool#getDefault() default buffer pool}.
      *
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, ByteBufferPool.getDefault());
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamParser}s created by the given {@link StreamParserFactory}, with the buffers of its connections
+     * taken from the given pool.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress,
+                     ByteBufferPool pool) throws IOException {
         this.parserFactory = parserFactory;
+        this.pool = checkNotNull(pool);
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
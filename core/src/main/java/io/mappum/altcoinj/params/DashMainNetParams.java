@@ -20,6 +20,7 @@ import io.mappum.altcoinj.core.*;
 import io.mappum.altcoinj.pows.X11ProofOfWork;
 import io.mappum.altcoinj.store.BlockStore;
 import io.mappum.altcoinj.store.BlockStoreException;
+import com.google.common.annotations.VisibleForTesting;
 
 import java.math.BigInteger;
 
@@ -40,6 +41,13 @@ public class DashMainNetParams extends NetworkParameters {
 
     public static final byte[] ALERT_KEY = Utils.HEX.decode("048240a8748a80a286b270ba126705ced4f2ce5a7847b3610ea3c06513150dade2a8512ed5ea86320824683fc0818f0ac019214973e677acd1244f6d0571fc5103");
 
+    // Dark Gravity Wave looks at most this many blocks back.
+    private static final int DGW_PAST_BLOCKS_MAX = 140;
+    private static final int DGW3_PAST_BLOCKS = 24;
+
+    // The last blocks of the chain for Dark Gravity Wave, so it doesn't have to go back to the store for each block.
+    private transient DifficultyWindow difficultyWindow;
+
     public DashMainNetParams() {
         maxMoney = Coin.COIN.multiply(22000000);
         minFee = Coin.valueOf(10000);
@@ -109,12 +117,11 @@ public class DashMainNetParams extends NetworkParameters {
             return;
         }
 
-        int timespan = getTimespan(storedPrev, blockStore);
-
         BigInteger newTarget;
         int height = storedPrev.getHeight() + 1;
 
         if(height < 15200) {
+            int timespan = getTimespan(storedPrev, blockStore);
             newTarget = Utils.decodeCompactBits(prev.getDifficultyTarget());
             newTarget = newTarget.multiply(BigInteger.valueOf(timespan));
             newTarget = newTarget.divide(BigInteger.valueOf(getTargetTimespan(storedPrev.getHeight())));
@@ -236,7 +243,74 @@ public class DashMainNetParams extends NetworkParameters {
         return newDifficulty;
     }
 
-    private BigInteger darkGravityWave(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
+    private synchronized DifficultyWindow getDifficultyWindow() {
+        if (difficultyWindow == null)
+            difficultyWindow = new DifficultyWindow(DGW_PAST_BLOCKS_MAX);
+        return difficultyWindow;
+    }
+
+    @VisibleForTesting
+    BigInteger darkGravityWave(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
+        if (storedPrev.getHeight() >= 14) {
+            DifficultyWindow window = getDifficultyWindow();
+            synchronized (window) {
+                window.moveTo(storedPrev, blockStore);
+                // The window never holds the genesis block, which the loop below stops at too.
+                if (window.size() >= Math.min(DGW_PAST_BLOCKS_MAX, storedPrev.getHeight()))
+                    return darkGravityWave(window).toBigInteger();
+            }
+        }
+        // The store doesn't have all the blocks, for instance because the chain was started from a checkpoint.
+        return darkGravityWaveFromStore(storedPrev, nextBlock, blockStore);
+    }
+
+    /** {@link #darkGravityWaveFromStore(StoredBlock, Block, BlockStore)} over the blocks in the window. */
+    private Uint256 darkGravityWave(DifficultyWindow window) {
+        int countBlocks = Math.min(DGW_PAST_BLOCKS_MAX, window.size());
+        int pastBlocksMin = 14;
+
+        Uint256 average = window.getTarget(0);
+        for (int i = 1; i < Math.min(countBlocks, pastBlocksMin); i++) {
+            // The reference client averages with signed numbers, so the step rounds towards zero.
+            Uint256 target = window.getTarget(i);
+            if (target.compareTo(average) >= 0)
+                average = average.add(target.subtract(average).multiplyAndDivide(1, i + 1));
+            else
+                average = average.subtract(average.subtract(target).multiplyAndDivide(1, i + 1));
+        }
+
+        long blockTimeAverage = 0;
+        long blockTimeCount = 0;
+        for (int i = 1; i < countBlocks && blockTimeCount <= pastBlocksMin; i++) {
+            long diff = window.getTime(i - 1) - window.getTime(i);
+            blockTimeCount++;
+            if (blockTimeCount == 1)
+                blockTimeAverage = diff;
+            else
+                blockTimeAverage = ((diff - blockTimeAverage) / blockTimeCount) + blockTimeAverage;
+        }
+        // The differences add up to the time between the first and last block.
+        long blockTimeCount2 = countBlocks - 1;
+        long blockTimeSum2 = window.getTime(0) - window.getTime(countBlocks - 1);
+
+        if (blockTimeCount == 0 || blockTimeCount2 == 0)
+            return average;
+        double smartAverage = ((((double) blockTimeAverage) * 0.7) + (((double) blockTimeSum2 / (double) blockTimeCount2) * 0.3));
+        if (smartAverage < 1) smartAverage = 1;
+        double shift = targetSpacing / smartAverage;
+
+        double fActualTimespan = (((double) countBlocks * (double) targetSpacing) / shift);
+        double fTargetTimespan = ((double) countBlocks * targetSpacing);
+        if (fActualTimespan < fTargetTimespan / 3)
+            fActualTimespan = fTargetTimespan / 3;
+        if (fActualTimespan > fTargetTimespan * 3)
+            fActualTimespan = fTargetTimespan * 3;
+
+        return average.multiplyAndDivide((long) fActualTimespan, (long) fTargetTimespan);
+    }
+
+    @VisibleForTesting
+    BigInteger darkGravityWaveFromStore(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
     /* current difficulty formula, limecoin - DarkGravity, written by Evan Duffield - evan@limecoin.io */
         StoredBlock BlockLastSolved = storedPrev;
         StoredBlock BlockReading = storedPrev;
@@ -324,7 +398,42 @@ public class DashMainNetParams extends NetworkParameters {
         return bnNew;
     }
 
-    private BigInteger darkGravityWave3(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
+    @VisibleForTesting
+    BigInteger darkGravityWave3(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
+        if (storedPrev.getHeight() >= DGW3_PAST_BLOCKS) {
+            DifficultyWindow window = getDifficultyWindow();
+            synchronized (window) {
+                window.moveTo(storedPrev, blockStore);
+                if (window.size() >= DGW3_PAST_BLOCKS)
+                    return darkGravityWave3(window).toBigInteger();
+            }
+        }
+        return darkGravityWave3FromStore(storedPrev, nextBlock, blockStore);
+    }
+
+    /**
+     * {@link #darkGravityWave3FromStore(StoredBlock, Block, BlockStore)} over the blocks in the window. The average
+     * truncates at every step, so it has to be recomputed for each block rather than kept as a running sum, but that
+     * is only a couple of dozen small multiplications.
+     */
+    private Uint256 darkGravityWave3(DifficultyWindow window) {
+        Uint256 average = window.getTarget(0);
+        for (int i = 1; i < DGW3_PAST_BLOCKS; i++)
+            average = average.multiplyAndDivide(i + 1, 1).add(window.getTarget(i)).multiplyAndDivide(1, i + 2);
+
+        // The differences between consecutive blocks add up to the time between the first and last one.
+        long actualTimespan = window.getTime(0) - window.getTime(DGW3_PAST_BLOCKS - 1);
+        long targetTimespan = DGW3_PAST_BLOCKS * targetSpacing;
+        if (actualTimespan < targetTimespan / 3)
+            actualTimespan = targetTimespan / 3;
+        if (actualTimespan > targetTimespan * 3)
+            actualTimespan = targetTimespan * 3;
+
+        return average.multiplyAndDivide(actualTimespan, targetTimespan);
+    }
+
+    @VisibleForTesting
+    BigInteger darkGravityWave3FromStore(StoredBlock storedPrev, Block nextBlock, BlockStore blockStore) throws BlockStoreException {
         /* current difficulty formula, darkcoin - DarkGravity v3, written by Evan Duffield - evan@darkcoin.io */
         StoredBlock BlockLastSolved = storedPrev;
         StoredBlock BlockReading = storedPrev;
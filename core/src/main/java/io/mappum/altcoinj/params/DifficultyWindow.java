@@ -0,0 +1,127 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.params;
+
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.StoredBlock;
+import io.mappum.altcoinj.core.Uint256;
+import io.mappum.altcoinj.core.VerificationException;
+import io.mappum.altcoinj.store.BlockStore;
+import io.mappum.altcoinj.store.BlockStoreException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The times and decoded targets of the last few blocks of the chain, for difficulty algorithms that average over a
+ * window of recent blocks, like Dash's Dark Gravity Wave.</p>
+ *
+ * <p>{@link #moveTo(StoredBlock, BlockStore)} advances the window by one block in constant time when the new tip
+ * extends the newest block in it, which is the case for every block during a sync. Only after a re-org, or when the
+ * window is used for the first time, is it rebuilt by walking back through the block store. Entry 0 is always the
+ * tip. The genesis block is never part of the window.</p>
+ *
+ * <p>This class is not thread safe, callers synchronize on the window around moving and reading it.</p>
+ */
+class DifficultyWindow {
+    private final int capacity;
+    private final Sha256Hash[] hashes;
+    private final long[] times;
+    private final Uint256[] targets;
+    // Ring index of the tip, the number of valid entries behind it and the height of the tip.
+    private int newest;
+    private int size;
+    private int newestHeight;
+
+    DifficultyWindow(int capacity) {
+        checkArgument(capacity > 0);
+        this.capacity = capacity;
+        this.hashes = new Sha256Hash[capacity];
+        this.times = new long[capacity];
+        this.targets = new Uint256[capacity];
+    }
+
+    /**
+     * Makes the given block the tip of the window. Afterwards the window holds the tip and as many of its consecutive
+     * ancestors as fit and could be found in the store, see {@link #size()}.
+     */
+    void moveTo(StoredBlock tip, BlockStore store) throws BlockStoreException, VerificationException {
+        Block header = tip.getHeader();
+        if (size > 0) {
+            if (tip.getHeight() == newestHeight && header.getHash().equals(hashes[newest]))
+                return;
+            if (tip.getHeight() == newestHeight + 1 && header.getPrevBlockHash().equals(hashes[newest])) {
+                push(header);
+                newestHeight++;
+                return;
+            }
+        }
+        rebuild(tip, store);
+    }
+
+    private void rebuild(StoredBlock tip, BlockStore store) throws BlockStoreException, VerificationException {
+        // Collect the blocks newest first, then push them oldest first.
+        Block[] headers = new Block[Math.min(capacity, tip.getHeight())];
+        int count = 0;
+        StoredBlock cursor = tip;
+        while (cursor != null && count < headers.length) {
+            headers[count++] = cursor.getHeader();
+            if (count < headers.length)
+                cursor = store.get(cursor.getHeader().getPrevBlockHash());
+        }
+        size = 0;
+        try {
+            for (int i = count - 1; i >= 0; i--)
+                push(headers[i]);
+        } catch (VerificationException e) {
+            size = 0;
+            throw e;
+        }
+        newestHeight = tip.getHeight();
+    }
+
+    private void push(Block header) throws VerificationException {
+        Uint256 target = header.getDifficultyTargetAsUint256();
+        newest = (newest + 1) % capacity;
+        hashes[newest] = header.getHash();
+        times[newest] = header.getTimeSeconds();
+        targets[newest] = target;
+        if (size < capacity)
+            size++;
+    }
+
+    /**
+     * The number of blocks in the window. This is less than the capacity near the start of the chain, or when the
+     * store did not have all the ancestors of the tip the window was last rebuilt from.
+     */
+    int size() {
+        return size;
+    }
+
+    /** The time of the block {@code age} blocks before the tip, so 0 is the tip itself. */
+    long getTime(int age) {
+        return times[index(age)];
+    }
+
+    /** The target of the block {@code age} blocks before the tip, so 0 is the tip itself. */
+    Uint256 getTarget(int age) {
+        return targets[index(age)];
+    }
+
+    private int index(int age) {
+        checkArgument(age >= 0 && age < size, "age out of range: %s", age);
+        return (newest - age + capacity) % capacity;
+    }
+}
@@ -17,7 +17,7 @@
 package io.mappum.altcoinj.params;
 
 import io.mappum.altcoinj.core.*;
-import io.mappum.altcoinj.pows.ScryptProofOfWork;
+import io.mappum.altcoinj.pows.ProofOfWorks;
 import io.mappum.altcoinj.store.BlockStore;
 import io.mappum.altcoinj.store.BlockStoreException;
 
@@ -36,15 +36,13 @@ public class DogecoinMainNetParams extends NetworkParameters {
 
     public static final byte[] ALERT_KEY = Utils.HEX.decode("04d4da7a5dae4db797d9b0644d57a5cd50e05a70f36091cd62e2fc41c98ded06340be5a43a35e185690cd9cde5d72da8f6d065b499b06f51dcfba14aad859f443a");
 
-    private static ScryptProofOfWork proofOfWorkInstance;
-
     public DogecoinMainNetParams() {
         maxMoney = null;
         minFee = Coin.COIN;
         alertSigningKey = ALERT_KEY;
         genesisBlock = createGenesis(this, GENESIS_INPUT, GENESIS_SCRIPTPUBKEY);
-        if(proofOfWorkInstance == null)
-            proofOfWork = new ScryptProofOfWork(1024, 1, 1, 32);
+        proofOfWork = ProofOfWorks.get("scrypt");
+        targetSpacing = TARGET_SPACING;
         maxTarget = Utils.decodeCompactBits(0x1e0fffffL);
         dumpedPrivateKeyHeader = 158;
         addressHeader = 30;
@@ -89,21 +87,9 @@ public class DogecoinMainNetParams extends NetworkParameters {
             throws BlockStoreException, VerificationException {
         Block prev = storedPrev.getHeader();
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
-        long now = System.currentTimeMillis();
+        // We need to find a block far back in the chain.
         int blockspan = getInterval(storedPrev.getHeight()) - (storedPrev.getHeight() + 1 == TARGET_INTERVAL ? 1 : 0);
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < blockspan; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
-        }
-
-        Block blockIntervalAgo = cursor.getHeader();
+        Block blockIntervalAgo = getAncestor(storedPrev, blockspan, blockStore).getHeader();
         int timespan = (int) (prev.getTimeSeconds() - blockIntervalAgo.getTimeSeconds());
 
         // Limit the adjustment step.
@@ -17,7 +17,7 @@
 package io.mappum.altcoinj.params;
 
 import io.mappum.altcoinj.core.*;
-import io.mappum.altcoinj.pows.ScryptProofOfWork;
+import io.mappum.altcoinj.pows.ProofOfWorks;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -35,8 +35,6 @@ public class LitecoinMainNetParams extends NetworkParameters {
 
     public static final byte[] ALERT_KEY = Utils.HEX.decode("040184710fa689ad5023690c80f3a49c8f13f8d45b8c857fbcbc8bc4a8e4d3eb4b10f4d4604fa08dce601aaf0f470216fe1b51850b4acf21b179c45070ac7b03a9");
 
-    private static ScryptProofOfWork proofOfWorkInstance;
-
     public LitecoinMainNetParams() {
         maxMoney = Coin.COIN.multiply(84000000);
         minFee = Coin.valueOf(100000);
@@ -45,8 +43,7 @@ public class LitecoinMainNetParams extends NetworkParameters {
         interval = INTERVAL;
         targetTimespan = TARGET_TIMESPAN;
         targetSpacing = TARGET_SPACING;
-        if(proofOfWorkInstance == null)
-            proofOfWork = new ScryptProofOfWork(1024, 1, 1, 32);
+        proofOfWork = ProofOfWorks.get("scrypt");
         maxTarget = Utils.decodeCompactBits(0x1e0fffffL);
         dumpedPrivateKeyHeader = 128;
         addressHeader = 48;
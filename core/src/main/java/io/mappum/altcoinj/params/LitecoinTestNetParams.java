@@ -19,7 +19,7 @@ package io.mappum.altcoinj.params;
 import io.mappum.altcoinj.core.Coin;
 import io.mappum.altcoinj.core.Sha256Hash;
 import io.mappum.altcoinj.core.Utils;
-import io.mappum.altcoinj.pows.ScryptProofOfWork;
+import io.mappum.altcoinj.pows.ProofOfWorks;
 
 import java.util.Date;
 
@@ -35,8 +35,6 @@ public class LitecoinTestNetParams extends TestNet2Params {
 
     public static final byte[] ALERT_KEY = Utils.HEX.decode("040184710fa689ad5023690c80f3a49c8f13f8d45b8c857fbcbc8bc4a8e4d3eb4b10f4d4604fa08dce601aaf0f470216fe1b51850b4acf21b179c45070ac7b03a9");
 
-    private static ScryptProofOfWork proofOfWorkInstance;
-
     public LitecoinTestNetParams() {
         maxMoney = Coin.COIN.multiply(84000000);
         minFee = Coin.valueOf(100000);
@@ -45,8 +43,7 @@ public class LitecoinTestNetParams extends TestNet2Params {
         interval = LitecoinMainNetParams.INTERVAL;
         targetTimespan = LitecoinMainNetParams.TARGET_TIMESPAN;
         targetSpacing = LitecoinMainNetParams.TARGET_SPACING;
-        if(proofOfWorkInstance == null)
-            proofOfWork = new ScryptProofOfWork(1024, 1, 1, 32);
+        proofOfWork = ProofOfWorks.get("scrypt");
         maxTarget = Utils.decodeCompactBits(0x1e0fffffL);
         dumpedPrivateKeyHeader = 128;
         addressHeader = 111;
@@ -0,0 +1,74 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.ProofOfWork;
+
+import java.util.*;
+
+/**
+ * <p>The proof of work algorithms that ship with altcoinj:</p>
+ *
+ * <ul>
+ *     <li>"sha256d", double SHA-256 as used by Bitcoin.</li>
+ *     <li>"scrypt", Scrypt with N=1024, r=1, p=1 as used by Litecoin and Dogecoin.</li>
+ *     <li>"x11", as used by Dash.</li>
+ *     <li>"myr-groestl", "skein" and "qubit", the other algorithms of Myriad and DigiByte.</li>
+ *     <li>Every {@code fr.cryptohash} digest that is at least 256 bits long on its own, by its lower case class name,
+ *     like "keccak256", "groestl512" or "whirlpool".</li>
+ * </ul>
+ */
+public class BuiltInProofOfWorkProvider implements ProofOfWorkProvider {
+    private static final String[] DIGESTS = {
+        "BLAKE256", "BLAKE384", "BLAKE512", "BMW256", "BMW384", "BMW512", "CubeHash256", "CubeHash384", "CubeHash512",
+        "ECHO256", "ECHO384", "ECHO512", "Fugue256", "Fugue384", "Fugue512", "Groestl256", "Groestl384", "Groestl512",
+        "Hamsi256", "Hamsi384", "Hamsi512", "HAVAL256_3", "HAVAL256_4", "HAVAL256_5", "JH256", "JH384", "JH512",
+        "Keccak256", "Keccak384", "Keccak512", "Luffa256", "Luffa384", "Luffa512", "PANAMA", "RadioGatun32",
+        "RadioGatun64", "SHA256", "SHA384", "SHA512", "SHAvite256", "SHAvite384", "SHAvite512", "SIMD256", "SIMD384",
+        "SIMD512", "Shabal256", "Shabal384", "Shabal512", "Skein256", "Skein384", "Skein512", "Whirlpool",
+        "Whirlpool0", "Whirlpool1"
+    };
+
+    private final Map<String, String[]> chains = new HashMap<String, String[]>();
+
+    public BuiltInProofOfWorkProvider() {
+        chains.put("myr-groestl", new String[] { "Groestl512", "SHA256" });
+        chains.put("skein", new String[] { "Skein512", "SHA256" });
+        chains.put("qubit", new String[] { "Luffa512", "CubeHash512", "SHAvite512", "SIMD512", "ECHO512" });
+        for (String digest : DIGESTS)
+            chains.put(digest.toLowerCase(Locale.US), new String[] { digest });
+    }
+
+    @Override
+    public Set<String> getNames() {
+        Set<String> names = new HashSet<String>(chains.keySet());
+        names.add("sha256d");
+        names.add("scrypt");
+        names.add("x11");
+        return names;
+    }
+
+    @Override
+    public ProofOfWork get(String name) {
+        if (name.equals("sha256d"))
+            return Sha256ProofOfWork.get();
+        if (name.equals("scrypt"))
+            return new ScryptProofOfWork(1024, 1, 1, 32);
+        if (name.equals("x11"))
+            return X11ProofOfWork.get();
+        String[] chain = chains.get(name);
+        return chain == null ? null : new ChainedDigestProofOfWork(chain);
+    }
+}
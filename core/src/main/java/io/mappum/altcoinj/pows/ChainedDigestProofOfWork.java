@@ -0,0 +1,98 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.ProofOfWork;
+import io.mappum.altcoinj.core.Sha256Hash;
+import fr.cryptohash.Digest;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A proof of work that runs the header through a chain of {@link Digest}s from {@code fr.cryptohash}, each one
+ * hashing the full output of the one before. The result is the first 256 bits of the last digest, which must be at
+ * least that long. A chain of one digest is simply that hash function, for instance the Myriad/DigiByte "skein"
+ * algorithm is Skein512 followed by SHA256.</p>
+ *
+ * <p>The digests are named by their class in the {@code fr.cryptohash} package, like "Groestl512". Every thread gets
+ * its own instances, so this is thread safe.</p>
+ */
+public class ChainedDigestProofOfWork extends ProofOfWork {
+    private final String[] stages;
+    private transient volatile ThreadLocal<Digest[]> digests;
+
+    public ChainedDigestProofOfWork(String... stages) {
+        checkArgument(stages.length > 0, "no digests");
+        this.stages = stages.clone();
+        Digest last = createDigests(this.stages)[stages.length - 1];
+        checkArgument(last.getDigestLength() >= 32, "%s is shorter than 256 bits", last);
+    }
+
+    private static Digest[] createDigests(String[] stages) {
+        Digest[] digests = new Digest[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            try {
+                digests[i] = (Digest) Class.forName("fr.cryptohash." + stages[i]).newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Not a digest in fr.cryptohash: " + stages[i], e);
+            }
+        }
+        return digests;
+    }
+
+    private Digest[] getDigests() {
+        // Not created in the constructor, as thread locals don't survive serialization.
+        ThreadLocal<Digest[]> local = digests;
+        if (local == null) {
+            local = new ThreadLocal<Digest[]>() {
+                @Override
+                protected Digest[] initialValue() {
+                    return createDigests(stages);
+                }
+            };
+            digests = local;
+        }
+        return local.get();
+    }
+
+    public Sha256Hash hash(byte[] header) {
+        Digest[] chain = getDigests();
+        byte[] digest = header;
+        try {
+            for (Digest stage : chain)
+                digest = stage.digest(digest);
+        } catch (RuntimeException e) {
+            for (Digest stage : chain)
+                stage.reset();
+            throw e;
+        }
+        byte[] result = new byte[32];
+        for (int i = 0; i < 32; i++)
+            result[i] = digest[31 - i];
+        return new Sha256Hash(result);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "ChainedDigestProofOfWork" + Arrays.toString(stages);
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.ProofOfWork;
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Utils;
+import io.mappum.altcoinj.core.VerificationException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The proof of work of chains like Myriad or DigiByte, where every block picks its algorithm with a few bits of its
+ * version field. For instance Myriad uses the bits in {@code 7 << 9}: 0 for sha256d, {@code 1 << 9} for scrypt,
+ * {@code 2 << 9} for myr-groestl, {@code 3 << 9} for skein and {@code 4 << 9} for qubit.</p>
+ *
+ * <p>For merge mined blocks the algorithm is still picked by the version of the block itself, and then applied to the
+ * parent block like a single algorithm proof of work would. Blocks with bits that don't map to an algorithm fail to
+ * hash with a {@link VerificationException}.</p>
+ */
+public class MultiAlgoProofOfWork extends ProofOfWork {
+    private final long versionMask;
+    private final HashMap<Long, ProofOfWork> algorithms;
+
+    /**
+     * @param versionMask The bits of the block version that select the algorithm.
+     * @param algorithms The algorithm for each value of the masked version bits.
+     */
+    public MultiAlgoProofOfWork(long versionMask, Map<Long, ProofOfWork> algorithms) {
+        this.versionMask = versionMask;
+        this.algorithms = new HashMap<Long, ProofOfWork>(algorithms);
+        for (long bits : this.algorithms.keySet())
+            checkArgument((bits & ~versionMask) == 0, "%s has bits outside the mask", bits);
+    }
+
+    /** Returns the algorithm the given block version selects. */
+    public ProofOfWork getAlgorithm(long version) throws VerificationException {
+        ProofOfWork pow = algorithms.get(version & versionMask);
+        if (pow == null)
+            throw new VerificationException("Unknown proof of work algorithm in block version " + version);
+        return pow;
+    }
+
+    @Override
+    public Sha256Hash getHash(Block block) {
+        return getAlgorithm(block.getVersion()).getHash(block);
+    }
+
+    public Sha256Hash hash(byte[] header) {
+        return getAlgorithm(Utils.readUint32(header, 0)).hash(header);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        for (ProofOfWork pow : algorithms.values())
+            if (!pow.isThreadSafe())
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.ProofOfWork;
+
+import java.util.Set;
+
+/**
+ * <p>A source of proof of work algorithms, looked up by name through {@link ProofOfWorks}.</p>
+ *
+ * <p>Providers are found with {@link java.util.ServiceLoader}: list the implementation class in a
+ * {@code META-INF/services/io.mappum.altcoinj.pows.ProofOfWorkProvider} file on the classpath, or register an instance
+ * with {@link ProofOfWorks#register(ProofOfWorkProvider)}. Implementations need a public no-args constructor for the
+ * former.</p>
+ */
+public interface ProofOfWorkProvider {
+    /** The names of the algorithms this provider offers. Names are matched case insensitively. */
+    Set<String> getNames();
+
+    /**
+     * Returns the algorithm with the given name, which is one of {@link #getNames()} in lower case. It is only asked
+     * for once per name, the result is shared by everybody who looks it up.
+     */
+    ProofOfWork get(String name);
+}
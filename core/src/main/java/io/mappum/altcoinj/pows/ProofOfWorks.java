@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.ProofOfWork;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>The registry of proof of work algorithms by name, like "sha256d", "scrypt" or "x11". The algorithms built into
+ * altcoinj are always there, see {@link BuiltInProofOfWorkProvider} for the full list. Further ones come from any
+ * {@link ProofOfWorkProvider} on the classpath or registered at runtime.</p>
+ *
+ * <p>When two providers offer the same name, the one that was registered first wins, so the built in algorithms can't
+ * be replaced by accident. Every name maps to a single shared instance.</p>
+ */
+public class ProofOfWorks {
+    private static final Logger log = LoggerFactory.getLogger(ProofOfWorks.class);
+
+    private static final Map<String, ProofOfWorkProvider> providers = new HashMap<String, ProofOfWorkProvider>();
+    private static final Map<String, ProofOfWork> instances = new HashMap<String, ProofOfWork>();
+    private static boolean loaded;
+
+    private ProofOfWorks() {
+    }
+
+    /**
+     * Returns the algorithm with the given name.
+     *
+     * @throws IllegalArgumentException if no provider offers it.
+     */
+    public static synchronized ProofOfWork get(String name) {
+        load();
+        String key = name.toLowerCase(Locale.US);
+        ProofOfWork pow = instances.get(key);
+        if (pow == null) {
+            ProofOfWorkProvider provider = providers.get(key);
+            if (provider == null)
+                throw new IllegalArgumentException("Unknown proof of work algorithm: " + name);
+            pow = checkNotNull(provider.get(key), "%s returned null for %s", provider, key);
+            instances.put(key, pow);
+        }
+        return pow;
+    }
+
+    /** Returns the names of all the algorithms that are available, in lower case. */
+    public static synchronized Set<String> getNames() {
+        load();
+        return Collections.unmodifiableSet(new TreeSet<String>(providers.keySet()));
+    }
+
+    /** Makes the algorithms of the given provider available, except for names that are already taken. */
+    public static synchronized void register(ProofOfWorkProvider provider) {
+        load();
+        add(provider);
+    }
+
+    private static void add(ProofOfWorkProvider provider) {
+        for (String name : provider.getNames()) {
+            String key = name.toLowerCase(Locale.US);
+            ProofOfWorkProvider existing = providers.get(key);
+            if (existing == null)
+                providers.put(key, provider);
+            else if (existing != provider)
+                log.warn("Proof of work {} from {} is already provided by {}, ignoring", key, provider, existing);
+        }
+    }
+
+    private static void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        add(new BuiltInProofOfWorkProvider());
+        try {
+            for (ProofOfWorkProvider provider : ServiceLoader.load(ProofOfWorkProvider.class)) {
+                if (!(provider instanceof BuiltInProofOfWorkProvider))
+                    add(provider);
+            }
+        } catch (ServiceConfigurationError e) {
+            log.error("Failed to load proof of work providers", e);
+        }
+    }
+}
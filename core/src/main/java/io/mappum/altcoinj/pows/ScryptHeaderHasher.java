@@ -0,0 +1,258 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+/**
+ * <p>scrypt with N=1024, r=1, p=1 and a 32 byte output of an 80 byte block header salted with itself, which is the
+ * proof of work of Litecoin, Dogecoin and friends.</p>
+ *
+ * <p>This gives the same result as {@code SCrypt.scrypt(header, header, 1024, 1, 1, 32)} but is specialised for the
+ * fixed parameters: the 128KB scratchpad and all working buffers are allocated once per instance, Salsa20/8 works
+ * directly on int arrays, and the PBKDF2-HMAC-SHA256 steps use a built in SHA-256 compression function with the
+ * inner and outer pad states computed once per header rather than going through JCE {@code Mac} objects.</p>
+ *
+ * <p>Instances are not thread safe, {@link ScryptProofOfWork} keeps one per thread.</p>
+ */
+class ScryptHeaderHasher {
+    private static final int N = 1024;
+    private static final int HEADER_SIZE = 80;
+
+    private static final int[] SHA256_IV = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int[] SHA256_K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    // scrypt state: X is the 128 byte block being mixed, V the scratchpad of N copies of it.
+    private final int[] X = new int[32];
+    private final int[] V = new int[N * 32];
+
+    // SHA-256 state: the header as big endian words, a message block, the schedule and the chaining values.
+    private final int[] headerWords = new int[HEADER_SIZE / 4];
+    private final int[] block = new int[16];
+    private final int[] schedule = new int[64];
+    private final int[] state = new int[8];
+    private final int[] digest = new int[8];
+    private final int[] innerState = new int[8];
+    private final int[] outerState = new int[8];
+    private final int[] innerHeaderState = new int[8];
+
+    /** Returns the 32 byte scrypt hash of the given 80 byte header, in the byte order the generic implementation uses. */
+    byte[] hash(byte[] header) {
+        if (header.length != HEADER_SIZE)
+            throw new IllegalArgumentException("Header must be " + HEADER_SIZE + " bytes, got " + header.length);
+        for (int i = 0; i < headerWords.length; i++)
+            headerWords[i] = readIntBE(header, i * 4);
+
+        prepareHmac();
+
+        // B = PBKDF2-HMAC-SHA256(header, header, 1, 128). The first 64 bytes of the salt are the same for all four
+        // blocks, so they're only run through the inner hash once.
+        System.arraycopy(innerState, 0, innerHeaderState, 0, 8);
+        compress(innerHeaderState, headerWords, 0);
+        for (int i = 1; i <= 4; i++) {
+            System.arraycopy(innerHeaderState, 0, state, 0, 8);
+            System.arraycopy(headerWords, 16, block, 0, 4);
+            block[4] = i;
+            block[5] = 0x80000000;
+            for (int j = 6; j < 15; j++)
+                block[j] = 0;
+            block[15] = (64 + HEADER_SIZE + 4) * 8;
+            compress(state, block, 0);
+            finishHmac();
+            // scrypt reads B as little endian words, SHA-256 writes big endian ones.
+            for (int j = 0; j < 8; j++)
+                X[(i - 1) * 8 + j] = Integer.reverseBytes(digest[j]);
+        }
+
+        romix();
+
+        // DK = PBKDF2-HMAC-SHA256(header, B, 1, 32)
+        System.arraycopy(innerState, 0, state, 0, 8);
+        for (int j = 0; j < 16; j++)
+            block[j] = Integer.reverseBytes(X[j]);
+        compress(state, block, 0);
+        for (int j = 0; j < 16; j++)
+            block[j] = Integer.reverseBytes(X[16 + j]);
+        compress(state, block, 0);
+        block[0] = 1;
+        block[1] = 0x80000000;
+        for (int j = 2; j < 15; j++)
+            block[j] = 0;
+        block[15] = (64 + 128 + 4) * 8;
+        compress(state, block, 0);
+        finishHmac();
+
+        byte[] result = new byte[32];
+        for (int j = 0; j < 8; j++)
+            writeIntBE(digest[j], result, j * 4);
+        return result;
+    }
+
+    /** Computes the HMAC inner and outer pad states for the header as key. Keys over 64 bytes are hashed first. */
+    private void prepareHmac() {
+        System.arraycopy(SHA256_IV, 0, state, 0, 8);
+        compress(state, headerWords, 0);
+        System.arraycopy(headerWords, 16, block, 0, 4);
+        block[4] = 0x80000000;
+        for (int j = 5; j < 15; j++)
+            block[j] = 0;
+        block[15] = HEADER_SIZE * 8;
+        compress(state, block, 0);
+
+        for (int j = 0; j < 8; j++)
+            block[j] = state[j] ^ 0x36363636;
+        for (int j = 8; j < 16; j++)
+            block[j] = 0x36363636;
+        System.arraycopy(SHA256_IV, 0, innerState, 0, 8);
+        compress(innerState, block, 0);
+
+        for (int j = 0; j < 8; j++)
+            block[j] = state[j] ^ 0x5c5c5c5c;
+        for (int j = 8; j < 16; j++)
+            block[j] = 0x5c5c5c5c;
+        System.arraycopy(SHA256_IV, 0, outerState, 0, 8);
+        compress(outerState, block, 0);
+    }
+
+    /** Takes the finished inner hash in {@link #state} and leaves the HMAC output in {@link #digest}. */
+    private void finishHmac() {
+        System.arraycopy(state, 0, block, 0, 8);
+        block[8] = 0x80000000;
+        for (int j = 9; j < 15; j++)
+            block[j] = 0;
+        block[15] = (64 + 32) * 8;
+        System.arraycopy(outerState, 0, digest, 0, 8);
+        compress(digest, block, 0);
+    }
+
+    private void compress(int[] h, int[] data, int offset) {
+        int[] w = schedule;
+        System.arraycopy(data, offset, w, 0, 16);
+        for (int t = 16; t < 64; t++) {
+            int w15 = w[t - 15], w2 = w[t - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], hh = h[7];
+        for (int t = 0; t < 64; t++) {
+            int t1 = hh + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                    + ((e & f) ^ (~e & g)) + SHA256_K[t] + w[t];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                    + ((a & b) ^ (a & c) ^ (b & c));
+            hh = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+        h[5] += f;
+        h[6] += g;
+        h[7] += hh;
+    }
+
+    private void romix() {
+        int[] x = X, v = V;
+        for (int i = 0; i < N; i++) {
+            System.arraycopy(x, 0, v, i * 32, 32);
+            blockMix(x);
+        }
+        for (int i = 0; i < N; i++) {
+            int j = (x[16] & (N - 1)) * 32;
+            for (int k = 0; k < 32; k++)
+                x[k] ^= v[j + k];
+            blockMix(x);
+        }
+    }
+
+    /** BlockMix for r=1, done in place: the two halves become Salsa(X0 ^ X1) and Salsa(X1 ^ Salsa(X0 ^ X1)). */
+    private static void blockMix(int[] x) {
+        xorSalsa208(x, 0, 16);
+        xorSalsa208(x, 16, 0);
+    }
+
+    /** Sets the 16 words of b at offset to Salsa20/8 of themselves xored with the 16 words at xorOffset. */
+    private static void xorSalsa208(int[] b, int offset, int xorOffset) {
+        int j00 = b[offset] ^ b[xorOffset], j01 = b[offset + 1] ^ b[xorOffset + 1];
+        int j02 = b[offset + 2] ^ b[xorOffset + 2], j03 = b[offset + 3] ^ b[xorOffset + 3];
+        int j04 = b[offset + 4] ^ b[xorOffset + 4], j05 = b[offset + 5] ^ b[xorOffset + 5];
+        int j06 = b[offset + 6] ^ b[xorOffset + 6], j07 = b[offset + 7] ^ b[xorOffset + 7];
+        int j08 = b[offset + 8] ^ b[xorOffset + 8], j09 = b[offset + 9] ^ b[xorOffset + 9];
+        int j10 = b[offset + 10] ^ b[xorOffset + 10], j11 = b[offset + 11] ^ b[xorOffset + 11];
+        int j12 = b[offset + 12] ^ b[xorOffset + 12], j13 = b[offset + 13] ^ b[xorOffset + 13];
+        int j14 = b[offset + 14] ^ b[xorOffset + 14], j15 = b[offset + 15] ^ b[xorOffset + 15];
+        int x00 = j00, x01 = j01, x02 = j02, x03 = j03, x04 = j04, x05 = j05, x06 = j06, x07 = j07;
+        int x08 = j08, x09 = j09, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+        for (int i = 0; i < 8; i += 2) {
+            // Columns.
+            x04 ^= Integer.rotateLeft(x00 + x12, 7);  x08 ^= Integer.rotateLeft(x04 + x00, 9);
+            x12 ^= Integer.rotateLeft(x08 + x04, 13); x00 ^= Integer.rotateLeft(x12 + x08, 18);
+            x09 ^= Integer.rotateLeft(x05 + x01, 7);  x13 ^= Integer.rotateLeft(x09 + x05, 9);
+            x01 ^= Integer.rotateLeft(x13 + x09, 13); x05 ^= Integer.rotateLeft(x01 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x06, 7);  x02 ^= Integer.rotateLeft(x14 + x10, 9);
+            x06 ^= Integer.rotateLeft(x02 + x14, 13); x10 ^= Integer.rotateLeft(x06 + x02, 18);
+            x03 ^= Integer.rotateLeft(x15 + x11, 7);  x07 ^= Integer.rotateLeft(x03 + x15, 9);
+            x11 ^= Integer.rotateLeft(x07 + x03, 13); x15 ^= Integer.rotateLeft(x11 + x07, 18);
+            // Rows.
+            x01 ^= Integer.rotateLeft(x00 + x03, 7);  x02 ^= Integer.rotateLeft(x01 + x00, 9);
+            x03 ^= Integer.rotateLeft(x02 + x01, 13); x00 ^= Integer.rotateLeft(x03 + x02, 18);
+            x06 ^= Integer.rotateLeft(x05 + x04, 7);  x07 ^= Integer.rotateLeft(x06 + x05, 9);
+            x04 ^= Integer.rotateLeft(x07 + x06, 13); x05 ^= Integer.rotateLeft(x04 + x07, 18);
+            x11 ^= Integer.rotateLeft(x10 + x09, 7);  x08 ^= Integer.rotateLeft(x11 + x10, 9);
+            x09 ^= Integer.rotateLeft(x08 + x11, 13); x10 ^= Integer.rotateLeft(x09 + x08, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);  x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+        b[offset] = j00 + x00;           b[offset + 1] = j01 + x01;
+        b[offset + 2] = j02 + x02;       b[offset + 3] = j03 + x03;
+        b[offset + 4] = j04 + x04;       b[offset + 5] = j05 + x05;
+        b[offset + 6] = j06 + x06;       b[offset + 7] = j07 + x07;
+        b[offset + 8] = j08 + x08;       b[offset + 9] = j09 + x09;
+        b[offset + 10] = j10 + x10;      b[offset + 11] = j11 + x11;
+        b[offset + 12] = j12 + x12;      b[offset + 13] = j13 + x13;
+        b[offset + 14] = j14 + x14;      b[offset + 15] = j15 + x15;
+    }
+
+    private static int readIntBE(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+                ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static void writeIntBE(int val, byte[] buf, int offset) {
+        buf[offset] = (byte) (val >>> 24);
+        buf[offset + 1] = (byte) (val >>> 16);
+        buf[offset + 2] = (byte) (val >>> 8);
+        buf[offset + 3] = (byte) val;
+    }
+}
@@ -6,10 +6,15 @@ import io.mappum.altcoinj.core.Sha256Hash;
 import io.mappum.altcoinj.core.ProofOfWork;
 
 public class Sha256ProofOfWork extends ProofOfWork {
-    protected Sha256Hash hash(byte[] header) {
+    public Sha256Hash hash(byte[] header) {
         return new Sha256Hash(reverseBytes(doubleDigest(header)));
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     private static Sha256ProofOfWork instance;
     public static Sha256ProofOfWork get() {
         if(instance == null)
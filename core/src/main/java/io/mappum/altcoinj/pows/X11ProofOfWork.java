@@ -2,49 +2,77 @@ package io.mappum.altcoinj.pows;
 
 import io.mappum.altcoinj.core.ProofOfWork;
 import io.mappum.altcoinj.core.Sha256Hash;
-import io.mappum.altcoinj.core.Utils;
 import fr.cryptohash.*;
 
-import java.util.Arrays;
-
 public class X11ProofOfWork extends ProofOfWork {
-    public Sha256Hash hash(byte[] header) {
-        byte[] digest;
-
-        BLAKE512 blake512 = new BLAKE512();
-        digest = blake512.digest(header);
-
-        BMW512 bmw = new BMW512();
-        digest = bmw.digest(digest);
-
-        Groestl512 groestl = new Groestl512();
-        digest = groestl.digest(digest);
-
-        Skein512 skein = new Skein512();
-        digest = skein.digest(digest);
-
-        JH512 jh = new JH512();
-        digest = jh.digest(digest);
+    /** Length of the intermediate digests passed between stages. Every X11 stage is a 512 bit hash. */
+    private static final int STAGE_LENGTH = 64;
+
+    /**
+     * Digest objects are stateful and not thread safe, so every thread that hashes headers gets its own engine. They
+     * are kept around for the life of the thread, which avoids allocating eleven digests per header during sync.
+     */
+    private static final ThreadLocal<Engine> engine = new ThreadLocal<Engine>() {
+        @Override
+        protected Engine initialValue() {
+            return new Engine();
+        }
+    };
 
-        Keccak512 keccak = new Keccak512();
-        digest = keccak.digest(digest);
-
-        Luffa512 luffa = new Luffa512();
-        digest = luffa.digest(digest);
-
-        CubeHash512 cubehash = new CubeHash512();
-        digest = cubehash.digest(digest);
-
-        SHAvite512 shavite = new SHAvite512();
-        digest = shavite.digest(digest);
-
-        SIMD512 simd = new SIMD512();
-        digest = simd.digest(digest);
+    public Sha256Hash hash(byte[] header) {
+        return new Sha256Hash(engine.get().hash(header, 0, header.length));
+    }
 
-        ECHO512 echo = new ECHO512();
-        digest = echo.digest(digest);
+    /**
+     * The eleven chained digests of X11, together with two scratch buffers that the stages ping-pong between. A digest
+     * resets itself once its output has been produced, so the same instances can be used for the next header.
+     */
+    private static class Engine {
+        private final Digest[] stages = new Digest[] {
+            new BLAKE512(),
+            new BMW512(),
+            new Groestl512(),
+            new Skein512(),
+            new JH512(),
+            new Keccak512(),
+            new Luffa512(),
+            new CubeHash512(),
+            new SHAvite512(),
+            new SIMD512(),
+            new ECHO512()
+        };
+        private final byte[] a = new byte[STAGE_LENGTH];
+        private final byte[] b = new byte[STAGE_LENGTH];
+
+        /** Returns the first 256 bits of the X11 digest, byte reversed so it can be wrapped as a {@link Sha256Hash}. */
+        byte[] hash(byte[] input, int offset, int length) {
+            byte[] in = a, out = b;
+            try {
+                stages[0].update(input, offset, length);
+                stages[0].digest(in, 0, STAGE_LENGTH);
+                for (int i = 1; i < stages.length; i++) {
+                    stages[i].update(in, 0, STAGE_LENGTH);
+                    stages[i].digest(out, 0, STAGE_LENGTH);
+                    byte[] tmp = in;
+                    in = out;
+                    out = tmp;
+                }
+            } catch (RuntimeException e) {
+                // Don't let a half finished computation leak into the next header hashed on this thread.
+                for (Digest stage : stages)
+                    stage.reset();
+                throw e;
+            }
+            byte[] result = new byte[32];
+            for (int i = 0; i < 32; i++)
+                result[i] = in[31 - i];
+            return result;
+        }
+    }
 
-        return new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(digest, 0, 32)));
+    @Override
+    public boolean isThreadSafe() {
+        return true;
     }
 
     private static X11ProofOfWork instance;
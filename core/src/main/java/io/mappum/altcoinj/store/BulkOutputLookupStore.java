@@ -0,0 +1,34 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.StoredTransactionOutput;
+import io.mappum.altcoinj.core.TransactionOutPoint;
+
+import java.util.List;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that can look up many unspent outputs in one go, for stores where a round trip
+ * per output costs much more than the lookup itself. The {@link io.mappum.altcoinj.core.FullPrunedBlockChain} uses it
+ * to fetch all the outputs a block spends before connecting it, instead of one at a time while it does.</p>
+ */
+public interface BulkOutputLookupStore extends FullPrunedBlockStore {
+    /**
+     * Returns the unspent outputs for the given out points, in the same order, with null for the ones the store doesn't
+     * have. The answer is the same as calling {@link #getTransactionOutput(io.mappum.altcoinj.core.Sha256Hash, long)}
+     * for each of them, which includes seeing the changes of a batch write in progress.
+     */
+    List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
+}
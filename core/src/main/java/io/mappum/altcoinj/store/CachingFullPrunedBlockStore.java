@@ -0,0 +1,453 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.*;
+import com.google.common.base.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that sits in front of another one, keeps recently used unspent outputs in memory
+ * and writes changes back in large batches. Connecting a block looks up, adds and removes an output for every input
+ * and output in it, which for the SQL stores is a database round trip each. With this in front most lookups are
+ * answered from memory, an output that is created and spent between two write backs never reaches the underlying
+ * store at all, and everything else is written in one transaction every so often instead of one per block.</p>
+ *
+ * <p>New blocks, their undo data and the chain heads are held back too, and go to the underlying store in the same
+ * transaction as the output changes. So the underlying store only ever moves from one consistent state to another,
+ * with the outputs matching its verified chain head, and after a crash the chain carries on from the last write back
+ * and verifies the blocks since then again.</p>
+ *
+ * <p>Changes are written back once they take more than a given amount of memory, on the first block connected after
+ * a given time has passed since the last write back, and on {@link #flush()} and {@link #close()}. Nothing else may
+ * use the underlying store while this one is in front of it.</p>
+ */
+public class CachingFullPrunedBlockStore implements BulkOutputLookupStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default number of unspent outputs kept in memory that don't need writing back. */
+    public static final int DEFAULT_CACHE_SIZE = 500000;
+    /** The default amount of memory changes may take before they are written back. */
+    public static final long DEFAULT_MAX_PENDING_BYTES = 64 * 1024 * 1024;
+    /** The default longest time between write backs, while blocks are being connected. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    // Rough memory cost of an output besides its script, and of a block besides its undo data.
+    private static final int OUTPUT_OVERHEAD = 160;
+    private static final int BLOCK_OVERHEAD = 300;
+
+    // A change to an output that hasn't been written back yet.
+    private static class Change {
+        final StoredTransactionOutput output;
+        final boolean spent;
+        // Whether the underlying store doesn't have the output, so that spending it is just forgetting the change.
+        final boolean fresh;
+
+        Change(StoredTransactionOutput output, boolean spent, boolean fresh) {
+            this.output = output;
+            this.spent = spent;
+            this.fresh = fresh;
+        }
+    }
+
+    // A block that hasn't been written back yet, with its undo data if it has any.
+    private static class PendingBlock {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoBlock;
+
+        PendingBlock(StoredBlock block, @Nullable StoredUndoableBlock undoBlock) {
+            this.block = block;
+            this.undoBlock = undoBlock;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxPendingBytes;
+    private final long flushIntervalMillis;
+    // Outputs as the underlying store has them, least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput> cache;
+    private final Map<StoredTransactionOutPoint, Change> changes = new HashMap<StoredTransactionOutPoint, Change>();
+    private final LinkedHashMap<Sha256Hash, PendingBlock> pendingBlocks = new LinkedHashMap<Sha256Hash, PendingBlock>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private boolean headsChanged;
+    private long pendingBytes;
+    private long lastFlushTime;
+
+    // While a batch is open, what everything it touched was before it, so that it can be rolled back.
+    @Nullable private Map<StoredTransactionOutPoint, Optional<Change>> batchChanges;
+    @Nullable private Map<Sha256Hash, Optional<PendingBlock>> batchBlocks;
+    private StoredBlock batchChainHead;
+    private StoredBlock batchVerifiedChainHead;
+    private boolean batchHeadsChanged;
+
+    /**
+     * Puts a cache with the default settings in front of the given store.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_CACHE_SIZE, DEFAULT_MAX_PENDING_BYTES, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Puts a cache in front of the given store.
+     *
+     * @param store The store to write back to.
+     * @param cacheSize How many unspent outputs to keep in memory besides the ones changed since the last write back.
+     * @param maxPendingBytes Roughly how much memory changes may take before they are written back.
+     * @param flushIntervalMillis The longest time changes are held back while blocks are being connected.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, final int cacheSize, long maxPendingBytes,
+                                       long flushIntervalMillis) throws BlockStoreException {
+        this.store = store;
+        this.maxPendingBytes = maxPendingBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.cache = new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.chainHead = store.getChainHead();
+        this.verifiedChainHead = store.getVerifiedChainHead();
+        this.lastFlushTime = Utils.currentTimeMillis();
+    }
+
+    private static long size(StoredTransactionOutput output) {
+        return OUTPUT_OVERHEAD + output.getScriptBytes().length;
+    }
+
+    private static long size(PendingBlock pending) {
+        long size = BLOCK_OVERHEAD;
+        StoredUndoableBlock undoBlock = pending.undoBlock;
+        if (undoBlock == null)
+            return size;
+        if (undoBlock.getTxOutChanges() != null) {
+            for (StoredTransactionOutput output : undoBlock.getTxOutChanges().txOutsCreated)
+                size += size(output);
+            for (StoredTransactionOutput output : undoBlock.getTxOutChanges().txOutsSpent)
+                size += size(output);
+        } else {
+            for (Transaction tx : undoBlock.getTransactions())
+                size += tx.getMessageSize();
+        }
+        return size;
+    }
+
+    private void setChange(StoredTransactionOutPoint key, @Nullable Change change) {
+        Change previous = change == null ? changes.remove(key) : changes.put(key, change);
+        if (batchChanges != null && !batchChanges.containsKey(key))
+            batchChanges.put(key, Optional.fromNullable(previous));
+        if (previous != null)
+            pendingBytes -= size(previous.output);
+        if (change != null)
+            pendingBytes += size(change.output);
+    }
+
+    private void setPendingBlock(Sha256Hash hash, @Nullable PendingBlock pending) {
+        PendingBlock previous = pending == null ? pendingBlocks.remove(hash) : pendingBlocks.put(hash, pending);
+        if (batchBlocks != null && !batchBlocks.containsKey(hash))
+            batchBlocks.put(hash, Optional.fromNullable(previous));
+        if (previous != null)
+            pendingBytes -= size(previous);
+        if (pending != null)
+            pendingBytes += size(pending);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        PendingBlock pending = pendingBlocks.get(hash);
+        setPendingBlock(hash, new PendingBlock(block, pending == null ? null : pending.undoBlock));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        setPendingBlock(storedBlock.getHeader().getHash(), new PendingBlock(storedBlock, undoableBlock));
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        PendingBlock pending = pendingBlocks.get(hash);
+        return pending != null ? pending.block : store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        PendingBlock pending = pendingBlocks.get(hash);
+        if (pending != null && pending.undoBlock != null)
+            return pending.block;
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        PendingBlock pending = pendingBlocks.get(hash);
+        if (pending != null && pending.undoBlock != null)
+            return pending.undoBlock;
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        headsChanged = true;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.verifiedChainHead = chainHead;
+        headsChanged = true;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index)
+            throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Change change = changes.get(key);
+        if (change != null)
+            return change.spent ? null : change.output;
+        StoredTransactionOutput output = cache.get(key);
+        if (output == null) {
+            output = store.getTransactionOutput(hash, index);
+            if (output != null)
+                cache.put(key, output);
+        }
+        return output;
+    }
+
+    /**
+     * Answers what it can from the pending changes and the cache, and looks up the rest in the underlying store, in one
+     * go if that is a {@link BulkOutputLookupStore} too.
+     */
+    @Override
+    public synchronized List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        StoredTransactionOutput[] found = new StoredTransactionOutput[outPoints.size()];
+        List<Integer> missPositions = new ArrayList<Integer>();
+        List<TransactionOutPoint> misses = new ArrayList<TransactionOutPoint>();
+        for (int i = 0; i < outPoints.size(); i++) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoints.get(i).getHash(),
+                    outPoints.get(i).getIndex());
+            Change change = changes.get(key);
+            if (change != null) {
+                found[i] = change.spent ? null : change.output;
+            } else {
+                found[i] = cache.get(key);
+                if (found[i] == null) {
+                    missPositions.add(i);
+                    misses.add(outPoints.get(i));
+                }
+            }
+        }
+        if (misses.isEmpty())
+            return Arrays.asList(found);
+        List<StoredTransactionOutput> loaded;
+        if (store instanceof BulkOutputLookupStore) {
+            loaded = ((BulkOutputLookupStore) store).getTransactionOutputs(misses);
+        } else {
+            loaded = new ArrayList<StoredTransactionOutput>(misses.size());
+            for (TransactionOutPoint outPoint : misses)
+                loaded.add(store.getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        }
+        for (int i = 0; i < misses.size(); i++) {
+            StoredTransactionOutput output = loaded.get(i);
+            found[missPositions.get(i)] = output;
+            if (output != null)
+                cache.put(new StoredTransactionOutPoint(output), output);
+        }
+        return Arrays.asList(found);
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Change previous = changes.get(key);
+        if (previous != null && previous.spent) {
+            // Spent since the last write back and now unspent again, as when a block is disconnected. The underlying
+            // store still has it.
+            setChange(key, null);
+            cache.put(key, out);
+            return;
+        }
+        // Anything else is taken to be new to the underlying store, as the chain doesn't add outputs that exist.
+        setChange(key, new Change(out, false, previous == null || previous.fresh));
+        cache.remove(key);
+        maybeFlushOutsideBatch();
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutput existing = getTransactionOutput(out.getHash(), out.getIndex());
+        if (existing == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Change previous = changes.get(key);
+        if (previous != null && previous.fresh)
+            setChange(key, null);  // Created and spent without ever reaching the underlying store.
+        else
+            setChange(key, new Change(existing, true, false));
+        cache.remove(key);
+        maybeFlushOutsideBatch();
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean anySpent = false;
+        for (int i = 0; i < numOutputs; i++) {
+            Change change = changes.get(new StoredTransactionOutPoint(hash, i));
+            if (change != null) {
+                if (!change.spent)
+                    return true;
+                anySpent = true;
+            }
+        }
+        if (!anySpent)
+            return store.hasUnspentOutputs(hash, numOutputs);
+        // The underlying store may only have outputs that are spent here, so ask about the others one by one.
+        for (int i = 0; i < numOutputs; i++) {
+            if (!changes.containsKey(new StoredTransactionOutPoint(hash, i)) && getTransactionOutput(hash, i) != null)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batchChanges != null)
+            return;
+        batchChanges = new HashMap<StoredTransactionOutPoint, Optional<Change>>();
+        batchBlocks = new HashMap<Sha256Hash, Optional<PendingBlock>>();
+        batchChainHead = chainHead;
+        batchVerifiedChainHead = verifiedChainHead;
+        batchHeadsChanged = headsChanged;
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        batchChanges = null;
+        batchBlocks = null;
+        if (pendingBytes > maxPendingBytes || Utils.currentTimeMillis() - lastFlushTime > flushIntervalMillis)
+            flush();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (batchChanges == null)
+            return;
+        Map<StoredTransactionOutPoint, Optional<Change>> rollbackChanges = batchChanges;
+        Map<Sha256Hash, Optional<PendingBlock>> rollbackBlocks = batchBlocks;
+        batchChanges = null;
+        batchBlocks = null;
+        for (Map.Entry<StoredTransactionOutPoint, Optional<Change>> entry : rollbackChanges.entrySet())
+            setChange(entry.getKey(), entry.getValue().orNull());
+        for (Map.Entry<Sha256Hash, Optional<PendingBlock>> entry : rollbackBlocks.entrySet())
+            setPendingBlock(entry.getKey(), entry.getValue().orNull());
+        chainHead = batchChainHead;
+        verifiedChainHead = batchVerifiedChainHead;
+        headsChanged = batchHeadsChanged;
+    }
+
+    private void maybeFlushOutsideBatch() throws BlockStoreException {
+        if (batchChanges == null && pendingBytes > maxPendingBytes)
+            flush();
+    }
+
+    /**
+     * Writes all changes back to the underlying store in one batch. Can't be called while a batch is open, as that
+     * would write half a block.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(batchChanges == null, "Cannot flush in the middle of a batch");
+        lastFlushTime = Utils.currentTimeMillis();
+        if (changes.isEmpty() && pendingBlocks.isEmpty() && !headsChanged)
+            return;
+        long start = System.nanoTime();
+        store.beginDatabaseBatchWrite();
+        try {
+            for (PendingBlock pending : pendingBlocks.values()) {
+                if (pending.undoBlock != null)
+                    store.put(pending.block, pending.undoBlock);
+                else
+                    store.put(pending.block);
+            }
+            for (Change change : changes.values()) {
+                if (change.spent)
+                    store.removeUnspentTransactionOutput(change.output);
+                else
+                    store.addUnspentTransactionOutput(change.output);
+            }
+            if (headsChanged) {
+                store.setVerifiedChainHead(verifiedChainHead);
+                store.setChainHead(chainHead);
+            }
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        } catch (RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        log.info("Wrote back {} output changes and {} blocks up to height {} in {} ms", changes.size(),
+                pendingBlocks.size(), verifiedChainHead.getHeight(), (System.nanoTime() - start) / 1000000);
+        for (Map.Entry<StoredTransactionOutPoint, Change> entry : changes.entrySet()) {
+            if (entry.getValue().spent)
+                cache.remove(entry.getKey());
+            else
+                cache.put(entry.getKey(), entry.getValue().output);
+        }
+        changes.clear();
+        pendingBlocks.clear();
+        headsChanged = false;
+        pendingBytes = 0;
+    }
+
+    /** Writes back all changes and closes the underlying store. */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (batchChanges != null)
+            abortDatabaseBatchWrite();
+        flush();
+        store.close();
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.Utils;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Prunes old undo data from a {@link PrunableBlockStore} and compacts it, on a thread of its own. While the service
+ * runs the store leaves pruning to it, so connecting a block doesn't wait for the delete of the undo data that fell
+ * out of the full store depth. Every prune interval the service removes all of that in batches. If given a compaction
+ * interval it also has the store give back the space that often, see {@link PrunableBlockStore#compact()} for what
+ * that costs. Compaction is off unless asked for, because some stores, like {@link H2FullPrunedBlockStore}, can't be
+ * used by anything else while they compact. When the service stops, the store goes back to pruning by itself.</p>
+ *
+ * <p>To use it with a {@link CachingFullPrunedBlockStore}, give it the store underneath.</p>
+ *
+ * <p>The metrics count the blocks pruned, the space compaction gave back, and how long the store was kept busy. The
+ * pause times are what each batch of pruning and each compaction took, which is how long they may have held up the
+ * thread connecting blocks.</p>
+ */
+public class FullPrunedStoreMaintenance extends AbstractScheduledService {
+    private static final Logger log = LoggerFactory.getLogger(FullPrunedStoreMaintenance.class);
+
+    public static final long DEFAULT_PRUNE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    public static final int DEFAULT_BLOCKS_PER_BATCH = 500;
+    /** Never compact. */
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = 0;
+
+    private final PrunableBlockStore store;
+    private final long pruneIntervalMillis;
+    private final int blocksPerBatch;
+    private final long compactionIntervalMillis;
+    // Only used on the service thread.
+    private long lastCompactionTime;
+
+    private volatile long blocksPruned;
+    private volatile int compactions;
+    private volatile long bytesReclaimed;
+    private volatile long lastPauseMillis;
+    private volatile long longestPauseMillis;
+    private volatile long totalPauseMillis;
+
+    /** Creates a service that prunes every 30 seconds and never compacts. */
+    public FullPrunedStoreMaintenance(PrunableBlockStore store) {
+        this(store, DEFAULT_PRUNE_INTERVAL_MILLIS, DEFAULT_BLOCKS_PER_BATCH, DEFAULT_COMPACTION_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param store The store to look after.
+     * @param pruneIntervalMillis How long to wait between rounds of pruning.
+     * @param blocksPerBatch The most blocks to remove the undo data of in one go. Larger batches are quicker in total
+     *                       but keep the store busy for longer at a time.
+     * @param compactionIntervalMillis How long to wait between compactions, or 0 to never compact.
+     */
+    public FullPrunedStoreMaintenance(PrunableBlockStore store, long pruneIntervalMillis, int blocksPerBatch,
+                                      long compactionIntervalMillis) {
+        checkArgument(pruneIntervalMillis > 0);
+        checkArgument(blocksPerBatch > 0);
+        checkArgument(compactionIntervalMillis >= 0);
+        this.store = store;
+        this.pruneIntervalMillis = pruneIntervalMillis;
+        this.blocksPerBatch = blocksPerBatch;
+        this.compactionIntervalMillis = compactionIntervalMillis;
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        store.setDeferredPruning(true);
+        lastCompactionTime = Utils.currentTimeMillis();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        store.setDeferredPruning(false);
+    }
+
+    @Override
+    protected void runOneIteration() throws Exception {
+        try {
+            prune();
+            long now = Utils.currentTimeMillis();
+            if (compactionIntervalMillis > 0 && now - lastCompactionTime >= compactionIntervalMillis) {
+                lastCompactionTime = now;
+                compact();
+            }
+        } catch (BlockStoreException e) {
+            // An exception would stop the service for good, try again next time instead.
+            log.error("Block store maintenance failed", e);
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(pruneIntervalMillis, pruneIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected String serviceName() {
+        return "Block store maintenance";
+    }
+
+    /**
+     * Removes all the undo data that is older than the full store depth, in batches, and returns the number of blocks
+     * it was removed for. Normally called by the service, but can be called on its own.
+     */
+    public synchronized int prune() throws BlockStoreException {
+        int total = 0;
+        int removed;
+        do {
+            long start = Utils.currentTimeMillis();
+            removed = store.pruneUndoableBlocks(blocksPerBatch);
+            recordPause(start);
+            total += removed;
+        } while (removed == blocksPerBatch);
+        blocksPruned += total;
+        if (total > 0)
+            log.info("Pruned the undo data of {} blocks", total);
+        return total;
+    }
+
+    /**
+     * Compacts the store and returns the number of bytes that gave back, which is never less than zero. Normally called
+     * by the service, but can be called on its own.
+     */
+    public synchronized long compact() throws BlockStoreException {
+        long before = store.getDiskSize();
+        long start = Utils.currentTimeMillis();
+        store.compact();
+        long millis = recordPause(start);
+        long reclaimed = Math.max(0, before - store.getDiskSize());
+        compactions++;
+        bytesReclaimed += reclaimed;
+        log.info("Compacted the block store in {} ms, {} bytes given back", millis, reclaimed);
+        return reclaimed;
+    }
+
+    private long recordPause(long startMillis) {
+        long millis = Utils.currentTimeMillis() - startMillis;
+        lastPauseMillis = millis;
+        longestPauseMillis = Math.max(longestPauseMillis, millis);
+        totalPauseMillis += millis;
+        return millis;
+    }
+
+    /** Returns the number of blocks whose undo data has been pruned. */
+    public long getBlocksPruned() {
+        return blocksPruned;
+    }
+
+    /** Returns the number of compactions run. */
+    public int getCompactions() {
+        return compactions;
+    }
+
+    /** Returns the total number of bytes compactions gave back. */
+    public long getBytesReclaimed() {
+        return bytesReclaimed;
+    }
+
+    /** Returns how long the last batch of pruning or compaction took. */
+    public long getLastPauseMillis() {
+        return lastPauseMillis;
+    }
+
+    /** Returns how long the longest batch of pruning or compaction took. */
+    public long getLongestPauseMillis() {
+        return longestPauseMillis;
+    }
+
+    /** Returns how long all batches of pruning and compactions took together. */
+    public long getTotalPauseMillis() {
+        return totalPauseMillis;
+    }
+}
@@ -24,11 +24,20 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkState;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -37,20 +46,33 @@ import java.util.List;
  * Note that because of the heavy delete load on the database, during IBD,
  * you may see the database files grow quite large (around 1.5G).
  * H2 automatically frees some space at shutdown, so close()ing the database
- * decreases the space usage somewhat (to only around 1.3G).
+ * decreases the space usage somewhat (to only around 1.3G). {@link #compact()}
+ * gives back all of it, see there for what that costs.
  */
-public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
+public class H2FullPrunedBlockStore implements BulkOutputLookupStore, HeightIndexedBlockStore, PrunableBlockStore {
     private static final Logger log = LoggerFactory.getLogger(H2FullPrunedBlockStore.class);
 
     private Sha256Hash chainHeadHash;
     private StoredBlock chainHeadBlock;
     private Sha256Hash verifiedChainHeadHash;
     private StoredBlock verifiedChainHeadBlock;
+    // The head of the chain the mainChain table currently holds, or null if that isn't known.
+    private Sha256Hash mainChainHeadHash;
     private NetworkParameters params;
-    private ThreadLocal<Connection> conn;
+    // Both replaced by compact(), which closes all connections.
+    private volatile ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    private volatile ThreadLocal<PreparedStatementCache> statements;
+    // The output changes of the batch write in progress on this thread, null outside of one.
+    private ThreadLocal<OutputChangeBatch> pendingOutputs;
     private String connectionURL;
+    private String dbName;
     private int fullStoreDepth;
+    private volatile boolean deferredPruning;
+    // Held for reading by each batch write and for writing by compact(), which must not close a connection in use.
+    private final ReentrantReadWriteLock compactionLock = new ReentrantReadWriteLock();
+    // Whether the outputs are in the compactOutputs table rather than openOutputs.
+    private boolean compactOutputs;
 
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
@@ -77,6 +99,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
     
+    static final String CREATE_MAIN_CHAIN_TABLE = "CREATE TABLE mainChain ( "
+        + "height INT NOT NULL CONSTRAINT mainChain_pk PRIMARY KEY,"
+        + "hash BINARY(28) NOT NULL"
+        + ")";
+
     static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
         + "hash BINARY(32) NOT NULL,"
         + "index INT NOT NULL,"
@@ -86,6 +113,40 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         + "PRIMARY KEY (hash, index),"
         + ")";
 
+    // Stores since version 04 keep the outputs in the encoding of CompactOutputCodec, in a table of their own so that
+    // migrating an older store can switch over in one transaction.
+    static final String CREATE_COMPACT_OUTPUT_TABLE = "CREATE TABLE compactOutputs ("
+        + "hash BINARY(32) NOT NULL,"
+        + "index INT NOT NULL,"
+        + "output VARBINARY NOT NULL,"
+        + "PRIMARY KEY (hash, index),"
+        + ")";
+
+    static final String INSERT_OUTPUT_SQL = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes) "
+        + "VALUES (?, ?, ?, ?, ?)";
+    static final String SELECT_OUTPUT_SQL = "SELECT height, value, scriptBytes FROM openOutputs "
+        + "WHERE hash = ? AND index = ?";
+    static final String DELETE_OUTPUT_SQL = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_OUTPUTS_SQL = "SELECT COUNT(*) FROM openOutputs WHERE hash = ?";
+    static final String INSERT_COMPACT_OUTPUT_SQL = "INSERT INTO compactOutputs (hash, index, output) VALUES (?, ?, ?)";
+    static final String SELECT_COMPACT_OUTPUT_SQL = "SELECT output FROM compactOutputs WHERE hash = ? AND index = ?";
+    static final String DELETE_COMPACT_OUTPUT_SQL = "DELETE FROM compactOutputs WHERE hash = ? AND index = ?";
+    static final String COUNT_COMPACT_OUTPUTS_SQL = "SELECT COUNT(*) FROM compactOutputs WHERE hash = ?";
+
+    // The number of transactions getTransactionOutputs(List) looks up the outputs of per query. The last query of a
+    // lookup repeats its last hash to make up the number, so there is only the one statement to prepare.
+    private static final int BULK_LOOKUP_HASHES = 100;
+    static final String SELECT_OUTPUTS_OF_SQL = "SELECT hash, index, height, value, scriptBytes FROM openOutputs "
+        + "WHERE hash IN (" + placeholders(BULK_LOOKUP_HASHES) + ")";
+    static final String SELECT_COMPACT_OUTPUTS_OF_SQL = "SELECT hash, index, output FROM compactOutputs "
+        + "WHERE hash IN (" + placeholders(BULK_LOOKUP_HASHES) + ")";
+
+    // The version of stores that keep the outputs in the compactOutputs table.
+    static final int COMPACT_OUTPUTS_VERSION = 4;
+
+    // Output changes of a batch write are sent to the database early once there are this many of them.
+    private static final int MAX_PENDING_OUTPUTS = 10000;
+
     /**
      * Creates a new H2FullPrunedBlockStore
      * @param params A copy of the NetworkParameters used
@@ -95,6 +156,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
      */
     public H2FullPrunedBlockStore(NetworkParameters params, String dbName, int fullStoreDepth) throws BlockStoreException {
         this.params = params;
+        this.dbName = dbName;
         this.fullStoreDepth = fullStoreDepth;
         // We choose a very lax timeout to avoid the database throwing exceptions on complex operations, as time is not
         // a particularly precious resource when just keeping up with the chain.
@@ -102,6 +164,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<PreparedStatementCache>();
+        pendingOutputs = new ThreadLocal<OutputChangeBatch>();
 
         try {
             Class.forName(driver);
@@ -177,7 +241,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.executeUpdate("DROP TABLE settings");
             s.executeUpdate("DROP TABLE headers");
             s.executeUpdate("DROP TABLE undoableBlocks");
-            s.executeUpdate("DROP TABLE openOutputs");
+            s.executeUpdate("DROP TABLE IF EXISTS openOutputs");
+            s.executeUpdate("DROP TABLE IF EXISTS compactOutputs");
+            s.executeUpdate("DROP TABLE mainChain");
             s.close();
             createTables();
             initFromDatabase();
@@ -200,13 +266,17 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         log.debug("H2FullPrunedBlockStore : CREATE undoable block index");
         s.executeUpdate(CREATE_UNDOABLE_TABLE_INDEX);
         
-        log.debug("H2FullPrunedBlockStore : CREATE open output table");
-        s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
+        log.debug("H2FullPrunedBlockStore : CREATE compact output table");
+        s.executeUpdate(CREATE_COMPACT_OUTPUT_TABLE);
+
+        log.debug("H2FullPrunedBlockStore : CREATE main chain table");
+        s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '0" + COMPACT_OUTPUTS_VERSION + "')");
         s.close();
+        compactOutputs = true;
         createNewStore(params);
     }
 
@@ -216,6 +286,15 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         while (rs.next())
             if (rs.getString(1).equalsIgnoreCase("openOutputsIndex"))
                 throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
+
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        byte[] version = rs.next() ? rs.getBytes(1) : null;
+        rs.close();
+        compactOutputs = version != null && version.length > 0 && version[0] >= COMPACT_OUTPUTS_VERSION;
+        if (compactOutputs && tableExists("openOutputs")) {
+            // Left behind by a migration that stopped after switching over to the compact table.
+            s.executeUpdate("DROP TABLE openOutputs");
+        }
         
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
@@ -243,6 +322,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         {
             throw new BlockStoreException("corrupt H2 block store - verified head block not found");
         }
+
+        if (!tableExists("mainChain")) {
+            // Created by an older version, index the chain that is already there.
+            log.info("Indexing the main chain by height, this may take a while");
+            s = conn.get().createStatement();
+            s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
+            s.close();
+            indexMainChain(verifiedChainHeadBlock);
+        }
+        mainChainHeadHash = verifiedChainHeadHash;
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -326,15 +415,25 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         totalSize += size; size = 0; count = 0;
         long scriptSize = 0;
-        rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
-        while (rs.next()) {
-            size += 32; // hash
-            size += 4; // index
-            size += 4; // height
-            size += rs.getBytes(1).length;
-            size += rs.getBytes(2).length;
-            scriptSize += rs.getBytes(2).length;
-            count++;
+        if (compactOutputs) {
+            rs = s.executeQuery("SELECT output FROM compactOutputs");
+            while (rs.next()) {
+                size += 32; // hash
+                size += 4; // index
+                size += rs.getBytes(1).length;
+                count++;
+            }
+        } else {
+            rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
+            while (rs.next()) {
+                size += 32; // hash
+                size += 4; // index
+                size += 4; // height
+                size += rs.getBytes(1).length;
+                size += rs.getBytes(2).length;
+                scriptSize += rs.getBytes(2).length;
+                count++;
+            }
         }
         rs.close();
         System.out.printf("Open Outputs size: %d, count: %d, average size: %f, average script size: %f (%d in id indexes)%n",
@@ -347,10 +446,97 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
     
     
+    /**
+     * <p>Whether the unspent outputs are kept in the compact encoding of {@link CompactOutputCodec}. Stores created by
+     * older versions keep them in full until {@link #migrateToCompactOutputs()} is run.</p>
+     */
+    public boolean hasCompactOutputs() {
+        return compactOutputs;
+    }
+
+    /**
+     * <p>Converts a store created by an older version, which keeps every unspent output in full, to the compact
+     * encoding of {@link CompactOutputCodec}, which takes less space. Does nothing if the store already is
+     * compact. For a store with the whole chain this takes a while, so it is not done when opening the store but left
+     * to be run explicitly, for example with the MigrateFullPrunedStore tool, while nothing else uses the store.</p>
+     *
+     * <p>The outputs are copied to a new table and the store switches over to it in one transaction, so an interrupted
+     * migration leaves the store as it was and can simply be run again. Undo data is not converted: new undo data is
+     * written compactly already and the old rows are pruned as the chain moves on.</p>
+     */
+    public synchronized void migrateToCompactOutputs() throws BlockStoreException {
+        maybeConnect();
+        if (compactOutputs)
+            return;
+        checkState(pendingOutputs.get() == null, "Can't migrate during a batch write");
+        Connection connection = conn.get();
+        try {
+            Statement s = connection.createStatement();
+            if (tableExists("compactOutputs")) {
+                // Left behind by an earlier attempt.
+                s.executeUpdate("DROP TABLE compactOutputs");
+            }
+            s.executeUpdate(CREATE_COMPACT_OUTPUT_TABLE);
+            connection.setAutoCommit(false);
+            long migrated = 0;
+            ResultSet rs = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+            PreparedStatement insert = connection.prepareStatement(INSERT_COMPACT_OUTPUT_SQL);
+            while (rs.next()) {
+                Sha256Hash hash = new Sha256Hash(rs.getBytes(1));
+                long index = rs.getInt(2) & 0xFFFFFFFFL;
+                Coin value = Coin.valueOf(new BigInteger(rs.getBytes(4)).longValue());
+                // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+                StoredTransactionOutput out = new StoredTransactionOutput(hash, index, value, rs.getInt(3), true,
+                        rs.getBytes(5));
+                insert.setBytes(1, hash.getBytes());
+                insert.setInt(2, (int) index);
+                insert.setBytes(3, CompactOutputCodec.encode(out));
+                insert.addBatch();
+                if (++migrated % 10000 == 0) {
+                    insert.executeBatch();
+                    log.info("Migrated {} unspent outputs", migrated);
+                }
+            }
+            insert.executeBatch();
+            insert.close();
+            rs.close();
+            PreparedStatement version = connection.prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            version.setBytes(1, new byte[] {COMPACT_OUTPUTS_VERSION});
+            version.setString(2, VERSION_SETTING);
+            version.executeUpdate();
+            version.close();
+            connection.commit();
+            connection.setAutoCommit(true);
+            compactOutputs = true;
+            log.info("Migrated {} unspent outputs to the compact encoding", migrated);
+            s.executeUpdate("DROP TABLE openOutputs");
+            s.close();
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException e2) {
+                log.error("Could not roll back the migration", e2);
+            }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Returns the prepared statement for the given SQL on this thread's connection. It is kept for reuse, so callers
+    // must not close it.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatementCache cache = statements.get();
+        if (cache == null || cache.getConnection() != conn.get()) {
+            cache = new PreparedStatementCache(conn.get());
+            statements.set(cache);
+        }
+        return cache.get(sql);
+    }
+    
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
@@ -361,21 +547,19 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if (e.getErrorCode() != 23505 || !wasUndoable)
                 throw e;
             
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = prepare("UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -401,7 +585,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
@@ -421,7 +605,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             try {
                 PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                        prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
                                 + " VALUES(?, ?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
@@ -433,7 +617,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -445,7 +628,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
                 PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+                        prepare("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
                                 + " WHERE hash = ?");
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
@@ -456,7 +639,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
@@ -471,9 +653,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -499,14 +680,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
         }
     }
     
@@ -526,10 +699,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -575,11 +746,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -595,17 +761,122 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
     
+    // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
+    private static byte[] truncatedHash(Sha256Hash hash) {
+        byte[] hashBytes = new byte[28];
+        System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
+        return hashBytes;
+    }
+
+    /**
+     * Brings the mainChain table in line with a new verified chain head. A head on top of the previous one is a single
+     * insert, after a re-org the rows are replaced back to the fork point.
+     */
+    private void indexMainChain(StoredBlock head) throws SQLException, BlockStoreException {
+        Sha256Hash headHash = head.getHeader().getHash();
+        if (headHash.equals(mainChainHeadHash))
+            return;
+        boolean extendsIndexed = head.getHeader().getPrevBlockHash().equals(mainChainHeadHash);
+        mainChainHeadHash = null;
+        PreparedStatement s;
+        if (!extendsIndexed) {
+            // Heights above the new head belong to a chain that was left behind.
+            s = prepare("DELETE FROM mainChain WHERE height > ?");
+            s.setInt(1, head.getHeight());
+            s.executeUpdate();
+        }
+        StoredBlock cursor = head;
+        while (true) {
+            byte[] hashBytes = truncatedHash(cursor.getHeader().getHash());
+            byte[] indexed = null;
+            if (!extendsIndexed) {
+                s = prepare("SELECT hash FROM mainChain WHERE height = ?");
+                s.setInt(1, cursor.getHeight());
+                ResultSet results = s.executeQuery();
+                if (results.next())
+                    indexed = results.getBytes(1);
+                if (Arrays.equals(indexed, hashBytes))
+                    break;
+            }
+            if (indexed != null) {
+                s = prepare("UPDATE mainChain SET hash = ? WHERE height = ?");
+            } else {
+                s = prepare("INSERT INTO mainChain(hash, height) VALUES(?, ?)");
+            }
+            s.setBytes(1, hashBytes);
+            s.setInt(2, cursor.getHeight());
+            s.executeUpdate();
+            if (extendsIndexed || cursor.getHeight() == 0)
+                break;
+            StoredBlock prev = get(cursor.getHeader().getPrevBlockHash());
+            if (prev == null) {
+                // Whatever is indexed below the gap can't be known to lead to the new head.
+                s = prepare("DELETE FROM mainChain WHERE height < ?");
+                s.setInt(1, cursor.getHeight());
+                s.executeUpdate();
+                break;
+            }
+            cursor = prev;
+        }
+        mainChainHeadHash = headHash;
+    }
+
+    // Loads the main chain blocks from fromHeight to toHeight, in order of height.
+    private List<StoredBlock> getMainChain(int fromHeight, int toHeight) throws BlockStoreException {
+        maybeConnect();
+        try {
+            PreparedStatement s = prepare("SELECT h.chainWork, h.height, h.header FROM mainChain m"
+                    + " JOIN headers h ON h.hash = m.hash WHERE m.height BETWEEN ? AND ? ORDER BY m.height");
+            s.setInt(1, fromHeight);
+            s.setInt(2, toHeight);
+            ResultSet results = s.executeQuery();
+            List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+            while (results.next()) {
+                BigInteger chainWork = new BigInteger(results.getBytes(1));
+                int height = results.getInt(2);
+                Block b = new Block(params, results.getBytes(3));
+                b.verifyHeader();
+                blocks.add(new StoredBlock(b, chainWork, height));
+            }
+            return blocks;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            // Should not be able to happen unless the database contains bad
+            // blocks.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        List<StoredBlock> blocks = getMainChain(height, height);
+        return blocks.isEmpty() ? null : blocks.get(0);
+    }
+
+    @Override
+    public Iterator<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException {
+        return new MainChainIterator(this, fromHeight, toHeight) {
+            @Override
+            protected List<StoredBlock> load(int fromHeight, int toHeight) throws BlockStoreException {
+                return getMainChain(fromHeight, toHeight);
+            }
+        };
+    }
+
     @Override
     public StoredBlock getVerifiedChainHead() throws BlockStoreException {
         return verifiedChainHeadBlock;
@@ -618,41 +889,91 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
+            indexMainChain(chainHead);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        if (!deferredPruning)
+            removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
     }
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE height <= ?");
             s.setInt(1, height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    @Override
+    public void setDeferredPruning(boolean deferred) {
+        this.deferredPruning = deferred;
+    }
+
+    @Override
+    public int pruneUndoableBlocks(int maxBlocks) throws BlockStoreException {
+        maybeConnect();
+        try {
+            PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE height <= ? LIMIT ?");
+            s.setInt(1, verifiedChainHeadBlock.getHeight() - fullStoreDepth);
+            s.setInt(2, maxBlocks);
+            return s.executeUpdate();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    /**
+     * Rewrites the database file without its free pages, with H2's SHUTDOWN COMPACT. That closes the database, so
+     * this waits for batch writes in progress to finish and holds up new ones until the store has connected again.
+     * Anything else using the store from another thread meanwhile may fail, so only call this when nothing else is
+     * reading from the store, like the block chain or a wallet. For the same reason {@link FullPrunedStoreMaintenance}
+     * only calls it when given a compaction interval. Takes in the order of a second per 100MB.
+     */
+    @Override
+    public void compact() throws BlockStoreException {
+        checkState(pendingOutputs.get() == null, "Cannot compact in the middle of a batch");
+        compactionLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                maybeConnect();
+                Statement s = conn.get().createStatement();
+                s.execute("SHUTDOWN COMPACT");
+                // Every connection is closed now, make all threads connect again.
+                allConnections.clear();
+                conn = new ThreadLocal<Connection>();
+                statements = new ThreadLocal<PreparedStatementCache>();
+                maybeConnect();
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long getDiskSize() {
+        return new File(dbName + ".h2.db").length();
+    }
+
     @Override
     @Nullable
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null && pending.contains(hash, index))
+            return pending.get(hash, index);
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                        "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(compactOutputs ? SELECT_COMPACT_OUTPUT_SQL : SELECT_OUTPUT_SQL);
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
@@ -660,59 +981,156 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             if (!results.next()) {
                 return null;
             }
-            // Parse it.
-            int height = results.getInt(1);
-            Coin value = Coin.valueOf(new BigInteger(results.getBytes(2)).longValue());
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            return readOutput(hash, index, results, 1);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
+    /**
+     * Looks up the outputs of up to a hundred transactions per query, taking all their unspent outputs and picking
+     * the asked for ones out of them.
+     */
+    @Override
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        StoredTransactionOutput[] found = new StoredTransactionOutput[outPoints.size()];
+        // The positions of the out points left for the database, by transaction.
+        Map<Sha256Hash, List<Integer>> wanted = new LinkedHashMap<Sha256Hash, List<Integer>>();
+        OutputChangeBatch pending = pendingOutputs.get();
+        for (int i = 0; i < outPoints.size(); i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            if (pending != null && pending.contains(outPoint.getHash(), outPoint.getIndex())) {
+                found[i] = pending.get(outPoint.getHash(), outPoint.getIndex());
+                continue;
+            }
+            List<Integer> positions = wanted.get(outPoint.getHash());
+            if (positions == null) {
+                positions = new ArrayList<Integer>(1);
+                wanted.put(outPoint.getHash(), positions);
+            }
+            positions.add(i);
+        }
+        if (wanted.isEmpty())
+            return Arrays.asList(found);
+        maybeConnect();
+        try {
+            PreparedStatement s = prepare(compactOutputs ? SELECT_COMPACT_OUTPUTS_OF_SQL : SELECT_OUTPUTS_OF_SQL);
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(wanted.keySet());
+            for (int from = 0; from < hashes.size(); from += BULK_LOOKUP_HASHES) {
+                for (int i = 0; i < BULK_LOOKUP_HASHES; i++)
+                    s.setBytes(i + 1, hashes.get(Math.min(from + i, hashes.size() - 1)).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    for (int position : wanted.get(hash)) {
+                        if (outPoints.get(position).getIndex() == index)
+                            found[position] = readOutput(hash, index, results, 3);
+                    }
+                }
+                results.close();
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+        return Arrays.asList(found);
+    }
+
+    // Parses an output from the columns of the result starting at the given one, which are the encoded output for a
+    // compact store and the height, value and script otherwise.
+    private StoredTransactionOutput readOutput(Sha256Hash hash, long index, ResultSet results, int column)
+            throws SQLException, BlockStoreException {
+        if (compactOutputs) {
+            try {
+                return CompactOutputCodec.decode(hash, index, results.getBytes(column));
+            } catch (IOException e) {
+                // Corrupted database.
+                throw new BlockStoreException(e);
+            }
+        }
+        int height = results.getInt(column);
+        Coin value = Coin.valueOf(new BigInteger(results.getBytes(column + 1)).longValue());
+        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+        return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(column + 2));
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder("?");
+        for (int i = 1; i < count; i++)
+            builder.append(", ?");
+        return builder.toString();
+    }
+
+    /**
+     * Adds an output. During a batch write it is only sent to the database at the commit, together with the rest of
+     * the batch's outputs.
+     */
     @Override
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            if (pending.size() >= MAX_PENDING_OUTPUTS)
+                writePendingOutputs();
+            return;
+        }
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-                    "VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
+            insertOutput(out);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void bindOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        if (compactOutputs) {
+            s.setBytes(3, CompactOutputCodec.encode(out));
+        } else {
             s.setInt(3, out.getHeight());
             s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
             s.setBytes(5, out.getScriptBytes());
+        }
+    }
+
+    // Inserts a single output, an output that is already there is left as it is.
+    private void insertOutput(StoredTransactionOutput out) throws SQLException {
+        try {
+            PreparedStatement s = prepare(compactOutputs ? INSERT_COMPACT_OUTPUT_SQL : INSERT_OUTPUT_SQL);
+            bindOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (e.getErrorCode() != 23505)
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
+                throw e;
         }
     }
 
+    /**
+     * Removes an output. During a batch write it is only deleted from the database at the commit, together with the
+     * rest of the batch's outputs, and if it turns out not to be there it is the commit that fails.
+     */
     @Override
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null) {
+            if (pending.contains(out.getHash(), out.getIndex()) && pending.get(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+            pending.remove(out);
+            if (pending.size() >= MAX_PENDING_OUTPUTS)
+                writePendingOutputs();
+            return;
+        }
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(compactOutputs ? DELETE_COMPACT_OUTPUT_SQL : DELETE_OUTPUT_SQL);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
             int updateCount = s.getUpdateCount();
-            s.close();
             if (updateCount == 0)
                 throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
         } catch (SQLException e) {
@@ -720,8 +1138,60 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Sends the output changes of the batch write in progress to the database, as one JDBC batch of inserts and one of
+    // deletes.
+    private void writePendingOutputs() throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending == null || pending.size() == 0)
+            return;
+        maybeConnect();
+        List<StoredTransactionOutput> inserts = pending.takeInserts();
+        List<StoredTransactionOutPoint> deletes = pending.takeDeletes();
+        try {
+            if (!inserts.isEmpty()) {
+                PreparedStatement s = prepare(compactOutputs ? INSERT_COMPACT_OUTPUT_SQL : INSERT_OUTPUT_SQL);
+                for (StoredTransactionOutput out : inserts) {
+                    bindOutput(s, out);
+                    s.addBatch();
+                }
+                try {
+                    s.executeBatch();
+                } catch (BatchUpdateException e) {
+                    // Outputs that are already there are fine, as they are for single inserts. Redo the failed ones
+                    // on their own to tell those apart from real errors.
+                    s.clearBatch();
+                    int[] counts = e.getUpdateCounts();
+                    for (int i = 0; i < inserts.size(); i++) {
+                        if (counts == null || i >= counts.length || counts[i] == Statement.EXECUTE_FAILED)
+                            insertOutput(inserts.get(i));
+                    }
+                }
+            }
+            if (!deletes.isEmpty()) {
+                PreparedStatement s = prepare(compactOutputs ? DELETE_COMPACT_OUTPUT_SQL : DELETE_OUTPUT_SQL);
+                for (StoredTransactionOutPoint outPoint : deletes) {
+                    s.setBytes(1, outPoint.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int)outPoint.getIndex());
+                    s.addBatch();
+                }
+                int[] counts = s.executeBatch();
+                for (int count : counts) {
+                    if (count == 0)
+                        throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+                }
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (pendingOutputs.get() == null) {
+            compactionLock.readLock().lock();
+            pendingOutputs.set(new OutputChangeBatch());
+        }
         maybeConnect();
         try {
             conn.get().setAutoCommit(false);
@@ -730,13 +1200,28 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Ends the batch write in progress on this thread, if there is one.
+    private void endBatch() {
+        if (pendingOutputs.get() != null) {
+            pendingOutputs.remove();
+            compactionLock.readLock().unlock();
+        }
+    }
+
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
+            writePendingOutputs();
             conn.get().commit();
             conn.get().setAutoCommit(true);
+            endBatch();
+        } catch (BlockStoreException e) {
+            // Nothing aborts a failed commit, so undo the whole batch here.
+            abortDatabaseBatchWrite();
+            throw e;
         } catch (SQLException e) {
+            abortDatabaseBatchWrite();
             throw new BlockStoreException(e);
         }
     }
@@ -744,21 +1229,37 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        // The rolled back changes may have included some to the mainChain table.
+        mainChainHeadHash = null;
         try {
             conn.get().rollback();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            endBatch();
         }
     }
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null) {
+            boolean pendingDelete = false;
+            for (int i = 0; i < numOutputs; i++) {
+                if (pending.contains(hash, i)) {
+                    if (pending.get(hash, i) != null)
+                        return true;
+                    pendingDelete = true;
+                }
+            }
+            // The database can only answer once it has seen the deletes.
+            if (pendingDelete)
+                writePendingOutputs();
+        }
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare(compactOutputs ? COUNT_COMPACT_OUTPUTS_SQL : COUNT_OUTPUTS_SQL);
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
             if (!results.next()) {
@@ -768,11 +1269,6 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 }
@@ -0,0 +1,46 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.StoredBlock;
+
+import javax.annotation.Nullable;
+import java.util.Iterator;
+
+/**
+ * <p>A {@link BlockStore} that can also find the blocks of the main chain by height, without walking back from the
+ * chain head one hash at a time. The main chain is the one ending at the chain head, or at the verified chain head for
+ * a {@link FullPrunedBlockStore}. Stores keep their height index in step with it as the head moves, re-orgs
+ * included.</p>
+ *
+ * <p>Like {@link BlockStore#get(io.mappum.altcoinj.core.Sha256Hash)}, lookups only find what the store still has, so
+ * stores that forget old blocks, like the {@link SPVBlockStore}, only answer for the recent part of the chain.</p>
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block at the given height on the main chain, or null if the store doesn't have one.
+     */
+    @Nullable
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+
+    /**
+     * Returns the blocks of the main chain from {@code fromHeight} to {@code toHeight} inclusive, lowest first. Blocks
+     * are loaded in batches as the iterator advances, so long ranges don't have to fit in memory. Iteration stops early
+     * at the first height the store doesn't have, or if a re-org means the next batch doesn't connect to the blocks
+     * already returned, so those always form a chain. Errors of the store while iterating are thrown as runtime
+     * exceptions wrapping a {@link BlockStoreException}.
+     */
+    Iterator<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException;
+}
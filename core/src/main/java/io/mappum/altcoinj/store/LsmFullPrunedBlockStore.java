@@ -0,0 +1,562 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.*;
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * <p>A full pruned block store on an embedded log structured merge tree, a pure Java key value store in the style of
+ * LevelDB kept in a directory of its own. Unspent outputs are looked up by a compact binary key, which makes the
+ * store considerably faster than the SQL ones for the random reads and writes of connecting blocks, and all the
+ * writes between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are made in one atomic
+ * batch, so after a crash the store is always at the state of some verified chain head.</p>
+ *
+ * <p>Keys start with a byte for what they hold:</p>
+ * <pre>
+ *   'h' block hash                  wasUndoable flag, then the compact {@link StoredBlock}
+ *   'u' block hash                  undo data: 0 and {@link TransactionOutputChanges}, or 1 and the transactions
+ *   'v' height hash                 nothing, lists the undo data by height so it can be pruned
+ *   'o' transaction hash index      an unspent output in the encoding of {@link CompactOutputCodec}
+ *   'm' height                      block hash of the main chain at that height
+ *   's' name                        settings: the chain heads and the format version
+ * </pre>
+ * <p>Heights and output indexes are big endian, so that keys sort by them.</p>
+ */
+public class LsmFullPrunedBlockStore implements PrunableBlockStore, HeightIndexedBlockStore {
+
+    /** The default amount of memory for writes that haven't been written to a table file yet. */
+    public static final long DEFAULT_MEMTABLE_BYTES = 32 * 1024 * 1024;
+
+    private static final byte HEADER = 'h';
+    private static final byte UNDO = 'u';
+    private static final byte UNDO_HEIGHT = 'v';
+    private static final byte OUTPUT = 'o';
+    private static final byte MAIN_CHAIN = 'm';
+    private static final byte SETTING = 's';
+    private static final byte[] CHAIN_HEAD_SETTING = settingKey("chainhead");
+    private static final byte[] VERIFIED_CHAIN_HEAD_SETTING = settingKey("verifiedchainhead");
+    private static final byte[] VERSION_SETTING = settingKey("version");
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final LsmTree db;
+    // Writes since beginDatabaseBatchWrite() on each thread, applied by commitDatabaseBatchWrite().
+    private final ThreadLocal<LsmTree.WriteBatch> batch = new ThreadLocal<LsmTree.WriteBatch>();
+    private volatile boolean deferredPruning;
+
+    private Sha256Hash chainHeadHash;
+    private StoredBlock chainHeadBlock;
+    private Sha256Hash verifiedChainHeadHash;
+    private StoredBlock verifiedChainHeadBlock;
+    // The head of the chain the 'm' keys currently hold, or null if that isn't known.
+    private Sha256Hash mainChainHeadHash;
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param directory The directory holding the store. Nothing else should be kept there.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     */
+    public LsmFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_MEMTABLE_BYTES);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param directory The directory holding the store. Nothing else should be kept there.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param memTableBytes Roughly how much memory recent writes may take before they are written out to a file.
+     */
+    public LsmFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, long memTableBytes)
+            throws BlockStoreException {
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth;
+        try {
+            this.db = new LsmTree(directory, memTableBytes);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        try {
+            byte[] version = read(VERSION_SETTING);
+            if (version == null) {
+                createNewStore();
+            } else {
+                int storeVersion = ByteBuffer.wrap(version).getInt();
+                if (storeVersion != VERSION)
+                    throw new BlockStoreException("Unknown store version " + storeVersion);
+                loadChainHeads();
+            }
+        } catch (BlockStoreException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // Set up the genesis block. When we start out fresh, it is by
+            // definition the top of the chain.
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable. This is because of how the reference client inits
+            // its database - the genesis transaction isn't actually in the db so its spent flags can never be updated.
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            write(VERSION_SETTING, ByteBuffer.allocate(4).putInt(VERSION).array());
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    private void loadChainHeads() throws BlockStoreException {
+        byte[] chainHead = read(CHAIN_HEAD_SETTING);
+        byte[] verifiedChainHead = read(VERIFIED_CHAIN_HEAD_SETTING);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Corrupt store: missing chain heads");
+        Sha256Hash hash = new Sha256Hash(chainHead);
+        chainHeadHash = null;
+        chainHeadBlock = get(hash);
+        chainHeadHash = hash;
+        if (chainHeadBlock == null)
+            throw new BlockStoreException("corrupt database block store - head block not found");
+        hash = new Sha256Hash(verifiedChainHead);
+        verifiedChainHeadHash = null;
+        verifiedChainHeadBlock = get(hash);
+        verifiedChainHeadHash = hash;
+        if (verifiedChainHeadBlock == null)
+            throw new BlockStoreException("corrupt database block store - verified head block not found");
+        mainChainHeadHash = verifiedChainHeadHash;
+    }
+
+    private static byte[] settingKey(String name) {
+        byte[] nameBytes = name.getBytes();
+        byte[] key = new byte[1 + nameBytes.length];
+        key[0] = SETTING;
+        System.arraycopy(nameBytes, 0, key, 1, nameBytes.length);
+        return key;
+    }
+
+    private static byte[] hashKey(byte type, Sha256Hash hash) {
+        return ByteBuffer.allocate(1 + HASH_LENGTH).put(type).put(hash.getBytes()).array();
+    }
+
+    private static byte[] heightKey(byte type, int height) {
+        return ByteBuffer.allocate(1 + 4).put(type).putInt(height).array();
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        return ByteBuffer.allocate(1 + HASH_LENGTH + 4).put(OUTPUT).put(hash.getBytes()).putInt((int) index).array();
+    }
+
+    private static byte[] undoHeightKey(int height, Sha256Hash hash) {
+        return ByteBuffer.allocate(1 + 4 + HASH_LENGTH).put(UNDO_HEIGHT).putInt(height).put(hash.getBytes()).array();
+    }
+
+    // Reads a key, seeing the writes of the batch in progress on this thread.
+    @Nullable
+    private byte[] read(byte[] key) throws BlockStoreException {
+        LsmTree.WriteBatch pending = batch.get();
+        if (pending != null) {
+            byte[] value = pending.get(key);
+            if (value != null)
+                return value == LsmTree.DELETED ? null : value;
+        }
+        try {
+            return db.get(key);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] to, int limit) throws BlockStoreException {
+        try {
+            return db.scan(from, to, limit, batch.get());
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Writes a key, or deletes it if the value is null, as part of the batch in progress or on its own.
+    private void write(byte[] key, @Nullable byte[] value) throws BlockStoreException {
+        LsmTree.WriteBatch pending = batch.get();
+        LsmTree.WriteBatch target = pending != null ? pending : new LsmTree.WriteBatch();
+        if (value == null)
+            target.delete(key);
+        else
+            target.put(key, value);
+        if (pending == null) {
+            try {
+                db.write(target);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+    }
+
+    private void putHeader(StoredBlock storedBlock, boolean wasUndoable) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + StoredBlock.COMPACT_SERIALIZED_SIZE);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        storedBlock.serializeCompact(buffer);
+        write(hashKey(HEADER, storedBlock.getHeader().getHash()), buffer.array());
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        // Keep the undoable flag of a block we already have.
+        byte[] existing = read(hashKey(HEADER, storedBlock.getHeader().getHash()));
+        putHeader(storedBlock, existing != null && existing[0] != 0);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
+            } else {
+                bos.write(1);
+                int numTxn = undoableBlock.getTransactions().size();
+                bos.write((int) (0xFF & (numTxn >> 0)));
+                bos.write((int) (0xFF & (numTxn >> 8)));
+                bos.write((int) (0xFF & (numTxn >> 16)));
+                bos.write((int) (0xFF & (numTxn >> 24)));
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(hashKey(UNDO, hash), bos.toByteArray());
+        write(undoHeightKey(storedBlock.getHeight(), hash), new byte[0]);
+        putHeader(storedBlock, true);
+    }
+
+    @Nullable
+    public StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        // Optimize for chain head
+        if (chainHeadHash != null && chainHeadHash.equals(hash))
+            return chainHeadBlock;
+        if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
+            return verifiedChainHeadBlock;
+        byte[] value = read(hashKey(HEADER, hash));
+        if (value == null || (wasUndoableOnly && value[0] == 0))
+            return null;
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        buffer.position(1);
+        try {
+            return StoredBlock.deserializeCompact(params, buffer);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(hashKey(UNDO, hash));
+        if (value == null)
+            return null;
+        try {
+            if (value[0] == 0) {
+                TransactionOutputChanges outChangesObject =
+                        new TransactionOutputChanges(new ByteArrayInputStream(value, 1, value.length - 1));
+                return new StoredUndoableBlock(hash, outChangesObject);
+            }
+            int offset = 1;
+            int numTxn = ((value[offset++] & 0xFF) << 0) |
+                         ((value[offset++] & 0xFF) << 8) |
+                         ((value[offset++] & 0xFF) << 16) |
+                         ((value[offset++] & 0xFF) << 24);
+            List<Transaction> transactionList = new LinkedList<Transaction>();
+            for (int i = 0; i < numTxn; i++) {
+                Transaction tx = new Transaction(params, value, offset);
+                transactionList.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactionList);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        return chainHeadBlock;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.chainHeadHash = hash;
+        this.chainHeadBlock = chainHead;
+        write(CHAIN_HEAD_SETTING, hash.getBytes());
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHeadBlock;
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Sha256Hash hash = chainHead.getHeader().getHash();
+        this.verifiedChainHeadHash = hash;
+        this.verifiedChainHeadBlock = chainHead;
+        write(VERIFIED_CHAIN_HEAD_SETTING, hash.getBytes());
+        indexMainChain(chainHead);
+        if (this.chainHeadBlock == null || this.chainHeadBlock.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        if (!deferredPruning)
+            removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth, Integer.MAX_VALUE);
+    }
+
+    // Removes the undo data of at most maxBlocks blocks, in one write, and returns how many.
+    private int removeUndoableBlocksWhereHeightIsLessThan(int height, int maxBlocks) throws BlockStoreException {
+        if (height < 0)
+            return 0;
+        List<Map.Entry<byte[], byte[]>> entries =
+                scan(heightKey(UNDO_HEIGHT, 0), heightKey(UNDO_HEIGHT, height + 1), maxBlocks);
+        LsmTree.WriteBatch pending = batch.get();
+        LsmTree.WriteBatch target = pending != null ? pending : new LsmTree.WriteBatch();
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            byte[] key = entry.getKey();
+            byte[] hash = Arrays.copyOfRange(key, 1 + 4, key.length);
+            target.delete(hashKey(UNDO, new Sha256Hash(hash)));
+            target.delete(key);
+        }
+        if (pending == null) {
+            try {
+                db.write(target);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+        return entries.size();
+    }
+
+    @Override
+    public void setDeferredPruning(boolean deferred) {
+        this.deferredPruning = deferred;
+    }
+
+    @Override
+    public int pruneUndoableBlocks(int maxBlocks) throws BlockStoreException {
+        return removeUndoableBlocksWhereHeightIsLessThan(verifiedChainHeadBlock.getHeight() - fullStoreDepth,
+                maxBlocks);
+    }
+
+    /**
+     * Merges all the files of the store into one, which drops removed undo data and spent outputs for good. Everything
+     * else using the store waits while it runs, which is about as long as it takes to copy the store.
+     */
+    @Override
+    public void compact() throws BlockStoreException {
+        try {
+            db.compact();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public long getDiskSize() {
+        return db.getDiskSize();
+    }
+
+    /**
+     * Brings the 'm' keys in line with a new verified chain head. A head on top of the previous one is a single
+     * write, after a re-org the heights are rewritten back to the fork point.
+     */
+    private void indexMainChain(StoredBlock head) throws BlockStoreException {
+        Sha256Hash headHash = head.getHeader().getHash();
+        if (headHash.equals(mainChainHeadHash))
+            return;
+        boolean extendsIndexed = head.getHeader().getPrevBlockHash().equals(mainChainHeadHash);
+        mainChainHeadHash = null;
+        if (!extendsIndexed) {
+            // Heights above the new head belong to a chain that was left behind.
+            for (Map.Entry<byte[], byte[]> entry : scan(heightKey(MAIN_CHAIN, head.getHeight() + 1),
+                    new byte[] {MAIN_CHAIN + 1}, Integer.MAX_VALUE))
+                write(entry.getKey(), null);
+        }
+        StoredBlock cursor = head;
+        while (true) {
+            byte[] key = heightKey(MAIN_CHAIN, cursor.getHeight());
+            byte[] hashBytes = cursor.getHeader().getHash().getBytes();
+            if (!extendsIndexed && Arrays.equals(read(key), hashBytes))
+                break;
+            write(key, hashBytes);
+            if (extendsIndexed || cursor.getHeight() == 0)
+                break;
+            StoredBlock prev = get(cursor.getHeader().getPrevBlockHash());
+            if (prev == null) {
+                // Whatever is indexed below the gap can't be known to lead to the new head.
+                for (Map.Entry<byte[], byte[]> entry : scan(heightKey(MAIN_CHAIN, 0),
+                        heightKey(MAIN_CHAIN, cursor.getHeight()), Integer.MAX_VALUE))
+                    write(entry.getKey(), null);
+                break;
+            }
+            cursor = prev;
+        }
+        mainChainHeadHash = headHash;
+    }
+
+    // Loads the main chain blocks from fromHeight to toHeight, in order of height.
+    private List<StoredBlock> getMainChain(int fromHeight, int toHeight) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        if (fromHeight < 0 || toHeight < fromHeight)
+            return blocks;
+        byte[] to = toHeight == Integer.MAX_VALUE ? new byte[] {MAIN_CHAIN + 1} : heightKey(MAIN_CHAIN, toHeight + 1);
+        for (Map.Entry<byte[], byte[]> entry : scan(heightKey(MAIN_CHAIN, fromHeight), to, Integer.MAX_VALUE)) {
+            StoredBlock block = get(new Sha256Hash(entry.getValue()));
+            if (block == null)
+                throw new BlockStoreException("Corrupt store: main chain block not found");
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (height < 0)
+            return null;
+        byte[] hash = read(heightKey(MAIN_CHAIN, height));
+        return hash == null ? null : get(new Sha256Hash(hash));
+    }
+
+    @Override
+    public Iterator<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException {
+        return new MainChainIterator(this, fromHeight, toHeight) {
+            @Override
+            protected List<StoredBlock> load(int fromHeight, int toHeight) throws BlockStoreException {
+                return getMainChain(fromHeight, toHeight);
+            }
+        };
+    }
+
+    @Override
+    @Nullable
+    public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] value = read(outputKey(hash, index));
+        if (value == null)
+            return null;
+        try {
+            return CompactOutputCodec.decode(hash, index, value);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        write(outputKey(out.getHash(), out.getIndex()), CompactOutputCodec.encode(out));
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        byte[] key = outputKey(out.getHash(), out.getIndex());
+        if (read(key) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LsmFullPrunedBlockStore that it didn't have!");
+        write(key, null);
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        return !scan(outputKey(hash, 0), outputKey(hash, numOutputs), 1).isEmpty();
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new LsmTree.WriteBatch());
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        LsmTree.WriteBatch pending = batch.get();
+        batch.remove();
+        if (pending == null)
+            return;
+        try {
+            db.write(pending);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+        // The chain heads may have been moved as part of the batch.
+        loadChainHeads();
+    }
+
+    /**
+     * Sets whether every commit is synced to disk before returning. Without it a commit survives the process
+     * crashing, but the last few may be lost if the whole machine goes down. Off by default.
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        db.setSyncWrites(syncWrites);
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        try {
+            db.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
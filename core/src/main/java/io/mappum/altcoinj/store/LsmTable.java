@@ -0,0 +1,364 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An immutable file of sorted keys and values, the on disk part of an {@link LsmTree}. The entries are grouped in
+ * blocks of a few kilobytes, and the last key of each block is kept in memory, so a lookup reads a single block. A
+ * Bloom filter, also kept in memory, answers most lookups for keys that aren't in the file without reading it at
+ * all.</p>
+ *
+ * <p>File layout, with varints in the unsigned LEB128 encoding:</p>
+ * <pre>
+ *   entries:  varint key length, varint value length plus one (zero for a deletion), key, value
+ *   index:    varint block count, then for each block the varint length of its last key, that key,
+ *             varint offset and varint length of the block
+ *   filter:   varint hash count, varint word count, the words as longs
+ *   footer:   long index offset, long filter offset, long entry count, int magic
+ * </pre>
+ */
+class LsmTable {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAGIC = 0x4c534d31;  // "LSM1"
+    private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+    // About a 1% false positive rate.
+    private static final int FILTER_BITS_PER_KEY = 10;
+    private static final int FILTER_HASHES = 7;
+    private static final HashFunction FILTER_HASH = Hashing.murmur3_128();
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long entryCount;
+    private final byte[][] lastKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int filterHashes;
+    private final long[] filter;
+
+    private LsmTable(File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "r");
+        this.channel = randomAccessFile.getChannel();
+        try {
+            this.fileSize = channel.size();
+            if (fileSize < FOOTER_SIZE)
+                throw new IOException("Truncated table " + file);
+            ByteBuffer footer = read(fileSize - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            long filterOffset = footer.getLong();
+            entryCount = footer.getLong();
+            if (footer.getInt() != MAGIC || indexOffset > filterOffset || filterOffset > fileSize - FOOTER_SIZE)
+                throw new IOException("Not a table: " + file);
+
+            ByteBuffer index = read(indexOffset, (int) (filterOffset - indexOffset));
+            int blocks = readVarInt(index);
+            lastKeys = new byte[blocks][];
+            blockOffsets = new long[blocks];
+            blockLengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                lastKeys[i] = new byte[readVarInt(index)];
+                index.get(lastKeys[i]);
+                blockOffsets[i] = readVarLong(index);
+                blockLengths[i] = readVarInt(index);
+            }
+
+            ByteBuffer filterBytes = read(filterOffset, (int) (fileSize - FOOTER_SIZE - filterOffset));
+            filterHashes = readVarInt(filterBytes);
+            filter = new long[readVarInt(filterBytes)];
+            filterBytes.asLongBuffer().get(filter);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        } catch (RuntimeException e) {
+            randomAccessFile.close();
+            throw new IOException("Corrupt table " + file, e);
+        }
+    }
+
+    /** Opens an existing table file. */
+    static LsmTable open(File file) throws IOException {
+        return new LsmTable(file);
+    }
+
+    /**
+     * Writes the given entries, which must be in {@link LsmTree#KEY_ORDER}, to a new table file and syncs it to disk.
+     * Deletions are written too, as {@link LsmTree#DELETED} values. The expected key count sizes the Bloom filter, an
+     * estimate from above is fine.
+     */
+    static void write(File file, Iterator<Map.Entry<byte[], byte[]>> entries, long expectedKeys) throws IOException {
+        long filterBits = Math.max(64, Math.min(expectedKeys * FILTER_BITS_PER_KEY, Integer.MAX_VALUE / 2));
+        long[] filter = new long[(int) ((filterBits + 63) / 64)];
+        List<byte[]> lastKeys = new ArrayList<byte[]>();
+        List<Long> blockOffsets = new ArrayList<Long>();
+        List<Integer> blockLengths = new ArrayList<Integer>();
+
+        FileOutputStream fileStream = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16));
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+            long offset = 0;
+            long count = 0;
+            byte[] lastKey = null;
+            while (entries.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = entries.next();
+                byte[] key = entry.getKey();
+                byte[] value = entry.getValue();
+                writeVarInt(block, key.length);
+                writeVarInt(block, value == LsmTree.DELETED ? 0 : value.length + 1);
+                block.write(key);
+                if (value != LsmTree.DELETED)
+                    block.write(value);
+                addToFilter(filter, key);
+                lastKey = key;
+                count++;
+                if (block.size() >= BLOCK_SIZE) {
+                    lastKeys.add(lastKey);
+                    blockOffsets.add(offset);
+                    blockLengths.add(block.size());
+                    block.writeTo(out);
+                    offset += block.size();
+                    block.reset();
+                }
+            }
+            if (block.size() > 0) {
+                lastKeys.add(lastKey);
+                blockOffsets.add(offset);
+                blockLengths.add(block.size());
+                block.writeTo(out);
+                offset += block.size();
+                block.reset();
+            }
+
+            long indexOffset = offset;
+            writeVarInt(block, lastKeys.size());
+            for (int i = 0; i < lastKeys.size(); i++) {
+                writeVarInt(block, lastKeys.get(i).length);
+                block.write(lastKeys.get(i));
+                writeVarLong(block, blockOffsets.get(i));
+                writeVarInt(block, blockLengths.get(i));
+            }
+            block.writeTo(out);
+            long filterOffset = indexOffset + block.size();
+            block.reset();
+            writeVarInt(block, FILTER_HASHES);
+            writeVarInt(block, filter.length);
+            block.writeTo(out);
+            for (long word : filter)
+                out.writeLong(word);
+
+            out.writeLong(indexOffset);
+            out.writeLong(filterOffset);
+            out.writeLong(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    long getEntryCount() {
+        return entryCount;
+    }
+
+    /** Returns the value of the given key, {@link LsmTree#DELETED} if the table holds its deletion, or null. */
+    @Nullable
+    byte[] get(byte[] key) throws IOException {
+        if (!mightContain(filter, filterHashes, key))
+            return null;
+        int block = findBlock(key);
+        if (block < 0)
+            return null;
+        ByteBuffer buffer = read(blockOffsets[block], blockLengths[block]);
+        while (buffer.hasRemaining()) {
+            int keyLength = readVarInt(buffer);
+            int valueLength = readVarInt(buffer) - 1;
+            int order = compare(buffer, keyLength, key);
+            if (order > 0)
+                return null;
+            buffer.position(buffer.position() + keyLength);
+            if (order == 0) {
+                if (valueLength < 0)
+                    return LsmTree.DELETED;
+                byte[] value = new byte[valueLength];
+                buffer.get(value);
+                return value;
+            }
+            if (valueLength > 0)
+                buffer.position(buffer.position() + valueLength);
+        }
+        return null;
+    }
+
+    /**
+     * Iterates over the entries with keys from {@code from} inclusive to {@code to} exclusive, deletions included.
+     * Errors reading the file are thrown as runtime exceptions wrapping an {@link IOException}.
+     */
+    Iterator<Map.Entry<byte[], byte[]>> iterator(final byte[] from, @Nullable final byte[] to) {
+        final int firstBlock = findBlock(from);
+        return new AbstractIterator<Map.Entry<byte[], byte[]>>() {
+            private int block = firstBlock;
+            private ByteBuffer buffer;
+
+            @Override
+            protected Map.Entry<byte[], byte[]> computeNext() {
+                while (true) {
+                    if (block < 0 || block >= lastKeys.length)
+                        return endOfData();
+                    if (buffer == null) {
+                        try {
+                            buffer = read(blockOffsets[block], blockLengths[block]);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    if (!buffer.hasRemaining()) {
+                        block++;
+                        buffer = null;
+                        continue;
+                    }
+                    byte[] key = new byte[readVarInt(buffer)];
+                    int valueLength = readVarInt(buffer) - 1;
+                    buffer.get(key);
+                    byte[] value = LsmTree.DELETED;
+                    if (valueLength >= 0) {
+                        value = new byte[valueLength];
+                        buffer.get(value);
+                    }
+                    if (LsmTree.KEY_ORDER.compare(key, from) < 0)
+                        continue;
+                    if (to != null && LsmTree.KEY_ORDER.compare(key, to) >= 0)
+                        return endOfData();
+                    return new AbstractMap.SimpleImmutableEntry<byte[], byte[]>(key, value);
+                }
+            }
+        };
+    }
+
+    void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    // Returns the first block whose last key is not below the given key, or -1 if there is none.
+    private int findBlock(byte[] key) {
+        int low = 0, high = lastKeys.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (LsmTree.KEY_ORDER.compare(lastKeys[mid], key) < 0)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return low < lastKeys.length ? low : -1;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Truncated table " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Compares the key of the given length at the buffer position with the given one, as unsigned bytes.
+    private static int compare(ByteBuffer buffer, int length, byte[] key) {
+        int start = buffer.position();
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int a = buffer.get(start + i) & 0xff;
+            int b = key[i] & 0xff;
+            if (a != b)
+                return a - b;
+        }
+        return length - key.length;
+    }
+
+    // Double hashing on the two halves of the 128 bit hash.
+    private static void addToFilter(long[] filter, byte[] key) {
+        ByteBuffer hash = ByteBuffer.wrap(FILTER_HASH.hashBytes(key).asBytes());
+        long h1 = hash.getLong(0);
+        long h2 = hash.getLong(8);
+        long bits = filter.length * 64L;
+        for (int i = 0; i < FILTER_HASHES; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            filter[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] filter, int hashes, byte[] key) {
+        ByteBuffer hash = ByteBuffer.wrap(FILTER_HASH.hashBytes(key).asBytes());
+        long h1 = hash.getLong(0);
+        long h2 = hash.getLong(8);
+        long bits = filter.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+            if ((filter[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    static void writeVarInt(ByteArrayOutputStream out, int value) {
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        return (int) readVarLong(buffer);
+    }
+
+    static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.primitives.UnsignedBytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A small embedded sorted key value store, a log structured merge tree in the spirit of LevelDB, that backs
+ * {@link LsmFullPrunedBlockStore}. Keys and values are byte arrays and keys are ordered as unsigned bytes.</p>
+ *
+ * <p>Writes come in atomic batches. Each batch is appended to a log and then applied to an in memory table, which is
+ * written out as an immutable sorted {@link LsmTable} once it grows past a limit, after which the log starts over.
+ * Lookups go through the in memory table and then the table files from newest to oldest. Whenever the newest few
+ * files are about the same size they are merged into one, which keeps the number of files logarithmic in the amount
+ * of data, and deletions are dropped for good once a merge reaches the oldest file.</p>
+ *
+ * <p>When opened after a crash the log is replayed, and a batch that was only partly written is dropped as a whole.
+ * Like LevelDB by default, batches are handed to the operating system but not synced to disk unless
+ * {@link #setSyncWrites(boolean)} is set, so they survive the process crashing but not necessarily the machine.
+ * Table files are synced before they replace the log, so they are always complete.</p>
+ */
+class LsmTree {
+    private static final Logger log = LoggerFactory.getLogger(LsmTree.class);
+
+    static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+    /** The value of deleted keys in batches and tables. Compared by identity, so an empty value is not a deletion. */
+    static final byte[] DELETED = new byte[0];
+
+    private static final String LOG_FILE = "log";
+    private static final String LOCK_FILE = "LOCK";
+    private static final String TABLE_PREFIX = "table-";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // The number of tables merged at once, and the factor between the sizes of tables at successive levels.
+    private static final int MERGE_WIDTH = 4;
+    // Rough per entry cost of the in memory table on top of the key and value.
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** An atomic set of writes. Later writes of the same key replace earlier ones. */
+    static class WriteBatch {
+        private final TreeMap<byte[], byte[]> writes = new TreeMap<byte[], byte[]>(KEY_ORDER);
+
+        void put(byte[] key, byte[] value) {
+            writes.put(key, value);
+        }
+
+        void delete(byte[] key) {
+            writes.put(key, DELETED);
+        }
+
+        /** Returns what the batch writes to the given key, {@link #DELETED} for a deletion or null if nothing. */
+        @Nullable
+        byte[] get(byte[] key) {
+            return writes.get(key);
+        }
+
+        boolean isEmpty() {
+            return writes.isEmpty();
+        }
+
+        int size() {
+            return writes.size();
+        }
+    }
+
+    private final File directory;
+    private final long memTableLimit;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final File logFile;
+    private FileOutputStream logStream;
+    private boolean syncWrites;
+    private TreeMap<byte[], byte[]> memTable = new TreeMap<byte[], byte[]>(KEY_ORDER);
+    private long memTableBytes;
+    // Oldest first.
+    private final List<LsmTable> tables = new ArrayList<LsmTable>();
+    private long nextTableNumber;
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it if needed.
+     *
+     * @param memTableLimit The approximate number of bytes the in memory table may use before it is written out.
+     */
+    LsmTree(File directory, long memTableLimit) throws IOException {
+        this.directory = directory;
+        this.memTableLimit = memTableLimit;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;  // Held by this process.
+        }
+        if (fileLock == null) {
+            lockFile.close();
+            throw new IOException("Store is already open: " + directory);
+        }
+        lock = fileLock;
+        try {
+            List<Long> numbers = new ArrayList<Long>();
+            for (File file : directory.listFiles()) {
+                String name = file.getName();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // A table that was being written when we crashed.
+                    if (!file.delete())
+                        throw new IOException("Could not delete " + file);
+                } else if (name.startsWith(TABLE_PREFIX) && name.endsWith(TABLE_SUFFIX)) {
+                    numbers.add(Long.parseLong(name.substring(TABLE_PREFIX.length(),
+                            name.length() - TABLE_SUFFIX.length())));
+                }
+            }
+            Collections.sort(numbers);
+            for (long number : numbers)
+                tables.add(LsmTable.open(tableFile(number)));
+            nextTableNumber = numbers.isEmpty() ? 0 : numbers.get(numbers.size() - 1) + 1;
+            logFile = new File(directory, LOG_FILE);
+            replayLog();
+            logStream = new FileOutputStream(logFile, true);
+            if (memTableBytes > memTableLimit)
+                flush();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+    }
+
+    /** Whether every batch is synced to disk before {@link #write(WriteBatch)} returns. Off by default. */
+    synchronized void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    /** Returns the value of the given key, or null if there is none. */
+    @Nullable
+    synchronized byte[] get(byte[] key) throws IOException {
+        checkOpen();
+        byte[] value = memTable.get(key);
+        for (int i = tables.size() - 1; value == null && i >= 0; i--)
+            value = tables.get(i).get(key);
+        return value == DELETED ? null : value;
+    }
+
+    /**
+     * Returns up to {@code limit} entries with keys from {@code from} inclusive to {@code to} exclusive, in key order.
+     * If an overlay is given its writes are seen as if they had been applied, without applying them.
+     */
+    synchronized List<Map.Entry<byte[], byte[]>> scan(byte[] from, byte[] to, int limit,
+                                                    @Nullable WriteBatch overlay) throws IOException {
+        checkOpen();
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>();
+        if (overlay != null)
+            sources.add(overlay.writes.subMap(from, to).entrySet().iterator());
+        sources.add(memTable.subMap(from, to).entrySet().iterator());
+        for (int i = tables.size() - 1; i >= 0; i--)
+            sources.add(tables.get(i).iterator(from, to));
+        List<Map.Entry<byte[], byte[]>> result = new ArrayList<Map.Entry<byte[], byte[]>>();
+        try {
+            Iterator<Map.Entry<byte[], byte[]>> merged = merge(sources, true);
+            while (result.size() < limit && merged.hasNext())
+                result.add(merged.next());
+        } catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+        return result;
+    }
+
+    /** Applies the batch atomically. */
+    synchronized void write(WriteBatch batch) throws IOException {
+        checkOpen();
+        if (batch.isEmpty())
+            return;
+        ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        record.write(new byte[8], 0, 8);  // Room for the length and checksum.
+        for (Map.Entry<byte[], byte[]> entry : batch.writes.entrySet()) {
+            byte[] value = entry.getValue();
+            LsmTable.writeVarInt(record, entry.getKey().length);
+            LsmTable.writeVarInt(record, value == DELETED ? 0 : value.length + 1);
+            record.write(entry.getKey(), 0, entry.getKey().length);
+            if (value != DELETED)
+                record.write(value, 0, value.length);
+        }
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 8, bytes.length - 8);
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 8).putInt((int) crc.getValue());
+        logStream.write(bytes);
+        if (syncWrites)
+            logStream.getChannel().force(false);
+        for (Map.Entry<byte[], byte[]> entry : batch.writes.entrySet())
+            apply(entry.getKey(), entry.getValue());
+        if (memTableBytes > memTableLimit)
+            flush();
+    }
+
+    /** Writes out the in memory table, merges tables if needed and starts a new log. */
+    synchronized void flush() throws IOException {
+        checkOpen();
+        if (memTable.isEmpty())
+            return;
+        tables.add(writeTable(memTable.entrySet().iterator(), memTable.size()));
+        memTable = new TreeMap<byte[], byte[]>(KEY_ORDER);
+        memTableBytes = 0;
+        // Everything in the log is in the new table now.
+        logStream.close();
+        logStream = new FileOutputStream(logFile, false);
+        while (mergeNewest()) ;
+    }
+
+    /**
+     * Writes out the in memory table and merges all tables into one, which leaves out deleted keys and everything
+     * they replaced. Reads and writes wait until it is done.
+     */
+    synchronized void compact() throws IOException {
+        flush();
+        if (!tables.isEmpty())
+            mergeTables(0);
+    }
+
+    /** Returns the number of bytes the tables and the log take on disk. */
+    synchronized long getDiskSize() {
+        long size = logFile.length();
+        for (LsmTable table : tables)
+            size += table.getFileSize();
+        return size;
+    }
+
+    /** Returns the number of table files, for tests. */
+    synchronized int getTableCount() {
+        return tables.size();
+    }
+
+    /** Closes the store. The in memory table is not written out, it is replayed from the log when opened again. */
+    synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        closeFiles();
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            if (logStream != null)
+                logStream.close();
+            for (LsmTable table : tables)
+                table.close();
+        } finally {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Store is closed");
+    }
+
+    private void apply(byte[] key, byte[] value) {
+        byte[] old = memTable.put(key, value);
+        memTableBytes += key.length + value.length + ENTRY_OVERHEAD;
+        if (old != null)
+            memTableBytes -= key.length + old.length + ENTRY_OVERHEAD;
+    }
+
+    private void replayLog() throws IOException {
+        if (!logFile.exists())
+            return;
+        long length = logFile.length();
+        long valid = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 1 << 16));
+        try {
+            while (valid + 8 <= length) {
+                int recordLength = in.readInt();
+                int checksum = in.readInt();
+                if (recordLength < 0 || valid + 8 + recordLength > length)
+                    break;
+                byte[] record = new byte[recordLength];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum)
+                    break;
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    byte[] key = new byte[LsmTable.readVarInt(buffer)];
+                    int valueLength = LsmTable.readVarInt(buffer) - 1;
+                    buffer.get(key);
+                    byte[] value = DELETED;
+                    if (valueLength >= 0) {
+                        value = new byte[valueLength];
+                        buffer.get(value);
+                    }
+                    apply(key, value);
+                }
+                valid += 8 + recordLength;
+            }
+        } finally {
+            in.close();
+        }
+        if (valid < length) {
+            log.warn("Dropping {} bytes of a partly written batch from the end of {}", length - valid, logFile);
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            try {
+                file.setLength(valid);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private File tableFile(long number) {
+        return new File(directory, String.format("%s%08d%s", TABLE_PREFIX, number, TABLE_SUFFIX));
+    }
+
+    private LsmTable writeTable(Iterator<Map.Entry<byte[], byte[]>> entries, long expectedKeys) throws IOException {
+        File file = tableFile(nextTableNumber++);
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            LsmTable.write(temp, entries, expectedKeys);
+        } catch (RuntimeException e) {
+            temp.delete();
+            throw unwrap(e);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Could not rename " + temp + " to " + file);
+        return LsmTable.open(file);
+    }
+
+    // Merges the newest tables if they are all of the same size class, and returns whether it did.
+    private boolean mergeNewest() throws IOException {
+        int count = tables.size();
+        if (count < MERGE_WIDTH)
+            return false;
+        int from = count - MERGE_WIDTH;
+        int sizeClass = sizeClass(tables.get(from));
+        for (int i = from + 1; i < count; i++) {
+            if (sizeClass(tables.get(i)) != sizeClass)
+                return false;
+        }
+        mergeTables(from);
+        return true;
+    }
+
+    // Replaces the tables from the given one on with a single table.
+    private void mergeTables(int from) throws IOException {
+        int count = tables.size();
+        List<LsmTable> inputs = new ArrayList<LsmTable>(tables.subList(from, count));
+        List<Iterator<Map.Entry<byte[], byte[]>>> sources = new ArrayList<Iterator<Map.Entry<byte[], byte[]>>>();
+        long expectedKeys = 0;
+        for (int i = inputs.size() - 1; i >= 0; i--) {
+            sources.add(inputs.get(i).iterator(new byte[0], null));
+            expectedKeys += inputs.get(i).getEntryCount();
+        }
+        // Deletions only need to be kept while there are older tables that may still hold the key.
+        LsmTable merged = writeTable(merge(sources, from == 0), expectedKeys);
+        tables.subList(from, count).clear();
+        tables.add(merged);
+        // Oldest first: if we crash part way, the inputs left over are the newest ones, which agree with the merged
+        // table on every key they have.
+        for (LsmTable input : inputs) {
+            input.close();
+            if (!input.getFile().delete())
+                log.warn("Could not delete merged table {}", input.getFile());
+        }
+    }
+
+    private int sizeClass(LsmTable table) {
+        long units = table.getFileSize() / memTableLimit;
+        int sizeClass = 0;
+        while (units >= MERGE_WIDTH) {
+            units /= MERGE_WIDTH;
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Merges sorted sources, given newest first, into one sorted iterator. For keys in more than one source the
+     * newest value wins.
+     */
+    private static Iterator<Map.Entry<byte[], byte[]>> merge(List<Iterator<Map.Entry<byte[], byte[]>>> newestFirst,
+                                                             final boolean dropDeleted) {
+        final List<PeekingIterator<Map.Entry<byte[], byte[]>>> sources =
+                new ArrayList<PeekingIterator<Map.Entry<byte[], byte[]>>>(newestFirst.size());
+        for (Iterator<Map.Entry<byte[], byte[]>> source : newestFirst)
+            sources.add(Iterators.peekingIterator(source));
+        return new AbstractIterator<Map.Entry<byte[], byte[]>>() {
+            @Override
+            protected Map.Entry<byte[], byte[]> computeNext() {
+                while (true) {
+                    Map.Entry<byte[], byte[]> smallest = null;
+                    for (PeekingIterator<Map.Entry<byte[], byte[]>> source : sources) {
+                        // Strictly smaller, so that of equal keys the newest one is taken.
+                        if (source.hasNext() && (smallest == null ||
+                                KEY_ORDER.compare(source.peek().getKey(), smallest.getKey()) < 0))
+                            smallest = source.peek();
+                    }
+                    if (smallest == null)
+                        return endOfData();
+                    byte[] key = smallest.getKey();
+                    for (PeekingIterator<Map.Entry<byte[], byte[]>> source : sources) {
+                        if (source.hasNext() && KEY_ORDER.compare(source.peek().getKey(), key) == 0)
+                            source.next();
+                    }
+                    if (!dropDeleted || smallest.getValue() != DELETED)
+                        return smallest;
+                }
+            }
+        };
+    }
+
+    // Table iterators throw read errors wrapped in runtime exceptions.
+    private static IOException unwrap(RuntimeException e) {
+        if (e.getCause() instanceof IOException)
+            return (IOException) e.getCause();
+        throw e;
+    }
+}
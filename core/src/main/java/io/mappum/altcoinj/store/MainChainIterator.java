@@ -0,0 +1,84 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.StoredBlock;
+import com.google.common.collect.AbstractIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Implements {@link HeightIndexedBlockStore#getRange(int, int)} by loading the blocks in batches. By default a batch
+ * is loaded with one {@link HeightIndexedBlockStore#getByHeight(int)} per block, stores that can load a whole batch
+ * at once override {@link #load(int, int)}.
+ */
+class MainChainIterator extends AbstractIterator<StoredBlock> {
+    static final int BATCH_SIZE = 1000;
+
+    private final HeightIndexedBlockStore store;
+    private final int toHeight;
+    private int nextHeight;
+    private Sha256Hash prevHash;
+    private Iterator<StoredBlock> batch = Collections.<StoredBlock>emptyList().iterator();
+
+    MainChainIterator(HeightIndexedBlockStore store, int fromHeight, int toHeight) {
+        this.store = store;
+        this.nextHeight = Math.max(fromHeight, 0);
+        this.toHeight = toHeight;
+    }
+
+    /**
+     * Returns the main chain blocks from {@code fromHeight} to {@code toHeight} inclusive, lowest first, stopping at
+     * the first one the store doesn't have.
+     */
+    protected List<StoredBlock> load(int fromHeight, int toHeight) throws BlockStoreException {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>(toHeight - fromHeight + 1);
+        for (int height = fromHeight; height <= toHeight; height++) {
+            StoredBlock block = store.getByHeight(height);
+            if (block == null)
+                break;
+            blocks.add(block);
+        }
+        return blocks;
+    }
+
+    @Override
+    protected StoredBlock computeNext() {
+        if (!batch.hasNext()) {
+            if (nextHeight > toHeight)
+                return endOfData();
+            int batchEnd = (int) Math.min((long) nextHeight + BATCH_SIZE - 1, toHeight);
+            try {
+                batch = load(nextHeight, batchEnd).iterator();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            if (!batch.hasNext())
+                return endOfData();
+        }
+        StoredBlock block = batch.next();
+        // A gap, or a batch from after a re-org that doesn't connect to what was already returned.
+        if (block.getHeight() != nextHeight
+                || (prevHash != null && !block.getHeader().getPrevBlockHash().equals(prevHash)))
+            return endOfData();
+        nextHeight++;
+        prevHash = block.getHeader().getHash();
+        return block;
+    }
+}
@@ -18,19 +18,25 @@ package io.mappum.altcoinj.store;
 
 import io.mappum.altcoinj.core.*;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Keeps {@link io.mappum.altcoinj.core.StoredBlock}s in memory. Used primarily for unit testing.
  */
-public class MemoryBlockStore implements BlockStore {
+public class MemoryBlockStore implements HeightIndexedBlockStore {
+    private static final int MAX_BLOCKS = 5000;
+
     private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
-            return blockMap.size() > 5000;
+            return blockMap.size() > MAX_BLOCKS;
         }
     };
+    // Hashes of the blocks on the chain ending at the chain head, by height.
+    private final TreeMap<Integer, Sha256Hash> mainChain = new TreeMap<Integer, Sha256Hash>();
     private StoredBlock chainHead;
 
     public MemoryBlockStore(NetworkParameters params) {
@@ -67,9 +73,37 @@ public class MemoryBlockStore implements BlockStore {
     }
 
     @Override
-    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         this.chainHead = chainHead;
+        // Heights above the new head belong to a chain that was left behind by a re-org.
+        mainChain.tailMap(chainHead.getHeight(), false).clear();
+        StoredBlock cursor = chainHead;
+        while (!cursor.getHeader().getHash().equals(mainChain.get(cursor.getHeight()))) {
+            mainChain.put(cursor.getHeight(), cursor.getHeader().getHash());
+            StoredBlock prev = blockMap.get(cursor.getHeader().getPrevBlockHash());
+            if (prev == null) {
+                // Whatever is indexed below the gap can't be known to lead here.
+                mainChain.headMap(cursor.getHeight()).clear();
+                break;
+            }
+            cursor = prev;
+        }
+        while (mainChain.size() > MAX_BLOCKS)
+            mainChain.pollFirstEntry();
+    }
+
+    @Override
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        Sha256Hash hash = mainChain.get(height);
+        return hash == null ? null : blockMap.get(hash);
+    }
+
+    @Override
+    public Iterator<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        return new MainChainIterator(this, fromHeight, toHeight);
     }
     
     @Override
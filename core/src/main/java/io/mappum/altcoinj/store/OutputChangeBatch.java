@@ -0,0 +1,94 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.StoredTransactionOutput;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The unspent output changes of a database batch write that haven't been sent to the database yet, so that the SQL
+ * stores can send them in one JDBC batch of inserts and one of deletes instead of a statement each. Lookups during the
+ * batch have to check here before the database.</p>
+ *
+ * <p>Only the net change of each output is kept: an output added and then removed again in the same batch, as
+ * happens for outputs spent in the block that creates them, never reaches the database.</p>
+ */
+class OutputChangeBatch {
+    // Outputs to insert, and the ones to delete mapped to null.
+    private final Map<StoredTransactionOutPoint, StoredTransactionOutput> changes =
+            new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+
+    /** Whether the batch changes the given output, in which case {@link #get(Sha256Hash, long)} has the answer. */
+    boolean contains(Sha256Hash hash, long index) {
+        return changes.containsKey(new StoredTransactionOutPoint(hash, index));
+    }
+
+    /** Returns the output as the batch leaves it, null if it is deleted. */
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        return changes.get(new StoredTransactionOutPoint(hash, index));
+    }
+
+    void add(StoredTransactionOutput out) {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (changes.containsKey(key) && changes.get(key) == null)
+            changes.remove(key);  // Deleted earlier in the batch, so the database still has it.
+        else
+            changes.put(key, out);
+    }
+
+    /**
+     * Records the removal of an output. The caller has to make sure the output exists, unless the batch has a pending
+     * insert of it.
+     */
+    void remove(StoredTransactionOutput out) {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        if (changes.get(key) != null)
+            changes.remove(key);  // Inserted earlier in the batch, so the database never sees it.
+        else
+            changes.put(key, null);
+    }
+
+    int size() {
+        return changes.size();
+    }
+
+    /** Returns the outputs to insert and forgets them. */
+    List<StoredTransactionOutput> takeInserts() {
+        List<StoredTransactionOutput> inserts = new ArrayList<StoredTransactionOutput>();
+        for (Iterator<StoredTransactionOutput> it = changes.values().iterator(); it.hasNext(); ) {
+            StoredTransactionOutput out = it.next();
+            if (out != null) {
+                inserts.add(out);
+                it.remove();
+            }
+        }
+        return inserts;
+    }
+
+    /** Returns the outputs to delete, as out points, and forgets them. */
+    List<StoredTransactionOutPoint> takeDeletes() {
+        List<StoredTransactionOutPoint> deletes = new ArrayList<StoredTransactionOutPoint>(changes.keySet());
+        changes.clear();
+        return deletes;
+    }
+}
@@ -27,10 +27,17 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigInteger;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -38,7 +45,7 @@ import java.util.Properties;
  * so you can use {@link #calculateBalanceForAddress(io.mappum.altcoinj.core.Address)} to quickly look up
  * the quantity of bitcoins controlled by that address.</p>
  */
-public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
+public class PostgresFullPrunedBlockStore implements BulkOutputLookupStore, HeightIndexedBlockStore, PrunableBlockStore {
     private static final Logger log = LoggerFactory.getLogger(PostgresFullPrunedBlockStore.class);
     private static final String POSTGRES_DUPLICATE_KEY_ERROR_CODE = "23505";
 
@@ -46,9 +53,16 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     private StoredBlock chainHeadBlock;
     private Sha256Hash verifiedChainHeadHash;
     private StoredBlock verifiedChainHeadBlock;
+    // The head of the chain the mainChain table currently holds, or null if that isn't known.
+    private Sha256Hash mainChainHeadHash;
     private NetworkParameters params;
     private ThreadLocal<Connection> conn;
     private List<Connection> allConnections;
+    private ThreadLocal<PreparedStatementCache> statements;
+    // The output changes of the batch write in progress on this thread, null outside of one.
+    private ThreadLocal<OutputChangeBatch> pendingOutputs;
+    private volatile boolean bulkLoad;
+    private volatile boolean deferredPruning;
     private String connectionURL;
     private int fullStoreDepth;
     private String username;
@@ -78,6 +92,11 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             "    txoutchanges bytea," +
             "    transactions bytea" +
             ");";
+    private static final String CREATE_MAIN_CHAIN_TABLE = "CREATE TABLE mainchain (" +
+            "    height integer NOT NULL PRIMARY KEY," +
+            "    hash bytea NOT NULL" +
+            ");";
+
     private static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openoutputs (" +
             "    hash bytea NOT NULL," +
             "    index integer NOT NULL," +
@@ -88,6 +107,19 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             "    addresstargetable integer" +
             ");";
 
+    private static final String INSERT_OUTPUT_SQL = "INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String DELETE_OUTPUT_SQL = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+
+    // Output changes of a batch write are sent to the database early once there are this many of them.
+    private static final int MAX_PENDING_OUTPUTS = 10000;
+
+    // The number of transactions getTransactionOutputs(List) looks up the outputs of per query. The last query of a
+    // lookup repeats its last hash to make up the number, so there is only the one statement to prepare.
+    private static final int BULK_LOOKUP_HASHES = 100;
+    private static final String SELECT_OUTPUTS_OF_SQL = "SELECT hash, index, height, value, scriptBytes FROM openOutputs " +
+            "WHERE hash IN (" + placeholders(BULK_LOOKUP_HASHES) + ")";
+
     private static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
 
     // Some indexes to speed up inserts
@@ -171,6 +203,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        statements = new ThreadLocal<PreparedStatementCache>();
+        pendingOutputs = new ThreadLocal<OutputChangeBatch>();
 
         try {
             Class.forName(driver);
@@ -244,6 +278,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.execute("DROP TABLE headers");
             s.execute("DROP TABLE undoableBlocks");
             s.execute("DROP TABLE openOutputs");
+            s.execute("DROP TABLE mainchain");
             s.close();
             createTables();
             initFromDatabase();
@@ -272,6 +307,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (log.isDebugEnabled())
             log.debug("PostgresFullPrunedBlockStore : CREATE open output table");
         s.executeUpdate(CREATE_OPEN_OUTPUT_TABLE);
+        if (log.isDebugEnabled())
+            log.debug("PostgresFullPrunedBlockStore : CREATE main chain table");
+        s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
 
         // Create indexes..
         s.executeUpdate(CREATE_HEADERS_HASH_INDEX);
@@ -317,6 +355,16 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (this.verifiedChainHeadBlock == null) {
             throw new BlockStoreException("corrupt Postgres block store - verified head block not found");
         }
+
+        if (!tableExists("mainchain")) {
+            // Created by an older version, index the chain that is already there.
+            log.info("Indexing the main chain by height, this may take a while");
+            s = conn.get().createStatement();
+            s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
+            s.close();
+            indexMainChain(verifiedChainHeadBlock);
+        }
+        mainChainHeadHash = verifiedChainHeadHash;
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -421,10 +469,21 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
 
+    // Returns the prepared statement for the given SQL on this thread's connection. It is kept for reuse, so callers
+    // must not close it.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatementCache cache = statements.get();
+        if (cache == null || cache.getConnection() != conn.get()) {
+            cache = new PreparedStatementCache(conn.get());
+            statements.set(cache);
+        }
+        return cache.get(sql);
+    }
+
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
+                    prepare("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
                             + " VALUES(?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
@@ -435,21 +494,19 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if  (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)) || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement("UPDATE headers SET wasUndoable=? WHERE hash=?");
+            PreparedStatement s = prepare("UPDATE headers SET wasUndoable=? WHERE hash=?");
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
@@ -475,7 +532,7 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
                 txOutChanges = bos.toByteArray();
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
@@ -497,19 +554,18 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             if (log.isDebugEnabled())
                 log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
 
-            PreparedStatement findS = conn.get().prepareStatement("select 1 from undoableBlocks where hash = ?");
+            PreparedStatement findS = prepare("select 1 from undoableBlocks where hash = ?");
             findS.setBytes(1, hashBytes);
 
             ResultSet rs = findS.executeQuery();
             if (rs.next())
             {
                 // We already have this output, update it.
-                findS.close();
 
                 // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
                 // seems to work for bitcoinj
                 PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
+                        prepare("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
                                 + " WHERE hash = ?");
                 s.setBytes(3, hashBytes);
 
@@ -524,13 +580,12 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
 
                 return;
             }
 
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
+                    prepare("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
                             + " VALUES(?, ?, ?, ?)");
             s.setBytes(1, hashBytes);
             s.setInt(2, height);
@@ -546,7 +601,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                 s.setBytes(4, transactions);
             }
             s.executeUpdate();
-            s.close();
             try {
                 putUpdateStoredBlock(storedBlock, true);
             } catch (SQLException e) {
@@ -566,10 +620,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -598,11 +650,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             // Should not be able to happen unless the database contains bad
             // blocks.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -619,10 +666,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
 
             byte[] hashBytes = new byte[28];
@@ -669,11 +714,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -689,17 +729,122 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
+    private static byte[] truncatedHash(Sha256Hash hash) {
+        byte[] hashBytes = new byte[28];
+        System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
+        return hashBytes;
+    }
+
+    /**
+     * Brings the mainchain table in line with a new verified chain head. A head on top of the previous one is a single
+     * insert, after a re-org the rows are replaced back to the fork point.
+     */
+    private void indexMainChain(StoredBlock head) throws SQLException, BlockStoreException {
+        Sha256Hash headHash = head.getHeader().getHash();
+        if (headHash.equals(mainChainHeadHash))
+            return;
+        boolean extendsIndexed = head.getHeader().getPrevBlockHash().equals(mainChainHeadHash);
+        mainChainHeadHash = null;
+        PreparedStatement s;
+        if (!extendsIndexed) {
+            // Heights above the new head belong to a chain that was left behind.
+            s = prepare("DELETE FROM mainchain WHERE height > ?");
+            s.setInt(1, head.getHeight());
+            s.executeUpdate();
+        }
+        StoredBlock cursor = head;
+        while (true) {
+            byte[] hashBytes = truncatedHash(cursor.getHeader().getHash());
+            byte[] indexed = null;
+            if (!extendsIndexed) {
+                s = prepare("SELECT hash FROM mainchain WHERE height = ?");
+                s.setInt(1, cursor.getHeight());
+                ResultSet results = s.executeQuery();
+                if (results.next())
+                    indexed = results.getBytes(1);
+                if (Arrays.equals(indexed, hashBytes))
+                    break;
+            }
+            if (indexed != null) {
+                s = prepare("UPDATE mainchain SET hash = ? WHERE height = ?");
+            } else {
+                s = prepare("INSERT INTO mainchain(hash, height) VALUES(?, ?)");
+            }
+            s.setBytes(1, hashBytes);
+            s.setInt(2, cursor.getHeight());
+            s.executeUpdate();
+            if (extendsIndexed || cursor.getHeight() == 0)
+                break;
+            StoredBlock prev = get(cursor.getHeader().getPrevBlockHash());
+            if (prev == null) {
+                // Whatever is indexed below the gap can't be known to lead to the new head.
+                s = prepare("DELETE FROM mainchain WHERE height < ?");
+                s.setInt(1, cursor.getHeight());
+                s.executeUpdate();
+                break;
+            }
+            cursor = prev;
+        }
+        mainChainHeadHash = headHash;
+    }
+
+    // Loads the main chain blocks from fromHeight to toHeight, in order of height.
+    private List<StoredBlock> getMainChain(int fromHeight, int toHeight) throws BlockStoreException {
+        maybeConnect();
+        try {
+            PreparedStatement s = prepare("SELECT h.chainWork, h.height, h.header FROM mainchain m"
+                    + " JOIN headers h ON h.hash = m.hash WHERE m.height BETWEEN ? AND ? ORDER BY m.height");
+            s.setInt(1, fromHeight);
+            s.setInt(2, toHeight);
+            ResultSet results = s.executeQuery();
+            List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+            while (results.next()) {
+                BigInteger chainWork = new BigInteger(results.getBytes(1));
+                int height = results.getInt(2);
+                Block b = new Block(params, results.getBytes(3));
+                b.verifyHeader();
+                blocks.add(new StoredBlock(b, chainWork, height));
+            }
+            return blocks;
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (VerificationException e) {
+            // Should not be able to happen unless the database contains bad
+            // blocks.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        List<StoredBlock> blocks = getMainChain(height, height);
+        return blocks.isEmpty() ? null : blocks.get(0);
+    }
+
+    @Override
+    public Iterator<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException {
+        return new MainChainIterator(this, fromHeight, toHeight) {
+            @Override
+            protected List<StoredBlock> load(int fromHeight, int toHeight) throws BlockStoreException {
+                return getMainChain(fromHeight, toHeight);
+            }
+        };
+    }
+
     @Override
     public StoredBlock getVerifiedChainHead() throws BlockStoreException {
         return verifiedChainHeadBlock;
@@ -712,24 +857,23 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("UPDATE settings SET value = ? WHERE name = ?");
+            PreparedStatement s = prepare("UPDATE settings SET value = ? WHERE name = ?");
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
+            indexMainChain(chainHead);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        if (!deferredPruning)
+            removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
     }
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM undoableBlocks WHERE height <= ?");
+            PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE height <= ?");
             s.setInt(1, height);
 
             if (log.isDebugEnabled())
@@ -737,20 +881,77 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
 
             s.executeUpdate();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    @Override
+    public void setDeferredPruning(boolean deferred) {
+        this.deferredPruning = deferred;
+    }
+
+    @Override
+    public int pruneUndoableBlocks(int maxBlocks) throws BlockStoreException {
+        maybeConnect();
+        try {
+            // Postgres has no LIMIT on DELETE.
+            PreparedStatement s = prepare("DELETE FROM undoableBlocks WHERE hash IN " +
+                    "(SELECT hash FROM undoableBlocks WHERE height <= ? LIMIT ?)");
+            s.setInt(1, verifiedChainHeadBlock.getHeight() - fullStoreDepth);
+            s.setInt(2, maxBlocks);
+            return s.executeUpdate();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
+    /**
+     * Runs a plain VACUUM on the tables that see deletes. That makes the space of deleted rows available again without
+     * locking anyone out, but mostly keeps it in the table files rather than giving it back to the operating system,
+     * which would take a VACUUM FULL and lock the tables for as long as it runs. Can't be called in a batch write.
+     */
+    @Override
+    public void compact() throws BlockStoreException {
+        maybeConnect();
+        try {
+            // VACUUM can't run inside a transaction block, so this relies on being in auto commit mode.
+            Statement s = conn.get().createStatement();
+            s.execute("VACUUM ANALYZE undoableBlocks");
+            s.execute("VACUUM ANALYZE openOutputs");
             s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    @Override
+    public long getDiskSize() throws BlockStoreException {
+        maybeConnect();
+        try {
+            PreparedStatement s = prepare("SELECT COALESCE(SUM(pg_total_relation_size(c.oid)), 0) FROM pg_class c " +
+                    "JOIN pg_namespace n ON n.oid = c.relnamespace WHERE c.relkind = 'r' AND n.nspname = current_schema()");
+            ResultSet results = s.executeQuery();
+            try {
+                results.next();
+                return results.getLong(1);
+            } finally {
+                results.close();
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+    }
+
     @Override
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null && pending.contains(hash, index))
+            return pending.get(hash, index);
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
-                            "WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare("SELECT height, value, scriptBytes FROM openOutputs " +
+                    "WHERE hash = ? AND index = ?");
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)index);
@@ -758,30 +959,98 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             if (!results.next()) {
                 return null;
             }
-            // Parse it.
-            int height = results.getInt(1);
-            Coin value = Coin.valueOf(new BigInteger(results.getBytes(2)).longValue());
-            // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
-            return txout;
+            return readOutput(hash, index, results, 1);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
+    /**
+     * Looks up the outputs of up to a hundred transactions per query, taking all their unspent outputs and picking
+     * the asked for ones out of them.
+     */
     @Override
-    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+    public List<StoredTransactionOutput> getTransactionOutputs(List<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        StoredTransactionOutput[] found = new StoredTransactionOutput[outPoints.size()];
+        // The positions of the out points left for the database, by transaction.
+        Map<Sha256Hash, List<Integer>> wanted = new LinkedHashMap<Sha256Hash, List<Integer>>();
+        OutputChangeBatch pending = pendingOutputs.get();
+        for (int i = 0; i < outPoints.size(); i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            if (pending != null && pending.contains(outPoint.getHash(), outPoint.getIndex())) {
+                found[i] = pending.get(outPoint.getHash(), outPoint.getIndex());
+                continue;
+            }
+            List<Integer> positions = wanted.get(outPoint.getHash());
+            if (positions == null) {
+                positions = new ArrayList<Integer>(1);
+                wanted.put(outPoint.getHash(), positions);
+            }
+            positions.add(i);
+        }
+        if (wanted.isEmpty())
+            return Arrays.asList(found);
         maybeConnect();
-        PreparedStatement s = null;
+        try {
+            PreparedStatement s = prepare(SELECT_OUTPUTS_OF_SQL);
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(wanted.keySet());
+            for (int from = 0; from < hashes.size(); from += BULK_LOOKUP_HASHES) {
+                for (int i = 0; i < BULK_LOOKUP_HASHES; i++)
+                    s.setBytes(i + 1, hashes.get(Math.min(from + i, hashes.size() - 1)).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = new Sha256Hash(results.getBytes(1));
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    for (int position : wanted.get(hash)) {
+                        if (outPoints.get(position).getIndex() == index)
+                            found[position] = readOutput(hash, index, results, 3);
+                    }
+                }
+                results.close();
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        }
+        return Arrays.asList(found);
+    }
 
-        // Calculate the toAddress (if any)
-        String dbAddress = "";
+    // Parses an output from its height, value and script columns, starting at the given one.
+    private static StoredTransactionOutput readOutput(Sha256Hash hash, long index, ResultSet results, int column)
+            throws SQLException {
+        int height = results.getInt(column);
+        Coin value = Coin.valueOf(new BigInteger(results.getBytes(column + 1)).longValue());
+        // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
+        return new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(column + 2));
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder("?");
+        for (int i = 1; i < count; i++)
+            builder.append(", ?");
+        return builder.toString();
+    }
+
+    /**
+     * <p>Sets whether the outputs of each batch write are loaded with COPY instead of batched INSERTs. COPY is
+     * considerably faster, which is mostly worth it for the initial sync from an empty database. It needs the
+     * PostgreSQL JDBC driver's copy API, when that isn't there or the COPY fails (as it does for an output that is
+     * already in the database) the outputs are inserted the normal way instead.</p>
+     *
+     * <p>Off by default.</p>
+     */
+    public void setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    // The values of the toAddress and addressTargetable columns for an output.
+    private static class AddressColumns {
+        String address = "";
         int type = 0;
+    }
+
+    private AddressColumns addressColumns(StoredTransactionOutput out) {
+        AddressColumns columns = new AddressColumns();
         Script outputScript = null;
         try
         {
@@ -799,8 +1068,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             if (outputScript.isSentToAddress())
             {
                 Address targetAddr = new Address(params, outputScript.getPubKeyHash());
-                dbAddress = targetAddr.toString();
-                type = 1;
+                columns.address = targetAddr.toString();
+                columns.type = 1;
             }
             else if (outputScript.isSentToRawPubKey())
             {
@@ -809,57 +1078,190 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
                  *   in the pubkey of the script - perhaps we can rename this function?
                  */
 
-                dbAddress = outputScript.getFromAddress(params).toString();
-                type = 2;
+                columns.address = outputScript.getFromAddress(params).toString();
+                columns.type = 2;
             } else {
-                dbAddress = Address.fromP2SHHash(params, outputScript.getPubKeyHash()).toString();
-                type = 3;
+                columns.address = Address.fromP2SHHash(params, outputScript.getPubKeyHash()).toString();
+                columns.type = 3;
             }
         }
+        return columns;
+    }
+
+    private void bindOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        AddressColumns columns = addressColumns(out);
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
+        s.setBytes(5, out.getScriptBytes());
+        s.setString(6, columns.address);
+        s.setInt(7, columns.type);
+    }
 
+    /**
+     * Adds an output. During a batch write it is only sent to the database at the commit, together with the rest of
+     * the batch's outputs.
+     */
+    @Override
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null) {
+            pending.add(out);
+            if (pending.size() >= MAX_PENDING_OUTPUTS)
+                writePendingOutputs();
+            return;
+        }
+        maybeConnect();
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) " +
-                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, BigInteger.valueOf(out.getValue().value).toByteArray());
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
+            PreparedStatement s = prepare(INSERT_OUTPUT_SQL);
+            bindOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException(e); }
         }
     }
 
+    /**
+     * Removes an output. During a batch write it is only deleted from the database at the commit, together with the
+     * rest of the batch's outputs, and if it turns out not to be there it is the commit that fails.
+     */
     @Override
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null) {
+            if (pending.contains(out.getHash(), out.getIndex()) && pending.get(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+            pending.remove(out);
+            if (pending.size() >= MAX_PENDING_OUTPUTS)
+                writePendingOutputs();
+            return;
+        }
         maybeConnect();
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
+            PreparedStatement s = prepare(DELETE_OUTPUT_SQL);
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    // Sends the output changes of the batch write in progress to the database, the inserts by COPY or as one JDBC
+    // batch and the deletes as another.
+    private void writePendingOutputs() throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending == null || pending.size() == 0)
+            return;
+        maybeConnect();
+        List<StoredTransactionOutput> inserts = pending.takeInserts();
+        List<StoredTransactionOutPoint> deletes = pending.takeDeletes();
+        try {
+            if (!inserts.isEmpty() && !(bulkLoad && copyOutputs(inserts)))
+                insertOutputs(inserts);
+            if (!deletes.isEmpty()) {
+                PreparedStatement s = prepare(DELETE_OUTPUT_SQL);
+                for (StoredTransactionOutPoint outPoint : deletes) {
+                    s.setBytes(1, outPoint.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int)outPoint.getIndex());
+                    s.addBatch();
+                }
+                int[] counts = s.executeBatch();
+                for (int count : counts) {
+                    if (count == 0)
+                        throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PostgresFullPrunedBlockStore that it didn't have!");
+                }
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void insertOutputs(List<StoredTransactionOutput> inserts) throws SQLException {
+        // An error aborts a Postgres transaction, so the batch goes in a savepoint to be able to carry on after one.
+        Savepoint savepoint = conn.get().setSavepoint();
+        PreparedStatement s = prepare(INSERT_OUTPUT_SQL);
+        try {
+            for (StoredTransactionOutput out : inserts) {
+                bindOutput(s, out);
+                s.addBatch();
+            }
+            s.executeBatch();
+            conn.get().releaseSavepoint(savepoint);
+            return;
+        } catch (BatchUpdateException e) {
+            s.clearBatch();
+            conn.get().rollback(savepoint);
+            if (!isDuplicateKeyError(e))
+                throw e;
+        }
+        // Outputs that are already there are fine, as they are for single inserts. Those are rare, so just insert one
+        // at a time to skip them.
+        for (StoredTransactionOutput out : inserts) {
+            savepoint = conn.get().setSavepoint();
+            try {
+                bindOutput(s, out);
+                s.executeUpdate();
+                conn.get().releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                conn.get().rollback(savepoint);
+                if (!(e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE)))
+                    throw e;
+            }
+        }
+    }
+
+    private static boolean isDuplicateKeyError(SQLException e) {
+        for (SQLException cause = e; cause != null; cause = cause.getNextException()) {
+            if (POSTGRES_DUPLICATE_KEY_ERROR_CODE.equals(cause.getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Loads the outputs with COPY, through the driver's copy API which is called reflectively so the driver isn't
+     * needed to compile. Returns false, with the transaction as it was, if that didn't work out.
+     */
+    private boolean copyOutputs(List<StoredTransactionOutput> inserts) throws SQLException {
+        StringBuilder rows = new StringBuilder();
+        for (StoredTransactionOutput out : inserts) {
+            AddressColumns columns = addressColumns(out);
+            // Text format, with bytea in hex and the backslash escaped for COPY.
+            rows.append("\\\\x").append(Utils.HEX.encode(out.getHash().getBytes())).append('\t');
+            rows.append((int)out.getIndex()).append('\t');
+            rows.append(out.getHeight()).append('\t');
+            rows.append("\\\\x").append(Utils.HEX.encode(BigInteger.valueOf(out.getValue().value).toByteArray())).append('\t');
+            rows.append("\\\\x").append(Utils.HEX.encode(out.getScriptBytes())).append('\t');
+            rows.append(columns.address).append('\t');
+            rows.append(columns.type).append('\n');
+        }
+        Savepoint savepoint = conn.get().setSavepoint();
+        try {
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            Connection connection = conn.get();
+            Object pgConnection = pgConnectionClass.isInstance(connection) ? connection : connection.unwrap(pgConnectionClass);
+            Object copyManager = pgConnectionClass.getMethod("getCopyAPI").invoke(pgConnection);
+            copyManager.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyManager,
+                    "COPY openOutputs (hash, index, height, value, scriptBytes, toAddress, addressTargetable) FROM STDIN",
+                    new StringReader(rows.toString()));
+            conn.get().releaseSavepoint(savepoint);
+            return true;
+        } catch (Exception e) {
+            log.warn("Could not COPY outputs, inserting them instead", e);
+            conn.get().rollback(savepoint);
+            return false;
+        }
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
 
@@ -873,6 +1275,8 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new OutputChangeBatch());
     }
 
     @Override
@@ -884,9 +1288,16 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
 
         try {
+            writePendingOutputs();
+            pendingOutputs.remove();
             conn.get().commit();
             conn.get().setAutoCommit(true);
+        } catch (BlockStoreException e) {
+            // Nothing aborts a failed commit, so undo the whole batch here.
+            abortDatabaseBatchWrite();
+            throw e;
         } catch (SQLException e) {
+            abortDatabaseBatchWrite();
             throw new BlockStoreException(e);
         }
     }
@@ -895,6 +1306,9 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
     public void abortDatabaseBatchWrite() throws BlockStoreException {
 
         maybeConnect();
+        pendingOutputs.remove();
+        // The rolled back changes may have included some to the mainChain table.
+        mainChainHeadHash = null;
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
 
@@ -912,11 +1326,23 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        OutputChangeBatch pending = pendingOutputs.get();
+        if (pending != null) {
+            boolean pendingDelete = false;
+            for (int i = 0; i < numOutputs; i++) {
+                if (pending.contains(hash, i)) {
+                    if (pending.get(hash, i) != null)
+                        return true;
+                    pendingDelete = true;
+                }
+            }
+            // The database can only answer once it has seen the deletes.
+            if (pendingDelete)
+                writePendingOutputs();
+        }
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get()
-                    .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
+            PreparedStatement s = prepare("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
             s.setBytes(1, hash.getBytes());
             ResultSet results = s.executeQuery();
             if (!results.next()) {
@@ -926,11 +1352,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
             return count != 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
         }
     }
 
@@ -943,11 +1364,10 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
-
-
+        // The balance has to include the changes of a batch write in progress.
+        writePendingOutputs();
         try {
-            s = conn.get().prepareStatement("select sum(('x'||lpad(substr(value::text, 3, 50),16,'0'))::bit(64)::bigint) "
+            PreparedStatement s = prepare("select sum(('x'||lpad(substr(value::text, 3, 50),16,'0'))::bit(64)::bigint) "
                     + "from openoutputs where toaddress = ?");
             s.setString(1, address.toString());
             ResultSet rs = s.executeQuery();
@@ -959,13 +1379,6 @@ public class PostgresFullPrunedBlockStore implements FullPrunedBlockStore {
 
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Could not close statement");
-                }
         }
     }
 
@@ -0,0 +1,45 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} whose old undo data can be removed, and the space it took given back, by
+ * something other than the thread connecting blocks. Normally every new verified chain head deletes the undo data
+ * that has fallen more than the full store depth behind it, which puts a delete on the path of each block connected.
+ * With deferred pruning that is left to {@link #pruneUndoableBlocks(int)}, which a {@link FullPrunedStoreMaintenance}
+ * calls from a thread of its own.</p>
+ */
+public interface PrunableBlockStore extends FullPrunedBlockStore {
+    /**
+     * Sets whether {@link #setVerifiedChainHead(io.mappum.altcoinj.core.StoredBlock)} leaves old undo data for
+     * {@link #pruneUndoableBlocks(int)} to remove. Off by default.
+     */
+    void setDeferredPruning(boolean deferred);
+
+    /**
+     * Removes the undo data of at most {@code maxBlocks} blocks more than the full store depth below the verified
+     * chain head, and returns how many it removed. Fewer than {@code maxBlocks} means there are none left.
+     */
+    int pruneUndoableBlocks(int maxBlocks) throws BlockStoreException;
+
+    /**
+     * Gives back the space of removed undo data and spent outputs, as far as the underlying database can. This may
+     * take a while and, depending on the store, hold up everything else using it. See the implementations.
+     */
+    void compact() throws BlockStoreException;
+
+    /** Returns the number of bytes the store takes on disk. */
+    long getDiskSize() throws BlockStoreException;
+}
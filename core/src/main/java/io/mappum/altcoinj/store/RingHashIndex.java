@@ -0,0 +1,142 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>An open addressing hash table from block hashes to the slots of the {@link SPVBlockStore} ring that hold them,
+ * so that any header in the ring can be found without scanning it. The table only keeps slot numbers and a 32 bit
+ * fingerprint of each hash, the full hashes stay in the ring and are compared there to confirm a match.</p>
+ *
+ * <p>It lives on the heap and is rebuilt from the ring whenever a store is opened, which takes one pass over the
+ * hashes. Uses linear probing with backward shift deletion, so there are no tombstones to clean up as the ring
+ * wraps around and overwrites old headers. Changes need the store's lock. {@link #find(byte[])} may run concurrently
+ * with them, in which case its answer is only good if the store finds no write happened meanwhile.</p>
+ */
+class RingHashIndex {
+    private static final int HASH_LENGTH = 32;
+
+    private final ByteBuffer ring;
+    private final int firstRecordOffset;
+    private final int recordSize;
+    private final int mask;
+    private final int shift;
+    // slots[i] is the ring slot plus one, zero for an empty entry.
+    private final int[] slots;
+    private final int[] fingerprints;
+
+    /**
+     * @param ring The buffer holding the ring. Each record starts with the 32 byte hash of its header.
+     * @param firstRecordOffset The position of slot 0 in the buffer.
+     * @param recordSize The size of each record.
+     * @param numSlots The number of records in the ring.
+     */
+    RingHashIndex(ByteBuffer ring, int firstRecordOffset, int recordSize, int numSlots) {
+        this.ring = ring;
+        this.firstRecordOffset = firstRecordOffset;
+        this.recordSize = recordSize;
+        // Keep the table at most half full so probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(numSlots, 8) * 2 - 1) << 1;
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        this.slots = new int[capacity];
+        this.fingerprints = new int[capacity];
+    }
+
+    // The last four bytes, as the first ones of block hashes are mostly zeros.
+    private static int fingerprint(byte[] hash) {
+        return (hash[28] & 0xFF) << 24 | (hash[29] & 0xFF) << 16 | (hash[30] & 0xFF) << 8 | (hash[31] & 0xFF);
+    }
+
+    private int home(int fingerprint) {
+        // Fibonacci hashing, the top bits of the product are the best mixed.
+        return (fingerprint * 0x9E3779B9) >>> shift;
+    }
+
+    private boolean hashAtSlotEquals(int slot, byte[] hash) {
+        int offset = firstRecordOffset + slot * recordSize;
+        for (int i = HASH_LENGTH - 1; i >= 0; i--) {
+            if (ring.get(offset + i) != hash[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Returns the table position of the given hash, or of the empty entry where it would go. A reader racing with a
+    // change may see a table with no empty entry, so it gives up after trying every position and returns -1.
+    private int position(byte[] hash, int fingerprint) {
+        int i = home(fingerprint);
+        for (int probes = 0; slots[i] != 0; probes++) {
+            if (probes > mask)
+                return -1;
+            if (fingerprints[i] == fingerprint && hashAtSlotEquals(slots[i] - 1, hash))
+                return i;
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /** Returns the slot holding the given hash, or -1 if it is not in the ring. */
+    int find(byte[] hash) {
+        int i = position(hash, fingerprint(hash));
+        return i < 0 ? -1 : slots[i] - 1;
+    }
+
+    /**
+     * Records that the given slot now holds the given hash. If the hash was already in another slot, the index moves
+     * to the new one, which makes lookups return the latest record like the old ring scan did.
+     */
+    void add(byte[] hash, int slot) {
+        int fingerprint = fingerprint(hash);
+        int i = position(hash, fingerprint);
+        slots[i] = slot + 1;
+        fingerprints[i] = fingerprint;
+    }
+
+    /** Forgets the given hash if the index has it at the given slot, because that slot is about to be overwritten. */
+    void remove(byte[] hash, int slot) {
+        int fingerprint = fingerprint(hash);
+        int i = home(fingerprint);
+        while (slots[i] != slot + 1) {
+            if (slots[i] == 0)
+                return;
+            i = (i + 1) & mask;
+        }
+        // Shift later entries of the probe sequence back into the gap, so lookups never stop early.
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (slots[j] == 0)
+                break;
+            int h = home(fingerprints[j]);
+            // Move the entry unless its home lies cyclically in (gap, j].
+            boolean homeBetween = gap <= j ? (gap < h && h <= j) : (gap < h || h <= j);
+            if (!homeBetween) {
+                slots[gap] = slots[j];
+                fingerprints[gap] = fingerprints[j];
+                gap = j;
+            }
+        }
+        slots[gap] = 0;
+    }
+
+    /** Forgets everything. */
+    void clear() {
+        Arrays.fill(slots, 0);
+    }
+}
@@ -18,6 +18,9 @@ package io.mappum.altcoinj.store;
 
 import io.mappum.altcoinj.core.*;
 import io.mappum.altcoinj.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.Files;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,8 +33,8 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -39,23 +42,59 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Writes take the store's lock, reads don't: {@link #get(Sha256Hash)}, {@link #getByHeight(int)} and
+ * {@link #getChainHead()} read optimistically and start over if a write happened meanwhile, so that during a header
+ * sync the peers and wallets looking up blocks aren't held up by the chain writing new ones. When the writes get
+ * forced out to disk is set with {@link #setFlushPolicy(int, long)}.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
-    /** The default number of headers that will be stored in the ring buffer. */
+    /**
+     * The default number of headers that will be stored in the ring buffer for chains with ten minute blocks. See
+     * {@link NetworkParameters#getSpvBlockStoreCapacity()} for other chains.
+     */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    /** Magic of stores whose records also hold the proof of work hash of each header. */
+    public static final String HEADER_MAGIC_WITH_POW_HASH = "SPVP";
 
     protected volatile MappedByteBuffer buffer;
     protected int numHeaders;
     protected NetworkParameters params;
+    protected boolean storePowHashes;
+    protected int recordSize;
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
+    // Bumped by writers when they start and when they finish changing the ring, its indexes or the chain head, so it is
+    // odd while a write is in progress. Readers don't take the lock but start over if it moved while they read. They
+    // check it with a compareAndSet of the value they started with rather than a plain get, because a volatile write
+    // keeps their reads of the buffer before it, which a volatile read doesn't.
+    private final AtomicInteger writeSequence = new AtomicInteger();
+    // Optimistic reads tried before a reader takes the lock after all.
+    private static final int OPTIMISTIC_READ_ATTEMPTS = 8;
+
+    // See setFlushPolicy(), zero for off.
+    private volatile int forceEveryHeaders;
+    private volatile long forceEveryMillis;
+    private final AtomicInteger headersSinceForce = new AtomicInteger();
+    private volatile long lastForceTime = Utils.currentTimeMillis();
+    // Held while forcing the buffer out to disk, which is done without the main lock.
+    private final ReentrantLock forceLock = Threading.lock("SPVBlockStore force");
+
+    // Finds headers in the ring by hash, so a cache miss doesn't have to scan the whole ring. This and the main chain
+    // index are changed with the lock held and read without it, see writeSequence.
+    private RingHashIndex index;
+    // The slot plus one of each header on the main chain, at its height modulo the number of headers. Entries are
+    // checked against the height in the record, and dropped when their record is overwritten.
+    private int[] mainChainSlots;
+    private int mainChainTop = -1;
+
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
     //
@@ -63,49 +102,121 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    // They are concurrent as readers fill them without the lock.
+    protected final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected final Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store. Will create the given file if it's missing. The ring holds
+     * {@link NetworkParameters#getSpvBlockStoreCapacity()} headers, and an existing file that is smaller than that is
+     * grown to it, on a copy that then replaces the file. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store. Will create the given file if it's missing, recording the proof of
+     * work hash of every header if {@code storePowHashes} is set. This makes records 32 bytes larger, but headers read
+     * back from the store don't need their Scrypt or merge mined proof of work recomputed when checked again. An
+     * existing file keeps the layout it was created with. The ring holds
+     * {@link NetworkParameters#getSpvBlockStoreCapacity()} headers, and an existing file that is smaller than that is
+     * grown to it, on a copy that then replaces the file. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, boolean storePowHashes) throws BlockStoreException {
+        this(params, file, params.getSpvBlockStoreCapacity(), storePowHashes, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store whose ring holds the given number of headers. Will create the given
+     * file if it's missing, and an existing file of another size is resized like {@link #resize(int)} does, keeping the
+     * newest headers in it. The resize is done on a copy of the file, which then replaces it, so a crash can't leave the
+     * file half resized. See {@link #SPVBlockStore(NetworkParameters, File, boolean)} for {@code storePowHashes}.
+     * This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int numHeaders, boolean storePowHashes)
+            throws BlockStoreException {
+        this(params, file, numHeaders, storePowHashes, true);
+    }
+
+    private SPVBlockStore(NetworkParameters params, File file, int numHeaders, boolean storePowHashes,
+                          boolean allowShrink) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(numHeaders > 0, "numHeaders must be positive");
         this.params = checkNotNull(params);
+        open(file, numHeaders, storePowHashes);
+        if (numHeaders > this.numHeaders || (allowShrink && numHeaders < this.numHeaders)) {
+            close();
+            resizeFile(file, numHeaders);
+            open(file, numHeaders, storePowHashes);
+        }
+    }
+
+    // Resizes the store in the given file, which must not be open, without ever leaving the file itself half written:
+    // the resize is done on a copy, which then replaces the original.
+    private void resizeFile(File file, int numHeaders) throws BlockStoreException {
+        File copy = new File(file.getPath() + ".resize");
+        boolean keepCopy = false;
+        try {
+            Files.copy(file, copy);
+            // Asking for a single header keeps the copy at the size it has.
+            SPVBlockStore store = new SPVBlockStore(params, copy, 1, storePowHashes, false);
+            try {
+                store.resize(numHeaders);
+            } finally {
+                store.close();
+            }
+            // Renaming over the original is atomic on POSIX systems, Windows won't do it and needs the original gone.
+            if (!copy.renameTo(file) && !(file.delete() && copy.renameTo(file))) {
+                keepCopy = !file.exists();
+                throw new BlockStoreException("Could not replace " + file + " with its resized copy " + copy);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (!keepCopy)
+                copy.delete();
+        }
+    }
+
+    private void open(File file, int numHeaders, boolean storePowHashes) throws BlockStoreException {
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
-            long fileSize = getFileSize();
+            if (exists && randomAccessFile.length() >= 4) {
+                byte[] magic = new byte[4];
+                randomAccessFile.readFully(magic);
+                storePowHashes = new String(magic, "US-ASCII").equals(HEADER_MAGIC_WITH_POW_HASH);
+            }
+            this.storePowHashes = storePowHashes;
+            this.recordSize = storePowHashes ? RECORD_SIZE_WITH_POW_HASH : RECORD_SIZE;
             if (!exists) {
+                this.numHeaders = numHeaders;
                 log.info("Creating new SPV block chain file " + file);
-                randomAccessFile.setLength(fileSize);
-            } else if (randomAccessFile.length() != fileSize) {
-                throw new BlockStoreException("File size on disk does not match expected size: " +
-                        randomAccessFile.length() + " vs " + fileSize);
+                randomAccessFile.setLength(getFileSize());
+            } else {
+                // The capacity of an existing store is whatever its size says.
+                long records = randomAccessFile.length() - FILE_PROLOGUE_BYTES;
+                if (records < recordSize || records % recordSize != 0 || records > Integer.MAX_VALUE - FILE_PROLOGUE_BYTES)
+                    throw new BlockStoreException("File size on disk does not match any number of headers: " +
+                            randomAccessFile.length());
+                this.numHeaders = (int) (records / recordSize);
             }
+            long fileSize = getFileSize();
 
             FileChannel channel = randomAccessFile.getChannel();
             fileLock = channel.tryLock();
@@ -118,14 +229,23 @@ public class SPVBlockStore implements BlockStore {
             // always be correct. Once we establish the mmap the underlying file and channel can go away. Note that
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            index = new RingHashIndex(buffer, FILE_PROLOGUE_BYTES, recordSize, this.numHeaders);
+            mainChainSlots = new int[this.numHeaders];
+            mainChainTop = -1;
+            // Left over from before a resize.
+            blockCache.invalidateAll();
+            notFoundCache.invalidateAll();
 
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             byte[] header;
             if (exists) {
                 header = new byte[4];
                 buffer.get(header);
-                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
-                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                String magic = storePowHashes ? HEADER_MAGIC_WITH_POW_HASH : HEADER_MAGIC;
+                if (!new String(header, "US-ASCII").equals(magic))
+                    throw new BlockStoreException("Header bytes do not equal " + magic);
+                buildIndex();
+                indexMainChainFromHead();
             } else {
                 initNewStore(params);
             }
@@ -141,7 +261,7 @@ public class SPVBlockStore implements BlockStore {
 
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
-        header = HEADER_MAGIC.getBytes("US-ASCII");
+        header = (storePowHashes ? HEADER_MAGIC_WITH_POW_HASH : HEADER_MAGIC).getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
         lock.lock();
@@ -156,87 +276,298 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    // Indexes every record in the ring, oldest first so that if a hash was stored twice the latest record wins.
+    private void buildIndex() {
+        lock.lock();
+        try {
+            int cursorSlot = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / recordSize;
+            byte[] hash = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                int slot = (cursorSlot + i) % numHeaders;
+                if (readHash(slot, hash))
+                    index.add(hash, slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reads the hash of the record in the given slot, returning false if the slot was never written.
+    private boolean readHash(int slot, byte[] hash) {
+        buffer.position(FILE_PROLOGUE_BYTES + slot * recordSize);
+        buffer.get(hash);
+        for (byte b : hash) {
+            if (b != 0)
+                return true;
+        }
+        return false;
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
-        return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
+        return recordSize * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
+    }
+
+    /** Returns the number of headers the ring buffer holds. */
+    public int getNumHeaders() {
+        return numHeaders;
+    }
+
+    /**
+     * Changes the number of headers the ring buffer holds and remaps the file to the new size, so a store can follow
+     * a change of {@link NetworkParameters#getSpvBlockStoreCapacity()} without syncing the chain again. The newest
+     * headers are kept, as many as fit, and the chain head has to be one of them. The file is inconsistent while this
+     * runs, so a crash in the middle means starting over from a checkpoint. Opening the store with
+     * {@link #SPVBlockStore(NetworkParameters, File, int, boolean)} resizes it without that risk, but the store is
+     * closed meanwhile. This operation will block on disk.
+     */
+    public void resize(int newNumHeaders) throws BlockStoreException {
+        checkArgument(newNumHeaders > 0, "newNumHeaders must be positive");
+        lock.lock();
+        writeSequence.incrementAndGet();
+        try {
+            MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
+            if (newNumHeaders == numHeaders)
+                return;
+            log.info("Resizing SPV block store from {} to {} headers", numHeaders, newNumHeaders);
+
+            // Copy out the records to keep, newest first, and check the chain head is one of them.
+            byte[] headHash = new byte[32];
+            buffer.position(8);
+            buffer.get(headHash);
+            boolean keepsHead = false;
+            int cursorSlot = ((getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / recordSize) % numHeaders;
+            byte[] records = new byte[Math.min(numHeaders, newNumHeaders) * recordSize];
+            byte[] hash = new byte[32];
+            int kept = 0;
+            for (int i = 1; i <= numHeaders && kept * recordSize < records.length; i++) {
+                int slot = (cursorSlot - i + numHeaders) % numHeaders;
+                if (!readHash(slot, hash))
+                    continue;
+                keepsHead |= Arrays.equals(hash, headHash);
+                buffer.position(FILE_PROLOGUE_BYTES + slot * recordSize);
+                buffer.get(records, kept * recordSize, recordSize);
+                kept++;
+            }
+            if (!keepsHead)
+                throw new BlockStoreException("The chain head would not fit in " + newNumHeaders + " headers");
+
+            int oldNumHeaders = numHeaders;
+            buffer.force();
+            numHeaders = newNumHeaders;
+            randomAccessFile.setLength(getFileSize());
+            // The old mapping is left for the GC to unmap.
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, getFileSize());
+            this.buffer = buffer;
+
+            // Write them back oldest first from the start of the ring, and wipe whatever was left behind them.
+            buffer.position(FILE_PROLOGUE_BYTES);
+            for (int i = kept - 1; i >= 0; i--)
+                buffer.put(records, i * recordSize, recordSize);
+            setRingCursor(buffer, buffer.position());
+            byte[] empty = new byte[recordSize];
+            for (int slot = kept; slot < Math.min(oldNumHeaders, newNumHeaders); slot++)
+                buffer.put(empty);
+            index = new RingHashIndex(buffer, FILE_PROLOGUE_BYTES, recordSize, newNumHeaders);
+            for (int slot = 0; slot < kept; slot++) {
+                readHash(slot, hash);
+                index.add(hash, slot);
+            }
+            mainChainSlots = new int[newNumHeaders];
+            mainChainTop = -1;
+            indexMainChainFromHead();
+            // Headers that were dropped mustn't be served from the cache.
+            blockCache.invalidateAll();
+            notFoundCache.invalidateAll();
+            buffer.force();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            writeSequence.incrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Sets when writes are forced out to disk with {@link MappedByteBuffer#force()}. By default that is only done on
+     * {@link #close()}, and otherwise left to the operating system, which writes the mapped file back when it likes. A
+     * crash of the process loses nothing either way, but one of the machine can lose the headers and chain head of the
+     * last while, which then have to be downloaded again.</p>
+     *
+     * <p>With a policy set the store forces the file once {@code headers} headers have been put since the last time,
+     * or on the first write after {@code millis} milliseconds have passed, whichever comes first. Zero turns either
+     * off. The writing thread does it after letting go of the store's lock, so readers and other writers carry on
+     * meanwhile, and writers that come due while one is running leave it to that one and the next.</p>
+     */
+    public void setFlushPolicy(int headers, long millis) {
+        checkArgument(headers >= 0 && millis >= 0, "Negative flush policy");
+        this.forceEveryHeaders = headers;
+        this.forceEveryMillis = millis;
+    }
+
+    // Forces the buffer out if the flush policy says so, counting the given number of new headers. Called without the
+    // lock.
+    private void maybeForce(int newHeaders) {
+        int everyHeaders = forceEveryHeaders;
+        long everyMillis = forceEveryMillis;
+        if (everyHeaders == 0 && everyMillis == 0)
+            return;
+        int pending = headersSinceForce.addAndGet(newHeaders);
+        boolean due = (everyHeaders > 0 && pending >= everyHeaders)
+                || (everyMillis > 0 && Utils.currentTimeMillis() - lastForceTime >= everyMillis);
+        if (!due || !forceLock.tryLock())
+            return;
+        try {
+            MappedByteBuffer buffer = this.buffer;
+            if (buffer == null)
+                return;
+            headersSinceForce.set(0);
+            lastForceTime = Utils.currentTimeMillis();
+            buffer.force();
+        } finally {
+            forceLock.unlock();
+        }
     }
 
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
+        writeSequence.incrementAndGet();
         try {
+            // Taken with the lock held, as resize() replaces the mapping.
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             int cursor = getRingCursor(buffer);
             if (cursor == getFileSize()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int slot = (cursor - FILE_PROLOGUE_BYTES) / recordSize;
+            byte[] overwritten = new byte[32];
+            if (readHash(slot, overwritten)) {
+                index.remove(overwritten, slot);
+                int height = recordHeight(slot);
+                if (height >= 0 && mainChainSlots[height % numHeaders] == slot + 1)
+                    mainChainSlots[height % numHeaders] = 0;
+            }
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            notFoundCache.invalidate(hash);
             buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
+            block.serializeCompact(buffer, storePowHashes);
             setRingCursor(buffer, buffer.position());
+            index.add(hash.getBytes(), slot);
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            writeSequence.incrementAndGet();
+            lock.unlock();
+        }
+        maybeForce(1);
     }
 
-    @Override
-    @Nullable
-    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+    // A read of the ring that may run without the lock. It may then see a write half done and return nonsense or throw,
+    // which read() catches by checking the write sequence afterwards.
+    private interface RingRead {
+        @Nullable
+        StoredBlock read() throws BlockStoreException, ProtocolException;
+    }
 
+    // Runs the read optimistically, and under the lock if writes keep getting in the way. If cacheAs is given the result
+    // goes in the caches under that hash, but only once the read has been checked, so that nothing torn is ever
+    // published. A put() of the hash between the check and the cache insert could be undone by it, so the sequence is
+    // checked again afterwards and the entry taken out if a write got in.
+    @Nullable
+    private StoredBlock read(RingRead read, @Nullable Sha256Hash cacheAs) throws BlockStoreException {
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            int sequence = writeSequence.get();
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            StoredBlock block;
+            try {
+                block = read.read();
+            } catch (ProtocolException e) {
+                continue;
+            } catch (RuntimeException e) {
+                continue;
+            }
+            if (!writeSequence.compareAndSet(sequence, sequence))
+                continue;
+            if (cacheAs != null) {
+                cache(cacheAs, block);
+                if (!writeSequence.compareAndSet(sequence, sequence))
+                    uncache(cacheAs, block);
+            }
+            return block;
+        }
         lock.lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            StoredBlock block = read.read();
+            if (cacheAs != null)
+                cache(cacheAs, block);
+            return block;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    private void cache(Sha256Hash hash, @Nullable StoredBlock block) {
+        if (block != null)
+            blockCache.put(hash, block);
+        else
+            notFoundCache.put(hash, notFoundMarker);
+    }
+
+    private void uncache(Sha256Hash hash, @Nullable StoredBlock block) {
+        if (block != null)
+            blockCache.invalidate(hash);
+        else
+            notFoundCache.invalidate(hash);
+    }
+
+    // Reads the record in the given slot, through a view of the buffer with its own position so that concurrent
+    // readers don't get in each other's way.
+    private StoredBlock readRecord(ByteBuffer buffer, int slot) throws ProtocolException {
+        ByteBuffer view = buffer.duplicate();
+        view.position(FILE_PROLOGUE_BYTES + slot * recordSize + 32);
+        return StoredBlock.deserializeCompact(params, view, storePowHashes);
+    }
 
     @Override
-    public StoredBlock getChainHead() throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+    @Nullable
+    public StoredBlock get(final Sha256Hash hash) throws BlockStoreException {
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+        return read(new RingRead() {
+            @Nullable
+            @Override
+            public StoredBlock read() throws BlockStoreException, ProtocolException {
+                final MappedByteBuffer buffer = SPVBlockStore.this.buffer;
+                if (buffer == null) throw new BlockStoreException("Store closed");
+                int slot = index.find(hash.getBytes());
+                if (slot < 0)
+                    return null;
+                return readRecord(buffer, slot);
+            }
+        }, hash);
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        StoredBlock head = lastChainHead;
+        if (head != null && buffer != null)
+            return head;
         lock.lock();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
                 buffer.position(8);
@@ -253,30 +584,135 @@ public class SPVBlockStore implements BlockStore {
 
     @Override
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
-
         lock.lock();
+        writeSequence.incrementAndGet();
         try {
+            final MappedByteBuffer buffer = this.buffer;
+            if (buffer == null) throw new BlockStoreException("Store closed");
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+            indexMainChain(headHash);
+        } finally {
+            writeSequence.incrementAndGet();
+            lock.unlock();
+        }
+        maybeForce(0);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getByHeight(final int height) throws BlockStoreException {
+        return read(new RingRead() {
+            @Nullable
+            @Override
+            public StoredBlock read() throws BlockStoreException, ProtocolException {
+                final MappedByteBuffer buffer = SPVBlockStore.this.buffer;
+                if (buffer == null) throw new BlockStoreException("Store closed");
+                int[] mainChainSlots = SPVBlockStore.this.mainChainSlots;
+                int numHeaders = mainChainSlots.length;
+                int top = mainChainTop;
+                if (height < 0 || height > top || top - height >= numHeaders)
+                    return null;
+                int slot = mainChainSlots[height % numHeaders] - 1;
+                if (slot < 0 || recordHeight(buffer, slot) != height)
+                    return null;
+                return readRecord(buffer, slot);
+            }
+        }, null);
+    }
+
+    @Override
+    public Iterator<StoredBlock> getRange(int fromHeight, int toHeight) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        return new MainChainIterator(this, fromHeight, toHeight);
+    }
+
+    private void indexMainChainFromHead() {
+        lock.lock();
+        try {
+            byte[] headHash = new byte[32];
+            buffer.position(8);
+            buffer.get(headHash);
+            indexMainChain(headHash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Updates the main chain index for a new chain head, walking back from it until the headers are indexed already.
+    // During a sync that is one step per header, after a re-org it is the depth of the re-org.
+    private void indexMainChain(byte[] headHash) {
+        int slot = index.find(headHash);
+        if (slot < 0) {
+            Arrays.fill(mainChainSlots, 0);
+            mainChainTop = -1;
+            return;
+        }
+        int top = recordHeight(slot);
+        // Heights above the new head belong to a chain that was left behind.
+        for (int height = top + 1; height <= mainChainTop && height - top <= numHeaders; height++)
+            mainChainSlots[height % numHeaders] = 0;
+        mainChainTop = top;
+        byte[] hash = new byte[32];
+        int height = top;
+        while (mainChainSlots[height % numHeaders] != slot + 1) {
+            mainChainSlots[height % numHeaders] = slot + 1;
+            if (height == 0 || top - height == numHeaders - 1)
+                return;
+            readPrevHash(slot, hash);
+            slot = index.find(hash);
+            height--;
+            if (slot < 0) {
+                // Whatever is indexed below the gap can't be known to lead to the new head.
+                for (; height >= 0 && top - height < numHeaders; height--)
+                    mainChainSlots[height % numHeaders] = 0;
+                return;
+            }
+        }
+    }
+
+    private int recordHeight(int slot) {
+        return recordHeight(buffer, slot);
+    }
+
+    private int recordHeight(ByteBuffer buffer, int slot) {
+        return buffer.getInt(FILE_PROLOGUE_BYTES + slot * recordSize + 32 + StoredBlock.CHAIN_WORK_BYTES);
+    }
+
+    // Reads the hash of the previous block from the header in the given slot.
+    private void readPrevHash(int slot, byte[] hash) {
+        buffer.position(FILE_PROLOGUE_BYTES + slot * recordSize + 32 + StoredBlock.CHAIN_WORK_BYTES + 4 + 4);
+        buffer.get(hash);
+        // Headers hold hashes in little endian order.
+        for (int i = 0; i < 16; i++) {
+            byte b = hash[i];
+            hash[i] = hash[31 - i];
+            hash[31 - i] = b;
+        }
     }
 
     @Override
     public void close() throws BlockStoreException {
+        lock.lock();
+        forceLock.lock();
+        writeSequence.incrementAndGet();
         try {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            writeSequence.incrementAndGet();
+            forceLock.unlock();
+            lock.unlock();
         }
     }
 
     protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    protected static final int RECORD_SIZE_WITH_POW_HASH = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE_WITH_POW_HASH;
 
     // File format:
     //   4 header bytes = "SPVB"
@@ -288,6 +724,11 @@ public class SPVBlockStore implements BlockStore {
     //   12 bytes of chain work
     //    4 bytes of height
     //   80 bytes of block header data
+    //
+    // Stores created with storePowHashes start with "SPVP" instead, and each header (160 bytes) is followed by
+    //   32 bytes proof of work hash of the header
+    //
+    // The number of headers follows from the size of the file.
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
@@ -249,6 +249,73 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testParseInPlace() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        Transaction expected = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        // Two messages after some garbage, in a heap buffer that starts part way into its array.
+        byte[] stream = new byte[5 + txMessage.length + addrMessage.length + txMessage.length];
+        System.arraycopy(txMessage, 0, stream, 5, txMessage.length);
+        System.arraycopy(addrMessage, 0, stream, 5 + txMessage.length, addrMessage.length);
+        System.arraycopy(txMessage, 0, stream, 5 + txMessage.length + addrMessage.length, txMessage.length);
+        ByteBuffer in = ByteBuffer.wrap(stream, 2, stream.length - 2).slice();
+        for (ByteBuffer buffer : Arrays.asList(in, ByteBuffer.allocateDirect(in.remaining()).put(in.duplicate()))) {
+            buffer.rewind();
+            Transaction tx = (Transaction) bs.deserialize(buffer);
+            assertEquals(expected.getHash(), tx.getHash());
+            assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+            assertTrue(bs.deserialize(buffer) instanceof AddressMessage);
+            assertEquals(expected, bs.deserialize(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testMessageLongerThanPayload() throws Exception {
+        // A transaction whose header claims one byte less than it takes, checksummed to match, followed by the rest.
+        int size = txMessage.length - 24;
+        byte[] shortened = Arrays.copyOf(txMessage, txMessage.length + 10);
+        Utils.uint32ToByteArrayLE(size - 1, shortened, 16);
+        System.arraycopy(Utils.doubleDigest(shortened, 24, size - 1), 0, shortened, 20, 4);
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        for (ByteBuffer buffer : Arrays.asList(ByteBuffer.wrap(shortened),
+                ByteBuffer.allocateDirect(shortened.length).put(shortened))) {
+            buffer.rewind();
+            try {
+                bs.deserialize(buffer);
+                fail();
+            } catch (ProtocolException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testOwnedPayload() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
+        ByteBuffer in = ByteBuffer.wrap(txMessage);
+        bs.seekPastMagicBytes(in);
+        BitcoinSerializer.BitcoinPacketHeader header = bs.deserializeHeader(in);
+        assertEquals("tx", header.command);
+        byte[] payload = Arrays.copyOfRange(txMessage, 24, txMessage.length);
+        Transaction tx = (Transaction) bs.deserializePayload(header, payload, Utils.doubleDigest(payload));
+        assertArrayEquals(payload, tx.bitcoinSerialize());
+        assertEquals(tx, bs.deserializePayload(header, payload, null));
+        try {
+            bs.deserializePayload(header, payload, new byte[32]);
+            fail();
+        } catch (ProtocolException e) {
+            // expected
+        }
+
+        // Commands we don't know still come through.
+        byte[] unknown = addrMessage.clone();
+        unknown[4 + 4] = 'z';
+        in = ByteBuffer.wrap(unknown);
+        bs.seekPastMagicBytes(in);
+        assertEquals("addrz", bs.deserializeHeader(in).command);
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
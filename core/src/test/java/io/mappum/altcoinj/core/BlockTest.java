@@ -17,6 +17,7 @@
 
 package io.mappum.altcoinj.core;
 
+import io.mappum.altcoinj.params.LitecoinMainNetParams;
 import io.mappum.altcoinj.params.TestNet2Params;
 import io.mappum.altcoinj.params.UnitTestParams;
 import io.mappum.altcoinj.script.ScriptOpCodes;
@@ -59,6 +60,26 @@ public class BlockTest {
         assertEquals("00000000a6e5eb79dcec11897af55e90cd571a4335383a3ccfbc12ec81085935", block.getHashAsString());
     }
     
+    @Test
+    public void testPowHashCached() throws Exception {
+        // Bitcoin checks the proof of work against the block hash itself.
+        Block block = new Block(params, blockBytes);
+        assertSame(block.getHash(), block.getPowHash());
+        block.setNonce(12346);
+        assertEquals(block.getHash(), block.getPowHash());
+
+        // Litecoin uses scrypt, which is only computed once.
+        NetworkParameters litecoin = LitecoinMainNetParams.get();
+        Block genesis = litecoin.getGenesisBlock().cloneAsHeader();
+        Sha256Hash powHash = genesis.getPowHash();
+        assertEquals(litecoin.getProofOfWork().getHash(genesis), powHash);
+        assertNotEquals(genesis.getHash(), powHash);
+        assertSame(powHash, genesis.getPowHash());
+        assertSame(powHash, genesis.cloneAsHeader().getPowHash());
+        genesis.setNonce(genesis.getNonce() + 1);
+        assertNotEquals(powHash, genesis.getPowHash());
+    }
+
     @SuppressWarnings("deprecation")
     @Test
     public void testDate() throws Exception {
@@ -0,0 +1,22 @@
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.CachingFullPrunedBlockStore;
+import io.mappum.altcoinj.store.FullPrunedBlockStore;
+import io.mappum.altcoinj.store.MemoryFullPrunedBlockStore;
+
+/**
+ * Runs the FullPrunedBlockStoreTest through a write-back cache that evicts outputs all the time. It writes back after
+ * every block, as the tests expect undo data to be pruned as soon as a block is deep enough.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, blockCount), 50, 8 * 1024, -1);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        //No-op for memory store, because it's not persistent
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.params.UnitTestParams;
+import io.mappum.altcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompactOutputCodecTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private final Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+    private static final long MAX_MONEY = Coin.COIN.multiply(21000000).value;
+
+    @Test
+    public void amounts() throws Exception {
+        // The same values as the reference client's tests.
+        assertEquals(0x0, CompactOutputCodec.compressAmount(0));
+        assertEquals(0x1, CompactOutputCodec.compressAmount(1));
+        assertEquals(0x7, CompactOutputCodec.compressAmount(Coin.CENT.value));
+        assertEquals(0x9, CompactOutputCodec.compressAmount(Coin.COIN.value));
+        assertEquals(0x32, CompactOutputCodec.compressAmount(Coin.FIFTY_COINS.value));
+        assertEquals(0x1406f40, CompactOutputCodec.compressAmount(MAX_MONEY));
+
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long amount = i < 1000 ? i : (random.nextLong() & Long.MAX_VALUE) % (MAX_MONEY + 1);
+            assertEquals(amount, CompactOutputCodec.decompressAmount(CompactOutputCodec.compressAmount(amount)));
+        }
+        for (long amount = 1; amount <= MAX_MONEY; amount *= 10)
+            assertEquals(amount, CompactOutputCodec.decompressAmount(CompactOutputCodec.compressAmount(amount)));
+    }
+
+    private StoredTransactionOutput roundTrip(byte[] script, int expectedSize) throws Exception {
+        StoredTransactionOutput out = new StoredTransactionOutput(hash, 3, Coin.COIN, 100, true, script);
+        byte[] encoded = CompactOutputCodec.encode(out);
+        assertEquals(expectedSize, encoded.length);
+        StoredTransactionOutput decoded = CompactOutputCodec.decode(hash, 3, encoded);
+        assertEquals(out, decoded);
+        assertArrayEquals(script, decoded.getScriptBytes());
+        assertEquals(Coin.COIN, decoded.getValue());
+        assertEquals(100, decoded.getHeight());
+        return decoded;
+    }
+
+    @Test
+    public void scripts() throws Exception {
+        ECKey key = new ECKey();
+        // Height 100 as a coinbase takes two bytes, the amount one.
+        roundTrip(ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram(), 3 + 21);
+        roundTrip(ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram(), 3 + 21);
+        roundTrip(ScriptBuilder.createOutputScript(key).getProgram(), 3 + 33);
+        roundTrip(ScriptBuilder.createOutputScript(key.decompress()).getProgram(), 3 + 33);
+        byte[] other = new byte[] {0x6a, 1, 2, 3};
+        roundTrip(other, 3 + 1 + other.length);
+        roundTrip(new byte[0], 3 + 1);
+
+        // Something that looks like an uncompressed key but isn't on the curve is kept as it is.
+        byte[] notOnCurve = ScriptBuilder.createOutputScript(key.decompress()).getProgram();
+        notOnCurve[40] ^= 1;
+        roundTrip(notOnCurve, 3 + 1 + notOnCurve.length);
+    }
+
+    @Test
+    public void nonCoinbase() throws Exception {
+        StoredTransactionOutput out = new StoredTransactionOutput(hash, 1, Coin.CENT, 1000, false, new byte[] {1});
+        StoredTransactionOutput decoded = CompactOutputCodec.decode(hash, 1, CompactOutputCodec.encode(out));
+        assertEquals(out.getHeight(), decoded.getHeight());
+        assertEquals(Coin.CENT, decoded.getValue());
+    }
+
+    @Test
+    public void undoData() throws Exception {
+        ECKey key = new ECKey();
+        StoredTransactionOutput created = new StoredTransactionOutput(hash, 0, Coin.COIN, 5, true,
+                ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram());
+        StoredTransactionOutput spent = new StoredTransactionOutput(Sha256Hash.create(new byte[] {2}), 70000,
+                Coin.valueOf(123456789), 0, false, new byte[] {0x51});
+        TransactionOutputChanges changes = new TransactionOutputChanges(Arrays.asList(created, spent),
+                Arrays.asList(spent));
+
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        changes.serializeCompactToStream(compact);
+        ByteArrayOutputStream full = new ByteArrayOutputStream();
+        changes.serializeToStream(full);
+        assertTrue(compact.size() < full.size());
+
+        // The stream constructor reads both forms.
+        for (ByteArrayOutputStream bos : Arrays.asList(compact, full)) {
+            TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(bos.toByteArray()));
+            assertEquals(changes.txOutsCreated, read.txOutsCreated);
+            assertEquals(changes.txOutsSpent, read.txOutsSpent);
+            StoredTransactionOutput readSpent = read.txOutsSpent.get(0);
+            assertEquals(70000, readSpent.getIndex());
+            assertEquals(spent.getHeight(), readSpent.getHeight());
+            assertEquals(spent.getValue(), readSpent.getValue());
+            assertArrayEquals(spent.getScriptBytes(), readSpent.getScriptBytes());
+            assertArrayEquals(created.getScriptBytes(), read.txOutsCreated.get(0).getScriptBytes());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.FullPrunedBlockStore;
+import io.mappum.altcoinj.store.LsmFullPrunedBlockStore;
+import org.junit.After;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An LSM tree implementation of the FullPrunedBlockStoreTest
+ */
+public class LsmFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private File dir;
+    private FullPrunedBlockStore store;
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        store = null;
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        if (store != null)
+            store.close();
+        deleteFiles();
+        try {
+            dir = File.createTempFile("lsmstore", null);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        dir.delete();
+        // A small in memory table, so that the tests write and merge table files too.
+        store = new LsmFullPrunedBlockStore(params, dir, blockCount, 64 * 1024);
+        return store;
+    }
+
+    private void deleteFiles() {
+        if (dir == null)
+            return;
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // No-op, every store is created in a new directory.
+    }
+}
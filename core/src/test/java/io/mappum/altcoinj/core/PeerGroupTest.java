@@ -25,6 +25,7 @@ import io.mappum.altcoinj.testing.InboundMessageQueuer;
 import io.mappum.altcoinj.testing.TestWithPeerGroup;
 import io.mappum.altcoinj.utils.Threading;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.net.InetAddresses;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -479,6 +480,32 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void downloadPeerSwitchOnStall() throws Exception {
+        // A download peer that doesn't send us blocks is marked down, and the download moves to another peer.
+        // Freeze the clock where it is: going back in time would hold up the connection backoff of the peer group.
+        Utils.setMockClock(Utils.currentTimeSeconds());
+        peerGroup.setDownloadStallTimeoutMillis(10000);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        remoteVersionMessage.bestHeight = 5;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+
+        // Let the progress check see the download at its starting height, then let time pass without any blocks.
+        Thread.sleep(1500);
+        Utils.rollMockClock(15);
+        assertNextMessageIs(p2, GetBlocksMessage.class);
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertEquals(1, peerOf(p1).getScore().getTotalTimeouts());
+        // The stalled peer now scores worst.
+        assertEquals(peerOf(p1), Iterables.getLast(peerGroup.getPeerScores().keySet()));
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         peerGroup.startAsync();
@@ -806,6 +833,158 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void parallelChainDownload() throws Exception {
+        // With several download peers, p1 supplies the headers and the filtered blocks are spread over all three.
+        // They are added to the chain in order however they arrive.
+        peerGroup.setMaxDownloadPeers(3);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+
+        // Stay below the difficulty transition, which the test blocks don't handle.
+        final int NUM_BLOCKS = 9;
+        List<Block> blocks = Lists.newArrayList();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+        }
+        remoteVersionMessage.bestHeight = NUM_BLOCKS;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+
+        peerGroup.startBlockChainDownload(null);
+        GetHeadersMessage getheaders = assertNextMessageIs(p1, GetHeadersMessage.class);
+        assertEquals(params.getGenesisBlock().getHash(), getheaders.getLocator().get(0));
+        Block[] headers = new Block[NUM_BLOCKS];
+        for (int i = 0; i < NUM_BLOCKS; i++)
+            headers[i] = blocks.get(i).cloneAsHeader();
+        inbound(p1, new HeadersMessage(params, headers));
+
+        // Each peer gets an even share of the blocks, followed by a ping to mark the end of them.
+        List<InboundMessageQueuer> queues = ImmutableList.of(p1, p2, p3);
+        List<GetDataMessage> requests = Lists.newArrayList();
+        List<Ping> pings = Lists.newArrayList();
+        int requested = 0;
+        for (InboundMessageQueuer q : queues) {
+            GetDataMessage getdata = assertNextMessageIs(q, GetDataMessage.class);
+            assertEquals(InventoryItem.Type.FilteredBlock, getdata.getItems().get(0).type);
+            assertEquals(NUM_BLOCKS / 3, getdata.getItems().size());
+            requested += getdata.getItems().size();
+            requests.add(getdata);
+            pings.add(assertNextMessageIs(q, Ping.class));
+        }
+        assertEquals(NUM_BLOCKS, requested);
+        assertEquals(blocks.get(0).getHash(), requests.get(0).getHashOf(0));
+
+        // Answer the last window first, nothing can be added until the first one arrives.
+        BloomFilter filter = new BloomFilter(params, p1.lastReceivedFilter.bitcoinSerialize());
+        Map<Sha256Hash, Block> byHash = new HashMap<Sha256Hash, Block>();
+        for (Block block : blocks)
+            byHash.put(block.getHash(), block);
+        for (int i = queues.size() - 1; i >= 0; i--) {
+            InboundMessageQueuer q = queues.get(i);
+            List<Block> window = Lists.newArrayList();
+            for (InventoryItem item : requests.get(i).getItems())
+                window.add(byHash.get(item.hash));
+            filterAndSend(q, window, filter);
+            inbound(q, new Pong(pings.get(i).getNonce()));
+            pingAndWait(q);
+            if (i > 0)
+                assertEquals(0, blockChain.getBestChainHeight());
+        }
+        assertEquals(NUM_BLOCKS, blockChain.getBestChainHeight());
+        assertEquals(prev.getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // Once caught up, the download peer carries on as it would have done alone.
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+    }
+
+    @Test
+    public void headersFirstChainDownload() throws Exception {
+        // The blocks are only asked for once the header chain is complete, all of them from the one peer.
+        peerGroup.setHeadersFirst(true);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+
+        final int NUM_BLOCKS = 9;
+        List<Block> blocks = Lists.newArrayList();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+        }
+        remoteVersionMessage.bestHeight = NUM_BLOCKS;
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.startBlockChainDownload(null);
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        Block[] headers = new Block[NUM_BLOCKS];
+        for (int i = 0; i < NUM_BLOCKS; i++)
+            headers[i] = blocks.get(i).cloneAsHeader();
+        inbound(p1, new HeadersMessage(params, headers));
+
+        GetDataMessage getdata = assertNextMessageIs(p1, GetDataMessage.class);
+        assertEquals(NUM_BLOCKS, getdata.getItems().size());
+        Ping ping = assertNextMessageIs(p1, Ping.class);
+        filterAndSend(p1, blocks, new BloomFilter(params, p1.lastReceivedFilter.bitcoinSerialize()));
+        inbound(p1, new Pong(ping.getNonce()));
+        pingAndWait(p1);
+        assertEquals(prev.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+    }
+
+    @Test
+    public void headersFirstSwitchesFromSilentHeaderSource() throws Exception {
+        // A download peer that never answers for headers is asked a few times, then the download starts over with
+        // another peer supplying the headers.
+        Utils.setMockClock(Utils.currentTimeSeconds());
+        peerGroup.setHeadersFirst(true);
+        peerGroup.setPingIntervalMsec(0);
+        peerGroup.setDownloadStallTimeoutMillis(10000);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        remoteVersionMessage.bestHeight = 5;
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        for (int i = 0; i < 3; i++) {
+            Utils.rollMockClockMillis(BlockDownloader.DEFAULT_STALL_TIMEOUT_MILLIS);
+            assertNextMessageIs(p1, GetHeadersMessage.class);
+        }
+        Utils.rollMockClock(10);
+        assertNextMessageIs(p2, GetHeadersMessage.class);
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertEquals(3, peerOf(p1).getScore().getTotalTimeouts());
+    }
+
+    @Test
+    public void headersFirstRejectsBadDifficulty() throws Exception {
+        // A header chain with a difficulty change where there should be none is not worth downloading blocks for, and
+        // the peer that sent it is dropped.
+        peerGroup.setHeadersFirst(true);
+        peerGroup.addEventListener(listener);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        Block b2 = b1.createNextBlock(new ECKey().toAddress(params));
+        b2.setDifficultyTarget(b1.getDifficultyTarget() - 1);
+        b2.solve();
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        remoteVersionMessage.bestHeight = 3;
+        InboundMessageQueuer p1 = connectPeer(1);
+        assertEquals(peerOf(p1), connectedPeers.take());
+        peerGroup.startBlockChainDownload(null);
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        assertEquals(peerOf(p1), disconnectedPeers.take());
+        assertEquals(0, blockChain.getBestChainHeight());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
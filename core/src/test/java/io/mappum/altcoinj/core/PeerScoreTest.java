@@ -0,0 +1,83 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerScoreTest {
+    private static final double DELTA = 0.001;
+
+    private PeerScore score;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        score = new PeerScore();
+    }
+
+    @Test
+    public void unknownPeer() throws Exception {
+        assertEquals(Long.MAX_VALUE, score.getPingPercentile(50));
+        assertEquals(0, score.getBytesPerSecond(), DELTA);
+        assertEquals(PeerScore.INITIAL_SCORE, score.getScore(), DELTA);
+    }
+
+    @Test
+    public void pingPercentiles() throws Exception {
+        for (int i = 1; i <= 10; i++)
+            score.recordPing(i * 100);
+        assertEquals(600, score.getPingPercentile(50));
+        assertEquals(1000, score.getPingPercentile(90));
+        assertEquals(100, score.getPingPercentile(0));
+        // 1000ms is worth more than the maximum penalty.
+        assertEquals(PeerScore.MAX_PING_PENALTY, score.getPingPenalty(), DELTA);
+
+        // Only the recent pings count.
+        for (int i = 0; i < 32; i++)
+            score.recordPing(40);
+        assertEquals(40, score.getPingPercentile(90));
+        assertEquals(PeerScore.INITIAL_SCORE - 2, score.getScore(), DELTA);
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        score.recordDelivery(100000, 500);
+        score.recordDelivery(100000, 500);
+        assertEquals(200000, score.getBytesPerSecond(), DELTA);
+        assertEquals(10 * Math.log10(21), score.getThroughputBonus(), DELTA);
+        score.recordDelivery(Integer.MAX_VALUE, 1);
+        assertEquals(PeerScore.MAX_THROUGHPUT_BONUS, score.getThroughputBonus(), DELTA);
+    }
+
+    @Test
+    public void timeoutsAndMisbehaviourDecay() throws Exception {
+        score.recordTimeout();
+        score.recordMisbehaviour(PeerScore.INVALID_DATA_PENALTY, "bad block");
+        assertEquals(PeerScore.INITIAL_SCORE - PeerScore.TIMEOUT_PENALTY - PeerScore.INVALID_DATA_PENALTY,
+                score.getScore(), DELTA);
+        assertEquals("bad block", score.getLastMisbehaviour());
+
+        // Half of it is forgiven after a half life, but the totals remember.
+        Utils.rollMockClockMillis(PeerScore.HALF_LIFE_MILLIS);
+        assertEquals(0.5, score.getRecentTimeouts(), DELTA);
+        assertEquals(PeerScore.INVALID_DATA_PENALTY / 2.0, score.getRecentMisbehaviour(), DELTA);
+        assertEquals(1, score.getTotalTimeouts());
+        assertEquals(PeerScore.INVALID_DATA_PENALTY, score.getTotalMisbehaviour());
+        assertTrue(score.toString().contains("last: bad block"));
+    }
+}
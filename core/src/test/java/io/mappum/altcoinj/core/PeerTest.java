@@ -41,6 +41,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -480,9 +481,74 @@ public class PeerTest extends TestWithNetworkConnections {
         // All done.
         inbound(writeTarget, b3);
         pingAndWait(writeTarget);
+        // The block we asked for counts towards the throughput of the peer.
+        assertTrue(peer.getScore().getBytesPerSecond() > 0);
         closePeer(peer);
     }
 
+    @Test
+    public void getBlockHeadersAfterCancel() throws Exception {
+        connect();
+        peer.setDownloadData(false);
+        Block b1 = createFakeBlock(blockStore).block;
+        Block b2 = makeSolvedTestBlock(b1);
+        List<Sha256Hash> locator = Collections.singletonList(unitTestParams.getGenesisBlock().getHash());
+        ListenableFuture<HeadersMessage> first = peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        // The answer takes too long, so we ask again from further along.
+        first.cancel(false);
+        ListenableFuture<HeadersMessage> second = peer.getBlockHeaders(
+                Arrays.asList(b1.getHash(), unitTestParams.getGenesisBlock().getHash()), Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        // The late answer to the first request must not be taken for the answer to the second.
+        inbound(writeTarget, new HeadersMessage(unitTestParams, b1.cloneAsHeader()));
+        pingAndWait(writeTarget);
+        assertFalse(second.isDone());
+        inbound(writeTarget, new HeadersMessage(unitTestParams, b2.cloneAsHeader()));
+        assertEquals(b2.getHash(), second.get().getBlockHeaders().get(0).getHash());
+        // Headers nobody asked for are ignored when we're not downloading from this peer.
+        inbound(writeTarget, new HeadersMessage(unitTestParams, b2.cloneAsHeader()));
+        pingAndWait(writeTarget);
+        assertNull(outbound(writeTarget));
+    }
+
+    @Test
+    public void getBlockHeadersFirstIgnored() throws Exception {
+        connect();
+        peer.setDownloadData(false);
+        Block b1 = createFakeBlock(blockStore).block;
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        List<Sha256Hash> locator = Collections.singletonList(unitTestParams.getGenesisBlock().getHash());
+        // The peer never answers the first request, as a node busy with its own chain download may do.
+        ListenableFuture<HeadersMessage> first = peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        first.cancel(false);
+        // Asking the same again gets an answer, which is for the new request.
+        ListenableFuture<HeadersMessage> second = peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(unitTestParams, b1.cloneAsHeader()));
+        assertEquals(b1.getHash(), second.get().getBlockHeaders().get(0).getHash());
+
+        // Once more, ignoring a request from further along.
+        ListenableFuture<HeadersMessage> third = peer.getBlockHeaders(
+                Arrays.asList(b1.getHash(), unitTestParams.getGenesisBlock().getHash()), Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        third.cancel(false);
+        ListenableFuture<HeadersMessage> fourth = peer.getBlockHeaders(
+                Arrays.asList(b2.getHash(), b1.getHash(), unitTestParams.getGenesisBlock().getHash()),
+                Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(unitTestParams, b3.cloneAsHeader()));
+        assertEquals(b3.getHash(), fourth.get().getBlockHeaders().get(0).getHash());
+        // The ignored request was dropped, so later answers keep going to their own requests.
+        ListenableFuture<HeadersMessage> fifth = peer.getBlockHeaders(
+                Collections.singletonList(b3.getHash()), Sha256Hash.ZERO_HASH);
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        inbound(writeTarget, new HeadersMessage(unitTestParams));
+        assertTrue(fifth.get().getBlockHeaders().isEmpty());
+    }
+
     @Test
     public void pingPong() throws Exception {
         connect();
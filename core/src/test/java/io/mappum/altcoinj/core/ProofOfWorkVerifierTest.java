@@ -0,0 +1,132 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.params.UnitTestParams;
+import io.mappum.altcoinj.pows.Sha256ProofOfWork;
+import io.mappum.altcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProofOfWorkVerifierTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private ProofOfWorkVerifier verifier;
+
+    @Before
+    public void setUp() throws Exception {
+        verifier = new ProofOfWorkVerifier(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        verifier.shutdown();
+    }
+
+    private List<Block> buildHeaders(int count) {
+        return buildHeaders(params, count);
+    }
+
+    private static List<Block> buildHeaders(NetworkParameters params, int count) {
+        Address to = new ECKey().toAddress(params);
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            Block next = prev.createNextBlock(to);
+            // Round trip through the wire format, so the verifier sees freshly parsed headers like a peer would.
+            headers.add(new Block(params, next.cloneAsHeader().bitcoinSerialize()));
+            prev = next;
+        }
+        return headers;
+    }
+
+    @Test
+    public void verifiesAll() throws Exception {
+        List<Block> headers = buildHeaders(100);
+        assertEquals(100, verifier.verify(headers));
+
+        // Stay below the first difficulty transition, the timestamps of these blocks don't produce a valid retarget.
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        for (int i = 0; i < params.getInterval() - 1; i++)
+            assertTrue(chain.add(headers.get(i)));
+        assertEquals(params.getInterval() - 1, chain.getBestChainHeight());
+    }
+
+    // Bitcoin's proof of work, but claiming to be faster in batches and not safe to use from several threads.
+    private static class BatchingProofOfWork extends ProofOfWork {
+        int batches, singles;
+
+        @Override
+        public Sha256Hash hash(byte[] header) {
+            singles++;
+            return Sha256ProofOfWork.get().hash(header);
+        }
+
+        @Override
+        public boolean canBatch() {
+            return true;
+        }
+
+        @Override
+        public List<Sha256Hash> getHashes(List<Block> blocks) {
+            batches++;
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            for (Block block : blocks)
+                hashes.add(Sha256ProofOfWork.get().getHash(block));
+            return hashes;
+        }
+    }
+
+    @Test
+    public void batching() throws Exception {
+        final BatchingProofOfWork pow = new BatchingProofOfWork();
+        NetworkParameters batchingParams = new UnitTestParams() {{
+            proofOfWork = pow;
+        }};
+        List<Block> headers = buildHeaders(batchingParams, 40);
+        pow.batches = pow.singles = 0;
+        assertEquals(40, verifier.verify(headers));
+        // Not thread safe, so all of them were handed over in one go on this thread.
+        assertEquals(1, pow.batches);
+        assertEquals(0, pow.singles);
+    }
+
+    @Test
+    public void badHeaderIsLeftForTheChain() throws Exception {
+        List<Block> headers = buildHeaders(40);
+        // A target of 1 can't be met by any hash.
+        Block bad = headers.get(5);
+        bad.setDifficultyTarget(0x03000001L);
+        assertEquals(39, verifier.verify(headers));
+
+        // The headers before the bad one still connect, and the chain reports the bad one when it gets to it.
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        for (int i = 0; i < 5; i++)
+            assertTrue(chain.add(headers.get(i)));
+        try {
+            chain.add(bad);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+    }
+}
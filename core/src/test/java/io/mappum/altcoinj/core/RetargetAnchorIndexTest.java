@@ -0,0 +1,136 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.params.UnitTestParams;
+import io.mappum.altcoinj.store.BlockStore;
+import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RetargetAnchorIndexTest {
+    private NetworkParameters params;
+    private CountingBlockStore store;
+    private int interval;
+
+    // Counts lookups, so we can tell whether an ancestor came from the index or from walking the store.
+    private static class CountingBlockStore extends MemoryBlockStore {
+        int gets;
+
+        CountingBlockStore(NetworkParameters params) {
+            super(params);
+        }
+
+        @Override
+        public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            gets++;
+            return super.get(hash);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        params = new UnitTestParams();
+        store = new CountingBlockStore(params);
+        interval = params.getInterval();
+    }
+
+    private List<StoredBlock> extend(StoredBlock tip, int blocks, long time) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(tip);
+        for (int i = 0; i < blocks; i++) {
+            Block header = new Block(params, 2, tip.getHeader().getHash(), Sha256Hash.ZERO_HASH, time + i,
+                    Block.EASIEST_DIFFICULTY_TARGET, 0, Collections.<Transaction>emptyList());
+            tip = tip.build(header);
+            store.put(tip);
+            chain.add(tip);
+        }
+        return chain;
+    }
+
+    // Observes the chain block by block and checks every transition finds its ancestor without walking the store.
+    private void observeAndCheck(List<StoredBlock> chain, boolean firstPeriodKnown) throws Exception {
+        int base = chain.get(0).getHeight();
+        for (StoredBlock block : chain) {
+            params.getRetargetAnchors().observe(block);
+            int height = block.getHeight();
+            if ((height + 1) % interval != 0 || (!firstPeriodKnown && height - base < interval))
+                continue;
+            store.gets = 0;
+            StoredBlock ancestor = params.getAncestor(block, interval - 1, store);
+            assertEquals(0, store.gets);
+            assertEquals(chain.get(height - (interval - 1) - base), ancestor);
+            // One further back is the last block of the previous period, which is remembered too.
+            if (height - interval >= base) {
+                assertEquals(chain.get(height - interval - base), params.getAncestor(block, interval, store));
+                assertEquals(0, store.gets);
+            }
+        }
+    }
+
+    @Test
+    public void transitionsUseIndex() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), interval * 5, 1000);
+        observeAndCheck(chain, true);
+    }
+
+    @Test
+    public void reorg() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), interval * 5, 1000);
+        observeAndCheck(chain, true);
+
+        // A fork starting in the middle of a period. Its first transition has to walk the store once.
+        StoredBlock forkPoint = chain.get(interval * 3 + 4);
+        List<StoredBlock> fork = extend(forkPoint, interval * 4, 5000);
+        observeAndCheck(fork, false);
+        StoredBlock tip = fork.get(interval * 4 - 1 - forkPoint.getHeight());
+        params.getRetargetAnchors().observe(tip);  // Back in the fork's history, which resets the index.
+        store.gets = 0;
+        assertEquals(chain.get(interval * 3), params.getAncestor(tip, interval - 1, store));
+        assertEquals(interval - 1, store.gets);
+
+        // Blocks the index hasn't seen aren't answered from it.
+        assertNull(params.getRetargetAnchors().get(chain.get(interval * 5 - 1), interval * 4));
+    }
+
+    @Test
+    public void heightIndex() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), interval * 2, 1000);
+        StoredBlock tip = chain.get(interval * 2);
+        // Nothing observed, but the block is on the main chain of a store that indexes it by height.
+        store.setChainHead(tip);
+        store.gets = 0;
+        assertEquals(chain.get(interval), params.getAncestor(tip, interval, store));
+        assertEquals(0, store.gets);
+        // Blocks off the main chain have to walk.
+        store.setChainHead(chain.get(interval));
+        assertEquals(chain.get(interval - 1), params.getAncestor(tip, interval + 1, store));
+        assertEquals(interval + 1, store.gets);
+    }
+
+    @Test(expected = VerificationException.class)
+    public void missingAncestor() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), interval, 1000);
+        BlockStore empty = new MemoryBlockStore(params);
+        params.getAncestor(chain.get(interval), interval, empty);
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.core;
+
+import io.mappum.altcoinj.params.MainNetParams;
+import io.mappum.altcoinj.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Uint256Test {
+    private static final BigInteger MOD = BigInteger.ONE.shiftLeft(256);
+    private final Random rnd = new Random(42);
+
+    // Random values of random bit lengths, so small and large values both get exercised.
+    private BigInteger random() {
+        return new BigInteger(rnd.nextInt(257), rnd);
+    }
+
+    @Test
+    public void conversions() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger b = random();
+            Uint256 u = Uint256.valueOf(b);
+            assertEquals(b, u.toBigInteger());
+            assertEquals(b.bitLength(), u.bitLength());
+            assertEquals(u, Uint256.fromBytes(u.toByteArray()));
+        }
+        assertEquals(BigInteger.valueOf(0x0102), Uint256.fromBytes(new byte[] {1, 2}).toBigInteger());
+        assertEquals(MOD.subtract(BigInteger.ONE), Uint256.MAX_VALUE.toBigInteger());
+    }
+
+    @Test
+    public void arithmetic() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            BigInteger a = random(), b = random();
+            Uint256 ua = Uint256.valueOf(a), ub = Uint256.valueOf(b);
+            assertEquals(a.compareTo(b), ua.compareTo(ub));
+            assertEquals(a.add(b).mod(MOD), ua.add(ub).toBigInteger());
+            assertEquals(a.subtract(b).mod(MOD), ua.subtract(ub).toBigInteger());
+            if (b.signum() > 0)
+                assertEquals(a.divide(b), ua.divide(ub).toBigInteger());
+            int shift = rnd.nextInt(300);
+            assertEquals(a.shiftLeft(shift).mod(MOD), ua.shiftLeft(shift).toBigInteger());
+            assertEquals(a.shiftRight(shift), ua.shiftRight(shift).toBigInteger());
+            long m = rnd.nextInt() & 0xFFFFFFFFL, d = (rnd.nextInt() & 0xFFFFFFFFL) | 1;
+            BigInteger expected = a.multiply(BigInteger.valueOf(m)).divide(BigInteger.valueOf(d));
+            Uint256 actual = ua.multiplyAndDivide(m, d);
+            assertEquals(expected.bitLength() > 256 ? Uint256.MAX_VALUE.toBigInteger() : expected,
+                    actual.toBigInteger());
+        }
+        assertEquals(Uint256.ZERO, Uint256.MAX_VALUE.add(Uint256.ONE));
+    }
+
+    @Test
+    public void compactBits() throws Exception {
+        long[] samples = { 0x1d00ffffL, 0x1b0404cbL, 0x1e0fffffL, 0x207fffffL, 0x05123456L, 0x0600c0deL, 0x03123456L,
+                0x02123456L, 0x01123456L, 0x01003456L, 0x04000000L };
+        for (long compact : samples) {
+            BigInteger expected = Utils.decodeCompactBits(compact);
+            Uint256 target = Uint256.fromCompactBits(compact);
+            assertEquals(expected, target.toBigInteger());
+            assertEquals(Utils.encodeCompactBits(expected), target.toCompactBits());
+        }
+        for (int i = 0; i < 1000; i++) {
+            BigInteger b = random();
+            assertEquals(Utils.encodeCompactBits(b), Uint256.valueOf(b).toCompactBits());
+        }
+        try {
+            Uint256.fromCompactBits(0x04923456L);  // Sign bit set.
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+        try {
+            Uint256.fromCompactBits(0x23123456L);  // Too big.
+            fail();
+        } catch (ArithmeticException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void work() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            BigInteger target = random().max(BigInteger.ONE);
+            BigInteger expected = MOD.divide(target.add(BigInteger.ONE));
+            assertEquals(expected, Uint256.valueOf(target).work().toBigInteger());
+        }
+        assertEquals(Uint256.ONE, Uint256.MAX_VALUE.work());
+        // Main net genesis block, as printed by the reference client.
+        assertEquals(BigInteger.valueOf(0x100010001L), MainNetParams.get().getGenesisBlock().getWork());
+    }
+
+    @Test
+    public void badTargets() throws Exception {
+        Block block = UnitTestParams.get().getGenesisBlock().cloneAsHeader();
+        for (long bits : new long[] { 0x00000000L, 0x01000000L, 0x04923456L, 0x23123456L }) {
+            block.setDifficultyTarget(bits);
+            try {
+                block.getWork();
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+        }
+    }
+}
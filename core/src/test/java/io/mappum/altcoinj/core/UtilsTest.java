@@ -17,6 +17,7 @@
 package io.mappum.altcoinj.core;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -52,4 +53,22 @@ public class UtilsTest {
         assertEquals(0x05123456L, Utils.encodeCompactBits(new BigInteger("1234560000", 16)));
         assertEquals(0x0600c0deL, Utils.encodeCompactBits(new BigInteger("c0de000000", 16)));
     }
+
+    @Test
+    public void doubleDigestInto() throws Exception {
+        // Bitcoin block 1 header, whose hash is well known.
+        byte[] header = Utils.HEX.decode("010000006fe28c0ab6f1b372c1a6a246ae63f74f931e8365e15a089c68d6190000000000982051fd1e4ba744bbbe680e1fee14677ba1a3c3540bf7b1cdb606e857233e0e61bc6649ffff001d01e36299");
+        byte[] expected = Utils.doubleDigest(header);
+        assertEquals("00000000839a8e6886ab5951d76f411475428afc90947ee320161bbf18eb6048",
+                Utils.HEX.encode(Utils.reverseBytes(expected)));
+
+        byte[] out = new byte[40];
+        Utils.doubleDigestInto(header, 0, header.length, out, 5);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 5, 37));
+
+        // Writing over the input is allowed.
+        byte[] in = Arrays.copyOf(header, header.length);
+        Utils.doubleDigestInto(in, 0, in.length, in, 0);
+        assertArrayEquals(expected, Arrays.copyOf(in, 32));
+    }
 }
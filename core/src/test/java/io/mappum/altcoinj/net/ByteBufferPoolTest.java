@@ -0,0 +1,111 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+    @Test
+    public void sizeClasses() throws Exception {
+        assertEquals(4096, ByteBufferPool.sizeClass(0));
+        assertEquals(4096, ByteBufferPool.sizeClass(4096));
+        assertEquals(8192, ByteBufferPool.sizeClass(4097));
+        assertEquals(32768, ByteBufferPool.sizeClass(24 + 32000));
+        assertEquals(65536, ByteBufferPool.sizeClass(65536));
+        try {
+            ByteBufferPool.sizeClass(65537);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(ByteBufferPool.DEFAULT_MAX_BYTES);
+        ByteBuffer a = pool.tryAcquire(5000);
+        assertTrue(a.isDirect());
+        assertEquals(8192, a.capacity());
+        assertEquals(8192, pool.getBytesInUse());
+        a.put((byte) 1);
+        pool.release(a);
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(8192, pool.getAllocatedBytes());
+
+        // The same buffer comes back, cleared.
+        ByteBuffer b = pool.tryAcquire(8000);
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(b.capacity(), b.limit());
+        assertEquals(2, pool.getAcquireCount());
+        assertEquals(1, pool.getAllocationCount());
+
+        // Giving it back twice, or something the pool didn't hand out, is a bug.
+        pool.release(b);
+        try {
+            pool.release(b);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        try {
+            pool.release(ByteBuffer.allocateDirect(4096));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+
+        assertEquals(8192, pool.trim());
+        assertEquals(0, pool.getAllocatedBytes());
+    }
+
+    @Test
+    public void backPressure() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(2 * 65536);
+        ByteBuffer a = pool.tryAcquire(65536);
+        ByteBuffer b = pool.tryAcquire(4096);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.tryAcquire(65536));
+        assertEquals(1, pool.getExhaustedCount());
+
+        final AtomicInteger called = new AtomicInteger();
+        Runnable waiter = new Runnable() {
+            @Override
+            public void run() {
+                called.incrementAndGet();
+            }
+        };
+        assertNull(pool.acquireOrWait(65536, waiter));
+        assertEquals(1, pool.getWaiterCount());
+        pool.release(a);
+        assertEquals(1, called.get());
+        assertEquals(0, pool.getWaiterCount());
+
+        // The free large buffer is dropped to make room for small ones.
+        for (int i = 0; i < 16; i++)
+            assertNotNull(pool.tryAcquire(4096));
+        assertEquals(17 * 4096, pool.getAllocatedBytes());
+        assertNull(pool.acquireOrWait(65536, waiter));
+        pool.release(b);
+        assertEquals(2, called.get());
+        assertEquals(16 * 4096, pool.getBytesInUse());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHandlerTest {
+    private ServerSocketChannel server;
+    private Selector selector;
+    private ByteBufferPool pool;
+    private final Set<ConnectionHandler> handlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
+
+    // Takes everything it is given.
+    private static class SinkParser implements StreamParser {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        MessageWriteTarget writeTarget;
+
+        @Override public void connectionClosed() {}
+        @Override public void connectionOpened() {}
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            int count = buff.remaining();
+            byte[] bytes = new byte[count];
+            buff.get(bytes);
+            received.write(bytes, 0, count);
+            return count;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return ByteBufferPool.MAX_BUFFER_SIZE;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        selector = Selector.open();
+        pool = new ByteBufferPool(1024 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (ConnectionHandler handler : new ArrayList<ConnectionHandler>(handlers))
+            handler.closeConnection();
+        selector.close();
+        server.close();
+    }
+
+    // Connects a handler to a fresh socket, and returns the other end of it.
+    private SocketChannel connect(SinkParser parser) throws Exception {
+        SocketChannel channel = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel remote = server.accept();
+        remote.configureBlocking(false);
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new ConnectionHandler(parser, key, handlers, pool));
+        return remote;
+    }
+
+    private void select() throws Exception {
+        selector.select(10);
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            ConnectionHandler.handleKey(keys.next());
+            keys.remove();
+        }
+    }
+
+    @Test
+    public void stalledWriterLeavesPoolForReaders() throws Exception {
+        // A peer that asked for a lot of data and doesn't read it.
+        SinkParser stalled = new SinkParser();
+        SocketChannel stalledRemote = connect(stalled);
+        byte[] message = new byte[2 * 1024 * 1024];
+        new Random(1).nextBytes(message);
+        stalled.writeTarget.writeBytes(message);
+        // It only takes its share of the pool, the rest of the message waits on the heap.
+        assertEquals(ConnectionHandler.MAX_POOLED_WRITE_BYTES, pool.getBytesInUse());
+
+        // So another connection can still read.
+        SinkParser reader = new SinkParser();
+        SocketChannel readerRemote = connect(reader);
+        readerRemote.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (reader.received.size() < 3 && System.currentTimeMillis() < deadline)
+            select();
+        assertArrayEquals(new byte[] {1, 2, 3}, reader.received.toByteArray());
+        assertEquals(0, pool.getWaiterCount());
+
+        // Once the peer reads again, all of the message gets there and the pooled buffers are given back.
+        ByteArrayOutputStream drained = new ByteArrayOutputStream();
+        ByteBuffer buff = ByteBuffer.allocate(ByteBufferPool.MAX_BUFFER_SIZE);
+        while (drained.size() < message.length && System.currentTimeMillis() < deadline) {
+            select();
+            buff.clear();
+            stalledRemote.read(buff);
+            drained.write(buff.array(), 0, buff.position());
+        }
+        assertArrayEquals(message, drained.toByteArray());
+        assertEquals(0, pool.getBytesInUse());
+        stalledRemote.close();
+        readerRemote.close();
+    }
+}
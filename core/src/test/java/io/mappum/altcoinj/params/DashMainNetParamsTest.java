@@ -0,0 +1,92 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.params;
+
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.StoredBlock;
+import io.mappum.altcoinj.core.Transaction;
+import io.mappum.altcoinj.store.BlockStore;
+import io.mappum.altcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class DashMainNetParamsTest {
+    private final Random rnd = new Random(7);
+    private DashMainNetParams params;
+
+    @Before
+    public void setUp() throws Exception {
+        // A fresh instance, so the difficulty window starts out empty.
+        params = new DashMainNetParams();
+    }
+
+    // A header on top of prev with a random time and target, not solved.
+    private StoredBlock next(StoredBlock prev) throws Exception {
+        long time = prev.getHeader().getTimeSeconds() + rnd.nextInt(700) - 100;
+        long bits = ((0x1bL + rnd.nextInt(3)) << 24) | (0x8000 + rnd.nextInt(0x7f8000));
+        Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, time, bits,
+                rnd.nextInt(), Collections.<Transaction>emptyList());
+        return prev.build(header);
+    }
+
+    private StoredBlock extend(BlockStore store, StoredBlock tip, int blocks) throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            StoredBlock next = next(tip);
+            store.put(next);
+            assertMatchesStore(store, tip, next.getHeader());
+            tip = next;
+        }
+        return tip;
+    }
+
+    private void assertMatchesStore(BlockStore store, StoredBlock prev, Block next) throws Exception {
+        BigInteger expected = params.darkGravityWaveFromStore(prev, next, store);
+        assertEquals("height " + prev.getHeight(), expected, params.darkGravityWave(prev, next, store));
+        expected = params.darkGravityWave3FromStore(prev, next, store);
+        assertEquals("height " + prev.getHeight(), expected, params.darkGravityWave3(prev, next, store));
+    }
+
+    @Test
+    public void windowMatchesStore() throws Exception {
+        BlockStore store = new MemoryBlockStore(params);
+        StoredBlock tip = extend(store, store.getChainHead(), 400);
+
+        // Re-org: a fork from 300 blocks ago, then continue on the old chain again.
+        StoredBlock forkPoint = tip;
+        for (int i = 0; i < 300; i++)
+            forkPoint = forkPoint.getPrev(store);
+        extend(store, forkPoint, 200);
+        extend(store, tip, 50);
+    }
+
+    @Test
+    public void missingAncestors() throws Exception {
+        // Like a chain started from a checkpoint, the store doesn't know anything before the first block.
+        BlockStore fullStore = new MemoryBlockStore(params);
+        StoredBlock checkpoint = extend(fullStore, fullStore.getChainHead(), 200);
+        // Forget the window built while creating the chain.
+        params = new DashMainNetParams();
+        BlockStore store = new MemoryBlockStore(params);
+        store.put(checkpoint);
+        extend(store, checkpoint, 200);
+    }
+}
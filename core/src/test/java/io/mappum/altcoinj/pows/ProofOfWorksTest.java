@@ -0,0 +1,154 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.DashMainNetParams;
+import io.mappum.altcoinj.params.LitecoinMainNetParams;
+import io.mappum.altcoinj.params.MainNetParams;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import fr.cryptohash.Groestl512;
+import fr.cryptohash.Skein512;
+import org.junit.Test;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ProofOfWorksTest {
+    private final Random rnd = new Random(3);
+
+    private byte[] randomHeader() {
+        byte[] header = new byte[80];
+        rnd.nextBytes(header);
+        return header;
+    }
+
+    /** Myriad-Groestl as Myriadcoin and DigiByte define it: a single SHA-256 of the Groestl512 digest. */
+    private static byte[] myriadGroestl(byte[] header) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(new Groestl512().digest(header));
+    }
+
+    private static byte[] reversedPrefix(byte[] digest) {
+        return Utils.reverseBytes(Arrays.copyOfRange(digest, 0, 32));
+    }
+
+    @Test
+    public void builtIns() throws Exception {
+        assertSame(Sha256ProofOfWork.get(), ProofOfWorks.get("sha256d"));
+        assertSame(X11ProofOfWork.get(), ProofOfWorks.get("X11"));
+        assertSame(ProofOfWorks.get("scrypt"), ProofOfWorks.get("Scrypt"));
+        assertSame(ProofOfWorks.get("scrypt"), LitecoinMainNetParams.get().getProofOfWork());
+        assertTrue(ProofOfWorks.getNames().containsAll(
+                Arrays.asList("sha256d", "scrypt", "x11", "myr-groestl", "skein", "qubit", "keccak256", "whirlpool")));
+        // Every name has to produce a working algorithm.
+        byte[] header = randomHeader();
+        for (String name : ProofOfWorks.getNames()) {
+            ProofOfWork pow = ProofOfWorks.get(name);
+            assertTrue(name, pow.isThreadSafe());
+            assertNotNull(name, pow.hash(header));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknown() throws Exception {
+        ProofOfWorks.get("no-such-algorithm");
+    }
+
+    @Test
+    public void chains() throws Exception {
+        byte[] header = randomHeader();
+        byte[] skein = MessageDigest.getInstance("SHA-256").digest(new Skein512().digest(header));
+        assertArrayEquals(Utils.reverseBytes(skein), ProofOfWorks.get("skein").hash(header).getBytes());
+        byte[] myrGroestl = ProofOfWorks.get("myr-groestl").hash(header).getBytes();
+        assertArrayEquals(Utils.reverseBytes(myriadGroestl(header)), myrGroestl);
+        // Myriad-Groestl is not Groestlcoin's double Groestl512.
+        byte[] doubleGroestl = new Groestl512().digest(new Groestl512().digest(header));
+        assertFalse(Arrays.equals(reversedPrefix(doubleGroestl), myrGroestl));
+        // X11 is a chain too, so the generic version has to agree with the optimised one.
+        ChainedDigestProofOfWork x11 = new ChainedDigestProofOfWork("BLAKE512", "BMW512", "Groestl512", "Skein512",
+                "JH512", "Keccak512", "Luffa512", "CubeHash512", "SHAvite512", "SIMD512", "ECHO512");
+        assertEquals(X11ProofOfWork.get().hash(header), x11.hash(header));
+        assertEquals(DashMainNetParams.get().getGenesisBlock().getHash(),
+                x11.getHash(DashMainNetParams.get().getGenesisBlock()));
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        ChainedDigestProofOfWork pow = (ChainedDigestProofOfWork) ProofOfWorks.get("qubit");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).writeObject(pow);
+        ProofOfWork copy = (ProofOfWork) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        byte[] header = randomHeader();
+        assertEquals(pow.hash(header), copy.hash(header));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooShort() throws Exception {
+        new ChainedDigestProofOfWork("Keccak512", "MD5");
+    }
+
+    private static Block withVersion(Block block, long version) {
+        return new Block(block.getParams(), version, block.getPrevBlockHash(), block.getMerkleRoot(),
+                block.getTimeSeconds(), block.getDifficultyTarget(), block.getNonce(),
+                Collections.<Transaction>emptyList());
+    }
+
+    @Test
+    public void multiAlgo() throws Exception {
+        MultiAlgoProofOfWork pow = new MultiAlgoProofOfWork(7 << 9, ImmutableMap.<Long, ProofOfWork>of(
+                0L, ProofOfWorks.get("sha256d"),
+                2L << 9, ProofOfWorks.get("myr-groestl")));
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        assertEquals(genesis.getHash(), pow.getHash(genesis));
+        Block block = withVersion(genesis, 2 | (2 << 9));
+        byte[] header = block.cloneAsHeader().bitcoinSerialize();
+        Sha256Hash expected = new Sha256Hash(Utils.reverseBytes(myriadGroestl(header)));
+        assertEquals(expected, pow.getHash(block));
+        assertEquals(expected, pow.hash(header));
+        assertTrue(pow.isThreadSafe());
+        try {
+            pow.getHash(withVersion(genesis, 2 | (1 << 9)));
+            fail();
+        } catch (VerificationException e) {
+            // Expected, nothing is registered for these bits.
+        }
+    }
+
+    @Test
+    public void register() throws Exception {
+        final ProofOfWork custom = new ChainedDigestProofOfWork("Keccak256");
+        ProofOfWorks.register(new ProofOfWorkProvider() {
+            @Override
+            public Set<String> getNames() {
+                return ImmutableSet.of("Custom-Keccak", "sha256d");
+            }
+
+            @Override
+            public ProofOfWork get(String name) {
+                return custom;
+            }
+        });
+        assertSame(custom, ProofOfWorks.get("custom-keccak"));
+        // Names that are taken stay with the first provider.
+        assertSame(Sha256ProofOfWork.get(), ProofOfWorks.get("sha256d"));
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Utils;
+import io.mappum.altcoinj.params.LitecoinMainNetParams;
+import com.lambdaworks.crypto.SCrypt;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScryptProofOfWorkTest {
+    @Test
+    public void matchesGenericScrypt() throws Exception {
+        Random rnd = new Random(1);
+        ScryptHeaderHasher hasher = new ScryptHeaderHasher();
+        for (int i = 0; i < 50; i++) {
+            byte[] header = new byte[80];
+            rnd.nextBytes(header);
+            assertArrayEquals(SCrypt.scryptJ(header, header, 1024, 1, 1, 32), hasher.hash(header));
+        }
+    }
+
+    @Test
+    public void litecoinGenesis() throws Exception {
+        // Litecoin genesis header, its scrypt hash is well known.
+        byte[] header = Utils.HEX.decode("01000000000000000000000000000000000000000000000000000000000000000000" +
+                "0000d9ced4ed1130f7b7faad9be25323ffafa33232a17c3edf6cfd97bee6bafbdd97b9aa8e4ef0ff0f1ecd513f7c");
+        Sha256Hash hash = new ScryptProofOfWork(1024, 1, 1, 32).hash(header);
+        assertEquals("0000050c34a64b415b6b15b37f2216634b5b1669cb9a2e38d76f7213b0671e00", hash.toString());
+        assertArrayEquals(Utils.reverseBytes(SCrypt.scryptJ(header, header, 1024, 1, 1, 32)), hash.getBytes());
+        Block genesis = LitecoinMainNetParams.get().getGenesisBlock();
+        assertArrayEquals(header, genesis.cloneAsHeader().bitcoinSerialize());
+        assertTrue(LitecoinMainNetParams.get().getProofOfWork().check(genesis, true));
+    }
+}
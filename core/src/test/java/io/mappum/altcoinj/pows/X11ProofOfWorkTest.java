@@ -0,0 +1,92 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.pows;
+
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.Utils;
+import io.mappum.altcoinj.params.DashMainNetParams;
+import fr.cryptohash.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class X11ProofOfWorkTest {
+    // The straightforward X11 chain, allocating a fresh digest per stage.
+    private static Sha256Hash referenceHash(byte[] header) {
+        Digest[] stages = new Digest[] { new BLAKE512(), new BMW512(), new Groestl512(), new Skein512(), new JH512(),
+                new Keccak512(), new Luffa512(), new CubeHash512(), new SHAvite512(), new SIMD512(), new ECHO512() };
+        byte[] digest = header;
+        for (Digest stage : stages)
+            digest = stage.digest(digest);
+        return new Sha256Hash(Utils.reverseBytes(Arrays.copyOfRange(digest, 0, 32)));
+    }
+
+    @Test
+    public void genesis() throws Exception {
+        assertEquals("00000ffd590b1485b3caadc19b22e6379c733355108f107a430458cdf3407ab6",
+                DashMainNetParams.get().getGenesisBlock().getHashAsString());
+    }
+
+    @Test
+    public void matchesReference() throws Exception {
+        Random rnd = new Random(1);
+        X11ProofOfWork pow = new X11ProofOfWork();
+        for (int i = 0; i < 50; i++) {
+            byte[] header = new byte[80];
+            rnd.nextBytes(header);
+            assertEquals(referenceHash(header), pow.hash(header));
+            // Hashing again on the same thread must reuse the engine without carrying over any state.
+            assertEquals(referenceHash(header), pow.hash(header));
+        }
+    }
+
+    @Test
+    public void concurrentThreads() throws Exception {
+        final X11ProofOfWork pow = new X11ProofOfWork();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 4; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        Random rnd = new Random(seed);
+                        for (int i = 0; i < 20; i++) {
+                            byte[] header = new byte[80];
+                            rnd.nextBytes(header);
+                            if (!referenceHash(header).equals(pow.hash(header)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertEquals(true, result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private CountingStore delegate;
+    private CachingFullPrunedBlockStore store;
+    private int txCounter;
+
+    // Counts the output changes that reach the underlying store.
+    private static class CountingStore extends MemoryFullPrunedBlockStore {
+        int adds, removes;
+
+        CountingStore(NetworkParameters params) {
+            super(params, 10);
+        }
+
+        @Override
+        public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            adds++;
+            super.addUnspentTransactionOutput(out);
+        }
+
+        @Override
+        public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+            removes++;
+            super.removeUnspentTransactionOutput(out);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        delegate = new CountingStore(params);
+        store = new CachingFullPrunedBlockStore(delegate, 100, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private StoredTransactionOutput output(int index) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) ++txCounter;
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, Coin.COIN, 1, false, new byte[] {1, 2, 3});
+    }
+
+    private StoredBlock nextBlock(StoredBlock prev) throws Exception {
+        Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                prev.getHeader().getTimeSeconds() + 1, Block.EASIEST_DIFFICULTY_TARGET, 0,
+                Collections.<Transaction>emptyList());
+        header.solve();
+        return prev.build(header);
+    }
+
+    private StoredUndoableBlock undo(StoredBlock block) {
+        return new StoredUndoableBlock(block.getHeader().getHash(),
+                new TransactionOutputChanges(Collections.<StoredTransactionOutput>emptyList(),
+                        Collections.<StoredTransactionOutput>emptyList()));
+    }
+
+    @Test
+    public void createdThenSpentNeverWritten() throws Exception {
+        StoredTransactionOutput out = output(0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.flush();
+        assertEquals(0, delegate.adds);
+        assertEquals(0, delegate.removes);
+    }
+
+    @Test
+    public void writeBackIsAtomicWithHeads() throws Exception {
+        StoredBlock genesis = delegate.getVerifiedChainHead();
+        StoredBlock block = nextBlock(genesis);
+        StoredTransactionOutput out = output(0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.put(block, undo(block));
+        store.setVerifiedChainHead(block);
+        store.commitDatabaseBatchWrite();
+
+        // Nothing reached the underlying store yet, it is still consistent at the genesis block.
+        assertEquals(block, store.getVerifiedChainHead());
+        assertEquals(block, store.getChainHead());
+        assertEquals(block, store.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+        assertEquals(genesis, delegate.getVerifiedChainHead());
+        assertNull(delegate.get(block.getHeader().getHash()));
+        assertNull(delegate.getTransactionOutput(out.getHash(), 0));
+
+        store.flush();
+        assertEquals(block, delegate.getVerifiedChainHead());
+        assertEquals(block, delegate.getChainHead());
+        assertEquals(block, delegate.getOnceUndoableStoredBlock(block.getHeader().getHash()));
+        assertEquals(out, delegate.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void abort() throws Exception {
+        StoredTransactionOutput kept = output(0);
+        StoredTransactionOutput spent = output(0);
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.flush();
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock block = nextBlock(genesis);
+
+        store.beginDatabaseBatchWrite();
+        StoredTransactionOutput added = output(0);
+        store.addUnspentTransactionOutput(added);
+        store.removeUnspentTransactionOutput(spent);
+        store.put(block, undo(block));
+        store.setVerifiedChainHead(block);
+        store.abortDatabaseBatchWrite();
+
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertEquals(genesis, store.getChainHead());
+        assertNull(store.get(block.getHeader().getHash()));
+        assertNull(store.getTransactionOutput(added.getHash(), 0));
+        assertEquals(spent, store.getTransactionOutput(spent.getHash(), 0));
+        assertEquals(kept, store.getTransactionOutput(kept.getHash(), 0));
+        store.flush();
+        assertEquals(2, delegate.adds);
+        assertEquals(0, delegate.removes);
+    }
+
+    @Test
+    public void spentThenAddedBack() throws Exception {
+        StoredTransactionOutput out = output(0);
+        store.addUnspentTransactionOutput(out);
+        store.flush();
+        // As when the block spending it is disconnected again before the next write back.
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        store.flush();
+        assertEquals(1, delegate.adds);
+        assertEquals(0, delegate.removes);
+        assertEquals(out, delegate.getTransactionOutput(out.getHash(), 0));
+        // And spent for good.
+        store.removeUnspentTransactionOutput(out);
+        store.flush();
+        assertEquals(1, delegate.removes);
+        assertNull(delegate.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void removeMissing() throws Exception {
+        store.removeUnspentTransactionOutput(output(0));
+    }
+
+    @Test
+    public void hasUnspentOutputs() throws Exception {
+        StoredTransactionOutput first = output(0);
+        StoredTransactionOutput second = new StoredTransactionOutput(first.getHash(), 1, Coin.COIN, 1, false,
+                new byte[0]);
+        store.addUnspentTransactionOutput(first);
+        store.addUnspentTransactionOutput(second);
+        store.flush();
+        assertTrue(store.hasUnspentOutputs(first.getHash(), 2));
+        store.removeUnspentTransactionOutput(first);
+        assertTrue(store.hasUnspentOutputs(first.getHash(), 2));
+        store.removeUnspentTransactionOutput(second);
+        assertFalse(store.hasUnspentOutputs(first.getHash(), 2));
+        // The underlying store still has both.
+        assertTrue(delegate.hasUnspentOutputs(first.getHash(), 2));
+    }
+
+    @Test
+    public void writesBackOverMemoryLimit() throws Exception {
+        store = new CachingFullPrunedBlockStore(delegate, 100, 1000, Long.MAX_VALUE);
+        int outputs = 0;
+        while (delegate.adds == 0) {
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(output(0));
+            outputs++;
+            assertEquals(0, delegate.adds);  // Never part way through a batch.
+            store.commitDatabaseBatchWrite();
+        }
+        assertEquals(outputs, delegate.adds);
+        assertTrue(outputs > 1);
+    }
+
+    @Test
+    public void bulkLookup() throws Exception {
+        StoredTransactionOutput stored = output(0);
+        StoredTransactionOutput spent = output(0);
+        delegate.addUnspentTransactionOutput(stored);
+        delegate.addUnspentTransactionOutput(spent);
+        StoredTransactionOutput added = output(1);
+        store.addUnspentTransactionOutput(added);
+        store.removeUnspentTransactionOutput(spent);
+        assertEquals(Arrays.asList(stored, null, added, null), store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(params, 0, stored.getHash()),
+                new TransactionOutPoint(params, 0, spent.getHash()),
+                new TransactionOutPoint(params, 1, added.getHash()),
+                new TransactionOutPoint(params, 1, stored.getHash()))));
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FullPrunedStoreMaintenanceTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private File dir;
+    private LsmFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("maintenance", null);
+        dir.delete();
+        store = new LsmFullPrunedBlockStore(params, dir, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private List<StoredBlock> extend(int count) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getVerifiedChainHead();
+        for (int i = 0; i < count; i++) {
+            Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, 1000 + i,
+                    Block.EASIEST_DIFFICULTY_TARGET, 0, Collections.<Transaction>emptyList());
+            header.solve();
+            prev = prev.build(header);
+            StoredTransactionOutput created = new StoredTransactionOutput(header.getHash(), 0, Coin.COIN, 1, false,
+                    new byte[1000]);
+            TransactionOutputChanges changes = new TransactionOutputChanges(Collections.singletonList(created),
+                    Collections.<StoredTransactionOutput>emptyList());
+            store.beginDatabaseBatchWrite();
+            store.put(prev, new StoredUndoableBlock(header.getHash(), changes));
+            store.setVerifiedChainHead(prev);
+            store.commitDatabaseBatchWrite();
+            chain.add(prev);
+        }
+        return chain;
+    }
+
+    @Test
+    public void pruneAndCompact() throws Exception {
+        FullPrunedStoreMaintenance maintenance = new FullPrunedStoreMaintenance(store, 1000, 4, 0);
+        store.setDeferredPruning(true);
+        List<StoredBlock> chain = extend(30);
+        // Genesis and the first 20 blocks, in batches of 4.
+        assertEquals(21, maintenance.prune());
+        assertEquals(0, maintenance.prune());
+        assertEquals(21, maintenance.getBlocksPruned());
+        assertNull(store.getUndoBlock(chain.get(19).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(chain.get(20).getHeader().getHash()));
+
+        // Most of the space of the 1000 byte scripts in the undo data comes back.
+        long reclaimed = maintenance.compact();
+        assertTrue(reclaimed > 15 * 1000);
+        assertEquals(1, maintenance.getCompactions());
+        assertEquals(reclaimed, maintenance.getBytesReclaimed());
+        assertTrue(maintenance.getLongestPauseMillis() >= maintenance.getLastPauseMillis());
+        assertTrue(maintenance.getTotalPauseMillis() >= maintenance.getLongestPauseMillis());
+        assertNotNull(store.getUndoBlock(chain.get(29).getHeader().getHash()));
+    }
+
+    @Test
+    public void compactionSchedule() throws Exception {
+        Utils.setMockClock(Utils.currentTimeSeconds());
+        FullPrunedStoreMaintenance maintenance = new FullPrunedStoreMaintenance(store, 1000, 100, 60 * 1000);
+        maintenance.startUp();
+        maintenance.runOneIteration();
+        assertEquals(0, maintenance.getCompactions());
+        // Compacts once the interval has passed, and not again until it passes again.
+        Utils.rollMockClockMillis(60 * 1000);
+        maintenance.runOneIteration();
+        assertEquals(1, maintenance.getCompactions());
+        maintenance.runOneIteration();
+        assertEquals(1, maintenance.getCompactions());
+        maintenance.shutDown();
+    }
+
+    @Test(timeout = 10000)
+    public void service() throws Exception {
+        FullPrunedStoreMaintenance maintenance = new FullPrunedStoreMaintenance(store, 10, 100, 0);
+        maintenance.startAsync().awaitRunning();
+        List<StoredBlock> chain = extend(15);
+        // Genesis and the first 5 blocks, all of them by the service rather than when connected.
+        while (maintenance.getBlocksPruned() < 6)
+            Thread.sleep(10);
+        maintenance.stopAsync().awaitTerminated();
+        assertEquals(6, maintenance.getBlocksPruned());
+        assertNull(store.getUndoBlock(chain.get(4).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(chain.get(5).getHeader().getHash()));
+
+        // The store prunes by itself again.
+        extend(1);
+        assertNull(store.getUndoBlock(chain.get(5).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(chain.get(6).getHeader().getHash()));
+    }
+}
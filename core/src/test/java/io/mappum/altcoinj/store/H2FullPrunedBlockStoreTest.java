@@ -0,0 +1,277 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private File dir;
+    private H2FullPrunedBlockStore store;
+    private int txCounter;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("h2store", null);
+        dir.delete();
+        dir.mkdir();
+        store = new H2FullPrunedBlockStore(params, new File(dir, "test").getPath(), 10);
+    }
+
+    // Turns the store into one as created by versions before the compact output table.
+    private void makeLegacyStore() throws Exception {
+        store.close();
+        Connection connection = DriverManager.getConnection("jdbc:h2:" + new File(dir, "test").getPath());
+        Statement s = connection.createStatement();
+        s.executeUpdate("DROP TABLE compactOutputs");
+        s.executeUpdate(H2FullPrunedBlockStore.CREATE_OPEN_OUTPUT_TABLE);
+        s.executeUpdate("UPDATE settings SET value = '03' WHERE name = '" + H2FullPrunedBlockStore.VERSION_SETTING + "'");
+        s.close();
+        connection.close();
+        store = new H2FullPrunedBlockStore(params, new File(dir, "test").getPath(), 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private StoredTransactionOutput output(int index) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) ++txCounter;
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, Coin.COIN, 1, false, new byte[] {1, 2, 3});
+    }
+
+    // Connects count empty blocks with undo data on top of the verified chain head, and returns them.
+    private List<StoredBlock> extend(int count) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getVerifiedChainHead();
+        for (int i = 0; i < count; i++) {
+            Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, 1000 + i,
+                    Block.EASIEST_DIFFICULTY_TARGET, 0, Collections.<Transaction>emptyList());
+            header.solve();
+            prev = prev.build(header);
+            TransactionOutputChanges changes = new TransactionOutputChanges(
+                    Collections.<StoredTransactionOutput>emptyList(), Collections.<StoredTransactionOutput>emptyList());
+            store.beginDatabaseBatchWrite();
+            store.put(prev, new StoredUndoableBlock(header.getHash(), changes));
+            store.setVerifiedChainHead(prev);
+            store.commitDatabaseBatchWrite();
+            chain.add(prev);
+        }
+        return chain;
+    }
+
+    @Test
+    public void batchReadsItsOwnWrites() throws Exception {
+        StoredTransactionOutput old = output(0);
+        store.addUnspentTransactionOutput(old);
+
+        store.beginDatabaseBatchWrite();
+        StoredTransactionOutput out = output(0);
+        store.addUnspentTransactionOutput(out);
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 1));
+        store.removeUnspentTransactionOutput(old);
+        assertNull(store.getTransactionOutput(old.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(old.getHash(), 1));
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertNull(store.getTransactionOutput(old.getHash(), 0));
+    }
+
+    @Test
+    public void createdAndSpentInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        store.removeUnspentTransactionOutput(out);
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(out.getHash(), 1));
+    }
+
+    @Test
+    public void spentAndAddedBackInOneBatch() throws Exception {
+        StoredTransactionOutput out = output(0);
+        store.addUnspentTransactionOutput(out);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(out);
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+    }
+
+    @Test
+    public void abort() throws Exception {
+        StoredTransactionOutput spent = output(0);
+        store.addUnspentTransactionOutput(spent);
+        store.beginDatabaseBatchWrite();
+        StoredTransactionOutput added = output(0);
+        store.addUnspentTransactionOutput(added);
+        store.removeUnspentTransactionOutput(spent);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(added.getHash(), 0));
+        assertEquals(spent, store.getTransactionOutput(spent.getHash(), 0));
+    }
+
+    @Test
+    public void duplicateAddIsIgnored() throws Exception {
+        StoredTransactionOutput out = output(0);
+        store.addUnspentTransactionOutput(out);
+        store.beginDatabaseBatchWrite();
+        StoredTransactionOutput other = output(0);
+        store.addUnspentTransactionOutput(other);
+        store.addUnspentTransactionOutput(out);
+        store.commitDatabaseBatchWrite();
+        assertEquals(out, store.getTransactionOutput(out.getHash(), 0));
+        assertEquals(other, store.getTransactionOutput(other.getHash(), 0));
+    }
+
+    @Test
+    public void removeMissingFailsCommit() throws Exception {
+        StoredTransactionOutput added = output(0);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(added);
+        store.removeUnspentTransactionOutput(output(0));
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        // Nothing of the batch was kept.
+        assertNull(store.getTransactionOutput(added.getHash(), 0));
+    }
+
+    @Test
+    public void migrateToCompactOutputs() throws Exception {
+        assertTrue(store.hasCompactOutputs());
+        makeLegacyStore();
+        assertFalse(store.hasCompactOutputs());
+
+        StoredTransactionOutput spent = output(0);
+        StoredTransactionOutput kept = output(1);
+        StoredTransactionOutput coinbase = new StoredTransactionOutput(Sha256Hash.create(new byte[] {1}), 0,
+                Coin.FIFTY_COINS, 7, true, new byte[] {4, 5});
+        store.addUnspentTransactionOutput(spent);
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(coinbase);
+        store.removeUnspentTransactionOutput(spent);
+        assertEquals(kept, store.getTransactionOutput(kept.getHash(), 1));
+
+        store.migrateToCompactOutputs();
+        assertTrue(store.hasCompactOutputs());
+        assertNull(store.getTransactionOutput(spent.getHash(), 0));
+        StoredTransactionOutput read = store.getTransactionOutput(kept.getHash(), 1);
+        assertEquals(kept.getValue(), read.getValue());
+        assertEquals(kept.getHeight(), read.getHeight());
+        assertArrayEquals(kept.getScriptBytes(), read.getScriptBytes());
+        read = store.getTransactionOutput(coinbase.getHash(), 0);
+        assertEquals(7, read.getHeight());
+        assertEquals(Coin.FIFTY_COINS, read.getValue());
+        assertTrue(store.hasUnspentOutputs(coinbase.getHash(), 1));
+
+        // Still compact and writable after reopening.
+        store.close();
+        store = new H2FullPrunedBlockStore(params, new File(dir, "test").getPath(), 10);
+        assertTrue(store.hasCompactOutputs());
+        store.removeUnspentTransactionOutput(kept);
+        assertNull(store.getTransactionOutput(kept.getHash(), 1));
+        assertEquals(coinbase, store.getTransactionOutput(coinbase.getHash(), 0));
+    }
+
+    @Test
+    public void bulkLookup() throws Exception {
+        // More transactions than one query takes, with two outputs each.
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (int i = 0; i < 150; i++) {
+            StoredTransactionOutput first = output(0);
+            StoredTransactionOutput second = new StoredTransactionOutput(first.getHash(), 1, Coin.CENT, 1, false,
+                    new byte[] {4});
+            store.addUnspentTransactionOutput(first);
+            store.addUnspentTransactionOutput(second);
+            outputs.add(second);
+            outPoints.add(new TransactionOutPoint(params, 1, first.getHash()));
+        }
+        store.beginDatabaseBatchWrite();
+        StoredTransactionOutput pending = output(0);
+        store.addUnspentTransactionOutput(pending);
+        outputs.add(pending);
+        outPoints.add(new TransactionOutPoint(params, 0, pending.getHash()));
+        store.removeUnspentTransactionOutput(outputs.get(0));
+        outputs.set(0, null);
+        outputs.add(null);
+        outPoints.add(new TransactionOutPoint(params, 2, outputs.get(1).getHash()));
+
+        List<StoredTransactionOutput> found = store.getTransactionOutputs(outPoints);
+        assertEquals(outputs, found);
+        assertEquals(Coin.CENT, found.get(1).getValue());
+        store.commitDatabaseBatchWrite();
+        assertEquals(outputs, store.getTransactionOutputs(outPoints));
+    }
+
+    @Test
+    public void deferredPruningAndCompaction() throws Exception {
+        store.setDeferredPruning(true);
+        List<StoredBlock> chain = extend(25);
+        for (StoredBlock block : chain)
+            assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+
+        // Genesis and the first 15 blocks are more than 10 deep.
+        assertEquals(10, store.pruneUndoableBlocks(10));
+        assertEquals(6, store.pruneUndoableBlocks(10));
+        assertEquals(0, store.pruneUndoableBlocks(10));
+        for (StoredBlock block : chain) {
+            if (block.getHeight() <= 15)
+                assertNull(store.getUndoBlock(block.getHeader().getHash()));
+            else
+                assertNotNull(store.getUndoBlock(block.getHeader().getHash()));
+        }
+
+        long size = store.getDiskSize();
+        assertTrue(size > 0);
+        store.compact();
+        assertTrue(store.getDiskSize() <= size);
+        // The store connects again by itself, on every thread.
+        assertNotNull(store.getUndoBlock(chain.get(24).getHeader().getHash()));
+        store.setDeferredPruning(false);
+        StoredBlock head = extend(1).get(0);
+        assertEquals(head, store.getVerifiedChainHead());
+        // Now at height 26, which prunes up to 16 again.
+        assertNull(store.getUndoBlock(chain.get(15).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(chain.get(16).getHeader().getHash()));
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.NetworkParameters;
+import io.mappum.altcoinj.core.Sha256Hash;
+import io.mappum.altcoinj.core.StoredBlock;
+import io.mappum.altcoinj.core.Transaction;
+import io.mappum.altcoinj.params.UnitTestParams;
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(value = Parameterized.class)
+public class HeightIndexedBlockStoreTest {
+    private final NetworkParameters params = UnitTestParams.get();
+    private final StoreType storeType;
+    private File dir;
+    private HeightIndexedBlockStore store;
+
+    public enum StoreType {
+        MEMORY, SPV, H2, LSM
+    }
+
+    @Parameterized.Parameters
+    public static Collection<StoreType[]> parameters() {
+        return Arrays.asList(new StoreType[] {StoreType.MEMORY}, new StoreType[] {StoreType.SPV},
+                new StoreType[] {StoreType.H2}, new StoreType[] {StoreType.LSM});
+    }
+
+    public HeightIndexedBlockStoreTest(StoreType storeType) {
+        this.storeType = storeType;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("heightindex", null);
+        dir.delete();
+        dir.mkdir();
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                for (File g : f.listFiles())
+                    g.delete();
+            }
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private HeightIndexedBlockStore open() throws Exception {
+        switch (storeType) {
+            case MEMORY:
+                return new MemoryBlockStore(params);
+            case SPV:
+                return new SPVBlockStore(params, new File(dir, "spvchain"));
+            case H2:
+                return new H2FullPrunedBlockStore(params, new File(dir, "fullchain").getPath(), 10);
+            case LSM:
+                return new LsmFullPrunedBlockStore(params, new File(dir, "lsm"), 10);
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    // Closes and opens the store again, to check the index survives. Memory stores are kept as they are.
+    private void reopen() throws Exception {
+        if (storeType == StoreType.MEMORY)
+            return;
+        store.close();
+        store = open();
+    }
+
+    private void setHead(StoredBlock head) throws Exception {
+        if (store instanceof FullPrunedBlockStore)
+            ((FullPrunedBlockStore) store).setVerifiedChainHead(head);
+        else
+            store.setChainHead(head);
+    }
+
+    // Extends the chain from the given block, moving the head along with it, and returns it starting with that block.
+    private List<StoredBlock> extend(StoredBlock prev, int count, long time) throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(prev);
+        for (int i = 0; i < count; i++) {
+            Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, time + i,
+                    Block.EASIEST_DIFFICULTY_TARGET, 0, Collections.<Transaction>emptyList());
+            header.solve();
+            prev = prev.build(header);
+            store.put(prev);
+            setHead(prev);
+            chain.add(prev);
+        }
+        return chain;
+    }
+
+    private void assertMainChain(List<StoredBlock> chain, int top) throws Exception {
+        for (int height = 0; height <= top; height++)
+            assertEquals("height " + height, chain.get(height), store.getByHeight(height));
+        assertNull(store.getByHeight(top + 1));
+        assertNull(store.getByHeight(-1));
+        assertEquals(chain.subList(0, top + 1), Lists.newArrayList(store.getRange(0, top + 10)));
+    }
+
+    @Test
+    public void mainChain() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 30, 1000);
+        assertMainChain(chain, 30);
+        assertEquals(chain.subList(5, 11), Lists.newArrayList(store.getRange(5, 10)));
+        assertEquals(Collections.emptyList(), Lists.newArrayList(store.getRange(10, 5)));
+        reopen();
+        assertMainChain(chain, 30);
+    }
+
+    @Test
+    public void reorgs() throws Exception {
+        List<StoredBlock> chain = extend(store.getChainHead(), 30, 1000);
+
+        // A shorter fork from height 20, heights above its tip aren't on the main chain any more.
+        List<StoredBlock> fork = extend(chain.get(20), 5, 5000);
+        List<StoredBlock> expected = new ArrayList<StoredBlock>(chain.subList(0, 20));
+        expected.addAll(fork);
+        assertMainChain(expected, 25);
+        reopen();
+        assertMainChain(expected, 25);
+
+        // And back again.
+        setHead(chain.get(30));
+        assertMainChain(chain, 30);
+        reopen();
+        assertMainChain(chain, 30);
+    }
+}
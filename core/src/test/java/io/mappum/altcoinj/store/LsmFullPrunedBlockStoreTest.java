@@ -0,0 +1,75 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import io.mappum.altcoinj.core.*;
+import io.mappum.altcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class LsmFullPrunedBlockStoreTest {
+    private static final int OUTPUTS = 25000;
+
+    private final NetworkParameters params = UnitTestParams.get();
+    private File dir;
+    private LsmFullPrunedBlockStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("lsmstore", null);
+        dir.delete();
+        store = new LsmFullPrunedBlockStore(params, dir, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    private static StoredTransactionOutput output(int i) {
+        Sha256Hash hash = Sha256Hash.create(ByteBuffer.allocate(4).putInt(i).array());
+        // Every tenth one a coinbase, which keeps its height.
+        return new StoredTransactionOutput(hash, i % 3, Coin.valueOf(i + 1), i, i % 10 == 0, new byte[] {(byte) i});
+    }
+
+    @Test
+    public void outputsSurviveReopen() throws Exception {
+        store.beginDatabaseBatchWrite();
+        for (int i = 0; i < OUTPUTS; i++)
+            store.addUnspentTransactionOutput(output(i));
+        store.commitDatabaseBatchWrite();
+        store.close();
+
+        store = new LsmFullPrunedBlockStore(params, dir, 10);
+        for (int i = 0; i < OUTPUTS; i++) {
+            StoredTransactionOutput expected = output(i);
+            StoredTransactionOutput out = store.getTransactionOutput(expected.getHash(), expected.getIndex());
+            assertEquals(expected, out);
+            assertEquals(expected.getHeight(), out.getHeight());
+            assertEquals(expected.getValue(), out.getValue());
+            assertArrayEquals(expected.getScriptBytes(), out.getScriptBytes());
+        }
+        assertEquals(params.getGenesisBlock().getHash(), store.getChainHead().getHeader().getHash());
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.mappum.altcoinj.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class LsmTreeTest {
+    private File dir;
+    private LsmTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("lsmtree", null);
+        dir.delete();
+        tree = new LsmTree(dir, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tree.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private static byte[] key(int i) {
+        return ByteBuffer.allocate(4).putInt(i).array();
+    }
+
+    private void put(int key, byte[] value) throws Exception {
+        LsmTree.WriteBatch batch = new LsmTree.WriteBatch();
+        batch.put(key(key), value);
+        tree.write(batch);
+    }
+
+    private void reopen() throws Exception {
+        tree.close();
+        tree = new LsmTree(dir, 4096);
+    }
+
+    @Test
+    public void basics() throws Exception {
+        assertNull(tree.get(key(1)));
+        LsmTree.WriteBatch batch = new LsmTree.WriteBatch();
+        batch.put(key(1), new byte[] {1});
+        batch.put(key(2), new byte[0]);
+        batch.put(key(3), new byte[] {3});
+        batch.delete(key(3));
+        tree.write(batch);
+        assertArrayEquals(new byte[] {1}, tree.get(key(1)));
+        // Empty values aren't deletions.
+        assertArrayEquals(new byte[0], tree.get(key(2)));
+        assertNull(tree.get(key(3)));
+        reopen();
+        assertArrayEquals(new byte[] {1}, tree.get(key(1)));
+        assertArrayEquals(new byte[0], tree.get(key(2)));
+        assertNull(tree.get(key(3)));
+        assertEquals(0, tree.getTableCount());
+    }
+
+    @Test
+    public void keysAreUnsigned() throws Exception {
+        put(0x7fffffff, new byte[] {1});
+        put(0x80000000, new byte[] {2});
+        tree.flush();
+        List<Map.Entry<byte[], byte[]>> entries = tree.scan(key(0), key(-1), 10, null);
+        assertEquals(2, entries.size());
+        assertArrayEquals(key(0x7fffffff), entries.get(0).getKey());
+        assertArrayEquals(key(0x80000000), entries.get(1).getKey());
+    }
+
+    @Test
+    public void randomized() throws Exception {
+        // Enough writes for many flushes and merges, checked against a plain sorted map.
+        Random random = new Random(1);
+        TreeMap<Integer, byte[]> expected = new TreeMap<Integer, byte[]>();
+        for (int round = 0; round < 200; round++) {
+            LsmTree.WriteBatch batch = new LsmTree.WriteBatch();
+            for (int i = 0; i < 20; i++) {
+                int key = random.nextInt(2000);
+                if (random.nextInt(4) == 0) {
+                    batch.delete(key(key));
+                    expected.remove(key);
+                } else {
+                    byte[] value = new byte[random.nextInt(40)];
+                    random.nextBytes(value);
+                    batch.put(key(key), value);
+                    expected.put(key, value);
+                }
+            }
+            tree.write(batch);
+            if (round % 50 == 49)
+                reopen();
+        }
+        assertTrue(tree.getTableCount() > 1);
+        for (int key = 0; key < 2000; key++)
+            assertArrayEquals(expected.get(key), tree.get(key(key)));
+        List<Map.Entry<byte[], byte[]>> entries = tree.scan(key(500), key(1500), Integer.MAX_VALUE, null);
+        Map<Integer, byte[]> range = expected.subMap(500, 1500);
+        assertEquals(range.size(), entries.size());
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> entry : range.entrySet()) {
+            assertArrayEquals(key(entry.getKey()), entries.get(i).getKey());
+            assertArrayEquals(entry.getValue(), entries.get(i).getValue());
+            i++;
+        }
+        assertEquals(3, tree.scan(key(0), key(2000), 3, null).size());
+    }
+
+    @Test
+    public void compact() throws Exception {
+        byte[] value = new byte[100];
+        for (int i = 0; i < 500; i++)
+            put(i, value);
+        for (int i = 0; i < 400; i++) {
+            LsmTree.WriteBatch batch = new LsmTree.WriteBatch();
+            batch.delete(key(i));
+            tree.write(batch);
+        }
+        assertTrue(tree.getTableCount() > 1);
+        long size = tree.getDiskSize();
+        tree.compact();
+        assertEquals(1, tree.getTableCount());
+        // Little more than the 100 values that are left.
+        assertTrue(tree.getDiskSize() < size / 2);
+        assertTrue(tree.getDiskSize() < 100 * 120);
+        assertEquals(100, tree.scan(key(0), key(1000), Integer.MAX_VALUE, null).size());
+        reopen();
+        assertNull(tree.get(key(0)));
+        assertArrayEquals(value, tree.get(key(499)));
+    }
+
+    @Test
+    public void overlay() throws Exception {
+        put(1, new byte[] {1});
+        put(2, new byte[] {2});
+        LsmTree.WriteBatch overlay = new LsmTree.WriteBatch();
+        overlay.delete(key(1));
+        overlay.put(key(3), new byte[] {3});
+        List<Map.Entry<byte[], byte[]>> entries = tree.scan(key(0), key(10), 10, overlay);
+        assertEquals(2, entries.size());
+        assertArrayEquals(key(2), entries.get(0).getKey());
+        assertArrayEquals(key(3), entries.get(1).getKey());
+        // Nothing was written.
+        assertArrayEquals(new byte[] {1}, tree.get(key(1)));
+        assertNull(tree.get(key(3)));
+    }
+
+    @Test
+    public void tornBatch() throws Exception {
+        put(1, new byte[] {1});
+        put(2, new byte[] {2});
+        tree.close();
+        // Cut the last batch short, as if we crashed while writing it.
+        RandomAccessFile log = new RandomAccessFile(new File(dir, "log"), "rw");
+        log.setLength(log.length() - 1);
+        log.close();
+        tree = new LsmTree(dir, 4096);
+        assertArrayEquals(new byte[] {1}, tree.get(key(1)));
+        assertNull(tree.get(key(2)));
+        // And it carries on after the good part.
+        put(3, new byte[] {3});
+        reopen();
+        assertArrayEquals(new byte[] {1}, tree.get(key(1)));
+        assertArrayEquals(new byte[] {3}, tree.get(key(3)));
+    }
+
+    @Test
+    public void leftoverTempFile() throws Exception {
+        put(1, new byte[] {1});
+        tree.close();
+        File temp = new File(dir, "table-00000007.sst.tmp");
+        new RandomAccessFile(temp, "rw").close();
+        tree = new LsmTree(dir, 4096);
+        assertFalse(temp.exists());
+        assertArrayEquals(new byte[] {1}, tree.get(key(1)));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void locked() throws Exception {
+        new LsmTree(dir, 4096);
+    }
+}
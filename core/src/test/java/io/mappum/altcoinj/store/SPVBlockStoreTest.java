@@ -19,13 +19,30 @@ package io.mappum.altcoinj.store;
 import io.mappum.altcoinj.core.Address;
 import io.mappum.altcoinj.core.ECKey;
 import io.mappum.altcoinj.core.NetworkParameters;
+import io.mappum.altcoinj.core.Block;
+import io.mappum.altcoinj.core.Sha256Hash;
 import io.mappum.altcoinj.core.StoredBlock;
+import io.mappum.altcoinj.core.Transaction;
+import io.mappum.altcoinj.params.DogecoinMainNetParams;
+import io.mappum.altcoinj.params.LitecoinMainNetParams;
+import io.mappum.altcoinj.params.MainNetParams;
 import io.mappum.altcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +75,266 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void powHashes() throws Exception {
+        NetworkParameters params = LitecoinMainNetParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, true);
+        assertEquals(1024 + 160 * params.getSpvBlockStoreCapacity(), f.length());
+        Block genesis = params.getGenesisBlock();
+        store.close();
+
+        // The file remembers its layout, whatever is asked for when reopening it.
+        store = new SPVBlockStore(params, f);
+        Block stored = store.get(genesis.getHash()).getHeader();
+        assertEquals(genesis, stored);
+        assertEquals(params.getProofOfWork().getHash(genesis), stored.getPowHash());
+        assertNotEquals(stored.getHash(), stored.getPowHash());
+        store.close();
+    }
+
+    @Test
+    public void wrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+
+        // More headers than fit, so the ring overwrites the oldest ones.
+        int count = SPVBlockStore.DEFAULT_NUM_HEADERS + 1000;
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, 1000 + i,
+                    Block.EASIEST_DIFFICULTY_TARGET, i, Collections.<Transaction>emptyList());
+            prev = prev.build(header);
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        store.close();
+
+        // A fresh store has nothing cached, so all of these come from the index.
+        store = new SPVBlockStore(params, f);
+        int overwritten = count - SPVBlockStore.DEFAULT_NUM_HEADERS + 1;  // Plus the genesis block.
+        for (int i = 0; i < count; i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < overwritten - 1)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+        assertEquals(prev, store.getChainHead());
+        // The height index only reaches back as far as the ring does.
+        assertEquals(blocks.get(overwritten - 1), store.getByHeight(overwritten));
+        assertNull(store.getByHeight(overwritten - 1));
+        assertEquals(prev, store.getByHeight(count));
+
+        // Writing on keeps the index in step with the ring.
+        StoredBlock next = prev.build(new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, 0,
+                Block.EASIEST_DIFFICULTY_TARGET, 0, Collections.<Transaction>emptyList()));
+        store.put(next);
+        assertNull(store.get(blocks.get(overwritten - 1).getHeader().getHash()));
+        assertEquals(blocks.get(overwritten), store.get(blocks.get(overwritten).getHeader().getHash()));
+        assertEquals(next, store.get(next.getHeader().getHash()));
+        store.close();
+    }
+
+    private static List<StoredBlock> extend(SPVBlockStore store, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            Block header = new Block(prev.getHeader().getParams(), 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                    1000 + i, Block.EASIEST_DIFFICULTY_TARGET, i, Collections.<Transaction>emptyList());
+            prev = prev.build(header);
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        return blocks;
+    }
+
+    @Test
+    public void capacity() throws Exception {
+        assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS, MainNetParams.get().getSpvBlockStoreCapacity());
+        assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS, UnitTestParams.get().getSpvBlockStoreCapacity());
+        assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS * 4, LitecoinMainNetParams.get().getSpvBlockStoreCapacity());
+        assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS * 10, DogecoinMainNetParams.get().getSpvBlockStoreCapacity());
+
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(UnitTestParams.get(), f, 100, false);
+        assertEquals(100, store.getNumHeaders());
+        assertEquals(1024 + 128 * 100, f.length());
+        store.close();
+        // Reopening without a capacity keeps the file as it is, as long as it's at least the default.
+        store = new SPVBlockStore(UnitTestParams.get(), f, SPVBlockStore.DEFAULT_NUM_HEADERS * 2, false);
+        store.close();
+        store = new SPVBlockStore(UnitTestParams.get(), f);
+        assertEquals(SPVBlockStore.DEFAULT_NUM_HEADERS * 2, store.getNumHeaders());
+        store.close();
+    }
+
+    @Test
+    public void growAndShrink() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100, false);
+        List<StoredBlock> blocks = extend(store, 150);
+        store.close();
+
+        // Growing keeps everything that was in the ring, and there is room for more without losing any of it.
+        store = new SPVBlockStore(params, f, 300, false);
+        assertEquals(1024 + 128 * 300, f.length());
+        for (int i = 0; i < 150; i++)
+            assertEquals(i >= 50, store.get(blocks.get(i).getHeader().getHash()) != null);
+        assertEquals(blocks.get(149), store.getChainHead());
+        blocks.addAll(extend(store, 200));
+        for (int i = 50; i < 350; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+
+        // Shrinking keeps the newest headers, online.
+        store.resize(120);
+        assertEquals(1024 + 128 * 120, f.length());
+        for (int i = 0; i < 350; i++)
+            assertEquals(i >= 230, store.get(blocks.get(i).getHeader().getHash()) != null);
+        List<StoredBlock> more = extend(store, 10);
+        store.close();
+
+        // The ring carried on from where the resize left it.
+        store = new SPVBlockStore(params, f, 120, false);
+        assertEquals(more.get(9), store.getChainHead());
+        assertNull(store.get(blocks.get(239).getHeader().getHash()));
+        assertEquals(blocks.get(240), store.get(blocks.get(240).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void shrinkKeepsChainHead() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100, false);
+        List<StoredBlock> blocks = extend(store, 50);
+        store.setChainHead(blocks.get(10));
+        try {
+            store.resize(20);
+            fail();
+        } catch (BlockStoreException e) {
+            assertTrue(e.getMessage().contains("chain head"));
+        }
+        // Nothing was changed.
+        assertEquals(100, store.getNumHeaders());
+        assertEquals(blocks.get(0), store.get(blocks.get(0).getHeader().getHash()));
+        store.close();
+
+        // Nor is it when the resize happens on opening the store, which works on a copy.
+        try {
+            new SPVBlockStore(params, f, 20, false);
+            fail();
+        } catch (BlockStoreException e) {
+            assertTrue(e.getMessage().contains("chain head"));
+        }
+        assertFalse(new File(f.getPath() + ".resize").exists());
+        store = new SPVBlockStore(params, f, 100, false);
+        assertEquals(blocks.get(10), store.getChainHead());
+        assertEquals(blocks.get(0), store.get(blocks.get(0).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void readersDuringWrites() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        // A small ring so that it wraps around many times and readers see records being overwritten.
+        final SPVBlockStore store = new SPVBlockStore(params, f, 50, false);
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < 3000; i++) {
+            Block header = new Block(params, 2, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH, 1000 + i,
+                    Block.EASIEST_DIFFICULTY_TARGET, i, Collections.<Transaction>emptyList());
+            prev = prev.build(header);
+            blocks.add(prev);
+        }
+
+        final AtomicInteger written = new AtomicInteger(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (written.get() < blocks.size()) {
+                            // Blocks that are written, about to be written and overwritten already.
+                            int height = Math.max(0, written.get() - random.nextInt(100));
+                            StoredBlock expected = blocks.get(Math.min(height, blocks.size() - 1));
+                            StoredBlock found = store.get(expected.getHeader().getHash());
+                            if (found != null && !found.equals(expected))
+                                throw new AssertionError("Wrong block " + found);
+                            found = store.getByHeight(expected.getHeight());
+                            if (found != null && found.getHeight() != expected.getHeight())
+                                throw new AssertionError("Wrong height " + found);
+                            if (store.getChainHead() == null)
+                                throw new AssertionError("No chain head");
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 1; i < blocks.size(); i++) {
+            store.put(blocks.get(i));
+            store.setChainHead(blocks.get(i));
+            written.incrementAndGet();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        // A lookup that missed while a block was being written doesn't hide it afterwards.
+        for (int i = blocks.size() - 50; i < blocks.size(); i++) {
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+            assertEquals(blocks.get(i), store.getByHeight(blocks.get(i).getHeight()));
+        }
+        store.close();
+    }
+
+    @Test
+    public void flushPolicy() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        try {
+            store.setFlushPolicy(-1, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        store.setFlushPolicy(10, 1);
+        List<StoredBlock> blocks = extend(store, 25);
+        store.close();
+        store = new SPVBlockStore(params, f);
+        assertEquals(blocks.get(24), store.getChainHead());
+        store.close();
+    }
 }
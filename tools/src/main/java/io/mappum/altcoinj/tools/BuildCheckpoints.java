@@ -19,7 +19,8 @@ package io.mappum.altcoinj.tools;
 
 import io.mappum.altcoinj.core.*;
 import io.mappum.altcoinj.params.TestNet3Params;
-import io.mappum.altcoinj.store.BlockStore;
+import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.HeightIndexedBlockStore;
 import io.mappum.altcoinj.store.MemoryBlockStore;
 import io.mappum.altcoinj.utils.BriefLogFormatter;
 import io.mappum.altcoinj.utils.Threading;
@@ -37,6 +38,7 @@ import java.nio.ByteBuffer;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.Date;
+import java.util.Map;
 import java.util.TreeMap;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -59,7 +61,7 @@ public class BuildCheckpoints {
 
         // Configure bitcoinj to fetch only headers, not save them to disk, connect to a local fully synced/validated
         // node and to save block headers that are on interval boundaries, as long as they are <1 month old.
-        final BlockStore store = new MemoryBlockStore(PARAMS);
+        final HeightIndexedBlockStore store = new MemoryBlockStore(PARAMS);
         final BlockChain chain = new BlockChain(PARAMS, store);
         final PeerGroup peerGroup = new PeerGroup(PARAMS, chain);
         peerGroup.addAddress(InetAddress.getLocalHost());
@@ -86,6 +88,8 @@ public class BuildCheckpoints {
 
         checkState(checkpoints.size() > 0);
 
+        replaceReorgedCheckpoints(checkpoints, store);
+
         // Write checkpoint data out.
         writeBinaryCheckpoints(checkpoints, PLAIN_CHECKPOINTS_FILE);
         writeTextualCheckpoints(checkpoints, TEXTUAL_CHECKPOINTS_FILE);
@@ -99,6 +103,22 @@ public class BuildCheckpoints {
         sanityCheck(TEXTUAL_CHECKPOINTS_FILE, checkpoints.size());
     }
 
+    /**
+     * A checkpoint may have been re-orged away after it was seen. The store remembers the recent part of the chain,
+     * which is the only part where that can have happened, so replaces those with the blocks now there.
+     */
+    static void replaceReorgedCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, HeightIndexedBlockStore store)
+            throws BlockStoreException {
+        for (Map.Entry<Integer, StoredBlock> entry : checkpoints.entrySet()) {
+            StoredBlock block = store.getByHeight(entry.getValue().getHeight());
+            if (block != null && !block.equals(entry.getValue())) {
+                System.out.println(String.format("Replacing checkpoint at height %d with %s", block.getHeight(),
+                        block.getHeader().getHash()));
+                entry.setValue(block);
+            }
+        }
+    }
+
     private static void writeBinaryCheckpoints(TreeMap<Integer, StoredBlock> checkpoints, File file) throws Exception {
         final FileOutputStream fileOutputStream = new FileOutputStream(file, false);
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
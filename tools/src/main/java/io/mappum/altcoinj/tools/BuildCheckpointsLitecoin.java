@@ -19,7 +19,7 @@ package io.mappum.altcoinj.tools;
 
 import io.mappum.altcoinj.core.*;
 import io.mappum.altcoinj.params.LitecoinMainNetParams;
-import io.mappum.altcoinj.store.BlockStore;
+import io.mappum.altcoinj.store.HeightIndexedBlockStore;
 import io.mappum.altcoinj.store.MemoryBlockStore;
 import io.mappum.altcoinj.utils.BriefLogFormatter;
 import io.mappum.altcoinj.utils.Threading;
@@ -59,7 +59,7 @@ public class BuildCheckpointsLitecoin {
 
         // Configure bitcoinj to fetch only headers, not save them to disk, connect to a local fully synced/validated
         // node and to save block headers that are on interval boundaries, as long as they are <1 month old.
-        final BlockStore store = new MemoryBlockStore(PARAMS);
+        final HeightIndexedBlockStore store = new MemoryBlockStore(PARAMS);
         final BlockChain chain = new BlockChain(PARAMS, store);
         final PeerGroup peerGroup = new PeerGroup(PARAMS, chain);
         peerGroup.addAddress(InetAddress.getLocalHost());
@@ -87,6 +87,8 @@ public class BuildCheckpointsLitecoin {
 
         checkState(checkpoints.size() > 0);
 
+        BuildCheckpoints.replaceReorgedCheckpoints(checkpoints, store);
+
         // Write checkpoint data out.
         writeBinaryCheckpoints(checkpoints, PLAIN_CHECKPOINTS_FILE);
         writeTextualCheckpoints(checkpoints, TEXTUAL_CHECKPOINTS_FILE);
@@ -0,0 +1,44 @@
+package io.mappum.altcoinj.tools;
+
+import io.mappum.altcoinj.core.NetworkParameters;
+import io.mappum.altcoinj.params.MainNetParams;
+import io.mappum.altcoinj.params.TestNet3Params;
+import io.mappum.altcoinj.store.BlockStoreException;
+import io.mappum.altcoinj.store.H2FullPrunedBlockStore;
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+
+/** Converts an H2 full pruned block store written by an older version to the compact output encoding. */
+public class MigrateFullPrunedStore {
+    public static void main(String[] args) throws BlockStoreException {
+        System.out.println("USAGE: MigrateFullPrunedStore (prod|test) h2Store");
+        System.out.println("       eg MigrateFullPrunedStore prod /home/user/bitcoinj.h2store");
+        System.out.println("       Nothing else may use the store while it runs");
+        Preconditions.checkArgument(args.length == 2);
+
+        NetworkParameters params;
+        if (args[0].equals("test"))
+            params = TestNet3Params.get();
+        else
+            params = MainNetParams.get();
+
+        File file = new File(args[1] + ".h2.db");
+        if (!file.exists()) {
+            System.err.println("No H2 store at " + args[1]);
+            return;
+        }
+        System.out.println("Size before: " + file.length() + " bytes");
+        H2FullPrunedBlockStore store = new H2FullPrunedBlockStore(params, args[1], 100);
+        try {
+            if (store.hasCompactOutputs()) {
+                System.out.println("Already compact");
+                return;
+            }
+            store.migrateToCompactOutputs();
+        } finally {
+            store.close();
+        }
+        System.out.println("Size after: " + file.length() + " bytes");
+    }
+}